@@ -1,17 +1,34 @@
 package org.example;
 
 import org.example.handlers.HttpRequestHandler;
+import org.example.handlers.StaticFileHandler;
 import org.example.server.HttpServer;
+import org.example.store.DurableDataStore;
+import org.example.store.WriteAheadLog;
 
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 
 public class ServerApp {
     public static void main(String[] args) {
         try {
             HttpServer server = new HttpServer("localhost", 8081);
-            HttpRequestHandler handler = new HttpRequestHandler();
+            // The data store is kept in the "data" directory, a change is answered once it is on disk
+            // and a snapshot is taken every minute
+            Path dataDirectory = Paths.get("data");
+            boolean newStore = !Files.exists(dataDirectory);
+            DurableDataStore dataStore = new DurableDataStore(dataDirectory, WriteAheadLog.Durability.SYNC, 1000, 60_000);
+            if (newStore) {
+                HttpRequestHandler.addExampleData(dataStore);
+            }
+            HttpRequestHandler handler = new HttpRequestHandler(dataStore);
             handler.registerHandlers(server);
 
+            // Serving the files of the "public" directory
+            server.addHandler("GET", "/static/{*file}", new StaticFileHandler(Paths.get("public")));
+
             // Setting a flag to simulate long-term operations
             HttpRequestHandler.setFlagForLongTimeout(true);
 
@@ -22,8 +39,15 @@ public class ServerApp {
             // to a non-existent API)
             handler.setExternalServiceAvailable(true);
 
-            // Adding shutdownhook
+            // Adding shutdownhook: the handlers already running may finish their changes before
+            // the store is closed
             Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    server.stop(server.getConfig().getHandlerTimeoutMillis());
+                    dataStore.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
                 System.out.println("Server closed. Goodbye!");
             }));
 
@@ -0,0 +1,29 @@
+package org.example.auth;
+
+/**
+ * AuthPolicy states who may call a route. It is declared when the handler is registered and
+ * enforced by the server before the handler runs.
+ */
+public enum AuthPolicy {
+    /** Anyone, with or without a token. */
+    PUBLIC,
+    /** Callers with a valid token. */
+    USER,
+    /** Callers with a valid token that carries the admin role. */
+    ADMIN;
+
+    /**
+     * Returns true if the principal may call a route with this policy.
+     * @param principal the verified caller, or null for an anonymous one
+     */
+    public boolean permits(Principal principal) {
+        switch (this) {
+            case PUBLIC:
+                return true;
+            case USER:
+                return principal != null;
+            default:
+                return principal != null && principal.isAdmin();
+        }
+    }
+}
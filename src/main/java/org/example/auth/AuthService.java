@@ -1,34 +1,113 @@
 package org.example.auth;
 
-import java.util.HashSet;
-import java.util.Set;
+import java.util.UUID;
 
 /**
  * AuthService is a simple authentication and authorization service.
  * It manages authentication tokens and checks authorization levels.
+ * <p>
+ * Tokens expire after a time to live. By default they are random strings kept in a
+ * {@link TokenStore}; with {@link #useSignedTokens(byte[])} new tokens are signed instead and
+ * carry their role and expiry themselves, so checking them is a signature check with no
+ * lookup in shared state. Tokens registered in the store stay valid in both modes. All
+ * methods are safe to call from any number of handler threads.
  */
 
 public class AuthService {
-    private static final Set<String> authenticatedTokens = new HashSet<>();
-    private static final Set<String> authorizedTokens = new HashSet<>();
+    /** How long a token is valid unless configured otherwise: one hour. */
+    public static final long DEFAULT_TOKEN_TTL_MILLIS = 60 * 60 * 1000;
+
+    private static final int MAX_STORED_TOKENS = 100_000;
+    private static final long SWEEP_INTERVAL_MILLIS = 60_000;
+
+    private static final TokenStore store = new TokenStore(MAX_STORED_TOKENS, SWEEP_INTERVAL_MILLIS);
+    private static volatile TokenSigner signer;
+    private static volatile long tokenTtlMillis = DEFAULT_TOKEN_TTL_MILLIS;
+
+    /**
+     * Issues a new token, signed if signed tokens are enabled and stored otherwise.
+     * @param isAdmin whether the token carries the admin role
+     */
+    public static String issueToken(boolean isAdmin) {
+        TokenSigner current = signer;
+        if (current != null) {
+            return current.sign(isAdmin, tokenTtlMillis);
+        }
+        String token = UUID.randomUUID().toString();
+        registerToken(token, isAdmin);
+        return token;
+    }
 
     // Adding a method for registering tokens
     public static void registerToken(String token, boolean isAdmin) {
-        authenticatedTokens.add(token);
-        if (isAdmin) {
-            authorizedTokens.add(token);
-        }
+        store.put(token, isAdmin, tokenTtlMillis);
     }
 
     public static boolean isAuthenticated(String token) {
-        return authenticatedTokens.contains(token);
+        if (token == null) {
+            return false;
+        }
+        TokenSigner current = signer;
+        if (current != null && TokenSigner.isSignedToken(token)) {
+            return current.isValid(token);
+        }
+        return store.isValid(token);
+    }
+
+    /**
+     * Verifies the token and returns who it belongs to.
+     * @return the principal, or null if the token is missing, unknown or expired
+     */
+    public static Principal authenticate(String token) {
+        if (token == null) {
+            return null;
+        }
+        TokenSigner current = signer;
+        if (current != null && TokenSigner.isSignedToken(token)) {
+            return current.authenticate(token);
+        }
+        return store.authenticate(token);
     }
 
     public static boolean isAuthorized(String token) {
-        return authorizedTokens.contains(token);
+        return isAdmin(token);
     }
 
     public static boolean isAdmin(String token) {
-        return authorizedTokens.contains(token);
+        if (token == null) {
+            return false;
+        }
+        TokenSigner current = signer;
+        if (current != null && TokenSigner.isSignedToken(token)) {
+            return current.isAdmin(token);
+        }
+        return store.isAdmin(token);
+    }
+
+    /**
+     * Invalidates a stored token. Signed tokens cannot be revoked and stay valid until they expire.
+     */
+    public static void revokeToken(String token) {
+        store.remove(token);
+    }
+
+    /**
+     * Sets how long tokens issued or registered from now on are valid.
+     * @param ttlMillis the time to live in milliseconds
+     */
+    public static void setTokenTtlMillis(long ttlMillis) {
+        if (ttlMillis <= 0) {
+            throw new IllegalArgumentException("ttlMillis must be positive");
+        }
+        tokenTtlMillis = ttlMillis;
+    }
+
+    /**
+     * Enables stateless tokens signed with HMAC-SHA256 for the tokens issued from now on.
+     * Every server that has to accept the tokens needs the same key.
+     * @param secret the signing key, at least 32 bytes, or null to issue stored tokens again
+     */
+    public static void useSignedTokens(byte[] secret) {
+        signer = secret == null ? null : new TokenSigner(secret);
     }
 }
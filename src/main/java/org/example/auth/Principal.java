@@ -0,0 +1,36 @@
+package org.example.auth;
+
+/**
+ * A caller whose token has been verified, together with its role.
+ */
+public final class Principal {
+    private final String token;
+    private final boolean admin;
+    private final long verifiedAt;
+
+    Principal(String token, boolean admin, long verifiedAt) {
+        this.token = token;
+        this.admin = admin;
+        this.verifiedAt = verifiedAt;
+    }
+
+    public String getToken() {
+        return token;
+    }
+
+    public boolean isAdmin() {
+        return admin;
+    }
+
+    /**
+     * Returns the {@link System#nanoTime()} at which the token was verified.
+     */
+    long getVerifiedAt() {
+        return verifiedAt;
+    }
+
+    @Override
+    public String toString() {
+        return admin ? "Principal{admin}" : "Principal{user}";
+    }
+}
@@ -0,0 +1,34 @@
+package org.example.auth;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * PrincipalCache remembers the last principal verified on one connection. Clients send the
+ * same Authorization header with every request of a keep-alive connection, so most requests
+ * find their token here and skip the store lookup or signature check. An entry is trusted for
+ * one second, which bounds how long a revoked or expired token keeps working on a connection
+ * that is already open. The entry is a single immutable object behind a volatile field, so
+ * handler threads of pipelined or multiplexed requests can use the cache concurrently.
+ */
+public final class PrincipalCache {
+    private static final long REVERIFY_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private volatile Principal last;
+
+    /**
+     * Verifies the token, reusing the last result of this connection while it is fresh.
+     * @return the principal, or null if the token is not valid
+     */
+    public Principal authenticate(String token) {
+        long now = System.nanoTime();
+        Principal cached = last;
+        if (cached != null && now - cached.getVerifiedAt() < REVERIFY_NANOS && cached.getToken().equals(token)) {
+            return cached;
+        }
+        Principal principal = AuthService.authenticate(token);
+        if (principal != null) {
+            last = principal;
+        }
+        return principal;
+    }
+}
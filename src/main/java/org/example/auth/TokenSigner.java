@@ -0,0 +1,123 @@
+package org.example.auth;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+
+/**
+ * TokenSigner issues and verifies stateless tokens: the role and the expiry time are part of
+ * the token and signed with HMAC-SHA256, so verifying a token needs no shared state, only the
+ * key. A token is the URL-safe Base64 encoding of the payload, a dot and the encoding of its
+ * signature. The payload is one role byte, the expiry time in epoch milliseconds and eight
+ * random bytes that make every token unique. Signatures are compared in constant time, and
+ * every thread keeps its own Mac, since a Mac instance is not thread-safe.
+ */
+public class TokenSigner {
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final int PAYLOAD_LENGTH = 1 + 8 + 8;
+    private static final byte ROLE_USER = 'U';
+    private static final byte ROLE_ADMIN = 'A';
+
+    private final SecretKeySpec key;
+    private final ThreadLocal<Mac> macs;
+    private final SecureRandom random = new SecureRandom();
+
+    /**
+     * @param secret the signing key, at least 32 bytes
+     */
+    public TokenSigner(byte[] secret) {
+        if (secret.length < 32) {
+            throw new IllegalArgumentException("The signing key must have at least 32 bytes");
+        }
+        this.key = new SecretKeySpec(secret.clone(), ALGORITHM);
+        this.macs = ThreadLocal.withInitial(this::newMac);
+        // Fails here rather than on the first request if the algorithm is missing
+        newMac();
+    }
+
+    /**
+     * Issues a token that is valid for the given time.
+     */
+    public String sign(boolean admin, long ttlMillis) {
+        byte[] nonce = new byte[8];
+        random.nextBytes(nonce);
+        byte[] payload = ByteBuffer.allocate(PAYLOAD_LENGTH)
+                .put(admin ? ROLE_ADMIN : ROLE_USER)
+                .putLong(System.currentTimeMillis() + ttlMillis)
+                .put(nonce)
+                .array();
+        Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+        return encoder.encodeToString(payload) + "." + encoder.encodeToString(macs.get().doFinal(payload));
+    }
+
+    /**
+     * Returns true if the token carries a valid signature and has not expired.
+     */
+    public boolean isValid(String token) {
+        return verify(token) != null;
+    }
+
+    /**
+     * Returns true if the token is valid and carries the admin role.
+     */
+    public boolean isAdmin(String token) {
+        byte[] payload = verify(token);
+        return payload != null && payload[0] == ROLE_ADMIN;
+    }
+
+    /**
+     * Returns the principal of a valid token, or null.
+     */
+    Principal authenticate(String token) {
+        byte[] payload = verify(token);
+        return payload == null ? null : new Principal(token, payload[0] == ROLE_ADMIN, System.nanoTime());
+    }
+
+    /**
+     * Returns true if the string has the shape of a signed token, which store tokens never have.
+     */
+    static boolean isSignedToken(String token) {
+        return token.indexOf('.') >= 0;
+    }
+
+    /**
+     * Returns the payload of a valid token, or null.
+     */
+    private byte[] verify(String token) {
+        int dot = token.indexOf('.');
+        if (dot < 0) {
+            return null;
+        }
+        byte[] payload;
+        byte[] signature;
+        try {
+            Base64.Decoder decoder = Base64.getUrlDecoder();
+            payload = decoder.decode(token.substring(0, dot));
+            signature = decoder.decode(token.substring(dot + 1));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        if (payload.length != PAYLOAD_LENGTH) {
+            return null;
+        }
+        if (!MessageDigest.isEqual(macs.get().doFinal(payload), signature)) {
+            return null;
+        }
+        long expiresAt = ByteBuffer.wrap(payload, 1, 8).getLong();
+        return expiresAt - System.currentTimeMillis() > 0 ? payload : null;
+    }
+
+    private Mac newMac() {
+        try {
+            Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(key);
+            return mac;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(ALGORITHM + " is not available", e);
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package org.example.auth;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * TokenStore holds issued tokens with their role and expiry time. It is a concurrent map, so
+ * handler threads register and check tokens without locking. Expired tokens are treated as
+ * absent right away and removed by a background sweep. The number of tokens is bounded: when
+ * the store is full, expired tokens are removed first, and if that is not enough, arbitrary
+ * ones, whose owners then have to log in again.
+ */
+public class TokenStore {
+    private final int maxTokens;
+    private final ConcurrentHashMap<String, Entry> tokens = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "token-expiry");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static final class Entry {
+        private final boolean admin;
+        private final long expiresAt;
+
+        private Entry(boolean admin, long expiresAt) {
+            this.admin = admin;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /**
+     * @param maxTokens           how many tokens the store keeps at most
+     * @param sweepIntervalMillis how often expired tokens are removed in the background
+     */
+    public TokenStore(int maxTokens, long sweepIntervalMillis) {
+        if (maxTokens < 1) {
+            throw new IllegalArgumentException("maxTokens must be at least 1");
+        }
+        this.maxTokens = maxTokens;
+        sweeper.scheduleWithFixedDelay(() -> removeExpired(System.currentTimeMillis()),
+                sweepIntervalMillis, sweepIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Adds a token, or replaces its role and expiry if it is already known.
+     * @param ttlMillis how long the token stays valid
+     */
+    public void put(String token, boolean admin, long ttlMillis) {
+        long now = System.currentTimeMillis();
+        if (tokens.size() >= maxTokens && !tokens.containsKey(token)) {
+            makeRoom(now);
+        }
+        tokens.put(token, new Entry(admin, now + ttlMillis));
+    }
+
+    /**
+     * Returns true if the token is known and has not expired.
+     */
+    public boolean isValid(String token) {
+        return find(token) != null;
+    }
+
+    /**
+     * Returns true if the token is known, has not expired and carries the admin role.
+     */
+    public boolean isAdmin(String token) {
+        Entry entry = find(token);
+        return entry != null && entry.admin;
+    }
+
+    /**
+     * Returns the principal of a known token that has not expired, or null.
+     */
+    Principal authenticate(String token) {
+        Entry entry = find(token);
+        return entry == null ? null : new Principal(token, entry.admin, System.nanoTime());
+    }
+
+    /**
+     * Invalidates the token before it expires, for example on logout.
+     */
+    public void remove(String token) {
+        tokens.remove(token);
+    }
+
+    public int size() {
+        return tokens.size();
+    }
+
+    /**
+     * Stops the background sweep.
+     */
+    public void close() {
+        sweeper.shutdownNow();
+    }
+
+    private Entry find(String token) {
+        Entry entry = tokens.get(token);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.expiresAt - System.currentTimeMillis() <= 0) {
+            // Only the expired entry is removed, not one that replaced it meanwhile
+            tokens.remove(token, entry);
+            return null;
+        }
+        return entry;
+    }
+
+    private void removeExpired(long now) {
+        tokens.values().removeIf(entry -> entry.expiresAt - now <= 0);
+    }
+
+    private void makeRoom(long now) {
+        removeExpired(now);
+        Iterator<String> keys = tokens.keySet().iterator();
+        // Leave room so the next few tokens do not have to search again
+        while (tokens.size() >= maxTokens - maxTokens / 8 && keys.hasNext()) {
+            keys.next();
+            keys.remove();
+        }
+    }
+}
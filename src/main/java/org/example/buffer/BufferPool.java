@@ -0,0 +1,245 @@
+package org.example.buffer;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * BufferPool is a server-wide pool of direct ByteBuffers in a few fixed size classes.
+ * Direct memory lets the kernel copy straight from and into the buffer without the
+ * temporary heap bounce the JDK performs for heap buffers.
+ * Every platform thread keeps a small private cache per size class, so reactors and workers
+ * usually acquire and release without touching shared state; surplus buffers go to a
+ * bounded shared free list. Virtual threads are short-lived and numerous, so they use
+ * the shared free list directly. Requests larger than the biggest size class are served with
+ * unpooled heap buffers, which release() ignores.
+ * In debug mode every outstanding buffer is tracked together with the stack trace of its
+ * acquisition so leaks and double releases can be reported.
+ */
+public class BufferPool {
+    private static final int[] SIZE_CLASSES = {4 * 1024, 16 * 1024, 64 * 1024};
+    private static final int THREAD_CACHE_SIZE = 32;
+    private static final int SHARED_CACHE_SIZE = 1024;
+
+    private final boolean debug;
+    private final Queue<ByteBuffer>[] shared;
+    private final AtomicInteger[] sharedSizes;
+    private final ThreadLocal<ArrayDeque<ByteBuffer>[]> threadCaches;
+    private final Map<ByteBuffer, Throwable> outstanding;
+
+    private final LongAdder acquired = new LongAdder();
+    private final LongAdder released = new LongAdder();
+    private final LongAdder allocated = new LongAdder();
+    private final LongAdder threadCacheHits = new LongAdder();
+    private final LongAdder sharedCacheHits = new LongAdder();
+    private final LongAdder unpooled = new LongAdder();
+
+    public BufferPool() {
+        this(false);
+    }
+
+    /**
+     * @param debug true to track outstanding buffers for leak detection
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public BufferPool(boolean debug) {
+        this.debug = debug;
+        this.shared = new Queue[SIZE_CLASSES.length];
+        this.sharedSizes = new AtomicInteger[SIZE_CLASSES.length];
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            shared[i] = new ConcurrentLinkedQueue<>();
+            sharedSizes[i] = new AtomicInteger();
+        }
+        this.threadCaches = ThreadLocal.withInitial(() -> {
+            ArrayDeque<ByteBuffer>[] caches = new ArrayDeque[SIZE_CLASSES.length];
+            for (int i = 0; i < caches.length; i++) {
+                caches[i] = new ArrayDeque<>();
+            }
+            return caches;
+        });
+        this.outstanding = debug ? Collections.synchronizedMap(new IdentityHashMap<>()) : null;
+    }
+
+    /**
+     * Returns the largest buffer capacity served from the pool.
+     */
+    public static int maxPooledCapacity() {
+        return SIZE_CLASSES[SIZE_CLASSES.length - 1];
+    }
+
+    /**
+     * Acquires a cleared buffer with at least the given capacity.
+     * @param minCapacity the required capacity in bytes
+     * @return a direct pooled buffer, or a heap buffer if minCapacity exceeds the largest size class
+     */
+    public ByteBuffer acquire(int minCapacity) {
+        int sizeClass = sizeClassFor(minCapacity);
+        if (sizeClass < 0) {
+            unpooled.increment();
+            return ByteBuffer.allocate(minCapacity);
+        }
+        acquired.increment();
+
+        ByteBuffer buffer = Thread.currentThread().isVirtual() ? null : threadCaches.get()[sizeClass].pollFirst();
+        if (buffer != null) {
+            threadCacheHits.increment();
+        } else {
+            buffer = shared[sizeClass].poll();
+            if (buffer != null) {
+                sharedSizes[sizeClass].decrementAndGet();
+                sharedCacheHits.increment();
+            } else {
+                buffer = ByteBuffer.allocateDirect(SIZE_CLASSES[sizeClass]);
+                allocated.increment();
+            }
+        }
+        buffer.clear();
+        if (debug) {
+            outstanding.put(buffer, new Throwable("Buffer acquired by " + Thread.currentThread().getName()));
+        }
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer to the pool. Buffers that did not come from the pool are ignored,
+     * so callers may pass any buffer they are done with.
+     * @param buffer the buffer to release, may be null
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect()) {
+            return;
+        }
+        int sizeClass = exactSizeClass(buffer.capacity());
+        if (sizeClass < 0) {
+            return;
+        }
+        if (debug && outstanding.remove(buffer) == null) {
+            new IllegalStateException("Buffer released twice or not acquired from this pool").printStackTrace();
+            return;
+        }
+        released.increment();
+
+        ArrayDeque<ByteBuffer> cache = Thread.currentThread().isVirtual() ? null : threadCaches.get()[sizeClass];
+        if (cache != null && cache.size() < THREAD_CACHE_SIZE) {
+            cache.addFirst(buffer);
+        } else if (sharedSizes[sizeClass].incrementAndGet() <= SHARED_CACHE_SIZE) {
+            shared[sizeClass].add(buffer);
+        } else {
+            // The pool is full, the buffer is left to the garbage collector
+            sharedSizes[sizeClass].decrementAndGet();
+        }
+    }
+
+    /**
+     * Prints the acquisition site of every buffer that has not been released.
+     * Only available in debug mode.
+     * @return the number of leaked buffers
+     */
+    public int reportLeaks() {
+        if (!debug) {
+            return 0;
+        }
+        synchronized (outstanding) {
+            for (Throwable site : outstanding.values()) {
+                System.err.println("Leaked buffer:");
+                site.printStackTrace();
+            }
+            return outstanding.size();
+        }
+    }
+
+    public Stats getStats() {
+        return new Stats(acquired.sum(), released.sum(), allocated.sum(), threadCacheHits.sum(),
+                sharedCacheHits.sum(), unpooled.sum());
+    }
+
+    private static int sizeClassFor(int capacity) {
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            if (capacity <= SIZE_CLASSES[i]) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int exactSizeClass(int capacity) {
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            if (capacity == SIZE_CLASSES[i]) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * A snapshot of the pool counters.
+     */
+    public static final class Stats {
+        private final long acquired;
+        private final long released;
+        private final long allocated;
+        private final long threadCacheHits;
+        private final long sharedCacheHits;
+        private final long unpooled;
+
+        Stats(long acquired, long released, long allocated, long threadCacheHits, long sharedCacheHits,
+              long unpooled) {
+            this.acquired = acquired;
+            this.released = released;
+            this.allocated = allocated;
+            this.threadCacheHits = threadCacheHits;
+            this.sharedCacheHits = sharedCacheHits;
+            this.unpooled = unpooled;
+        }
+
+        public long getAcquired() {
+            return acquired;
+        }
+
+        public long getReleased() {
+            return released;
+        }
+
+        /**
+         * Returns the number of buffers currently acquired and not yet released.
+         */
+        public long getOutstanding() {
+            return acquired - released;
+        }
+
+        /**
+         * Returns the number of direct buffers that had to be allocated because the caches were empty.
+         */
+        public long getAllocated() {
+            return allocated;
+        }
+
+        public long getThreadCacheHits() {
+            return threadCacheHits;
+        }
+
+        public long getSharedCacheHits() {
+            return sharedCacheHits;
+        }
+
+        /**
+         * Returns the number of requests too large for the pool that were served with heap buffers.
+         */
+        public long getUnpooled() {
+            return unpooled;
+        }
+
+        @Override
+        public String toString() {
+            return "BufferPool{acquired=" + acquired + ", released=" + released + ", outstanding="
+                    + getOutstanding() + ", allocated=" + allocated + ", threadCacheHits=" + threadCacheHits
+                    + ", sharedCacheHits=" + sharedCacheHits + ", unpooled=" + unpooled + "}";
+        }
+    }
+}
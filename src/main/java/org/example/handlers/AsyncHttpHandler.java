@@ -0,0 +1,16 @@
+package org.example.handlers;
+
+import org.example.http.HttpRequest;
+import org.example.http.HttpResult;
+
+import java.util.concurrent.CompletionStage;
+
+/**
+ * AsyncHttpHandler is the non-blocking counterpart of HttpHandler.
+ * Implementations start their work and return immediately with a stage that completes
+ * with the result to send; the server writes the response once the stage completes.
+ * The method is invoked on a reactor thread and must not block.
+ */
+public interface AsyncHttpHandler {
+    CompletionStage<HttpResult> handle(HttpRequest request);
+}
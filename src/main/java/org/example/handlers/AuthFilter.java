@@ -0,0 +1,45 @@
+package org.example.handlers;
+
+import org.example.auth.AuthPolicy;
+import org.example.auth.AuthService;
+import org.example.auth.Principal;
+import org.example.auth.PrincipalCache;
+import org.example.http.HttpRequest;
+import org.example.http.HttpResponse;
+
+import java.io.IOException;
+
+/**
+ * AuthFilter enforces the AuthPolicy of a route. It verifies the token of the Authorization
+ * header, through the connection's PrincipalCache where there is one, attaches the principal
+ * to the request and answers 401 Unauthorized without a valid token and 403 Forbidden when the
+ * token lacks the role. Handlers behind it read the caller from
+ * {@link HttpRequest#getPrincipal()} instead of checking the header themselves.
+ */
+public final class AuthFilter implements HttpFilter {
+    private final AuthPolicy policy;
+
+    public AuthFilter(AuthPolicy policy) {
+        this.policy = policy;
+    }
+
+    @Override
+    public void filter(HttpRequest request, HttpResponse response, HttpHandler next) throws IOException {
+        String token = request.getHeaders().get("Authorization");
+        Principal principal = null;
+        if (token != null) {
+            PrincipalCache cache = request.getPrincipalCache();
+            principal = cache != null ? cache.authenticate(token) : AuthService.authenticate(token);
+        }
+        if (!policy.permits(principal)) {
+            if (principal == null) {
+                response.send(401, "Unauthorized");
+            } else {
+                response.send(403, "Forbidden");
+            }
+            return;
+        }
+        request.setPrincipal(principal);
+        next.handle(request, response);
+    }
+}
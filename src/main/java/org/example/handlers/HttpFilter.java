@@ -0,0 +1,30 @@
+package org.example.handlers;
+
+import org.example.http.HttpRequest;
+import org.example.http.HttpResponse;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * HttpFilter runs in front of an HttpHandler, for example to check who is calling or to add
+ * headers. A filter either answers the request itself or passes it on to the next handler of
+ * the chain. Chains are composed once, when the server starts, so running one allocates
+ * nothing per request.
+ */
+public interface HttpFilter {
+    void filter(HttpRequest request, HttpResponse response, HttpHandler next) throws IOException;
+
+    /**
+     * Composes the filters and the handler into one handler that runs the filters in order.
+     */
+    static HttpHandler chain(List<HttpFilter> filters, HttpHandler handler) {
+        HttpHandler chain = handler;
+        for (int i = filters.size() - 1; i >= 0; i--) {
+            HttpFilter filter = filters.get(i);
+            HttpHandler next = chain;
+            chain = (request, response) -> filter.filter(request, response, next);
+        }
+        return chain;
+    }
+}
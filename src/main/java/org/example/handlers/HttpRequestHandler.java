@@ -1,46 +1,72 @@
 package org.example.handlers;
 
 import com.google.gson.Gson;
-import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonWriter;
+import org.example.auth.AuthPolicy;
 import org.example.auth.AuthService;
 import org.example.http.HttpRequest;
 import org.example.http.HttpResponse;
+import org.example.http.HttpResult;
 import org.example.server.HttpServer;
+import org.example.server.RateLimiter;
+import org.example.store.DataStore;
+import org.example.store.InMemoryDataStore;
+import org.example.store.StoreClosedException;
+import org.example.store.VersionConflictException;
+import org.example.store.Versioned;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.nio.ByteBuffer;
-import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
-import java.nio.channels.SocketChannel;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
-import java.util.concurrent.*;
+import java.util.concurrent.CompletionStage;
 
 /**
  * HttpRequestHandler is responsible for handling various types of HTTP requests,
  * processing them, and generating appropriate responses. This class supports GET,
  * POST, PUT, PATCH, DELETE, and other HTTP methods. Short delays (5 seconds) are
  * used to check the simultaneous operation of several clients.
+ * The entries live in a {@link DataStore}; entries carry their version as an ETag, and PUT,
+ * PATCH and DELETE honour If-Match, answering 412 Precondition Failed when the entry has
+ * changed since the client read it.
  */
 
 public class HttpRequestHandler {
-    private static final Map<String, JsonObject> dataStore = new ConcurrentHashMap<>();
+    private final DataStore dataStore;
     private final Gson gson = new Gson();
-    private final ExecutorService executorService = Executors.newCachedThreadPool();
+    private final HttpClient externalClient = HttpClient.newHttpClient();
     private static boolean flagForLongTimeout = false;
     private static boolean flagForServiceAvailable = true;
     private static boolean flagForExternalServiceAvailable = true;
 
     /**
-     * Constructor initializes the HttpRequestHandler with some example data.
+     * Constructor initializes the HttpRequestHandler with an in-memory store holding some example data.
      */
     public HttpRequestHandler() {
+        this(new InMemoryDataStore());
+        addExampleData(dataStore);
+    }
+
+    /**
+     * Creates a handler serving the entries of the given store as they are.
+     * @param dataStore the store of the /data, /submit, /update, /modify and /delete endpoints
+     */
+    public HttpRequestHandler(DataStore dataStore) {
+        this.dataStore = dataStore;
+    }
+
+    /**
+     * Adds the example entry to a new store. A store that keeps its entries across restarts
+     * should only get it once, so that deleting it sticks.
+     */
+    public static void addExampleData(DataStore dataStore) {
         JsonObject exampleData = new JsonObject();
         exampleData.addProperty("field1", "value1");
         exampleData.addProperty("field2", "value2");
@@ -84,147 +110,93 @@ public class HttpRequestHandler {
      * @param server the HttpServer to register handlers with
      */
     public void registerHandlers(HttpServer server) {
-        server.addHandler("GET", "/", this::handleRequestWithTimeout);
-        server.addHandler("GET", "/data", this::handleRequestWithTimeout);
-        server.addHandler("POST", "/submit", this::handleRequestWithTimeout);
-        server.addHandler("PUT", "/update", this::handleRequestWithTimeout);
-        server.addHandler("PATCH", "/modify", this::handleRequestWithTimeout);
-        server.addHandler("DELETE", "/delete", this::handleRequestWithTimeout);
+        server.addHandler("GET", "/", guarded(this::handleRoot));
+        server.addHandler("GET", "/data", guarded(this::handleGetData));
+        server.addHandler("GET", "/data/{key}", guarded(this::handleGetDataEntry));
+        server.addHandler("POST", "/submit", guarded(this::handlePostSubmit));
+        server.addHandler("PUT", "/update", guarded(this::handlePutUpdate));
+        server.addHandler("PATCH", "/modify", guarded(this::handlePatchModify));
+        server.addHandler("DELETE", "/delete", guarded(this::handleDelete));
         server.addHandler("GET", "/external", this::handleExternalRequest);
-        server.addHandler("GET", "/secure/admin", this::handleSecureAdminRequest);
-        server.addHandler("GET", "/secure/user", this::handleSecureUserRequest);
+        server.addHandler("GET", "/secure/admin", AuthPolicy.ADMIN, this::handleSecureAdminRequest);
+        server.addHandler("GET", "/secure/user", AuthPolicy.USER, this::handleSecureUserRequest);
         server.addHandler("POST", "/register", this::handleRegisterRequest);
         server.addHandler("POST", "/login", this::handleLoginRequest);
+        // Credentials must not be guessable by brute force: one attempt per second per client after a burst of ten
+        server.setRateLimit("POST", "/register", new RateLimiter(RateLimiter.Key.CLIENT_ADDRESS, 1, 10));
+        server.setRateLimit("POST", "/login", new RateLimiter(RateLimiter.Key.CLIENT_ADDRESS, 1, 10));
         server.addHandler("POST", "/continue", this::handleContinueRequest);
         server.addHandler("GET", "/redirect", this::handleRedirect);
     }
 
     /**
-     * Handles requests with a timeout. And if the service is unavailable or the request
-     * body is too large, it sends appropriate responses.
-     * @param request the HTTP request
-     * @param response the HTTP response
+     * Wraps a handler with the service availability check. The body size limit is
+     * enforced by the server before the handler runs (413), and the 504 timeout
+     * is enforced by the server for every handler.
+     * @param handler the handler to guard
+     * @return the guarded handler
      */
-    private void handleRequestWithTimeout(HttpRequest request, HttpResponse response) {
-        if (!flagForServiceAvailable) {
-            try {
+    private HttpHandler guarded(HttpHandler handler) {
+        return (request, response) -> {
+            if (!flagForServiceAvailable) {
                 response.send(503, "Service Unavailable");
-            } catch (IOException e) {
-                e.printStackTrace();
+                return;
             }
-            return;
-        }
 
-        if (request.getBody().length() > 1024 * 1024) { // Ограничение в 1 МБ
-            try {
-                response.send(413, "Payload Too Large");
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-            return;
-        }
+            handler.handle(request, response);
+        };
+    }
 
-        Future<?> future = executorService.submit(() -> {
-            try {
-                handleRequest(request, response);
-            } catch (IOException e) {
-                if (!response.isSent()) {
-                    try {
-                        response.send(500, "Internal Server Error");
-                    } catch (IOException ex) {
-                        ex.printStackTrace();
-                    }
-                }
-            }
-        });
+    private void handleRoot(HttpRequest request, HttpResponse response) throws IOException {
+        response.send(200, "Hello, World!");
+    }
 
+    private void handleGetData(HttpRequest request, HttpResponse response) throws IOException {
         try {
-            future.get(10, TimeUnit.SECONDS);
-        } catch (TimeoutException e) {
-            if (!response.isSent()) {
-                try {
-                    response.send(504, "Gateway Timeout");
-                } catch (IOException ex) {
-                    ex.printStackTrace();
-                }
-            }
-            future.cancel(true);
-        } catch (Exception e) {
-            if (!response.isSent()) {
+            // Добавить задержку в 5 секунд
+            Thread.sleep(5000);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+        // An unchanged data store is sent from the cache of compressed representations
+        if (response.sendCached("data:" + dataStore.getModificationCount())) {
+            return;
+        }
+        // Entries are written one at a time straight into the response stream, each as the JSON text it already has
+        try (Writer writer = new OutputStreamWriter(response.startStream(200, "application/json"), StandardCharsets.UTF_8);
+             JsonWriter json = new JsonWriter(writer)) {
+            json.beginObject();
+            dataStore.forEach((key, entry) -> {
                 try {
-                    response.send(500, "Internal Server Error");
-                } catch (IOException ex) {
-                    ex.printStackTrace();
+                    json.name(key).jsonValue(entry.getJson());
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
                 }
-            }
+            });
+            json.endObject();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
         }
     }
 
     /**
-     * Handles various types of HTTP requests and generates appropriate responses.
-     * @param request the HTTP request
-     * @param response the HTTP response
-     * @throws IOException if an I/O error occurs
+     * Handles requests for a single entry addressed by the key in the path.
      */
-    private void handleRequest(HttpRequest request, HttpResponse response) throws IOException {
-        switch (request.getMethod()) {
-            case "GET":
-                if ("/".equals(request.getPath())) {
-                    response.send(200, "Hello, World!");
-                } else if ("/data".equals(request.getPath())) {
-                    try {
-                        // Добавить задержку в 5 секунд
-                        Thread.sleep(5000);
-                    } catch (InterruptedException e) {
-                        e.printStackTrace();
-                    }
-                    response.send(200, gson.toJson(dataStore), "application/json");
-                } else if ("/secure/user".equals(request.getPath())) {
-                    handleSecureUserRequest(request, response);
-                } else if ("/secure/admin".equals(request.getPath())) {
-                    handleSecureAdminRequest(request, response);
-                } else {
-                    response.send(404, "Not Found");
-                }
-                break;
-            case "POST":
-                if ("/submit".equals(request.getPath())) {
-                    handlePostSubmit(request, response);
-                } else if ("/register".equals(request.getPath())) {
-                    handleRegisterRequest(request, response);
-                } else if ("/login".equals(request.getPath())) {
-                    handleLoginRequest(request, response);
-                } else {
-                    response.send(404, "Not Found");
-                }
-                break;
-            case "PUT":
-                if ("/update".equals(request.getPath())) {
-                    handlePutUpdate(request, response);
-                } else {
-                    response.send(404, "Not Found");
-                }
-                break;
-            case "PATCH":
-                if ("/modify".equals(request.getPath())) {
-                    handlePatchModify(request, response);
-                } else {
-                    response.send(404, "Not Found");
-                }
-                break;
-            case "DELETE":
-                if ("/delete".equals(request.getPath())) {
-                    handleDelete(request, response);
-                } else {
-                    response.send(404, "Not Found");
-                }
-                break;
-            default:
-                response.send(404, "Not Found");
+    private void handleGetDataEntry(HttpRequest request, HttpResponse response) throws IOException {
+        String key = request.getPathParam("key");
+        Versioned entry = dataStore.get(key);
+        if (entry == null) {
+            response.send(404, "Data not found for key: " + key);
+            return;
+        }
+        response.setHeader("ETag", entry.getETag());
+        if (entry.getETag().equals(request.getHeaders().get("If-None-Match"))) {
+            response.sendWithoutBody(304);
+            return;
         }
+        response.send(200, entry.getJson(), "application/json");
     }
 
-
     private void handlePostSubmit(HttpRequest request, HttpResponse response) throws IOException {
         if (!"application/json".equals(request.getHeaders().get("Content-Type"))) {
             response.send(415, "Unsupported Media Type");
@@ -236,14 +208,22 @@ public class HttpRequestHandler {
             Map<String, String> newData = gson.fromJson(requestBody, new TypeToken<Map<String, String>>(){}.getType());
             if (newData != null && newData.containsKey("key") && newData.containsKey("value")) {
                 JsonObject jsonObject = JsonParser.parseString(newData.get("value")).getAsJsonObject();
-                dataStore.put(newData.get("key"), jsonObject);
+                Versioned stored = dataStore.put(newData.get("key"), jsonObject);
                 if (flagForLongTimeout) {
                     simulateLongOperation();
                 }
-                response.send(201, "New entry added: " + newData.get("key") + " = " + jsonObject.toString());
+                response.setHeader("ETag", stored.getETag());
+                response.send(201, "New entry added: " + newData.get("key") + " = " + stored.getJson());
             } else {
                 response.send(400, "Invalid data format. Expected JSON with 'key' and 'value'.");
             }
+        } catch (UncheckedIOException e) {
+            // The change could not be made durable
+            e.printStackTrace();
+            response.send(500, "Internal Server Error");
+        } catch (StoreClosedException e) {
+            // The server is shutting down, the change was not made
+            response.send(503, "Service Unavailable");
         } catch (Exception e) {
             e.printStackTrace();
             response.send(400, "Invalid JSON format.");
@@ -260,19 +240,30 @@ public class HttpRequestHandler {
         try {
             Map<String, String> updatedData = gson.fromJson(requestBody, new TypeToken<Map<String, String>>(){}.getType());
             if (updatedData != null && updatedData.containsKey("key") && updatedData.containsKey("value")) {
-                if (dataStore.containsKey(updatedData.get("key"))) {
-                    JsonObject jsonObject = JsonParser.parseString(updatedData.get("value")).getAsJsonObject();
-                    dataStore.put(updatedData.get("key"), jsonObject);
+                JsonObject jsonObject = JsonParser.parseString(updatedData.get("value")).getAsJsonObject();
+                // The check for the key and the update are one step, an entry deleted meanwhile is not recreated
+                Versioned stored = dataStore.replace(updatedData.get("key"), jsonObject, expectedVersion(request));
+                if (stored != null) {
                     if (flagForLongTimeout) {
                         simulateLongOperation();
                     }
-                    response.send(200, "Updated entry: " + updatedData.get("key") + " = " + jsonObject.toString());
+                    response.setHeader("ETag", stored.getETag());
+                    response.send(200, "Updated entry: " + updatedData.get("key") + " = " + stored.getJson());
                 } else {
                     response.send(404, "Data not found for key: " + updatedData.get("key"));
                 }
             } else {
                 response.send(400, "Invalid data format. Expected JSON with 'key' and 'value'.");
             }
+        } catch (VersionConflictException e) {
+            response.send(412, "Precondition Failed: the entry has changed");
+        } catch (UncheckedIOException e) {
+            // The change could not be made durable
+            e.printStackTrace();
+            response.send(500, "Internal Server Error");
+        } catch (StoreClosedException e) {
+            // The server is shutting down, the change was not made
+            response.send(503, "Service Unavailable");
         } catch (Exception e) {
             e.printStackTrace();
             response.send(400, "Invalid JSON format.");
@@ -289,35 +280,63 @@ public class HttpRequestHandler {
         try {
             Map<String, String> modifiedData = gson.fromJson(requestBody, new TypeToken<Map<String, String>>(){}.getType());
             if (modifiedData != null && modifiedData.containsKey("key") && modifiedData.containsKey("value")) {
-                if (dataStore.containsKey(modifiedData.get("key"))) {
-                    JsonObject existingObject = dataStore.get(modifiedData.get("key"));
-                    JsonObject modifications = JsonParser.parseString(modifiedData.get("value")).getAsJsonObject();
-                    for (Map.Entry<String, JsonElement> entry : modifications.entrySet()) {
-                        existingObject.add(entry.getKey(), entry.getValue());
-                    }
-                    dataStore.put(modifiedData.get("key"), existingObject);
+                JsonObject modifications = JsonParser.parseString(modifiedData.get("value")).getAsJsonObject();
+                // Merged into a new value in one atomic step, concurrent PATCHes of other fields are not lost
+                Versioned merged = dataStore.merge(modifiedData.get("key"), modifications, expectedVersion(request));
+                if (merged != null) {
                     if (flagForLongTimeout) {
                         simulateLongOperation();
                     }
-                    response.send(200, "Modified entry: " + modifiedData.get("key") + " = " + existingObject.toString());
+                    response.setHeader("ETag", merged.getETag());
+                    response.send(200, "Modified entry: " + modifiedData.get("key") + " = " + merged.getJson());
                 } else {
                     response.send(404, "Data not found for key: " + modifiedData.get("key"));
                 }
             } else {
                 response.send(400, "Invalid data format. Expected JSON with 'key' and 'value'.");
             }
+        } catch (VersionConflictException e) {
+            response.send(412, "Precondition Failed: the entry has changed");
+        } catch (UncheckedIOException e) {
+            // The change could not be made durable
+            e.printStackTrace();
+            response.send(500, "Internal Server Error");
+        } catch (StoreClosedException e) {
+            // The server is shutting down, the change was not made
+            response.send(503, "Service Unavailable");
         } catch (Exception e) {
             e.printStackTrace();
             response.send(400, "Invalid JSON format.");
         }
     }
 
+    /**
+     * Returns the version the If-Match header of the request requires: {@link DataStore#ANY_VERSION}
+     * without the header or for "*", and a version no entry has for a weak or malformed entity tag.
+     * The header is expected to carry a single entity tag.
+     */
+    private static long expectedVersion(HttpRequest request) {
+        String ifMatch = request.getHeaders().get("If-Match");
+        if (ifMatch == null || ifMatch.trim().equals("*")) {
+            return DataStore.ANY_VERSION;
+        }
+        String tag = ifMatch.trim();
+        if (tag.length() > 2 && tag.startsWith("\"") && tag.endsWith("\"")) {
+            try {
+                return Long.parseLong(tag.substring(1, tag.length() - 1));
+            } catch (NumberFormatException e) {
+                // Not a tag of this store
+            }
+        }
+        return Long.MIN_VALUE;
+    }
+
     private void handleDelete(HttpRequest request, HttpResponse response) throws IOException {
         String requestBody = request.getBody();
         try {
             Map<String, String> deleteData = gson.fromJson(requestBody, new TypeToken<Map<String, String>>(){}.getType());
             if (deleteData != null && deleteData.containsKey("key")) {
-                if (dataStore.remove(deleteData.get("key")) != null) {
+                if (dataStore.remove(deleteData.get("key"), expectedVersion(request)) != null) {
                     if (flagForLongTimeout) {
                         simulateLongOperation();
                     }
@@ -328,6 +347,15 @@ public class HttpRequestHandler {
             } else {
                 response.send(400, "Invalid data format. Expected JSON with 'key'.");
             }
+        } catch (VersionConflictException e) {
+            response.send(412, "Precondition Failed: the entry has changed");
+        } catch (UncheckedIOException e) {
+            // The change could not be made durable
+            e.printStackTrace();
+            response.send(500, "Internal Server Error");
+        } catch (StoreClosedException e) {
+            // The server is shutting down, the change was not made
+            response.send(503, "Service Unavailable");
         } catch (Exception e) {
             e.printStackTrace();
             response.send(400, "Invalid JSON format.");
@@ -335,73 +363,39 @@ public class HttpRequestHandler {
     }
 
     /**
-     * Handles external requests by connecting to an external service and forwarding the response.
+     * Handles external requests by fetching data from an external service and forwarding the response.
+     * The request to the external service is asynchronous, so no thread waits for it.
      */
-    private void handleExternalRequest(HttpRequest request, HttpResponse response) throws IOException {
-        HttpURLConnection conn = null;
-        try {
-            URL url;
-            if(flagForExternalServiceAvailable) {
-                url = new URL("https://jsonplaceholder.typicode.com/posts/1");
-            } else {
-                url = new URL("https://jsonplaceholder.typicode.com/post/1");
-            }
-
-            conn = (HttpURLConnection) url.openConnection();
-            conn.setRequestMethod("GET");
-            int responseCode = conn.getResponseCode();
-
-            if (responseCode == 200) {
-                BufferedReader in = new BufferedReader(new InputStreamReader(conn.getInputStream()));
-                String inputLine;
-                StringBuilder content = new StringBuilder();
-                while ((inputLine = in.readLine()) != null) {
-                    content.append(inputLine);
-                }
-                in.close();
-                response.send(200, content.toString());
-            } else {
-                response.send(502, "Bad Gateway");
-            }
-        } catch (Exception e) {
-            response.send(502, "Bad Gateway");
-        } finally {
-            if (conn != null) {
-                conn.disconnect();
-            }
+    private CompletionStage<HttpResult> handleExternalRequest(HttpRequest request) {
+        URI uri;
+        if (flagForExternalServiceAvailable) {
+            uri = URI.create("https://jsonplaceholder.typicode.com/posts/1");
+        } else {
+            uri = URI.create("https://jsonplaceholder.typicode.com/post/1");
         }
+
+        java.net.http.HttpRequest externalRequest = java.net.http.HttpRequest.newBuilder(uri).GET().build();
+        return externalClient.sendAsync(externalRequest, java.net.http.HttpResponse.BodyHandlers.ofString())
+                .handle((externalResponse, error) -> {
+                    if (error != null || externalResponse.statusCode() != 200) {
+                        return new HttpResult(502, "Bad Gateway");
+                    }
+                    // Lines are joined the same way the blocking implementation read them
+                    return new HttpResult(200, String.join("", externalResponse.body().lines().toList()));
+                });
     }
 
     /**
-     * Handles requests for secure admin data by verifying authorization.
+     * Handles requests for secure admin data. Only admins reach it, see {@link AuthPolicy#ADMIN}.
      */
     private void handleSecureAdminRequest(HttpRequest request, HttpResponse response) throws IOException {
-        String token = request.getHeaders().get("Authorization");
-
-        if (token == null || !AuthService.isAuthenticated(token)) {
-            response.send(401, "Unauthorized");
-            return;
-        }
-
-        if (!AuthService.isAdmin(token)) {
-            response.send(403, "Forbidden");
-            return;
-        }
-
         response.send(200, "You have access to admin data!");
     }
 
     /**
-     * Handles requests for secure user data by verifying authorization.
+     * Handles requests for secure user data. Only authenticated callers reach it, see {@link AuthPolicy#USER}.
      */
     private void handleSecureUserRequest(HttpRequest request, HttpResponse response) throws IOException {
-        String token = request.getHeaders().get("Authorization");
-
-        if (token == null || !AuthService.isAuthenticated(token)) {
-            response.send(401, "Unauthorized");
-            return;
-        }
-
         response.send(200, "You have access to user data!");
     }
 
@@ -416,8 +410,7 @@ public class HttpRequestHandler {
         String password = credentials.get("password");
 
         if ("admin".equals(username) && "admin".equals(password)) {
-            String token = UUID.randomUUID().toString();
-            AuthService.registerToken(token, true);
+            String token = AuthService.issueToken(true);
             response.send(200, "Registration successful. Token: " + token);
         } else {
             response.send(200, "Registration successful for user: " + username);
@@ -435,12 +428,10 @@ public class HttpRequestHandler {
         String password = credentials.get("password");
 
         if ("admin".equals(username) && "admin".equals(password)) {
-            String token = UUID.randomUUID().toString();
-            AuthService.registerToken(token, true);
+            String token = AuthService.issueToken(true);
             response.send(200, "Login successful. Token: " + token);
         } else if ("user1".equals(username) && "password1".equals(password)) {
-            String token = UUID.randomUUID().toString();
-            AuthService.registerToken(token, false);
+            String token = AuthService.issueToken(false);
             response.send(200, "Login successful. Token: " + token);
         } else {
             response.send(401, "Invalid credentials");
@@ -453,98 +444,35 @@ public class HttpRequestHandler {
     private void handleContinueRequest(HttpRequest request, HttpResponse response) throws IOException {
         String expectHeader = request.getHeaders().get("Expect");
         if (expectHeader != null && expectHeader.equalsIgnoreCase("100-continue")) {
-            // Send 100 "Continue" status
-            response.sendContinue();
-            System.out.println("Sent 100 Continue");
-
-            // Read the request body after sending 100 "Continue"
-            String requestBody = readRequestBody(request.getClientChannel());
+            // The server has already answered with 100 "Continue" and read the body
+            String requestBody = request.getBody();
             System.out.println("Request Body: " + requestBody);
 
-            // Process the request body in a separate thread
-            executorService.submit(() -> {
-                try {
-                    // Add a 5-second delay after receiving the request body
-                    Thread.sleep(5000);
-
-                    // Process the request body and send the final response
-                    response.send(200, "Received data: " + requestBody);
-                    System.out.println("Sent final response: Received data: " + requestBody);
-
-                    // Close the channel after sending the final response
-                    request.getClientChannel().close();
-                    System.out.println("Client channel closed after sending final response");
-                } catch (InterruptedException | IOException e) {
-                    e.printStackTrace();
-                    try {
-                        response.send(500, "Internal Server Error");
-                    } catch (IOException ex) {
-                        ex.printStackTrace();
-                    }
-                }
-            });
+            try {
+                // Add a 5-second delay after receiving the request body
+                Thread.sleep(5000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+
+            // Process the request body and send the final response
+            response.send(200, "Received data: " + requestBody);
+            System.out.println("Sent final response: Received data: " + requestBody);
         } else {
             response.send(417, "Expectation Failed");
             System.out.println("Expectation Failed");
         }
     }
 
-    /**
-     * Reads the request body from the client channel.
-     * @param clientChannel the client channel
-     * @return the request body as a string
-     * @throws IOException if an I/O error occurs
-     */
-    private String readRequestBody(SocketChannel clientChannel) throws IOException {
-        ByteBuffer buffer = ByteBuffer.allocate(1024);
-        StringBuilder requestBody = new StringBuilder();
-        Selector selector = Selector.open();
-        clientChannel.register(selector, SelectionKey.OP_READ);
-
-        boolean reading = true;
-        while (reading) {
-            selector.select(500);
-            Set<SelectionKey> selectedKeys = selector.selectedKeys();
-            Iterator<SelectionKey> iterator = selectedKeys.iterator();
-            while (iterator.hasNext()) {
-                SelectionKey key = iterator.next();
-                iterator.remove();
-                if (key.isReadable()) {
-                    int bytesRead = clientChannel.read(buffer);
-                    if (bytesRead > 0) {
-                        buffer.flip();
-                        byte[] bytes = new byte[buffer.limit()];
-                        buffer.get(bytes);
-                        requestBody.append(new String(bytes));
-                        buffer.clear();
-                    } else if (bytesRead == -1) {
-                        reading = false; // End of the stream, exit the loop
-                    }
-                }
-            }
-            if (selectedKeys.isEmpty()) {
-                reading = false; // There is no more data, exiting the loop
-            }
-        }
-        selector.close(); // Closing the selector after reading the data
-        return requestBody.toString();
-    }
-
     /**
      * Handles redirect requests by sending a 302 Found response.
      */
     private void handleRedirect(HttpRequest request, HttpResponse response) throws IOException {
         String location = "http://example.com";
-        String responseBody = "Found: " + location;
-        String responseHeaders = "HTTP/1.1 302 Found\r\n" +
-                "Location: " + location + "\r\n" +
-                "Content-Length: " + responseBody.length() + "\r\n" +
-                "Content-Type: text/plain\r\n" +
-                "\r\n" +
-                responseBody;
-        ByteBuffer buffer = ByteBuffer.wrap(responseHeaders.getBytes());
-        request.getClientChannel().write(buffer);
-        request.getClientChannel().close();
+        response.setHeader("Location", location);
+        // The body has always been just this line, without the usual status prefix
+        response.sendRaw(302, "Found: " + location, "text/plain");
     }
 
     /**
@@ -0,0 +1,135 @@
+package org.example.handlers;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * OpenFileCache keeps recently served files open, together with their validators, so a
+ * popular file costs one stat call per request instead of an open, a stat and a close.
+ * The least recently used file is evicted once more than the configured number of files
+ * is open. Entries are reference counted: an evicted file stays open until the last
+ * transfer that uses it has finished. A file whose size or modification time changed
+ * on disk is reopened.
+ */
+final class OpenFileCache {
+    /**
+     * An open file and the validators derived from its attributes.
+     */
+    static final class Entry {
+        private final FileChannel channel;
+        private final long size;
+        private final long lastModifiedMillis;
+        private final String etag;
+        private final String lastModified;
+        private int references;
+        private boolean evicted;
+
+        private Entry(FileChannel channel, long size, long lastModifiedMillis) {
+            this.channel = channel;
+            this.size = size;
+            this.lastModifiedMillis = lastModifiedMillis;
+            this.etag = "\"" + Long.toHexString(size) + "-" + Long.toHexString(lastModifiedMillis) + "\"";
+            this.lastModified = DateTimeFormatter.RFC_1123_DATE_TIME
+                    .format(Instant.ofEpochMilli(lastModifiedMillis).atOffset(ZoneOffset.UTC));
+        }
+
+        FileChannel getChannel() {
+            return channel;
+        }
+
+        long getSize() {
+            return size;
+        }
+
+        long getLastModifiedMillis() {
+            return lastModifiedMillis;
+        }
+
+        String getEtag() {
+            return etag;
+        }
+
+        String getLastModified() {
+            return lastModified;
+        }
+    }
+
+    private final int maxOpenFiles;
+    private final LinkedHashMap<Path, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    OpenFileCache(int maxOpenFiles) {
+        this.maxOpenFiles = maxOpenFiles;
+    }
+
+    /**
+     * Returns the open file for the path, opening it if needed. Every call must be paired
+     * with a call to {@link #release(Entry)}.
+     * @param path       the normalized file path
+     * @param attributes the current attributes of the file
+     */
+    synchronized Entry acquire(Path path, BasicFileAttributes attributes) throws IOException {
+        long lastModifiedMillis = attributes.lastModifiedTime().toMillis();
+        Entry entry = entries.get(path);
+        if (entry != null && (entry.size != attributes.size() || entry.lastModifiedMillis != lastModifiedMillis)) {
+            entries.remove(path);
+            evict(entry);
+            entry = null;
+        }
+        if (entry == null) {
+            entry = new Entry(FileChannel.open(path, StandardOpenOption.READ), attributes.size(), lastModifiedMillis);
+            entries.put(path, entry);
+            Iterator<Map.Entry<Path, Entry>> eldest = entries.entrySet().iterator();
+            while (entries.size() > maxOpenFiles) {
+                evict(eldest.next().getValue());
+                eldest.remove();
+            }
+        }
+        entry.references++;
+        return entry;
+    }
+
+    synchronized void release(Entry entry) {
+        entry.references--;
+        if (entry.evicted && entry.references == 0) {
+            closeQuietly(entry);
+        }
+    }
+
+    /**
+     * Evicts every file; files still being sent are closed when their transfer finishes.
+     */
+    synchronized void clear() {
+        for (Entry entry : entries.values()) {
+            evict(entry);
+        }
+        entries.clear();
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    private void evict(Entry entry) {
+        entry.evicted = true;
+        if (entry.references == 0) {
+            closeQuietly(entry);
+        }
+    }
+
+    private static void closeQuietly(Entry entry) {
+        try {
+            entry.channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,241 @@
+package org.example.handlers;
+
+import org.example.http.FileRegion;
+import org.example.http.HttpRequest;
+import org.example.http.HttpResponse;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * StaticFileHandler serves the files below a directory. It is registered for a route that
+ * ends in a wildcard named "file", for example:
+ * <pre>
+ * server.addHandler("GET", "/static/{*file}", new StaticFileHandler(Paths.get("public")));
+ * </pre>
+ * File bodies are sent with FileChannel.transferTo, so the bytes go from the page cache to
+ * the socket without being copied through the heap. Single byte ranges are answered with
+ * 206 Partial Content or 416, and conditional requests with If-None-Match or
+ * If-Modified-Since are answered with 304 Not Modified. Open files and their ETags are kept
+ * in an LRU cache of open file descriptors.
+ */
+public class StaticFileHandler implements HttpHandler {
+    private static final int DEFAULT_MAX_OPEN_FILES = 256;
+    private static final Map<String, String> CONTENT_TYPES = new HashMap<>();
+
+    static {
+        CONTENT_TYPES.put("html", "text/html; charset=utf-8");
+        CONTENT_TYPES.put("htm", "text/html; charset=utf-8");
+        CONTENT_TYPES.put("css", "text/css; charset=utf-8");
+        CONTENT_TYPES.put("js", "text/javascript; charset=utf-8");
+        CONTENT_TYPES.put("json", "application/json");
+        CONTENT_TYPES.put("txt", "text/plain; charset=utf-8");
+        CONTENT_TYPES.put("csv", "text/csv; charset=utf-8");
+        CONTENT_TYPES.put("xml", "application/xml");
+        CONTENT_TYPES.put("svg", "image/svg+xml");
+        CONTENT_TYPES.put("png", "image/png");
+        CONTENT_TYPES.put("jpg", "image/jpeg");
+        CONTENT_TYPES.put("jpeg", "image/jpeg");
+        CONTENT_TYPES.put("gif", "image/gif");
+        CONTENT_TYPES.put("ico", "image/x-icon");
+        CONTENT_TYPES.put("pdf", "application/pdf");
+        CONTENT_TYPES.put("zip", "application/zip");
+        CONTENT_TYPES.put("gz", "application/gzip");
+        CONTENT_TYPES.put("wasm", "application/wasm");
+        CONTENT_TYPES.put("woff2", "font/woff2");
+    }
+
+    private final Path root;
+    private final OpenFileCache openFiles;
+
+    public StaticFileHandler(Path root) {
+        this(root, DEFAULT_MAX_OPEN_FILES);
+    }
+
+    /**
+     * @param root         the directory to serve
+     * @param maxOpenFiles how many files may be kept open between requests
+     */
+    public StaticFileHandler(Path root, int maxOpenFiles) {
+        this.root = root.toAbsolutePath().normalize();
+        this.openFiles = new OpenFileCache(maxOpenFiles);
+    }
+
+    @Override
+    public void handle(HttpRequest request, HttpResponse response) throws IOException {
+        Path file = resolve(request);
+        BasicFileAttributes attributes;
+        try {
+            attributes = file == null ? null : Files.readAttributes(file, BasicFileAttributes.class);
+            if (attributes != null && attributes.isDirectory()) {
+                file = file.resolve("index.html");
+                attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            }
+        } catch (NoSuchFileException e) {
+            attributes = null;
+        }
+        if (attributes == null || !attributes.isRegularFile()) {
+            response.send(404, "Not Found");
+            return;
+        }
+
+        OpenFileCache.Entry entry = openFiles.acquire(file, attributes);
+        boolean handedOver = false;
+        try {
+            response.setHeader("ETag", entry.getEtag());
+            response.setHeader("Last-Modified", entry.getLastModified());
+            response.setHeader("Accept-Ranges", "bytes");
+            if (isNotModified(request, entry)) {
+                response.sendWithoutBody(304);
+                return;
+            }
+
+            long start = 0;
+            long length = entry.getSize();
+            int status = 200;
+            String range = request.getHeaders().get("Range");
+            if (range != null && rangeApplies(request, entry)) {
+                long[] bounds = parseRange(range, entry.getSize());
+                if (bounds == null) {
+                    response.setHeader("Content-Range", "bytes */" + entry.getSize());
+                    response.send(416, "Range Not Satisfiable");
+                    return;
+                }
+                if (bounds.length == 2) {
+                    start = bounds[0];
+                    length = bounds[1] - bounds[0] + 1;
+                    status = 206;
+                    response.setHeader("Content-Range", "bytes " + bounds[0] + "-" + bounds[1] + "/" + entry.getSize());
+                }
+            }
+
+            FileRegion region = new FileRegion(entry.getChannel(), start, length, () -> openFiles.release(entry));
+            handedOver = true;
+            response.sendFile(status, contentType(file), region);
+        } finally {
+            if (!handedOver) {
+                openFiles.release(entry);
+            }
+        }
+    }
+
+    /**
+     * Closes the cached files. Files still being sent are closed when their transfer finishes.
+     */
+    public void close() {
+        openFiles.clear();
+    }
+
+    /**
+     * Maps the request to a file below the root, or returns null if it points outside of it.
+     */
+    private Path resolve(HttpRequest request) {
+        String relative = request.getPathParam("file");
+        if (relative == null) {
+            relative = request.getPath();
+        }
+        while (relative.startsWith("/")) {
+            relative = relative.substring(1);
+        }
+        try {
+            Path file = root.resolve(relative).normalize();
+            return file.startsWith(root) ? file : null;
+        } catch (InvalidPathException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Evaluates If-None-Match, or If-Modified-Since if the client sent no entity tags (RFC 9110, 13.2.2).
+     */
+    private static boolean isNotModified(HttpRequest request, OpenFileCache.Entry entry) {
+        String ifNoneMatch = request.getHeaders().get("If-None-Match");
+        if (ifNoneMatch != null) {
+            for (String tag : ifNoneMatch.split(",")) {
+                String candidate = tag.trim();
+                if (candidate.startsWith("W/")) {
+                    candidate = candidate.substring(2);
+                }
+                if (candidate.equals("*") || candidate.equals(entry.getEtag())) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        String ifModifiedSince = request.getHeaders().get("If-Modified-Since");
+        if (ifModifiedSince != null) {
+            try {
+                long since = ZonedDateTime.parse(ifModifiedSince, DateTimeFormatter.RFC_1123_DATE_TIME)
+                        .toInstant().toEpochMilli();
+                // HTTP dates have a resolution of one second
+                return entry.getLastModifiedMillis() / 1000 <= since / 1000;
+            } catch (DateTimeParseException e) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * A Range only applies if an If-Range validator, when present, still matches the file.
+     */
+    private static boolean rangeApplies(HttpRequest request, OpenFileCache.Entry entry) {
+        String ifRange = request.getHeaders().get("If-Range");
+        return ifRange == null || ifRange.equals(entry.getEtag()) || ifRange.equals(entry.getLastModified());
+    }
+
+    /**
+     * Parses a single byte range.
+     * @return the first and last byte position, an empty array if the header is to be ignored
+     *         (several ranges or an unknown unit), or null if the range cannot be satisfied
+     */
+    private static long[] parseRange(String header, long size) {
+        if (!header.startsWith("bytes=") || header.indexOf(',') >= 0) {
+            return new long[0];
+        }
+        String spec = header.substring("bytes=".length()).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0) {
+            return new long[0];
+        }
+        try {
+            long first;
+            long last;
+            if (dash == 0) {
+                // A suffix range: the last N bytes
+                long suffix = Long.parseLong(spec.substring(1));
+                if (suffix == 0 || size == 0) {
+                    return null;
+                }
+                first = Math.max(0, size - suffix);
+                last = size - 1;
+            } else {
+                first = Long.parseLong(spec.substring(0, dash));
+                last = dash == spec.length() - 1 ? size - 1 : Math.min(Long.parseLong(spec.substring(dash + 1)), size - 1);
+                if (last < first && dash != spec.length() - 1) {
+                    return new long[0];
+                }
+            }
+            return first >= size ? null : new long[]{first, last};
+        } catch (NumberFormatException e) {
+            return new long[0];
+        }
+    }
+
+    private static String contentType(Path file) {
+        String name = file.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        String type = dot < 0 ? null : CONTENT_TYPES.get(name.substring(dot + 1).toLowerCase(Locale.ROOT));
+        return type != null ? type : "application/octet-stream";
+    }
+}
@@ -0,0 +1,188 @@
+package org.example.http;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+import java.util.zip.Deflater;
+
+/**
+ * The Compressor class encodes one response body with the gzip (RFC 1952) or deflate
+ * (zlib, RFC 1950) content coding. The raw deflate data comes from a pooled Deflater; the
+ * Compressor adds the header and the trailer with the checksum of the coding. Compressed
+ * bytes can be collected on the side, so a finished body can be stored in the cache of
+ * compressed representations.
+ */
+final class Compressor {
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+    private static final byte[] ZLIB_HEADER = {0x78, (byte) 0x9c};
+
+    private final boolean gzip;
+    private final DeflaterPool pool;
+    private final Checksum checksum;
+    private Deflater deflater;
+    private long inputBytes;
+    private long outputBytes;
+    private ByteArrayOutputStream copy;
+    private int copyLimit;
+
+    /**
+     * @param contentCoding "gzip" or "deflate"
+     * @param pool          the pool the Deflater is taken from
+     */
+    Compressor(String contentCoding, DeflaterPool pool) {
+        this.gzip = ResponseCompression.GZIP.equals(contentCoding);
+        this.pool = pool;
+        this.checksum = gzip ? new CRC32() : new Adler32();
+        this.deflater = pool.acquire();
+    }
+
+    /**
+     * Keeps a copy of the compressed bytes as long as they do not exceed the limit.
+     */
+    void keepCopy(int limit) {
+        copy = new ByteArrayOutputStream();
+        copyLimit = limit;
+    }
+
+    /**
+     * Returns the copy of the compressed bytes, or null if none was kept or it grew too large.
+     */
+    byte[] getCopy() {
+        return copy == null ? null : copy.toByteArray();
+    }
+
+    long getInputBytes() {
+        return inputBytes;
+    }
+
+    long getOutputBytes() {
+        return outputBytes;
+    }
+
+    byte[] header() {
+        byte[] header = gzip ? GZIP_HEADER : ZLIB_HEADER;
+        record(header, 0, header.length);
+        outputBytes += header.length;
+        return header;
+    }
+
+    void setInput(byte[] bytes, int offset, int length) {
+        checksum.update(bytes, offset, length);
+        inputBytes += length;
+        deflater.setInput(bytes, offset, length);
+    }
+
+    boolean needsInput() {
+        return deflater.needsInput();
+    }
+
+    /**
+     * Signals that all input has been given. Deflate until {@link #finished()} afterwards.
+     */
+    void finish() {
+        deflater.finish();
+    }
+
+    boolean finished() {
+        return deflater.finished();
+    }
+
+    /**
+     * Writes compressed bytes into the remaining space of the buffer.
+     * @param flush Deflater.NO_FLUSH or Deflater.SYNC_FLUSH
+     * @return the number of bytes written
+     */
+    int deflate(ByteBuffer output, int flush) {
+        int start = output.position();
+        int count = deflater.deflate(output, flush);
+        if (copy != null && count > 0) {
+            ByteBuffer written = output.duplicate();
+            written.position(start).limit(start + count);
+            byte[] bytes = new byte[count];
+            written.get(bytes);
+            record(bytes, 0, count);
+        }
+        outputBytes += count;
+        return count;
+    }
+
+    /**
+     * Returns the checksum and length that end the compressed data. Call once finished.
+     */
+    byte[] trailer() {
+        long value = checksum.getValue();
+        byte[] trailer;
+        if (gzip) {
+            // CRC-32 and the input size modulo 2^32, both little endian
+            trailer = new byte[8];
+            for (int i = 0; i < 4; i++) {
+                trailer[i] = (byte) (value >>> (8 * i));
+                trailer[4 + i] = (byte) (inputBytes >>> (8 * i));
+            }
+        } else {
+            // Adler-32, big endian
+            trailer = new byte[4];
+            for (int i = 0; i < 4; i++) {
+                trailer[i] = (byte) (value >>> (24 - 8 * i));
+            }
+        }
+        record(trailer, 0, trailer.length);
+        outputBytes += trailer.length;
+        return trailer;
+    }
+
+    /**
+     * Compresses a complete body given in parts.
+     */
+    byte[] compress(byte[]... parts) {
+        int length = 0;
+        for (byte[] part : parts) {
+            length += part.length;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, length / 4));
+        byte[] buffer = new byte[Math.min(16 * 1024, length + 64)];
+        out.writeBytes(header());
+        for (byte[] part : parts) {
+            setInput(part, 0, part.length);
+            while (!needsInput()) {
+                drain(buffer, out);
+            }
+        }
+        finish();
+        while (!finished()) {
+            drain(buffer, out);
+        }
+        out.writeBytes(trailer());
+        return out.toByteArray();
+    }
+
+    /**
+     * Returns the Deflater to the pool. The compressor cannot be used afterwards.
+     */
+    void release() {
+        if (deflater != null) {
+            pool.release(deflater);
+            deflater = null;
+        }
+    }
+
+    private void drain(byte[] buffer, ByteArrayOutputStream out) {
+        int count = deflater.deflate(buffer);
+        record(buffer, 0, count);
+        outputBytes += count;
+        out.write(buffer, 0, count);
+    }
+
+    private void record(byte[] bytes, int offset, int length) {
+        if (copy == null) {
+            return;
+        }
+        if (copy.size() + length > copyLimit) {
+            copy = null;
+            return;
+        }
+        copy.write(bytes, offset, length);
+    }
+}
@@ -0,0 +1,44 @@
+package org.example.http;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.zip.Deflater;
+
+/**
+ * DeflaterPool reuses Deflater instances, whose native zlib state is expensive to allocate
+ * and is only freed by end() or the garbage collector. Like the BufferPool, every platform
+ * worker thread keeps one Deflater of its own; virtual threads, which live for a single
+ * request, share a small bounded pool. All Deflaters produce raw deflate data, the framing
+ * of gzip and zlib is written by the Compressor.
+ */
+final class DeflaterPool {
+    private static final int SHARED_CAPACITY = 64;
+
+    private final int level;
+    private final ThreadLocal<Deflater> threadDeflater = new ThreadLocal<>();
+    private final ArrayBlockingQueue<Deflater> shared = new ArrayBlockingQueue<>(SHARED_CAPACITY);
+
+    DeflaterPool(int level) {
+        this.level = level;
+    }
+
+    Deflater acquire() {
+        Deflater deflater = null;
+        if (!Thread.currentThread().isVirtual()) {
+            deflater = threadDeflater.get();
+            threadDeflater.set(null);
+        }
+        if (deflater == null) {
+            deflater = shared.poll();
+        }
+        return deflater != null ? deflater : new Deflater(level, true);
+    }
+
+    void release(Deflater deflater) {
+        deflater.reset();
+        if (!Thread.currentThread().isVirtual() && threadDeflater.get() == null) {
+            threadDeflater.set(deflater);
+        } else if (!shared.offer(deflater)) {
+            deflater.end();
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package org.example.http;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * The FileRegion class is a part of a file queued for writing as a response body.
+ * The connection writes it with {@link FileChannel#transferTo}, which lets the kernel copy
+ * the bytes from the page cache to the socket (sendfile on Linux) without passing them
+ * through the Java heap or a pooled buffer. Transfers use absolute positions, so one open
+ * channel can serve several regions at the same time. The release action runs exactly
+ * once, when the region has been written or the connection gave up on it.
+ */
+public class FileRegion {
+    private final FileChannel file;
+    private final long count;
+    private final Runnable releaseAction;
+    private long position;
+    private long remaining;
+    private boolean released;
+
+    /**
+     * @param file          the open file
+     * @param position      the offset of the first byte to send
+     * @param count         the number of bytes to send
+     * @param releaseAction run once the region is no longer needed, for example to return the file to a cache
+     */
+    public FileRegion(FileChannel file, long position, long count, Runnable releaseAction) {
+        this.file = file;
+        this.position = position;
+        this.count = count;
+        this.remaining = count;
+        this.releaseAction = releaseAction;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Transfers as many bytes as the target accepts without blocking.
+     * @return the number of bytes transferred
+     * @throws IOException if the file shrank below the region or the target failed
+     */
+    public long transferTo(WritableByteChannel target) throws IOException {
+        long transferred = file.transferTo(position, remaining, target);
+        if (transferred == 0 && position >= file.size()) {
+            throw new IOException("File truncated while it was being sent");
+        }
+        position += transferred;
+        remaining -= transferred;
+        return transferred;
+    }
+
+    /**
+     * Copies bytes of the region into the buffer instead of transferring them, for transports
+     * that have to frame the body, such as HTTP/2.
+     * @return the number of bytes copied, at most the remaining bytes of the region
+     * @throws IOException if the file shrank below the region
+     */
+    public int read(ByteBuffer target) throws IOException {
+        int limit = target.limit();
+        if (target.remaining() > remaining) {
+            target.limit(target.position() + (int) remaining);
+        }
+        try {
+            int read = file.read(target, position);
+            if (read < 0) {
+                throw new IOException("File truncated while it was being sent");
+            }
+            position += read;
+            remaining -= read;
+            return read;
+        } finally {
+            target.limit(limit);
+        }
+    }
+
+    public boolean isDone() {
+        return remaining == 0;
+    }
+
+    /**
+     * Runs the release action unless it has already run.
+     */
+    public synchronized void release() {
+        if (released) {
+            return;
+        }
+        released = true;
+        if (releaseAction != null) {
+            releaseAction.run();
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package org.example.http;
+
+import java.io.IOException;
+
+/**
+ * HttpParseException signals a malformed or unacceptable HTTP request.
+ * It carries the status code that should be sent back to the client.
+ */
+public class HttpParseException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    private final int statusCode;
+
+    public HttpParseException(int statusCode, String message) {
+        super(message);
+        this.statusCode = statusCode;
+    }
+
+    public int getStatusCode() {
+        return statusCode;
+    }
+}
@@ -1,31 +1,63 @@
 package org.example.http;
 
+import org.example.auth.Principal;
+import org.example.auth.PrincipalCache;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URLDecoder;
 import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 /**
  * The HttpRequest class represents an HTTP request.
  * It contains the HTTP method, the request path, headers, body, and the client channel.
+ * The query string is split off the request target, and the path parameters captured
+ * by the route pattern are attached by the server before the handler runs.
+ * The body may still be arriving while the handler runs; see {@link RequestBody}.
+ * On routes with an authentication policy the verified caller is attached as well.
  */
 public class HttpRequest {
     private final String method;
     private final String path;
+    private final String queryString;
     private final Map<String, String> headers;
-    private final String body;
+    private final RequestBody body;
     private final SocketChannel clientChannel;
+    private Map<String, String> pathParams = Collections.emptyMap();
+    private Map<String, String> queryParams;
+    private Principal principal;
+    private PrincipalCache principalCache;
 
     /**
      * Constructs an HttpRequest with the specified method, path, headers, body, and client channel.
      *
      * @param method        the HTTP method (e.g., GET, POST, PUT, DELETE)
-     * @param path          the request path
+     * @param path          the request target, optionally followed by a query string
      * @param headers       the request headers
      * @param body          the request body
      * @param clientChannel the client channel
      */
     public HttpRequest(String method, String path, Map<String, String> headers, String body, SocketChannel clientChannel) {
+        this(method, path, headers, RequestBody.of(body.getBytes(StandardCharsets.UTF_8)), clientChannel);
+    }
+
+    /**
+     * Constructs an HttpRequest whose body is read from the connection while the request is handled.
+     *
+     * @param method        the HTTP method (e.g., GET, POST, PUT, DELETE)
+     * @param path          the request target, optionally followed by a query string
+     * @param headers       the request headers
+     * @param body          the request body
+     * @param clientChannel the client channel
+     */
+    public HttpRequest(String method, String path, Map<String, String> headers, RequestBody body, SocketChannel clientChannel) {
         this.method = method;
-        this.path = path;
+        int query = path.indexOf('?');
+        this.path = query < 0 ? path : path.substring(0, query);
+        this.queryString = query < 0 ? null : path.substring(query + 1);
         this.headers = headers;
         this.body = body;
         this.clientChannel = clientChannel;
@@ -35,15 +67,96 @@ public class HttpRequest {
         return method;
     }
 
+    /**
+     * Returns the request path without the query string.
+     */
     public String getPath() {
         return path;
     }
 
+    /**
+     * Returns the raw query string, or null if the target had none.
+     */
+    public String getQueryString() {
+        return queryString;
+    }
+
+    /**
+     * Returns the decoded query parameters. For repeated names the first value wins.
+     */
+    public Map<String, String> getQueryParams() {
+        if (queryParams == null) {
+            queryParams = parseQuery(queryString);
+        }
+        return queryParams;
+    }
+
+    public String getQueryParam(String name) {
+        return getQueryParams().get(name);
+    }
+
+    public Map<String, String> getPathParams() {
+        return pathParams;
+    }
+
+    public String getPathParam(String name) {
+        return pathParams.get(name);
+    }
+
+    /**
+     * Attaches the path parameters captured by the matched route pattern.
+     * @param pathParams parameter values by name
+     */
+    public void setPathParams(Map<String, String> pathParams) {
+        this.pathParams = pathParams;
+    }
+
+    /**
+     * Returns the verified caller, or null if the route is public or no valid token was sent.
+     */
+    public Principal getPrincipal() {
+        return principal;
+    }
+
+    public void setPrincipal(Principal principal) {
+        this.principal = principal;
+    }
+
+    /**
+     * Returns the cache of verified tokens of the connection the request arrived on, or null.
+     */
+    public PrincipalCache getPrincipalCache() {
+        return principalCache;
+    }
+
+    public void setPrincipalCache(PrincipalCache principalCache) {
+        this.principalCache = principalCache;
+    }
+
+    /**
+     * Returns the request headers. For requests read from a connection the names are looked up
+     * case-insensitively.
+     */
     public Map<String, String> getHeaders() {
         return headers;
     }
 
+    /**
+     * Waits for the complete body and returns it decoded as UTF-8.
+     * @throws UncheckedIOException if the connection failed before the body was complete
+     */
     public String getBody() {
+        try {
+            return body.asString();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Returns the body for incremental reading.
+     */
+    public RequestBody getRequestBody() {
         return body;
     }
 
@@ -51,4 +164,29 @@ public class HttpRequest {
         return clientChannel;
     }
 
+    private static Map<String, String> parseQuery(String query) {
+        if (query == null || query.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        Map<String, String> params = new LinkedHashMap<>();
+        for (String pair : query.split("&")) {
+            if (pair.isEmpty()) {
+                continue;
+            }
+            int eq = pair.indexOf('=');
+            String name = decode(eq < 0 ? pair : pair.substring(0, eq));
+            String value = eq < 0 ? "" : decode(pair.substring(eq + 1));
+            params.putIfAbsent(name, value);
+        }
+        return params;
+    }
+
+    private static String decode(String value) {
+        try {
+            return URLDecoder.decode(value, StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            return value;
+        }
+    }
+
 }
@@ -0,0 +1,468 @@
+package org.example.http;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * HttpRequestParser is an incremental HTTP/1.1 request parser.
+ * One instance is kept per connection. Bytes are fed as they arrive and the parser
+ * consumes complete lines directly from the ByteBuffer, remembering how far it has
+ * already scanned, so a request split across any number of reads is parsed without
+ * re-scanning and without building intermediate Strings for lines or tokens.
+ * Well-known methods, versions and header names are resolved to shared constants.
+ * The head and the body are parsed in separate steps: once {@link #parseHead(ByteBuffer)}
+ * has returned true the request can be dispatched, and {@link #readBody(ByteBuffer)} hands
+ * out the body as it arrives, decoding the chunked transfer coding if needed. The body
+ * size limit is checked against Content-Length as soon as the headers are complete, so an
+ * oversized upload is rejected before a single body byte is buffered; chunked bodies are
+ * checked while they are decoded.
+ */
+public class HttpRequestParser {
+    private enum State {
+        REQUEST_LINE,
+        HEADERS,
+        BODY,
+        CHUNK_SIZE,
+        CHUNK_DATA,
+        CHUNK_END,
+        TRAILERS,
+        COMPLETE
+    }
+
+    private static final String[] METHODS = {
+            "GET", "POST", "PUT", "PATCH", "DELETE", "HEAD", "OPTIONS", "TRACE", "CONNECT"
+    };
+    private static final String[] VERSIONS = {"HTTP/1.1", "HTTP/1.0"};
+    private static final String[] KNOWN_HEADERS = {
+            "Host", "Connection", "Content-Length", "Content-Type", "Transfer-Encoding",
+            "Authorization", "Expect", "Accept", "Accept-Encoding", "User-Agent", "Upgrade",
+            "If-Match", "If-None-Match", "If-Modified-Since", "If-Range", "Range", "Cookie", "Keep-Alive",
+            "HTTP2-Settings"
+    };
+    private static final byte[] EMPTY_BODY = new byte[0];
+    private static final byte[][] METHOD_BYTES = toBytes(METHODS);
+    private static final byte[][] VERSION_BYTES = toBytes(VERSIONS);
+    private static final byte[][] KNOWN_HEADER_BYTES = toBytes(KNOWN_HEADERS);
+
+    private final int maxHeaderSize;
+    private final int maxBodySize;
+    private byte[] scratch = new byte[256];
+
+    private State state = State.REQUEST_LINE;
+    private int scanned;
+    private int headerBytes;
+    private String method;
+    private String path;
+    private String version;
+    private Map<String, String> headers;
+    private long contentLength;
+    private long bodyRemaining;
+    private long bodyReceived;
+    private byte[] body;
+    private int bodyRead;
+    private boolean expectContinue;
+
+    /**
+     * @param maxHeaderSize the maximum size in bytes of the request line and headers together
+     * @param maxBodySize   the maximum accepted body size, declared or decoded
+     */
+    public HttpRequestParser(int maxHeaderSize, int maxBodySize) {
+        this.maxHeaderSize = maxHeaderSize;
+        this.maxBodySize = maxBodySize;
+    }
+
+    /**
+     * Consumes the request line and headers of the current request.
+     * The buffer must be in read mode; its position is advanced past the consumed bytes
+     * and the body and any bytes of a following request are left untouched.
+     * @param buffer the connection input buffer
+     * @return true once the head is complete, false if more bytes are needed
+     * @throws HttpParseException if the head is malformed or exceeds a limit
+     */
+    public boolean parseHead(ByteBuffer buffer) throws HttpParseException {
+        while (state == State.REQUEST_LINE || state == State.HEADERS) {
+            int lineEnd = findLineEnd(buffer);
+            if (lineEnd < 0) {
+                if (headerBytes + buffer.remaining() > maxHeaderSize) {
+                    throw headerTooLarge();
+                }
+                return false;
+            }
+            int start = buffer.position();
+            int end = lineEnd;
+            if (end > start && buffer.get(end - 1) == '\r') {
+                end--;
+            }
+            headerBytes += lineEnd + 1 - start;
+            if (headerBytes > maxHeaderSize) {
+                throw headerTooLarge();
+            }
+            if (state == State.REQUEST_LINE) {
+                // Empty lines before the request line are ignored (RFC 9112, 2.2)
+                if (end > start) {
+                    parseRequestLine(buffer, start, end);
+                    state = State.HEADERS;
+                }
+            } else if (end == start) {
+                finishHeaders();
+            } else {
+                parseHeader(buffer, start, end);
+            }
+            buffer.position(lineEnd + 1);
+            scanned = 0;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the next piece of the body available in the buffer, without copying it.
+     * The returned buffer is a view of the input buffer and is only valid until the input
+     * buffer is compacted; the input buffer's position is advanced past it. Chunk size lines
+     * and trailers are consumed on the way.
+     * @param buffer the connection input buffer, in read mode
+     * @return the body bytes, or null if the body is complete or more bytes are needed
+     * @throws HttpParseException if the chunked coding is malformed or the body is too large
+     */
+    public ByteBuffer readBody(ByteBuffer buffer) throws HttpParseException {
+        while (true) {
+            switch (state) {
+                case BODY:
+                case CHUNK_DATA:
+                    if (!buffer.hasRemaining()) {
+                        return null;
+                    }
+                    int count = (int) Math.min(buffer.remaining(), bodyRemaining);
+                    ByteBuffer piece = buffer.slice(buffer.position(), count);
+                    buffer.position(buffer.position() + count);
+                    bodyRemaining -= count;
+                    if (bodyRemaining == 0) {
+                        state = state == State.BODY ? State.COMPLETE : State.CHUNK_END;
+                    }
+                    return piece;
+                case CHUNK_SIZE:
+                case CHUNK_END:
+                case TRAILERS:
+                    int lineEnd = findLineEnd(buffer);
+                    if (lineEnd < 0) {
+                        if (buffer.remaining() > maxHeaderSize) {
+                            throw new HttpParseException(400, "Bad Request");
+                        }
+                        return null;
+                    }
+                    int start = buffer.position();
+                    int end = lineEnd > start && buffer.get(lineEnd - 1) == '\r' ? lineEnd - 1 : lineEnd;
+                    buffer.position(lineEnd + 1);
+                    scanned = 0;
+                    parseChunkLine(buffer, start, end, lineEnd + 1 - start);
+                    break;
+                default:
+                    return null;
+            }
+        }
+    }
+
+    /**
+     * Consumes a complete request including its body, which is then available from
+     * {@link #getBody()}. This aggregates the body in memory; the server itself reads
+     * bodies incrementally with {@link #parseHead(ByteBuffer)} and {@link #readBody(ByteBuffer)}.
+     * @param buffer the connection input buffer
+     * @return true if a complete request is available, false if more bytes are needed
+     * @throws HttpParseException if the request is malformed or exceeds a limit
+     */
+    public boolean parse(ByteBuffer buffer) throws HttpParseException {
+        if (!parseHead(buffer)) {
+            return false;
+        }
+        if (body == null) {
+            body = contentLength > 0 ? new byte[(int) contentLength] : EMPTY_BODY;
+        }
+        ByteBuffer piece;
+        while ((piece = readBody(buffer)) != null) {
+            if (bodyRead + piece.remaining() > body.length) {
+                body = Arrays.copyOf(body, Math.max(bodyRead + piece.remaining(), body.length * 2));
+            }
+            int count = piece.remaining();
+            piece.get(body, bodyRead, count);
+            bodyRead += count;
+        }
+        if (state != State.COMPLETE) {
+            return false;
+        }
+        if (bodyRead < body.length) {
+            body = Arrays.copyOf(body, bodyRead);
+        }
+        return true;
+    }
+
+    /**
+     * Prepares the parser for the next request on the same connection.
+     */
+    public void reset() {
+        state = State.REQUEST_LINE;
+        scanned = 0;
+        headerBytes = 0;
+        method = null;
+        path = null;
+        version = null;
+        headers = null;
+        contentLength = 0;
+        bodyRemaining = 0;
+        bodyReceived = 0;
+        body = null;
+        bodyRead = 0;
+        expectContinue = false;
+    }
+
+    /**
+     * Returns true while the headers have been parsed but the body is still incomplete.
+     */
+    public boolean isAwaitingBody() {
+        return state != State.REQUEST_LINE && state != State.HEADERS && state != State.COMPLETE;
+    }
+
+    /**
+     * Returns true once the head and the whole body of the current request have been consumed.
+     */
+    public boolean isComplete() {
+        return state == State.COMPLETE;
+    }
+
+    /**
+     * Returns true if lines of a request head have been consumed but the head is not complete yet.
+     */
+    public boolean isHeadStarted() {
+        return (state == State.REQUEST_LINE || state == State.HEADERS) && headerBytes > 0;
+    }
+
+    /**
+     * Returns the declared body length, or -1 if the body uses the chunked transfer coding.
+     */
+    public long getContentLength() {
+        return contentLength;
+    }
+
+    /**
+     * Returns true if the current request carries "Expect: 100-continue".
+     */
+    public boolean expectsContinue() {
+        return expectContinue;
+    }
+
+    public String getMethod() {
+        return method;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public String getVersion() {
+        return version;
+    }
+
+    public Map<String, String> getHeaders() {
+        return headers;
+    }
+
+    /**
+     * Returns the body aggregated by {@link #parse(ByteBuffer)}.
+     */
+    public byte[] getBody() {
+        return body;
+    }
+
+    private int findLineEnd(ByteBuffer buffer) {
+        int limit = buffer.limit();
+        for (int i = buffer.position() + scanned; i < limit; i++) {
+            if (buffer.get(i) == '\n') {
+                return i;
+            }
+        }
+        scanned = buffer.remaining();
+        return -1;
+    }
+
+    private void parseRequestLine(ByteBuffer buffer, int start, int end) throws HttpParseException {
+        int firstSpace = indexOf(buffer, start, end, (byte) ' ');
+        int secondSpace = firstSpace < 0 ? -1 : indexOf(buffer, firstSpace + 1, end, (byte) ' ');
+        if (firstSpace <= start || secondSpace <= firstSpace + 1 || secondSpace == end - 1) {
+            throw new HttpParseException(400, "Bad Request");
+        }
+        method = lookup(buffer, start, firstSpace, METHOD_BYTES, METHODS, false);
+        path = ascii(buffer, firstSpace + 1, secondSpace);
+        version = lookup(buffer, secondSpace + 1, end, VERSION_BYTES, VERSIONS, false);
+        // Header names are case-insensitive, whatever capitalization the client sent
+        headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+    }
+
+    private void parseHeader(ByteBuffer buffer, int start, int end) throws HttpParseException {
+        int colon = indexOf(buffer, start, end, (byte) ':');
+        if (colon <= start) {
+            throw new HttpParseException(400, "Bad Request");
+        }
+        int valueStart = colon + 1;
+        while (valueStart < end && isWhitespace(buffer.get(valueStart))) {
+            valueStart++;
+        }
+        int valueEnd = end;
+        while (valueEnd > valueStart && isWhitespace(buffer.get(valueEnd - 1))) {
+            valueEnd--;
+        }
+        String name = lookup(buffer, start, colon, KNOWN_HEADER_BYTES, KNOWN_HEADERS, true);
+        String value = ascii(buffer, valueStart, valueEnd);
+        headers.merge(name, value, (previous, next) -> previous + ", " + next);
+    }
+
+    private void finishHeaders() throws HttpParseException {
+        String expect = headers.get("Expect");
+        expectContinue = expect != null && expect.equalsIgnoreCase("100-continue");
+
+        String transferEncoding = headers.get("Transfer-Encoding");
+        String contentLengthHeader = headers.get("Content-Length");
+        if (transferEncoding != null && !transferEncoding.equalsIgnoreCase("identity")) {
+            if (!transferEncoding.equalsIgnoreCase("chunked")) {
+                throw new HttpParseException(501, "Not Implemented");
+            }
+            if (contentLengthHeader != null) {
+                // Both framings at once is the classic request smuggling vector (RFC 9112, 6.1)
+                throw new HttpParseException(400, "Bad Request");
+            }
+            contentLength = -1;
+            state = State.CHUNK_SIZE;
+            return;
+        }
+
+        if (contentLengthHeader != null) {
+            try {
+                contentLength = Long.parseLong(contentLengthHeader);
+            } catch (NumberFormatException e) {
+                throw new HttpParseException(400, "Bad Request");
+            }
+            if (contentLength < 0) {
+                throw new HttpParseException(400, "Bad Request");
+            }
+            if (contentLength > maxBodySize) {
+                throw new HttpParseException(413, "Payload Too Large");
+            }
+        }
+        bodyRemaining = contentLength;
+        state = contentLength > 0 ? State.BODY : State.COMPLETE;
+    }
+
+    /**
+     * Handles a chunk size line, the line break after chunk data, or a trailer line.
+     */
+    private void parseChunkLine(ByteBuffer buffer, int start, int end, int lineLength) throws HttpParseException {
+        switch (state) {
+            case CHUNK_SIZE:
+                long size = 0;
+                int digits = 0;
+                for (int i = start; i < end; i++) {
+                    int digit = Character.digit(buffer.get(i), 16);
+                    if (digit < 0) {
+                        // Chunk extensions after ';' are allowed and ignored
+                        if (buffer.get(i) != ';' && !isWhitespace(buffer.get(i))) {
+                            throw new HttpParseException(400, "Bad Request");
+                        }
+                        break;
+                    }
+                    if (++digits > 15) {
+                        throw new HttpParseException(413, "Payload Too Large");
+                    }
+                    size = size * 16 + digit;
+                }
+                if (digits == 0) {
+                    throw new HttpParseException(400, "Bad Request");
+                }
+                bodyReceived += size;
+                if (bodyReceived > maxBodySize) {
+                    throw new HttpParseException(413, "Payload Too Large");
+                }
+                bodyRemaining = size;
+                state = size == 0 ? State.TRAILERS : State.CHUNK_DATA;
+                break;
+            case CHUNK_END:
+                if (end != start) {
+                    throw new HttpParseException(400, "Bad Request");
+                }
+                state = State.CHUNK_SIZE;
+                break;
+            case TRAILERS:
+                // Trailer fields are not used by any handler and count against the header limit
+                headerBytes += lineLength;
+                if (headerBytes > maxHeaderSize) {
+                    throw new HttpParseException(431, "Request Header Fields Too Large");
+                }
+                if (end == start) {
+                    state = State.COMPLETE;
+                }
+                break;
+            default:
+                throw new IllegalStateException(state.name());
+        }
+    }
+
+    private HttpParseException headerTooLarge() {
+        return state == State.REQUEST_LINE
+                ? new HttpParseException(414, "URI Too Long")
+                : new HttpParseException(431, "Request Header Fields Too Large");
+    }
+
+    /**
+     * Resolves a token to one of the known constants, or builds a new String for unknown tokens.
+     */
+    private String lookup(ByteBuffer buffer, int start, int end, byte[][] candidates, String[] names,
+                          boolean ignoreCase) {
+        int length = end - start;
+        for (int c = 0; c < candidates.length; c++) {
+            byte[] candidate = candidates[c];
+            if (candidate.length != length) continue;
+            int i = 0;
+            while (i < length && matches(buffer.get(start + i), candidate[i], ignoreCase)) {
+                i++;
+            }
+            if (i == length) {
+                return names[c];
+            }
+        }
+        return ascii(buffer, start, end);
+    }
+
+    private String ascii(ByteBuffer buffer, int start, int end) {
+        int length = end - start;
+        if (scratch.length < length) {
+            scratch = new byte[Math.max(length, scratch.length * 2)];
+        }
+        buffer.get(start, scratch, 0, length);
+        return new String(scratch, 0, length, StandardCharsets.ISO_8859_1);
+    }
+
+    private static boolean matches(byte actual, byte expected, boolean ignoreCase) {
+        if (actual == expected) return true;
+        return ignoreCase && (actual | 0x20) == (expected | 0x20) && Character.isLetter(expected);
+    }
+
+    private static int indexOf(ByteBuffer buffer, int start, int end, byte value) {
+        for (int i = start; i < end; i++) {
+            if (buffer.get(i) == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t';
+    }
+
+    private static byte[][] toBytes(String[] values) {
+        byte[][] bytes = new byte[values.length][];
+        for (int i = 0; i < values.length; i++) {
+            bytes[i] = values[i].getBytes(StandardCharsets.US_ASCII);
+        }
+        return bytes;
+    }
+}
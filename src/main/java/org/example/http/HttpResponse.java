@@ -2,50 +2,282 @@ package org.example.http;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.channels.SocketChannel;
-import java.util.HashMap;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
+/**
+ * The HttpResponse class encodes an HTTP response and hands it to its ResponseChannel.
+ * It never touches the socket itself: the channel orders responses of pipelined requests
+ * and the server decides whether to keep the connection alive, based on the "Connection"
+ * response header. Encoding into pooled buffers is done by the ResponseEncoder.
+ * Text bodies are compressed with the content coding negotiated for the request, see
+ * {@link ResponseCompression}.
+ */
 public class HttpResponse {
-    private final SocketChannel clientChannel;
-    private boolean sent = false;
+    private final ResponseChannel responseChannel;
+    private final Map<String, List<String>> headers = new LinkedHashMap<>();
+    private volatile boolean sent = false;
+    private ResponseStream stream;
+    private ResponseCompression compression;
+    private String contentCoding;
+    private String representationKey;
+    private int streamStatusCode;
+    private String streamContentType;
 
-    public HttpResponse(SocketChannel clientChannel) {
-        this.clientChannel = clientChannel;
+    public HttpResponse(ResponseChannel responseChannel) {
+        this.responseChannel = responseChannel;
+    }
+
+    /**
+     * Sets a header that will be sent with the response, replacing any previous value.
+     * Content-Length and Content-Type are always written by send().
+     * @throws IllegalArgumentException if the name or value contains a line break
+     */
+    public synchronized void setHeader(String name, String value) {
+        validateHeader(name, value);
+        List<String> values = new ArrayList<>(1);
+        values.add(value);
+        headers.put(name, values);
+    }
+
+    /**
+     * Adds a header value, keeping earlier values of the same header, for example
+     * for several Set-Cookie headers.
+     * @throws IllegalArgumentException if the name or value contains a line break
+     */
+    public synchronized void addHeader(String name, String value) {
+        validateHeader(name, value);
+        headers.computeIfAbsent(name, key -> new ArrayList<>(1)).add(value);
+    }
+
+    /**
+     * Returns the first value of the header, or null if it has not been set.
+     */
+    public synchronized String getHeader(String name) {
+        List<String> values = headers.get(name);
+        return values == null ? null : values.get(0);
+    }
+
+    /**
+     * Returns true if the connection is to be closed after this response.
+     */
+    public synchronized boolean isCloseConnection() {
+        return "close".equalsIgnoreCase(getHeader("Connection"));
+    }
+
+    /**
+     * Enables compression of the body with a coding the request accepts. Called by the server
+     * before the request is dispatched.
+     * @param compression    the compression settings and cache of the server
+     * @param acceptEncoding the Accept-Encoding header of the request, or null
+     */
+    public synchronized void negotiateCompression(ResponseCompression compression, String acceptEncoding) {
+        this.compression = compression;
+        this.contentCoding = compression.negotiate(acceptEncoding);
+    }
+
+    /**
+     * Returns the content coding the body is compressed with if it is large enough, or null.
+     */
+    public synchronized String getContentCoding() {
+        return contentCoding;
+    }
+
+    /**
+     * Sends the compressed body cached for the representation key, if the response is
+     * compressed and the cache holds the body for its coding. Otherwise the handler has to
+     * produce the body, and the compressed body it sends or streams next is cached under the
+     * key. The key must change whenever the representation does.
+     * @param representationKey identifies the representation, for example "data:" and a version
+     * @return true if the response has been sent from the cache
+     * @throws IllegalStateException if the response has already been sent
+     */
+    public synchronized boolean sendCached(String representationKey) throws IOException {
+        if (sent) {
+            throw new IllegalStateException("Response already sent");
+        }
+        if (contentCoding == null) {
+            return false;
+        }
+        ResponseCompression.CachedBody cached = compression.getCached(contentCoding, representationKey);
+        if (cached == null) {
+            this.representationKey = representationKey;
+            return false;
+        }
+        addHeader("Vary", "Accept-Encoding");
+        setHeader("Content-Encoding", contentCoding);
+        ByteBuffer[] buffers = ResponseEncoder.encode(responseChannel.getBufferPool(), cached.statusCode, headers,
+                cached.contentType, cached.body);
+        sent = true;
+        responseChannel.write(this, buffers, true);
+        return true;
     }
 
     public void send(int statusCode, String body) throws IOException {
         send(statusCode, body, "text/plain");
     }
 
-    public void send(int statusCode, String body, String contentType) throws IOException {
+    public synchronized void send(int statusCode, String body, String contentType) throws IOException {
         if (sent) {
             return;
         }
-        String statusMessage = getStatusMessage(statusCode);
-        String responseBody = (statusCode == 100) ? "" : statusCode + ": " + statusMessage + "\r\n" + body;
-        String response = "HTTP/1.1 " + statusCode + " " + statusMessage + "\r\n" +
-                "Content-Length: " + responseBody.length() + "\r\n" +
-                "Content-Type: " + contentType + "\r\n" +
-                "\r\n" +
-                responseBody;
-        ByteBuffer buffer = ByteBuffer.wrap(response.getBytes());
-        clientChannel.write(buffer);
+        if (statusCode == 100) {
+            sendContinue();
+            return;
+        }
+        byte[] prefix = ResponseEncoder.bodyPrefix(statusCode);
+        if (isCompressible(statusCode, contentType, prefix.length + ResponseEncoder.utf8Length(body))) {
+            addHeader("Vary", "Accept-Encoding");
+            if (contentCoding != null) {
+                sendCompressed(statusCode, contentType, prefix, body.getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+        }
+        ByteBuffer[] buffers = ResponseEncoder.encode(responseChannel.getBufferPool(), statusCode, headers,
+                contentType, body);
+        sent = true;
+        responseChannel.write(this, buffers, true);
+    }
 
-        if (statusCode != 100) {
-            sent = true;
-            clientChannel.close();
-            System.out.println("Client channel closed after sending response: " + statusCode);
+    /**
+     * Sends a text response whose body is exactly the given text, without the "status: reason"
+     * line that {@link #send(int, String, String)} puts in front of it.
+     */
+    public synchronized void sendRaw(int statusCode, String body, String contentType) throws IOException {
+        if (sent) {
+            return;
         }
+        ByteBuffer[] buffers = ResponseEncoder.encode(responseChannel.getBufferPool(), statusCode, headers,
+                contentType, body.getBytes(StandardCharsets.UTF_8));
+        sent = true;
+        responseChannel.write(this, buffers, true);
     }
 
-    public void sendContinue() throws IOException {
+    /**
+     * Sends a response whose body is a part of a file. The bytes are transferred from the
+     * file to the socket by the connection, without copying them through the heap, and the
+     * region is released once they have been written. Unlike text responses, the body is
+     * sent as is, without the "status: reason" line.
+     * @param statusCode  the status code, usually 200 or 206
+     * @param contentType the value of the Content-Type header
+     * @param body        the file region to send
+     */
+    public synchronized void sendFile(int statusCode, String contentType, FileRegion body) throws IOException {
         if (sent) {
+            body.release();
             return;
         }
-        String response = "HTTP/1.1 100 Continue\r\n\r\n";
-        ByteBuffer buffer = ByteBuffer.wrap(response.getBytes());
-        clientChannel.write(buffer);
+        ByteBuffer[] head = ResponseEncoder.encodeHead(responseChannel.getBufferPool(), statusCode, headers,
+                contentType, body.getCount());
+        sent = true;
+        responseChannel.writeFile(this, head, body);
+    }
+
+    /**
+     * Sends a response that must not have a body, such as 304 Not Modified.
+     * Only the status line and the headers set on this response are written.
+     */
+    public synchronized void sendWithoutBody(int statusCode) throws IOException {
+        if (sent) {
+            return;
+        }
+        ByteBuffer[] head = ResponseEncoder.encodeHead(responseChannel.getBufferPool(), statusCode, headers,
+                null, -1);
+        sent = true;
+        responseChannel.write(this, head, true);
+    }
+
+    /**
+     * Sends the head of a response whose body is streamed with chunked transfer coding and
+     * returns the stream to write the body to. Like every response body of this server, the
+     * streamed body starts with the "status: reason" line. The response is complete when the
+     * stream is closed.
+     * @param statusCode  the status code
+     * @param contentType the value of the Content-Type header
+     * @return the body stream
+     * @throws IllegalStateException if the response has already been sent
+     */
+    public synchronized ResponseStream startStream(int statusCode, String contentType) throws IOException {
+        if (sent) {
+            throw new IllegalStateException("Response already sent");
+        }
+        sent = true;
+        Compressor compressor = null;
+        if (isCompressible(statusCode, contentType, -1)) {
+            addHeader("Vary", "Accept-Encoding");
+            if (contentCoding != null) {
+                setHeader("Content-Encoding", contentCoding);
+                compressor = compression.newCompressor(contentCoding);
+                if (representationKey != null) {
+                    compressor.keepCopy(compression.maxCachedBodySize());
+                }
+            }
+        }
+        streamStatusCode = statusCode;
+        streamContentType = contentType;
+        stream = new ResponseStream(this, responseChannel, compressor);
+        responseChannel.write(this, ResponseEncoder.encodeChunkedHead(responseChannel.getBufferPool(), statusCode,
+                headers, contentType), false);
+        stream.write(ResponseEncoder.bodyPrefix(statusCode));
+        return stream;
+    }
+
+    /**
+     * Returns true if the response is being streamed and the stream has not been closed yet.
+     */
+    public synchronized boolean isStreaming() {
+        return stream != null && !stream.isClosed();
+    }
+
+    /**
+     * Completes a response whose stream the handler left open. Does nothing otherwise.
+     */
+    public void finishStream() throws IOException {
+        ResponseStream open;
+        synchronized (this) {
+            open = stream;
+        }
+        if (open != null) {
+            open.close();
+        }
+    }
+
+    /**
+     * Abandons a streamed response that cannot be completed and closes the connection,
+     * since the client could not tell a truncated body from a complete one otherwise.
+     */
+    public void abort() {
+        ResponseStream open;
+        synchronized (this) {
+            open = stream;
+        }
+        if (open != null) {
+            open.discard();
+        }
+        responseChannel.abort();
+    }
+
+    /**
+     * Counts a streamed body that has been compressed completely and caches it if the
+     * handler named its representation. Called by the ResponseStream when it is closed.
+     */
+    synchronized void streamCompressed(Compressor compressor) {
+        compression.record(compressor.getInputBytes(), compressor.getOutputBytes());
+        byte[] copy = compressor.getCopy();
+        if (representationKey != null && copy != null) {
+            compression.putCached(contentCoding, representationKey,
+                    new ResponseCompression.CachedBody(streamStatusCode, streamContentType, copy));
+        }
+    }
+
+    public synchronized void sendContinue() throws IOException {
+        if (sent) {
+            return;
+        }
+        responseChannel.write(this, ResponseEncoder.encodeContinue(), false);
         System.out.println("Sent 100 Continue");
     }
 
@@ -53,49 +285,46 @@ public class HttpResponse {
         return sent;
     }
 
-    private String getStatusMessage(int statusCode) {
-        Map<Integer, String> statusMessages = new HashMap<>();
-        statusMessages.put(100, "Continue");
-        statusMessages.put(101, "Switching Protocols");
-        statusMessages.put(200, "OK");
-        statusMessages.put(201, "Created");
-        statusMessages.put(202, "Accepted");
-        statusMessages.put(203, "Non-Authoritative Information");
-        statusMessages.put(204, "No Content");
-        statusMessages.put(205, "Reset Content");
-        statusMessages.put(206, "Partial Content");
-        statusMessages.put(300, "Multiple Choices");
-        statusMessages.put(301, "Moved Permanently");
-        statusMessages.put(302, "Found");
-        statusMessages.put(303, "See Other");
-        statusMessages.put(304, "Not Modified");
-        statusMessages.put(305, "Use Proxy");
-        statusMessages.put(307, "Temporary Redirect");
-        statusMessages.put(400, "Bad Request");
-        statusMessages.put(401, "Unauthorized");
-        statusMessages.put(402, "Payment Required");
-        statusMessages.put(403, "Forbidden");
-        statusMessages.put(404, "Not Found");
-        statusMessages.put(405, "Method Not Allowed");
-        statusMessages.put(406, "Not Acceptable");
-        statusMessages.put(407, "Proxy Authentication Required");
-        statusMessages.put(408, "Request Timeout");
-        statusMessages.put(409, "Conflict");
-        statusMessages.put(410, "Gone");
-        statusMessages.put(411, "Length Required");
-        statusMessages.put(412, "Precondition Failed");
-        statusMessages.put(413, "Payload Too Large");
-        statusMessages.put(414, "URI Too Long");
-        statusMessages.put(415, "Unsupported Media Type");
-        statusMessages.put(416, "Range Not Satisfiable");
-        statusMessages.put(417, "Expectation Failed");
-        statusMessages.put(500, "Internal Server Error");
-        statusMessages.put(501, "Not Implemented");
-        statusMessages.put(502, "Bad Gateway");
-        statusMessages.put(503, "Service Unavailable");
-        statusMessages.put(504, "Gateway Timeout");
-        statusMessages.put(505, "HTTP Version Not Supported");
-
-        return statusMessages.getOrDefault(statusCode, "Unknown Status");
+    /**
+     * Returns the reason phrase sent for the status code.
+     */
+    public static String getStatusMessage(int statusCode) {
+        return ResponseEncoder.reasonPhrase(statusCode);
+    }
+
+    /**
+     * Returns true if a body of the status, type and length may be compressed for some
+     * clients, so the response has to vary by Accept-Encoding.
+     */
+    private boolean isCompressible(int statusCode, String contentType, long length) {
+        return compression != null && statusCode >= 200 && statusCode != 204 && statusCode != 304
+                && !headers.containsKey("Content-Encoding") && compression.shouldCompress(contentType, length);
+    }
+
+    private void sendCompressed(int statusCode, String contentType, byte[] prefix, byte[] body) throws IOException {
+        Compressor compressor = compression.newCompressor(contentCoding);
+        byte[] compressed;
+        try {
+            compressed = compressor.compress(prefix, body);
+        } finally {
+            compressor.release();
+        }
+        compression.record(prefix.length + body.length, compressed.length);
+        if (representationKey != null) {
+            compression.putCached(contentCoding, representationKey,
+                    new ResponseCompression.CachedBody(statusCode, contentType, compressed));
+        }
+        setHeader("Content-Encoding", contentCoding);
+        ByteBuffer[] buffers = ResponseEncoder.encode(responseChannel.getBufferPool(), statusCode, headers,
+                contentType, compressed);
+        sent = true;
+        responseChannel.write(this, buffers, true);
+    }
+
+    private static void validateHeader(String name, String value) {
+        if (name.indexOf('\r') >= 0 || name.indexOf('\n') >= 0 || name.indexOf(':') >= 0
+                || value.indexOf('\r') >= 0 || value.indexOf('\n') >= 0) {
+            throw new IllegalArgumentException("Invalid header: " + name);
+        }
     }
 }
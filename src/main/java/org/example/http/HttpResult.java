@@ -0,0 +1,60 @@
+package org.example.http;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * HttpResult is the immutable outcome of an asynchronous handler: the status code,
+ * body, content type and any additional headers of the response to send.
+ */
+public class HttpResult {
+    private final int statusCode;
+    private final String body;
+    private final String contentType;
+    private final Map<String, String> headers;
+
+    public HttpResult(int statusCode, String body) {
+        this(statusCode, body, "text/plain");
+    }
+
+    public HttpResult(int statusCode, String body, String contentType) {
+        this(statusCode, body, contentType, Collections.emptyMap());
+    }
+
+    public HttpResult(int statusCode, String body, String contentType, Map<String, String> headers) {
+        this.statusCode = statusCode;
+        this.body = body;
+        this.contentType = contentType;
+        this.headers = Collections.unmodifiableMap(new LinkedHashMap<>(headers));
+    }
+
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    public String getBody() {
+        return body;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    public Map<String, String> getHeaders() {
+        return headers;
+    }
+
+    /**
+     * Writes this result to the given response.
+     * @param response the response to send
+     * @throws IOException if the response cannot be written
+     */
+    public void sendTo(HttpResponse response) throws IOException {
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            response.setHeader(header.getKey(), header.getValue());
+        }
+        response.send(statusCode, body, contentType);
+    }
+}
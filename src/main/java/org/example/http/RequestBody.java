@@ -0,0 +1,344 @@
+package org.example.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * The RequestBody class is the body of a request as it arrives from the client.
+ * The server dispatches a request as soon as its headers are parsed and appends the body
+ * bytes while they are read, so a handler can process a large upload incrementally through
+ * {@link #getInputStream()} instead of waiting for all of it. Handlers that need the whole
+ * body aggregate it explicitly with {@link #readAllBytes()} or {@link #asString()}; the
+ * aggregated body is cached, so both can be called repeatedly.
+ * At most one window of bytes is buffered: once it is full, {@link #append(ByteBuffer)}
+ * reports it and the connection stops reading until the handler has consumed half of the
+ * window. A body the handler did not read is discarded once its response is complete.
+ */
+public class RequestBody {
+    private static final int DEFAULT_WINDOW = 64 * 1024;
+    private static final byte[] EMPTY = new byte[0];
+
+    private final long contentLength;
+    private final int window;
+    private final Deque<byte[]> chunks = new ArrayDeque<>();
+    private int chunkOffset;
+    private long buffered;
+    private boolean full;
+    private boolean complete;
+    private boolean discarded;
+    private IOException failure;
+    private boolean streamed;
+    private boolean aggregating;
+    private byte[] aggregated;
+    private String text;
+    private Runnable drainListener;
+    private List<Runnable> completionListeners;
+
+    /**
+     * Creates a body that is filled while it is read from the connection.
+     * @param contentLength the declared length, or -1 for a chunked body
+     */
+    public RequestBody(long contentLength) {
+        this(contentLength, DEFAULT_WINDOW);
+    }
+
+    /**
+     * @param contentLength the declared length, or -1 for a chunked body
+     * @param window        how many bytes may be buffered before reading is paused
+     */
+    public RequestBody(long contentLength, int window) {
+        this.contentLength = contentLength;
+        this.window = window;
+    }
+
+    /**
+     * Returns a complete body holding the given bytes.
+     */
+    public static RequestBody of(byte[] bytes) {
+        RequestBody body = new RequestBody(bytes.length);
+        if (bytes.length > 0) {
+            body.chunks.add(bytes);
+            body.buffered = bytes.length;
+        }
+        body.complete = true;
+        return body;
+    }
+
+    /**
+     * Returns the length declared by the Content-Length header, or -1 for a chunked body.
+     */
+    public long getContentLength() {
+        return contentLength;
+    }
+
+    /**
+     * Copies bytes read from the connection into the body. Called by the server.
+     * @param data the bytes, consumed completely
+     * @return true if more bytes may be appended, false once the window is full
+     */
+    public boolean append(ByteBuffer data) {
+        synchronized (this) {
+            if (discarded || failure != null) {
+                data.position(data.limit());
+                return true;
+            }
+            if (data.hasRemaining()) {
+                byte[] chunk = new byte[data.remaining()];
+                data.get(chunk);
+                chunks.addLast(chunk);
+                buffered += chunk.length;
+                notifyAll();
+            }
+            // While the handler aggregates the body, waiting for more bytes is the only option
+            full = !aggregating && buffered >= window;
+            return !full;
+        }
+    }
+
+    /**
+     * Returns true while the window is full and the connection should not read more body bytes.
+     */
+    public synchronized boolean isFull() {
+        return full && !discarded && failure == null;
+    }
+
+    /**
+     * Marks the body as complete. Called by the server after the last byte has been appended.
+     */
+    public void finish() {
+        List<Runnable> listeners;
+        synchronized (this) {
+            complete = true;
+            notifyAll();
+            listeners = takeCompletionListeners();
+        }
+        runAll(listeners);
+    }
+
+    /**
+     * Fails the body, for example because the connection was closed before it was complete.
+     * Called by the server; readers waiting for more bytes receive the exception.
+     */
+    public void fail(IOException cause) {
+        List<Runnable> listeners;
+        synchronized (this) {
+            if (complete || failure != null) {
+                return;
+            }
+            failure = cause;
+            releaseChunks();
+            notifyAll();
+            listeners = takeCompletionListeners();
+        }
+        runAll(listeners);
+    }
+
+    /**
+     * Drops buffered and future bytes, so the connection can skip a body nobody reads.
+     * Called by the server once the response of the request is complete.
+     */
+    public void discard() {
+        Runnable listener;
+        synchronized (this) {
+            if (discarded) {
+                return;
+            }
+            discarded = true;
+            releaseChunks();
+            notifyAll();
+            listener = full ? drainListener : null;
+            full = false;
+        }
+        if (listener != null) {
+            listener.run();
+        }
+    }
+
+    /**
+     * Sets the callback the body runs when a full window has been half consumed or discarded.
+     * Called by the server.
+     */
+    public synchronized void setDrainListener(Runnable drainListener) {
+        this.drainListener = drainListener;
+    }
+
+    /**
+     * Runs the action once the body is complete or has failed, right away if it already is.
+     * The action runs on the thread that completes the body.
+     */
+    public void onComplete(Runnable action) {
+        synchronized (this) {
+            if (!complete && failure == null) {
+                if (completionListeners == null) {
+                    completionListeners = new ArrayList<>(1);
+                }
+                completionListeners.add(action);
+                return;
+            }
+        }
+        action.run();
+    }
+
+    public synchronized boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * Returns a stream of the body bytes that blocks until bytes arrive. The stream and
+     * the aggregating methods share the same bytes; bytes read through the stream are not
+     * returned by {@link #readAllBytes()} afterwards.
+     */
+    public InputStream getInputStream() {
+        return new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] bytes, int offset, int length) throws IOException {
+                return RequestBody.this.read(bytes, offset, length);
+            }
+        };
+    }
+
+    /**
+     * Waits for the complete body and returns its bytes.
+     * @throws IOException if the connection failed before the body was complete
+     */
+    public synchronized byte[] readAllBytes() throws IOException {
+        if (aggregated != null) {
+            return aggregated;
+        }
+        aggregating = true;
+        while (!complete) {
+            awaitData();
+            if (discarded) {
+                break;
+            }
+        }
+        checkFailure();
+        if (!streamed && chunks.size() == 1 && chunkOffset == 0) {
+            // The usual case of a body that arrived with a single read needs no copy
+            aggregated = chunks.peekFirst();
+        } else {
+            byte[] all = new byte[(int) buffered];
+            int position = 0;
+            for (byte[] chunk : chunks) {
+                int offset = position == 0 ? chunkOffset : 0;
+                System.arraycopy(chunk, offset, all, position, chunk.length - offset);
+                position += chunk.length - offset;
+            }
+            aggregated = all;
+        }
+        if (chunks.isEmpty()) {
+            aggregated = EMPTY;
+        }
+        chunks.clear();
+        chunkOffset = 0;
+        buffered = 0;
+        return aggregated;
+    }
+
+    /**
+     * Waits for the complete body and decodes it as UTF-8.
+     * @throws IOException if the connection failed before the body was complete
+     */
+    public synchronized String asString() throws IOException {
+        if (text == null) {
+            text = new String(readAllBytes(), StandardCharsets.UTF_8);
+        }
+        return text;
+    }
+
+    private int read(byte[] bytes, int offset, int length) throws IOException {
+        Runnable listener = null;
+        int count;
+        synchronized (this) {
+            streamed = true;
+            if (aggregated != null) {
+                return -1;
+            }
+            while (chunks.isEmpty() && !complete && !discarded && failure == null) {
+                awaitData();
+            }
+            checkFailure();
+            if (chunks.isEmpty()) {
+                return -1;
+            }
+            byte[] chunk = chunks.peekFirst();
+            count = Math.min(length, chunk.length - chunkOffset);
+            System.arraycopy(chunk, chunkOffset, bytes, offset, count);
+            chunkOffset += count;
+            if (chunkOffset == chunk.length) {
+                chunks.removeFirst();
+                chunkOffset = 0;
+            }
+            buffered -= count;
+            if (full && buffered <= window / 2) {
+                full = false;
+                listener = drainListener;
+            }
+        }
+        if (listener != null) {
+            listener.run();
+        }
+        return count;
+    }
+
+    /**
+     * Waits for the connection to append bytes. While the window is full the connection
+     * is paused, so waiting for the whole body has to let it continue.
+     */
+    private void awaitData() throws IOException {
+        checkFailure();
+        if (full && aggregating) {
+            // Aggregation needs the rest of the body, so the window cannot stay closed
+            full = false;
+            Runnable listener = drainListener;
+            if (listener != null) {
+                listener.run();
+            }
+        }
+        try {
+            wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while reading the request body");
+        }
+    }
+
+    private void checkFailure() throws IOException {
+        if (failure != null) {
+            throw new IOException("Request body not received completely", failure);
+        }
+    }
+
+    private void releaseChunks() {
+        chunks.clear();
+        chunkOffset = 0;
+        buffered = 0;
+    }
+
+    private List<Runnable> takeCompletionListeners() {
+        List<Runnable> listeners = completionListeners;
+        completionListeners = null;
+        return listeners;
+    }
+
+    private static void runAll(List<Runnable> actions) {
+        if (actions != null) {
+            for (Runnable action : actions) {
+                action.run();
+            }
+        }
+    }
+}
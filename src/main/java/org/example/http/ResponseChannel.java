@@ -0,0 +1,54 @@
+package org.example.http;
+
+import org.example.buffer.BufferPool;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * ResponseChannel is the transport an HttpResponse is written to.
+ * The server provides one per connection; it is responsible for putting the
+ * responses of pipelined requests on the wire in request order and for the
+ * connection lifecycle once a response is complete.
+ */
+public interface ResponseChannel {
+    /**
+     * Returns the pool responses encode into. Pooled buffers passed to write()
+     * are released by the channel once they have been written.
+     */
+    BufferPool getBufferPool();
+
+    /**
+     * Queues encoded response bytes for writing. The call does not wait for the bytes
+     * to reach the socket, and the buffers must not be modified afterwards.
+     * @param response the response the bytes belong to
+     * @param data     the encoded bytes, for example the header block followed by the body
+     * @param complete true if this is the last part of the final response
+     * @throws IOException if the bytes cannot be queued
+     */
+    void write(HttpResponse response, ByteBuffer[] data, boolean complete) throws IOException;
+
+    /**
+     * Queues a response head followed by a part of a file as its body, completing the response.
+     * The file bytes go from the file to the socket without being copied into buffers.
+     * @param response the response the bytes belong to
+     * @param head     the encoded status line and headers
+     * @param body     the file region; it is released once written or dropped
+     * @throws IOException if the response cannot be queued
+     */
+    void writeFile(HttpResponse response, ByteBuffer[] head, FileRegion body) throws IOException;
+
+    /**
+     * Blocks the calling thread while the connection holds more unsent bytes than its
+     * high watermark, until the client has caught up. Returns immediately when called
+     * on the thread that performs the writes, which must never block.
+     * @throws IOException if the connection is closed or the wait is interrupted
+     */
+    void awaitWritable() throws IOException;
+
+    /**
+     * Closes the connection without completing the response, for example when a streamed
+     * body cannot be finished. The client sees a truncated response.
+     */
+    void abort();
+}
@@ -0,0 +1,220 @@
+package org.example.http;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * ResponseCompression holds the server-wide state of response compression: the settings,
+ * the pool of Deflaters and the cache of compressed representations. Responses compress
+ * their body with gzip or deflate when the request accepts one of them, the content type
+ * is textual and, for bodies of known length, the body is at least the minimum size.
+ * <p>
+ * Compressing the same bytes again for every request wastes most of the CPU compression
+ * costs, so a handler can name the representation it sends with
+ * {@link HttpResponse#sendCached(String)}. The compressed body is kept under that key, and
+ * later responses with the same key and coding are sent from the cache. The handler has to
+ * change the key whenever the representation changes, for example by including a version.
+ * The cache is an LRU cache bounded by the total size of the compressed bodies.
+ */
+public class ResponseCompression {
+    public static final String GZIP = "gzip";
+    public static final String DEFLATE = "deflate";
+
+    private final boolean enabled;
+    private final int minSize;
+    private final long cacheCapacity;
+    private final DeflaterPool deflaters;
+    private final LinkedHashMap<String, CachedBody> cache = new LinkedHashMap<>(16, 0.75f, true);
+    private long cacheSize;
+
+    private final LongAdder compressedResponses = new LongAdder();
+    private final LongAdder inputBytes = new LongAdder();
+    private final LongAdder outputBytes = new LongAdder();
+    private final LongAdder cacheHits = new LongAdder();
+    private final LongAdder cacheMisses = new LongAdder();
+
+    /**
+     * A compressed body stored in the cache.
+     */
+    static final class CachedBody {
+        final int statusCode;
+        final String contentType;
+        final byte[] body;
+
+        CachedBody(int statusCode, String contentType, byte[] body) {
+            this.statusCode = statusCode;
+            this.contentType = contentType;
+            this.body = body;
+        }
+    }
+
+    /**
+     * @param enabled       false to send every response uncompressed
+     * @param minSize       bodies of known length below this size are sent uncompressed
+     * @param level         the Deflater compression level, 1 to 9
+     * @param cacheCapacity how many bytes of compressed bodies may be cached, 0 to disable the cache
+     */
+    public ResponseCompression(boolean enabled, int minSize, int level, long cacheCapacity) {
+        this.enabled = enabled;
+        this.minSize = minSize;
+        this.cacheCapacity = cacheCapacity;
+        this.deflaters = new DeflaterPool(level);
+    }
+
+    /**
+     * Chooses the content coding for a request from its Accept-Encoding header (RFC 9110, 12.5.3).
+     * gzip is preferred over deflate when both are equally acceptable.
+     * @return "gzip", "deflate" or null to send the body uncompressed
+     */
+    public String negotiate(String acceptEncoding) {
+        if (!enabled || acceptEncoding == null) {
+            return null;
+        }
+        double gzip = -1;
+        double deflate = -1;
+        double any = -1;
+        for (String element : acceptEncoding.split(",")) {
+            String[] parts = element.split(";");
+            String coding = parts[0].trim().toLowerCase(Locale.ROOT);
+            double quality = 1;
+            for (int i = 1; i < parts.length; i++) {
+                String parameter = parts[i].trim();
+                if (parameter.startsWith("q=") || parameter.startsWith("Q=")) {
+                    try {
+                        quality = Double.parseDouble(parameter.substring(2));
+                    } catch (NumberFormatException e) {
+                        quality = 0;
+                    }
+                }
+            }
+            switch (coding) {
+                case GZIP, "x-gzip" -> gzip = quality;
+                case DEFLATE -> deflate = quality;
+                case "*" -> any = quality;
+                default -> {
+                }
+            }
+        }
+        if (gzip < 0) {
+            gzip = any;
+        }
+        if (deflate < 0) {
+            deflate = any;
+        }
+        if (gzip > 0 && gzip >= deflate) {
+            return GZIP;
+        }
+        return deflate > 0 ? DEFLATE : null;
+    }
+
+    /**
+     * Returns true if a body of the type and length is worth compressing.
+     * @param length the body length in bytes, or -1 if it is not known in advance
+     */
+    boolean shouldCompress(String contentType, long length) {
+        return enabled && (length < 0 || length >= minSize) && isCompressible(contentType);
+    }
+
+    /**
+     * Returns true for content types that are usually text, as opposed to images, archives
+     * and other formats that are compressed already.
+     */
+    static boolean isCompressible(String contentType) {
+        if (contentType == null) {
+            return false;
+        }
+        String type = contentType.toLowerCase(Locale.ROOT);
+        return type.startsWith("text/") || type.startsWith("application/json") || type.contains("+json")
+                || type.startsWith("application/javascript") || type.startsWith("application/xml")
+                || type.contains("+xml");
+    }
+
+    Compressor newCompressor(String contentCoding) {
+        return new Compressor(contentCoding, deflaters);
+    }
+
+    /**
+     * Returns the largest body that is worth caching.
+     */
+    int maxCachedBodySize() {
+        return (int) Math.min(Integer.MAX_VALUE, cacheCapacity / 4);
+    }
+
+    synchronized CachedBody getCached(String contentCoding, String key) {
+        CachedBody cached = cache.get(contentCoding + ' ' + key);
+        if (cached != null) {
+            cacheHits.increment();
+        } else {
+            cacheMisses.increment();
+        }
+        return cached;
+    }
+
+    synchronized void putCached(String contentCoding, String key, CachedBody body) {
+        if (body.body.length > maxCachedBodySize()) {
+            return;
+        }
+        CachedBody previous = cache.put(contentCoding + ' ' + key, body);
+        if (previous != null) {
+            cacheSize -= previous.body.length;
+        }
+        cacheSize += body.body.length;
+        Iterator<Map.Entry<String, CachedBody>> eldest = cache.entrySet().iterator();
+        while (cacheSize > cacheCapacity && eldest.hasNext()) {
+            cacheSize -= eldest.next().getValue().body.length;
+            eldest.remove();
+        }
+    }
+
+    /**
+     * Counts a compressed response.
+     * @param input  the uncompressed body size
+     * @param output the compressed body size
+     */
+    void record(long input, long output) {
+        compressedResponses.increment();
+        inputBytes.add(input);
+        outputBytes.add(output);
+    }
+
+    /**
+     * Returns the number of responses sent compressed, not counting cache hits.
+     */
+    public long getCompressedResponses() {
+        return compressedResponses.sum();
+    }
+
+    /**
+     * Returns the number of body bytes that were compressed.
+     */
+    public long getInputBytes() {
+        return inputBytes.sum();
+    }
+
+    /**
+     * Returns the number of compressed bytes these bodies were reduced to.
+     */
+    public long getOutputBytes() {
+        return outputBytes.sum();
+    }
+
+    public long getCacheHits() {
+        return cacheHits.sum();
+    }
+
+    public long getCacheMisses() {
+        return cacheMisses.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "ResponseCompression{compressed=" + getCompressedResponses()
+                + ", inputBytes=" + getInputBytes()
+                + ", outputBytes=" + getOutputBytes()
+                + ", cacheHits=" + getCacheHits()
+                + ", cacheMisses=" + getCacheMisses() + "}";
+    }
+}
@@ -0,0 +1,401 @@
+package org.example.http;
+
+import org.example.buffer.BufferPool;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The ResponseEncoder class writes HTTP/1.1 responses straight into pooled buffers.
+ * Status lines, the status prefix of the body and the names of common headers are encoded
+ * once when the class is loaded; per response only the header values, the Content-Length
+ * digits and the body are encoded, byte by byte, into the buffers that are later written
+ * to the socket. The body is encoded as UTF-8 and its length is computed up front, so the
+ * Content-Length header is exact for non-ASCII bodies without an intermediate byte array.
+ * Streamed bodies are sent with chunked transfer coding; chunks are framed in place, in
+ * room reserved around the data, so every chunk is a single pooled buffer.
+ */
+final class ResponseEncoder {
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final byte[] HEADER_SEPARATOR = {':', ' '};
+    private static final byte[] CONTENT_LENGTH = ascii("Content-Length: ");
+    private static final byte[] CONTENT_TYPE = ascii("Content-Type: ");
+    private static final byte[] CONTINUE = ascii("HTTP/1.1 100 Continue\r\n\r\n");
+    private static final byte[] TRANSFER_ENCODING_CHUNKED = ascii("Transfer-Encoding: chunked\r\n");
+    private static final byte[] LAST_CHUNK = ascii("0\r\n\r\n");
+    private static final byte[] HEX_DIGITS = ascii("0123456789abcdef");
+
+    /**
+     * Room reserved in front of chunk data for the chunk size line: up to six hex digits and CRLF.
+     */
+    static final int CHUNK_HEADER_RESERVE = 8;
+
+    /**
+     * Room reserved behind chunk data for the CRLF that ends the chunk.
+     */
+    static final int CHUNK_TRAILER_RESERVE = 2;
+
+    private static final String[] REASONS = new String[600];
+    private static final byte[][] STATUS_LINES = new byte[600][];
+    private static final byte[][] BODY_PREFIXES = new byte[600][];
+    private static final Map<String, byte[]> HEADER_NAMES = new HashMap<>();
+
+    static {
+        reason(100, "Continue");
+        reason(101, "Switching Protocols");
+        reason(200, "OK");
+        reason(201, "Created");
+        reason(202, "Accepted");
+        reason(203, "Non-Authoritative Information");
+        reason(204, "No Content");
+        reason(205, "Reset Content");
+        reason(206, "Partial Content");
+        reason(300, "Multiple Choices");
+        reason(301, "Moved Permanently");
+        reason(302, "Found");
+        reason(303, "See Other");
+        reason(304, "Not Modified");
+        reason(305, "Use Proxy");
+        reason(307, "Temporary Redirect");
+        reason(400, "Bad Request");
+        reason(401, "Unauthorized");
+        reason(402, "Payment Required");
+        reason(403, "Forbidden");
+        reason(404, "Not Found");
+        reason(405, "Method Not Allowed");
+        reason(406, "Not Acceptable");
+        reason(407, "Proxy Authentication Required");
+        reason(408, "Request Timeout");
+        reason(409, "Conflict");
+        reason(410, "Gone");
+        reason(411, "Length Required");
+        reason(412, "Precondition Failed");
+        reason(413, "Payload Too Large");
+        reason(414, "URI Too Long");
+        reason(415, "Unsupported Media Type");
+        reason(416, "Range Not Satisfiable");
+        reason(417, "Expectation Failed");
+        reason(429, "Too Many Requests");
+        reason(431, "Request Header Fields Too Large");
+        reason(500, "Internal Server Error");
+        reason(501, "Not Implemented");
+        reason(502, "Bad Gateway");
+        reason(503, "Service Unavailable");
+        reason(504, "Gateway Timeout");
+        reason(505, "HTTP Version Not Supported");
+
+        for (String name : new String[]{"Allow", "Cache-Control", "Connection", "Content-Encoding",
+                "Content-Range", "Date", "ETag", "Keep-Alive", "Last-Modified", "Location",
+                "Retry-After", "Server", "Set-Cookie", "Transfer-Encoding", "Vary", "WWW-Authenticate"}) {
+            HEADER_NAMES.put(name, ascii(name + ": "));
+        }
+    }
+
+    private ResponseEncoder() {
+    }
+
+    private static void reason(int statusCode, String reason) {
+        REASONS[statusCode] = reason;
+        STATUS_LINES[statusCode] = ascii("HTTP/1.1 " + statusCode + " " + reason + "\r\n");
+        BODY_PREFIXES[statusCode] = ascii(statusCode + ": " + reason + "\r\n");
+    }
+
+    private static byte[] ascii(String value) {
+        return value.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static boolean isKnown(int statusCode) {
+        return statusCode >= 0 && statusCode < REASONS.length && REASONS[statusCode] != null;
+    }
+
+    /**
+     * Returns the reason phrase for the status code, or "Unknown Status".
+     */
+    static String reasonPhrase(int statusCode) {
+        return isKnown(statusCode) ? REASONS[statusCode] : "Unknown Status";
+    }
+
+    /**
+     * Returns the interim 100 Continue response.
+     */
+    static ByteBuffer[] encodeContinue() {
+        return new ByteBuffer[]{ByteBuffer.wrap(CONTINUE).asReadOnlyBuffer()};
+    }
+
+    /**
+     * Encodes a complete response whose body starts with the "status: reason" line
+     * that every response of this server carries.
+     * @param pool        the pool the buffers are taken from
+     * @param statusCode  the status code
+     * @param headers     additional headers, written in insertion order
+     * @param contentType the value of the Content-Type header
+     * @param body        the body text, encoded as UTF-8
+     * @return the buffers, flipped and ready to be written
+     */
+    static ByteBuffer[] encode(BufferPool pool, int statusCode, Map<String, List<String>> headers,
+                               String contentType, String body) {
+        byte[] prefix = bodyPrefix(statusCode);
+        long contentLength = prefix.length + utf8Length(body);
+
+        Output out = new Output(pool, estimateHeadSize(headers, contentType) + contentLength);
+        writeStatusLine(out, statusCode);
+        out.put(CONTENT_LENGTH);
+        out.putDecimal(contentLength);
+        out.put(CRLF);
+        writeHead(out, headers, contentType);
+        out.put(prefix);
+        out.putUtf8(body);
+        return out.finish();
+    }
+
+    /**
+     * Encodes a complete response whose body is already encoded, such as a compressed body.
+     * @param body the body bytes, sent as they are
+     * @return the buffers, flipped and ready to be written
+     */
+    static ByteBuffer[] encode(BufferPool pool, int statusCode, Map<String, List<String>> headers,
+                               String contentType, byte[] body) {
+        Output out = new Output(pool, estimateHeadSize(headers, contentType) + body.length);
+        writeStatusLine(out, statusCode);
+        out.put(CONTENT_LENGTH);
+        out.putDecimal(body.length);
+        out.put(CRLF);
+        writeHead(out, headers, contentType);
+        out.put(body);
+        return out.finish();
+    }
+
+    /**
+     * Encodes only the status line and headers, for responses without a body such as 304
+     * and for bodies written separately such as files.
+     * @param contentType   the value of the Content-Type header, or null to omit it
+     * @param contentLength the value of the Content-Length header, or -1 to omit it
+     */
+    static ByteBuffer[] encodeHead(BufferPool pool, int statusCode, Map<String, List<String>> headers,
+                                   String contentType, long contentLength) {
+        Output out = new Output(pool, estimateHeadSize(headers, contentType == null ? "" : contentType));
+        writeStatusLine(out, statusCode);
+        if (contentLength >= 0) {
+            out.put(CONTENT_LENGTH);
+            out.putDecimal(contentLength);
+            out.put(CRLF);
+        }
+        if (contentType != null) {
+            out.put(CONTENT_TYPE);
+            out.putAscii(contentType);
+            out.put(CRLF);
+        }
+        writeHeaders(out, headers);
+        out.put(CRLF);
+        return out.finish();
+    }
+
+    /**
+     * Encodes the head of a response whose body follows in chunks.
+     */
+    static ByteBuffer[] encodeChunkedHead(BufferPool pool, int statusCode, Map<String, List<String>> headers,
+                                          String contentType) {
+        Output out = new Output(pool, estimateHeadSize(headers, contentType) + TRANSFER_ENCODING_CHUNKED.length);
+        writeStatusLine(out, statusCode);
+        out.put(TRANSFER_ENCODING_CHUNKED);
+        writeHead(out, headers, contentType);
+        return out.finish();
+    }
+
+    /**
+     * Returns the "status: reason" line every response body of this server starts with.
+     */
+    static byte[] bodyPrefix(int statusCode) {
+        return isKnown(statusCode) ? BODY_PREFIXES[statusCode] : ascii(statusCode + ": Unknown Status\r\n");
+    }
+
+    /**
+     * Frames chunk data in place. The data lies between the reserved header room and the
+     * buffer position; the size line is written right in front of it and the CRLF behind it.
+     * @param buffer a buffer filled from {@link #CHUNK_HEADER_RESERVE}, with room for the trailer
+     * @return the buffer, positioned at the size line and limited after the trailer
+     */
+    static ByteBuffer frameChunk(ByteBuffer buffer) {
+        int end = buffer.position();
+        int size = end - CHUNK_HEADER_RESERVE;
+        int digits = Math.max(1, (Integer.SIZE - Integer.numberOfLeadingZeros(size) + 3) / 4);
+        int start = CHUNK_HEADER_RESERVE - digits - 2;
+        for (int i = digits - 1, value = size; i >= 0; i--, value >>>= 4) {
+            buffer.put(start + i, HEX_DIGITS[value & 0xF]);
+        }
+        buffer.put(start + digits, (byte) '\r');
+        buffer.put(start + digits + 1, (byte) '\n');
+        buffer.put(end, (byte) '\r');
+        buffer.put(end + 1, (byte) '\n');
+        buffer.limit(end + 2);
+        buffer.position(start);
+        return buffer;
+    }
+
+    /**
+     * Returns the zero-length chunk that ends a chunked body.
+     */
+    static ByteBuffer lastChunk() {
+        return ByteBuffer.wrap(LAST_CHUNK).asReadOnlyBuffer();
+    }
+
+    private static void writeHead(Output out, Map<String, List<String>> headers, String contentType) {
+        out.put(CONTENT_TYPE);
+        out.putAscii(contentType);
+        out.put(CRLF);
+        writeHeaders(out, headers);
+        out.put(CRLF);
+    }
+
+    private static void writeStatusLine(Output out, int statusCode) {
+        if (isKnown(statusCode)) {
+            out.put(STATUS_LINES[statusCode]);
+        } else {
+            out.putAscii("HTTP/1.1 " + statusCode + " Unknown Status\r\n");
+        }
+    }
+
+    private static void writeHeaders(Output out, Map<String, List<String>> headers) {
+        for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+            byte[] name = HEADER_NAMES.get(header.getKey());
+            for (String value : header.getValue()) {
+                if (name != null) {
+                    out.put(name);
+                } else {
+                    out.putAscii(header.getKey());
+                    out.put(HEADER_SEPARATOR);
+                }
+                out.putAscii(value);
+                out.put(CRLF);
+            }
+        }
+    }
+
+    private static int estimateHeadSize(Map<String, List<String>> headers, String contentType) {
+        int size = 64 + CONTENT_LENGTH.length + 20 + CONTENT_TYPE.length + contentType.length();
+        for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+            for (String value : header.getValue()) {
+                size += header.getKey().length() + value.length() + 4;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Returns the number of bytes the text occupies in UTF-8.
+     */
+    static long utf8Length(String text) {
+        long length = 0;
+        int count = text.length();
+        for (int i = 0; i < count; i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < count && Character.isLowSurrogate(text.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else {
+                // Unpaired surrogates are replaced by '?', like String.getBytes does
+                length += Character.isSurrogate(c) ? 1 : 3;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * A chain of pooled buffers that grows in buffers of the largest pooled size.
+     */
+    private static final class Output {
+        private final BufferPool pool;
+        private final List<ByteBuffer> buffers = new ArrayList<>(2);
+        private long remaining;
+        private ByteBuffer current;
+
+        private Output(BufferPool pool, long expectedSize) {
+            this.pool = pool;
+            this.remaining = expectedSize;
+            next();
+        }
+
+        private void next() {
+            if (current != null) {
+                buffers.add(current.flip());
+            }
+            int chunkSize = BufferPool.maxPooledCapacity();
+            current = pool.acquire((int) Math.max(1, Math.min(remaining, chunkSize)));
+            remaining -= current.capacity();
+        }
+
+        private void put(byte b) {
+            if (!current.hasRemaining()) {
+                next();
+            }
+            current.put(b);
+        }
+
+        private void put(byte[] bytes) {
+            int offset = 0;
+            while (offset < bytes.length) {
+                if (!current.hasRemaining()) {
+                    next();
+                }
+                int count = Math.min(current.remaining(), bytes.length - offset);
+                current.put(bytes, offset, count);
+                offset += count;
+            }
+        }
+
+        /**
+         * Writes header text. Header values are not allowed to contain line breaks.
+         */
+        private void putAscii(String text) {
+            for (int i = 0; i < text.length(); i++) {
+                char c = text.charAt(i);
+                put(c < 0x100 ? (byte) c : (byte) '?');
+            }
+        }
+
+        private void putDecimal(long value) {
+            if (value >= 10) {
+                putDecimal(value / 10);
+            }
+            put((byte) ('0' + value % 10));
+        }
+
+        private void putUtf8(String text) {
+            int count = text.length();
+            for (int i = 0; i < count; i++) {
+                char c = text.charAt(i);
+                if (c < 0x80) {
+                    put((byte) c);
+                } else if (c < 0x800) {
+                    put((byte) (0xC0 | (c >> 6)));
+                    put((byte) (0x80 | (c & 0x3F)));
+                } else if (Character.isHighSurrogate(c) && i + 1 < count && Character.isLowSurrogate(text.charAt(i + 1))) {
+                    int codePoint = Character.toCodePoint(c, text.charAt(++i));
+                    put((byte) (0xF0 | (codePoint >> 18)));
+                    put((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+                    put((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+                    put((byte) (0x80 | (codePoint & 0x3F)));
+                } else if (Character.isSurrogate(c)) {
+                    put((byte) '?');
+                } else {
+                    put((byte) (0xE0 | (c >> 12)));
+                    put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                    put((byte) (0x80 | (c & 0x3F)));
+                }
+            }
+        }
+
+        private ByteBuffer[] finish() {
+            buffers.add(current.flip());
+            return buffers.toArray(new ByteBuffer[0]);
+        }
+    }
+}
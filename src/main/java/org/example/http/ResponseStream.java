@@ -0,0 +1,193 @@
+package org.example.http;
+
+import org.example.buffer.BufferPool;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.Deflater;
+
+/**
+ * The ResponseStream class is the body of a streamed response. Bytes are collected in a
+ * pooled buffer and sent as one chunk of the chunked transfer coding whenever the buffer
+ * is full or the stream is flushed, so a handler can start sending before the whole
+ * payload is computed. After every chunk the writer waits while the connection has more
+ * unsent bytes than its high watermark, so a slow client slows the handler down instead
+ * of letting the response pile up in memory. Closing the stream sends the last chunk and
+ * completes the response. A stream is meant to be used by one thread at a time.
+ * When the response is compressed, the Compressor deflates the written bytes straight
+ * into the chunk buffers, and flushing the stream flushes the compressor as well.
+ */
+public class ResponseStream extends OutputStream {
+    private static final int CHUNK_BUFFER_SIZE = 16 * 1024;
+
+    private final HttpResponse response;
+    private final ResponseChannel responseChannel;
+    private final BufferPool bufferPool;
+    private final Compressor compressor;
+    private ByteBuffer current;
+    private boolean closed;
+
+    /**
+     * @param compressor the compressor of the body, or null to send it as it is
+     */
+    ResponseStream(HttpResponse response, ResponseChannel responseChannel, Compressor compressor) throws IOException {
+        this.response = response;
+        this.responseChannel = responseChannel;
+        this.bufferPool = responseChannel.getBufferPool();
+        this.compressor = compressor;
+        if (compressor != null) {
+            byte[] header = compressor.header();
+            writeRaw(header, 0, header.length);
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (compressor != null) {
+            write(new byte[]{(byte) b}, 0, 1);
+            return;
+        }
+        ensureOpen();
+        if (current == null || current.remaining() <= ResponseEncoder.CHUNK_TRAILER_RESERVE) {
+            sendChunk();
+            current = newChunkBuffer();
+        }
+        current.put((byte) b);
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        ensureOpen();
+        if (compressor != null) {
+            compressor.setInput(bytes, offset, length);
+            while (!compressor.needsInput()) {
+                deflate(Deflater.NO_FLUSH);
+            }
+            return;
+        }
+        writeRaw(bytes, offset, length);
+    }
+
+    /**
+     * Copies bytes into the chunk buffers, sending every buffer that fills up.
+     */
+    private void writeRaw(byte[] bytes, int offset, int length) throws IOException {
+        while (length > 0) {
+            if (current == null || current.remaining() <= ResponseEncoder.CHUNK_TRAILER_RESERVE) {
+                sendChunk();
+                current = newChunkBuffer();
+            }
+            int count = Math.min(current.remaining() - ResponseEncoder.CHUNK_TRAILER_RESERVE, length);
+            current.put(bytes, offset, count);
+            offset += count;
+            length -= count;
+        }
+    }
+
+    /**
+     * Sends the bytes written so far as a chunk, even if the chunk buffer is not full.
+     */
+    @Override
+    public void flush() throws IOException {
+        ensureOpen();
+        if (compressor != null) {
+            // The output was complete only if the deflater did not fill the buffer up
+            while (deflate(Deflater.SYNC_FLUSH) > 0 && !hasRoom()) {
+                // continue in the next buffer
+            }
+        }
+        sendChunk();
+    }
+
+    /**
+     * Sends the remaining bytes and the last chunk, completing the response.
+     * Closing a closed stream has no effect.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        try {
+            if (compressor != null) {
+                compressor.finish();
+                while (!compressor.finished()) {
+                    deflate(Deflater.NO_FLUSH);
+                }
+                byte[] trailer = compressor.trailer();
+                writeRaw(trailer, 0, trailer.length);
+                response.streamCompressed(compressor);
+            }
+            sendChunk();
+        } finally {
+            closed = true;
+            if (compressor != null) {
+                compressor.release();
+            }
+        }
+        responseChannel.write(response, new ByteBuffer[]{ResponseEncoder.lastChunk()}, true);
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Gives up the stream without completing the response, returning the buffered bytes to the pool.
+     */
+    void discard() {
+        closed = true;
+        if (compressor != null) {
+            compressor.release();
+        }
+        if (current != null) {
+            bufferPool.release(current);
+            current = null;
+        }
+    }
+
+    /**
+     * Lets the compressor write into the current chunk buffer, starting a new one if it is full.
+     * @return the number of compressed bytes written
+     */
+    private int deflate(int flush) throws IOException {
+        if (!hasRoom()) {
+            sendChunk();
+            current = newChunkBuffer();
+        }
+        int limit = current.limit();
+        current.limit(limit - ResponseEncoder.CHUNK_TRAILER_RESERVE);
+        try {
+            return compressor.deflate(current, flush);
+        } finally {
+            current.limit(limit);
+        }
+    }
+
+    private boolean hasRoom() {
+        return current != null && current.remaining() > ResponseEncoder.CHUNK_TRAILER_RESERVE;
+    }
+
+    private ByteBuffer newChunkBuffer() {
+        ByteBuffer buffer = bufferPool.acquire(CHUNK_BUFFER_SIZE);
+        buffer.position(ResponseEncoder.CHUNK_HEADER_RESERVE);
+        return buffer;
+    }
+
+    private void sendChunk() throws IOException {
+        ByteBuffer chunk = current;
+        if (chunk == null || chunk.position() == ResponseEncoder.CHUNK_HEADER_RESERVE) {
+            return;
+        }
+        current = null;
+        responseChannel.write(response, new ByteBuffer[]{ResponseEncoder.frameChunk(chunk)}, false);
+        responseChannel.awaitWritable();
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Response stream is closed");
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package org.example.http2;
+
+import java.nio.charset.StandardCharsets;
+import java.util.function.BiConsumer;
+
+/**
+ * HpackDecoder decodes the header blocks a peer sends on one connection (RFC 7541).
+ * It owns the decoding dynamic table, so the blocks must be decoded in the order they
+ * were received, every one of them, even those of streams that are refused.
+ */
+public class HpackDecoder {
+    private final HpackTable table;
+    private final int maxTableSize;
+    private final int maxHeaderListSize;
+
+    /**
+     * Creates a decoder.
+     *
+     * @param maxTableSize      the SETTINGS_HEADER_TABLE_SIZE this endpoint advertised
+     * @param maxHeaderListSize the largest header list, in HPACK entry sizes, a block may decode to
+     */
+    public HpackDecoder(int maxTableSize, int maxHeaderListSize) {
+        this.table = new HpackTable(maxTableSize);
+        this.maxTableSize = maxTableSize;
+        this.maxHeaderListSize = maxHeaderListSize;
+    }
+
+    /**
+     * Decodes a complete header block and passes every field to the sink in order.
+     *
+     * @return false if the header list exceeded the maximum size; the table is still
+     *         updated, but the fields past the limit are not passed to the sink
+     */
+    public boolean decode(byte[] block, int offset, int length, BiConsumer<String, String> sink) throws Http2Exception {
+        Reader reader = new Reader(block, offset, offset + length);
+        int listSize = 0;
+        boolean fieldSeen = false;
+        while (reader.position < reader.end) {
+            int b = block[reader.position] & 0xff;
+            String name;
+            String value;
+            if ((b & 0x80) != 0) {
+                // Indexed header field
+                int index = reader.readInt(7);
+                name = table.name(index);
+                value = table.value(index);
+            } else if ((b & 0x20) != 0 && (b & 0x40) == 0) {
+                // Dynamic table size update, only allowed before the first field
+                int size = reader.readInt(5);
+                if (fieldSeen || size > maxTableSize) {
+                    throw new Http2Exception(Http2Frames.COMPRESSION_ERROR, "Invalid table size update " + size);
+                }
+                table.setMaxSize(size);
+                continue;
+            } else {
+                // Literal, with incremental indexing (01), without indexing (0000) or never indexed (0001)
+                boolean indexing = (b & 0x40) != 0;
+                int index = reader.readInt(indexing ? 6 : 4);
+                name = index == 0 ? reader.readString() : table.name(index);
+                value = reader.readString();
+                if (indexing) {
+                    table.add(name, value);
+                }
+            }
+            fieldSeen = true;
+            listSize += HpackTable.entrySize(name, value);
+            if (listSize <= maxHeaderListSize) {
+                sink.accept(name, value);
+            }
+        }
+        return listSize <= maxHeaderListSize;
+    }
+
+    private static final class Reader {
+        private final byte[] data;
+        private final int end;
+        private int position;
+
+        Reader(byte[] data, int position, int end) {
+            this.data = data;
+            this.position = position;
+            this.end = end;
+        }
+
+        /**
+         * Reads an integer with an N bit prefix (RFC 7541, section 5.1).
+         */
+        int readInt(int prefixBits) throws Http2Exception {
+            int mask = (1 << prefixBits) - 1;
+            int value = data[position++] & mask;
+            if (value < mask) {
+                return value;
+            }
+            for (int shift = 0; ; shift += 7) {
+                if (position == end || shift > 21) {
+                    throw new Http2Exception(Http2Frames.COMPRESSION_ERROR, "Invalid integer in header block");
+                }
+                int b = data[position++] & 0xff;
+                value += (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+        }
+
+        String readString() throws Http2Exception {
+            if (position == end) {
+                throw new Http2Exception(Http2Frames.COMPRESSION_ERROR, "Truncated header block");
+            }
+            boolean huffman = (data[position] & 0x80) != 0;
+            int length = readInt(7);
+            if (length > end - position) {
+                throw new Http2Exception(Http2Frames.COMPRESSION_ERROR, "Truncated header block");
+            }
+            String text = huffman
+                    ? Huffman.decode(data, position, length)
+                    : new String(data, position, length, StandardCharsets.ISO_8859_1);
+            position += length;
+            return text;
+        }
+    }
+}
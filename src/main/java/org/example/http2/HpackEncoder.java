@@ -0,0 +1,115 @@
+package org.example.http2;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+
+/**
+ * HpackEncoder encodes the header blocks this endpoint sends on one connection (RFC 7541).
+ * Fields already in the static or dynamic table are sent as a single index; the rest are
+ * sent as literals and added to the dynamic table, except for values that change with
+ * every response, which would only evict useful entries, and sensitive values, which are
+ * marked never indexed. Strings are Huffman coded when that makes them shorter.
+ */
+public class HpackEncoder {
+    private static final int DEFAULT_TABLE_SIZE = 4096;
+    private static final Set<String> NOT_INDEXED = Set.of(
+            "content-length", "content-range", "date", "etag", "last-modified", "age", "expires");
+    private static final Set<String> NEVER_INDEXED = Set.of("authorization", "cookie", "set-cookie");
+
+    private final HpackTable table = new HpackTable(DEFAULT_TABLE_SIZE);
+    // The smallest and the last table size since the previous block, -1 if unchanged
+    private int minPendingSize = -1;
+    private int pendingSize = -1;
+
+    /**
+     * Applies the SETTINGS_HEADER_TABLE_SIZE of the peer. The encoder never uses more than
+     * 4096 bytes; a change is signalled at the start of the next block.
+     */
+    public void setMaxTableSize(int peerSize) {
+        int size = Math.min(peerSize, DEFAULT_TABLE_SIZE);
+        if (size == table.getMaxSize() && pendingSize < 0) {
+            return;
+        }
+        minPendingSize = minPendingSize < 0 ? size : Math.min(minPendingSize, size);
+        pendingSize = size;
+        table.setMaxSize(size);
+    }
+
+    /**
+     * Starts a header block, emitting any pending table size updates.
+     */
+    public void beginBlock(ByteArrayOutputStream out) {
+        if (pendingSize < 0) {
+            return;
+        }
+        if (minPendingSize < pendingSize) {
+            writeInt(out, 0x20, 5, minPendingSize);
+        }
+        writeInt(out, 0x20, 5, pendingSize);
+        minPendingSize = -1;
+        pendingSize = -1;
+    }
+
+    /**
+     * Encodes one field. The name must already be lowercase.
+     */
+    public void encode(String name, String value, ByteArrayOutputStream out) {
+        boolean neverIndexed = NEVER_INDEXED.contains(name);
+        if (!neverIndexed) {
+            int index = HpackTable.staticField(name, value);
+            if (index == 0) {
+                index = table.dynamicField(name, value);
+            }
+            if (index != 0) {
+                writeInt(out, 0x80, 7, index);
+                return;
+            }
+        }
+        int nameIndex = HpackTable.staticName(name);
+        if (nameIndex == 0) {
+            nameIndex = table.dynamicName(name);
+        }
+        if (neverIndexed) {
+            writeInt(out, 0x10, 4, nameIndex);
+        } else if (NOT_INDEXED.contains(name) || HpackTable.entrySize(name, value) > table.getMaxSize()) {
+            writeInt(out, 0x00, 4, nameIndex);
+        } else {
+            writeInt(out, 0x40, 6, nameIndex);
+            table.add(name, value);
+        }
+        if (nameIndex == 0) {
+            writeString(out, name);
+        }
+        writeString(out, value);
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String text) {
+        int huffmanLength = Huffman.encodedLength(text);
+        if (huffmanLength < text.length()) {
+            writeInt(out, 0x80, 7, huffmanLength);
+            Huffman.encode(text, out);
+        } else {
+            writeInt(out, 0x00, 7, text.length());
+            out.writeBytes(text.getBytes(StandardCharsets.ISO_8859_1));
+        }
+    }
+
+    /**
+     * Writes an integer with an N bit prefix after the given pattern bits (RFC 7541, section 5.1).
+     */
+    private static void writeInt(ByteArrayOutputStream out, int pattern, int prefixBits, int value) {
+        int mask = (1 << prefixBits) - 1;
+        if (value < mask) {
+            out.write(pattern | value);
+            return;
+        }
+        out.write(pattern | mask);
+        value -= mask;
+        while (value >= 0x80) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+}
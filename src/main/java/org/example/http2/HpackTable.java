@@ -0,0 +1,181 @@
+package org.example.http2;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * HpackTable is the header table of one direction of an HPACK context (RFC 7541, section 2.3):
+ * the 61 entries of the static table followed by the dynamic table, newest entry first.
+ * The dynamic table evicts its oldest entries once the sum of the entry sizes, each the
+ * length of name and value plus 32, exceeds the maximum size.
+ */
+final class HpackTable {
+    static final int STATIC_LENGTH = 61;
+    private static final int ENTRY_OVERHEAD = 32;
+
+    private static final String[][] STATIC = {
+            {":authority", ""}, {":method", "GET"}, {":method", "POST"}, {":path", "/"},
+            {":path", "/index.html"}, {":scheme", "http"}, {":scheme", "https"}, {":status", "200"},
+            {":status", "204"}, {":status", "206"}, {":status", "304"}, {":status", "400"},
+            {":status", "404"}, {":status", "500"}, {"accept-charset", ""}, {"accept-encoding", "gzip, deflate"},
+            {"accept-language", ""}, {"accept-ranges", ""}, {"accept", ""}, {"access-control-allow-origin", ""},
+            {"age", ""}, {"allow", ""}, {"authorization", ""}, {"cache-control", ""},
+            {"content-disposition", ""}, {"content-encoding", ""}, {"content-language", ""}, {"content-length", ""},
+            {"content-location", ""}, {"content-range", ""}, {"content-type", ""}, {"cookie", ""},
+            {"date", ""}, {"etag", ""}, {"expect", ""}, {"expires", ""},
+            {"from", ""}, {"host", ""}, {"if-match", ""}, {"if-modified-since", ""},
+            {"if-none-match", ""}, {"if-range", ""}, {"if-unmodified-since", ""}, {"last-modified", ""},
+            {"link", ""}, {"location", ""}, {"max-forwards", ""}, {"proxy-authenticate", ""},
+            {"proxy-authorization", ""}, {"range", ""}, {"referer", ""}, {"refresh", ""},
+            {"retry-after", ""}, {"server", ""}, {"set-cookie", ""}, {"strict-transport-security", ""},
+            {"transfer-encoding", ""}, {"user-agent", ""}, {"vary", ""}, {"via", ""},
+            {"www-authenticate", ""}
+    };
+    // The first static index of every name, and the index of every entry that has a value
+    private static final Map<String, Integer> STATIC_NAMES = new HashMap<>();
+    private static final Map<String, Integer> STATIC_FIELDS = new HashMap<>();
+
+    static {
+        for (int i = STATIC.length - 1; i >= 0; i--) {
+            STATIC_NAMES.put(STATIC[i][0], i + 1);
+            if (!STATIC[i][1].isEmpty()) {
+                STATIC_FIELDS.put(STATIC[i][0] + '\0' + STATIC[i][1], i + 1);
+            }
+        }
+    }
+
+    // A ring buffer of the dynamic entries; head is the slot of the newest one
+    private String[] names = new String[16];
+    private String[] values = new String[16];
+    private int head;
+    private int count;
+    private int size;
+    private int maxSize;
+
+    HpackTable(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Returns the static index of the name and value, or 0.
+     */
+    static int staticField(String name, String value) {
+        Integer index = STATIC_FIELDS.get(name + '\0' + value);
+        return index == null ? 0 : index;
+    }
+
+    /**
+     * Returns the first static index of the name, or 0.
+     */
+    static int staticName(String name) {
+        Integer index = STATIC_NAMES.get(name);
+        return index == null ? 0 : index;
+    }
+
+    static int entrySize(String name, String value) {
+        return name.length() + value.length() + ENTRY_OVERHEAD;
+    }
+
+    int getMaxSize() {
+        return maxSize;
+    }
+
+    int length() {
+        return STATIC_LENGTH + count;
+    }
+
+    /**
+     * Returns the name of the entry at an index of the combined table, starting at 1.
+     */
+    String name(int index) throws Http2Exception {
+        return index <= STATIC_LENGTH ? STATIC[check(index) - 1][0] : names[slot(check(index))];
+    }
+
+    String value(int index) throws Http2Exception {
+        return index <= STATIC_LENGTH ? STATIC[check(index) - 1][1] : values[slot(check(index))];
+    }
+
+    /**
+     * Returns the dynamic index of the name and value, or 0.
+     */
+    int dynamicField(String name, String value) {
+        for (int i = 0; i < count; i++) {
+            int slot = (head - i + names.length) % names.length;
+            if (names[slot].equals(name) && values[slot].equals(value)) {
+                return STATIC_LENGTH + 1 + i;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Returns the dynamic index of the name, or 0.
+     */
+    int dynamicName(String name) {
+        for (int i = 0; i < count; i++) {
+            if (names[(head - i + names.length) % names.length].equals(name)) {
+                return STATIC_LENGTH + 1 + i;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Inserts an entry, evicting old entries to make room. An entry larger than the
+     * table empties it and is not inserted (RFC 7541, section 4.4).
+     */
+    void add(String name, String value) {
+        int entrySize = entrySize(name, value);
+        evict(maxSize - entrySize);
+        if (entrySize > maxSize) {
+            return;
+        }
+        if (count == names.length) {
+            grow();
+        }
+        head = (head + 1) % names.length;
+        names[head] = name;
+        values[head] = value;
+        count++;
+        size += entrySize;
+    }
+
+    void setMaxSize(int maxSize) {
+        this.maxSize = maxSize;
+        evict(maxSize);
+    }
+
+    private void evict(int targetSize) {
+        while (count > 0 && size > Math.max(0, targetSize)) {
+            int oldest = (head - count + 1 + names.length) % names.length;
+            size -= entrySize(names[oldest], values[oldest]);
+            names[oldest] = null;
+            values[oldest] = null;
+            count--;
+        }
+    }
+
+    private void grow() {
+        String[] newNames = new String[names.length * 2];
+        String[] newValues = new String[names.length * 2];
+        for (int i = 0; i < count; i++) {
+            int slot = (head - count + 1 + i + names.length) % names.length;
+            newNames[i] = names[slot];
+            newValues[i] = values[slot];
+        }
+        names = newNames;
+        values = newValues;
+        head = count - 1;
+    }
+
+    private int check(int index) throws Http2Exception {
+        if (index < 1 || index > length()) {
+            throw new Http2Exception(Http2Frames.COMPRESSION_ERROR, "Invalid header table index " + index);
+        }
+        return index;
+    }
+
+    private int slot(int index) {
+        return (head - (index - STATIC_LENGTH - 1) + names.length) % names.length;
+    }
+}
@@ -0,0 +1,45 @@
+package org.example.http2;
+
+import java.io.IOException;
+
+/**
+ * Http2Exception signals a violation of the HTTP/2 protocol. It carries the error code
+ * for the GOAWAY or RST_STREAM frame and the stream it concerns, 0 for the whole connection.
+ */
+public class Http2Exception extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    private final int errorCode;
+    private final int streamId;
+
+    /**
+     * Creates a connection error.
+     */
+    public Http2Exception(int errorCode, String message) {
+        this(errorCode, 0, message);
+    }
+
+    /**
+     * Creates a stream error, or a connection error if the stream id is 0.
+     */
+    public Http2Exception(int errorCode, int streamId, String message) {
+        super(message);
+        this.errorCode = errorCode;
+        this.streamId = streamId;
+    }
+
+    public int getErrorCode() {
+        return errorCode;
+    }
+
+    public int getStreamId() {
+        return streamId;
+    }
+
+    /**
+     * Returns true if only the stream has to be reset and the connection can be kept.
+     */
+    public boolean isStreamError() {
+        return streamId != 0;
+    }
+}
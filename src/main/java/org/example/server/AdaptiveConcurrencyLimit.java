@@ -0,0 +1,175 @@
+package org.example.server;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * AdaptiveConcurrencyLimit finds how many requests a route can process at once without
+ * queueing, using the TCP Vegas idea: the smallest round trip time seen is the time of a
+ * request that did not wait, so {@code limit * (1 - minRtt / rtt)} estimates how many of
+ * the in-flight requests are waiting instead of being served. The limit grows while that
+ * estimate is small and shrinks while it is large, which keeps it just above the knee,
+ * where throughput no longer increases but latency starts to. A request that timed out
+ * cuts the limit by a tenth, as AIMD does on a loss.
+ * <p>
+ * The limit is adjusted once per window of about {@code limit} samples, roughly one round
+ * trip, from the average round trip time of the window; adjusting it per sample would
+ * overshoot, since a change shows in the round trip times only one round trip later. A
+ * round trip time measured under load includes waiting, so to follow a slower or faster
+ * backend the limit is halved for two windows every few hundred windows: the first lets
+ * the waiting requests drain, the second measures the new baseline.
+ * <p>
+ * {@link #tryAcquire()} is lock-free; every acquired permit must be released exactly once
+ * with {@link #onSuccess(long)}, {@link #onDropped()} or {@link #onIgnore()}.
+ */
+public class AdaptiveConcurrencyLimit {
+    private static final int MIN_WINDOW = 10;
+    private static final int PROBE_INTERVAL = 200;
+    // The phases of a baseline measurement
+    private static final int NOT_PROBING = 0;
+    private static final int DRAINING = 1;
+    private static final int MEASURING = 2;
+    private static final double BACKOFF_RATIO = 0.9;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private volatile int limit;
+    // Guarded by this
+    private double estimatedLimit;
+    private long minRttNanos;
+    private long windowRttNanos;
+    private int windowSamples;
+    private int windowMaxInFlight;
+    private int windowsSinceProbe;
+    private int probePhase = NOT_PROBING;
+    private double limitBeforeProbe;
+
+    /**
+     * @param initialLimit the limit to start with
+     * @param minLimit     the limit never goes below this, at least 1
+     * @param maxLimit     the limit never goes above this
+     */
+    public AdaptiveConcurrencyLimit(int initialLimit, int minLimit, int maxLimit) {
+        if (minLimit < 1 || maxLimit < minLimit) {
+            throw new IllegalArgumentException("Invalid limit range " + minLimit + ".." + maxLimit);
+        }
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.estimatedLimit = Math.max(minLimit, Math.min(maxLimit, initialLimit));
+        this.limit = (int) estimatedLimit;
+    }
+
+    /**
+     * Takes a permit for one request.
+     * @return false if the limit is reached and the request should be rejected
+     */
+    public boolean tryAcquire() {
+        while (true) {
+            int current = inFlight.get();
+            if (current >= limit) {
+                return false;
+            }
+            if (inFlight.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Releases a permit of a request that completed and adjusts the limit.
+     * @param rttNanos how long the request took
+     */
+    public void onSuccess(long rttNanos) {
+        int current = inFlight.getAndDecrement();
+        synchronized (this) {
+            if (minRttNanos == 0 || rttNanos < minRttNanos) {
+                minRttNanos = rttNanos;
+            }
+            windowRttNanos += rttNanos;
+            windowMaxInFlight = Math.max(windowMaxInFlight, current);
+            if (++windowSamples < Math.max(MIN_WINDOW, probePhase == NOT_PROBING ? estimatedLimit : limitBeforeProbe)) {
+                return;
+            }
+            long averageRtt = windowRttNanos / windowSamples;
+            int maxInFlight = windowMaxInFlight;
+            windowRttNanos = 0;
+            windowSamples = 0;
+            windowMaxInFlight = 0;
+            if (probeBaseline(averageRtt)) {
+                return;
+            }
+            double step = Math.max(1, Math.log10(estimatedLimit));
+            double queued = estimatedLimit * (1 - (double) minRttNanos / averageRtt);
+            if (queued < 3 * step) {
+                // Growing is pointless while the limit is not even used
+                if (maxInFlight * 2 >= estimatedLimit) {
+                    update(estimatedLimit + step);
+                }
+            } else if (queued > 6 * step) {
+                update(estimatedLimit - step);
+            }
+        }
+    }
+
+    /**
+     * Releases a permit of a request that timed out, which reduces the limit.
+     */
+    public void onDropped() {
+        inFlight.decrementAndGet();
+        synchronized (this) {
+            update(estimatedLimit * BACKOFF_RATIO);
+        }
+    }
+
+    /**
+     * Releases a permit of a request that says nothing about the capacity, for example
+     * one that was rejected elsewhere before it ran.
+     */
+    public void onIgnore() {
+        inFlight.decrementAndGet();
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * Advances the periodic baseline measurement by one window.
+     * @return true while it is in progress and the limit must not be adjusted
+     */
+    private boolean probeBaseline(long averageRtt) {
+        switch (probePhase) {
+            case DRAINING:
+                probePhase = MEASURING;
+                return true;
+            case MEASURING:
+                minRttNanos = averageRtt;
+                probePhase = NOT_PROBING;
+                update(limitBeforeProbe);
+                return true;
+            default:
+                if (++windowsSinceProbe < PROBE_INTERVAL) {
+                    return false;
+                }
+                windowsSinceProbe = 0;
+                probePhase = DRAINING;
+                limitBeforeProbe = estimatedLimit;
+                update(estimatedLimit / 2);
+                return true;
+        }
+    }
+
+    private void update(double newLimit) {
+        estimatedLimit = Math.max(minLimit, Math.min(maxLimit, newLimit));
+        limit = (int) estimatedLimit;
+    }
+
+    @Override
+    public String toString() {
+        return "AdaptiveConcurrencyLimit{limit=" + limit + ", inFlight=" + inFlight.get() + "}";
+    }
+}
@@ -0,0 +1,158 @@
+package org.example.server;
+
+import org.example.http.HttpRequest;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * AdmissionControl decides whether the server takes on more work, so that under overload the
+ * excess is refused right away instead of queueing up and slowing down every request.
+ * Connections are counted from the accept to the close and refused above the connection limit.
+ * Blocking handler invocations are counted from the dispatch to the end of the handler; one is
+ * refused when the handler slots and the handler queue are all taken, or when requests are
+ * waiting and the recent queue wait, an exponentially weighted moving average, exceeds the
+ * limit. Every check is a few atomic reads, cheap enough for the reactor to run per request.
+ * Optionally each route also has an AdaptiveConcurrencyLimit, which refuses requests before
+ * the queue builds up, at the concurrency where the route's latency starts to grow, and a
+ * RateLimiter, which refuses the requests of clients that exceed the route's rate.
+ */
+class AdmissionControl {
+    /** The Retry-After value sent with every refusal, in seconds. */
+    static final String RETRY_AFTER_SECONDS = "1";
+    // Where a route limit starts before it knows the route's latency
+    private static final int INITIAL_ROUTE_LIMIT = 20;
+
+    private final ServerMetrics metrics;
+    private final int maxConnections;
+    private final int maxConcurrentHandlers;
+    private final int maxInFlight;
+    private final long maxQueueWaitNanos;
+    private final AtomicInteger openConnections = new AtomicInteger();
+    // Handler invocations admitted and not finished, and those of them that have started
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger running = new AtomicInteger();
+    private volatile long averageQueueWaitNanos;
+    private final boolean adaptive;
+    private final ConcurrentHashMap<Route, AdaptiveConcurrencyLimit> routeLimits = new ConcurrentHashMap<>();
+
+    AdmissionControl(HttpServerConfig config, ServerMetrics metrics) {
+        this.metrics = metrics;
+        this.maxConnections = config.getMaxConnections();
+        this.maxConcurrentHandlers = config.getMaxConcurrentHandlers();
+        this.maxInFlight = config.getMaxConcurrentHandlers() + config.getMaxQueuedRequests();
+        this.maxQueueWaitNanos = TimeUnit.MILLISECONDS.toNanos(config.getMaxQueueWaitMillis());
+        this.adaptive = config.isAdaptiveConcurrencyLimit();
+    }
+
+    /**
+     * Counts a newly accepted connection.
+     * @return false if the connection limit is reached; the connection is not counted then
+     */
+    boolean tryOpenConnection() {
+        if (openConnections.incrementAndGet() > maxConnections) {
+            openConnections.decrementAndGet();
+            metrics.incrementRejectedConnections();
+            return false;
+        }
+        return true;
+    }
+
+    void connectionClosed() {
+        openConnections.decrementAndGet();
+    }
+
+    /**
+     * Admits a handler invocation. An admitted invocation must be followed by
+     * {@link #finished(boolean)}, whether the handler ran or not.
+     * @return false if the request should be answered with 503 right away
+     */
+    boolean tryAdmit() {
+        int count = inFlight.incrementAndGet();
+        boolean congested = count > maxConcurrentHandlers && count > running.get() + 1
+                && averageQueueWaitNanos > maxQueueWaitNanos;
+        if (count > maxInFlight || congested) {
+            inFlight.decrementAndGet();
+            metrics.incrementShedRequests();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Takes a token from the bucket of the request's client if the route is rate limited.
+     * @return 0 if the request may proceed, otherwise how many nanoseconds the client has to wait
+     */
+    long checkRate(Route route, HttpRequest request) {
+        RateLimiter limiter = route.getRateLimiter();
+        if (limiter == null) {
+            return 0;
+        }
+        long waitNanos = limiter.tryAcquire(limiter.clientOf(request), System.nanoTime());
+        if (waitNanos > 0) {
+            metrics.incrementRateLimitedRequests();
+        }
+        return waitNanos;
+    }
+
+    /**
+     * Returns the adaptive concurrency limit of the route, created on first use.
+     * @return the limit, or null if adaptive limits are disabled
+     */
+    AdaptiveConcurrencyLimit limitFor(Route route) {
+        if (!adaptive) {
+            return null;
+        }
+        return routeLimits.computeIfAbsent(route,
+                r -> new AdaptiveConcurrencyLimit(INITIAL_ROUTE_LIMIT, 1, maxConcurrentHandlers));
+    }
+
+    /**
+     * Takes a permit of a route limit from {@link #limitFor(Route)}, which must be released
+     * to the limit once the request is done.
+     * @return false if the request should be answered with 503 right away; true if the
+     *         permit was taken or there is no limit
+     */
+    boolean tryAcquire(AdaptiveConcurrencyLimit limit) {
+        if (limit == null || limit.tryAcquire()) {
+            return true;
+        }
+        metrics.incrementShedRequests();
+        return false;
+    }
+
+    /**
+     * Records that an admitted handler leaves the queue after waiting for the given time.
+     * @return false if it waited longer than the limit; its client has probably given up, so it
+     *         should be answered with 503 instead of running
+     */
+    boolean started(long queueWaitNanos) {
+        running.incrementAndGet();
+        long average = averageQueueWaitNanos;
+        averageQueueWaitNanos = average + (queueWaitNanos - average) / 8;
+        if (queueWaitNanos > maxQueueWaitNanos) {
+            metrics.incrementShedRequests();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Releases an admitted invocation, after the handler returned or once it was cancelled.
+     * @param started true if {@link #started(long)} was called for it
+     */
+    void finished(boolean started) {
+        if (started) {
+            running.decrementAndGet();
+        }
+        inFlight.decrementAndGet();
+    }
+
+    /**
+     * Returns the number of admitted handler invocations that have not finished, queued or running.
+     */
+    int getInFlight() {
+        return inFlight.get();
+    }
+}
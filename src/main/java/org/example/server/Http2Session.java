@@ -0,0 +1,841 @@
+package org.example.server;
+
+import org.example.buffer.BufferPool;
+import org.example.http.HttpParseException;
+import org.example.http.HttpRequest;
+import org.example.http.HttpResponse;
+import org.example.http.RequestBody;
+import org.example.http.ResponseCompression;
+import org.example.http2.HpackDecoder;
+import org.example.http2.HpackEncoder;
+import org.example.http2.Http2Exception;
+import org.example.http2.Http2Frames;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Http2Session is the HTTP/2 state of a connection that switched protocols, either with the
+ * prior knowledge preface or with an "Upgrade: h2c" request (RFC 9113, section 3).
+ * It parses the frames the HttpConnection reads, decodes header blocks with HPACK and
+ * dispatches every stream to the regular handlers as a request whose response is written
+ * to an Http2Stream. Frames are queued to the outbound queue of the connection. DATA frames
+ * are produced lazily: whenever the connection has written its queue, the streams with body
+ * bytes are served round-robin, one frame at a time, within the flow control windows of the
+ * stream and the connection and up to the connection's high watermark, so one large body
+ * does not hold up the others. Request bodies are flow controlled by withholding stream
+ * window updates while the RequestBody is full.
+ * The session is guarded by the monitor of the connection.
+ */
+class Http2Session {
+    private static final int MAX_CONCURRENT_STREAMS = 100;
+    // The receive window of the connection; the one of a stream stays at the default
+    private static final int CONNECTION_WINDOW = 1024 * 1024;
+    private static final int STREAM_WINDOW = Http2Frames.DEFAULT_WINDOW_SIZE;
+    // A DATA frame with its header fits the 16 KiB buffers of the pool
+    private static final int MAX_DATA_PAYLOAD = 16 * 1024 - Http2Frames.FRAME_HEADER_LENGTH;
+    private static final Set<String> CONNECTION_HEADERS = Set.of(
+            "connection", "keep-alive", "proxy-connection", "transfer-encoding", "upgrade");
+    private static final byte[] EMPTY_BODY = new byte[0];
+
+    private final HttpConnection connection;
+    private final Reactor reactor;
+    private final RequestDispatcher dispatcher;
+    private final BufferPool bufferPool;
+    private final ResponseCompression compression;
+    private final int maxHeaderSize;
+    private final long maxRequestBodySize;
+    private final HpackDecoder decoder;
+    private final HpackEncoder encoder = new HpackEncoder();
+    private final Map<Integer, Http2Stream> streams = new HashMap<>();
+    // Streams with a frame to send, served round-robin
+    private final Deque<Http2Stream> ready = new ArrayDeque<>();
+    private boolean prefaceReceived;
+    private boolean settingsReceived;
+    private int lastStreamId;
+    // The header block being received, spread over HEADERS and CONTINUATION frames
+    private final ByteArrayOutputStream headerBlock = new ByteArrayOutputStream(256);
+    private int headerStreamId;
+    private boolean headerEndStream;
+    private int continuationStreamId;
+    private long sendWindow = Http2Frames.DEFAULT_WINDOW_SIZE;
+    private int initialSendWindow = Http2Frames.DEFAULT_WINDOW_SIZE;
+    private int peerMaxFrameSize = Http2Frames.DEFAULT_MAX_FRAME_SIZE;
+    private long recvWindow = CONNECTION_WINDOW;
+    private int recvUnacknowledged;
+    private boolean goingAway;
+    private boolean peerGoingAway;
+
+    Http2Session(HttpConnection connection, Reactor reactor, RequestDispatcher dispatcher, BufferPool bufferPool,
+                 ResponseCompression compression, HttpServerConfig config) {
+        this.connection = connection;
+        this.reactor = reactor;
+        this.dispatcher = dispatcher;
+        this.bufferPool = bufferPool;
+        this.compression = compression;
+        this.maxHeaderSize = config.getMaxHeaderSize();
+        this.maxRequestBodySize = config.getMaxRequestBodySize();
+        this.decoder = new HpackDecoder(4096, maxHeaderSize);
+    }
+
+    /**
+     * Queues the server's connection preface: its SETTINGS and a window update that
+     * raises the receive window of the connection.
+     */
+    void start() {
+        ByteBuffer settings = bufferPool.acquire(Http2Frames.FRAME_HEADER_LENGTH + 12);
+        Http2Frames.writeHeader(settings, 12, Http2Frames.SETTINGS, 0, 0);
+        settings.putShort((short) Http2Frames.SETTINGS_MAX_CONCURRENT_STREAMS).putInt(MAX_CONCURRENT_STREAMS);
+        settings.putShort((short) Http2Frames.SETTINGS_MAX_HEADER_LIST_SIZE).putInt(maxHeaderSize);
+        connection.queue(settings.flip());
+        writeWindowUpdate(0, CONNECTION_WINDOW - Http2Frames.DEFAULT_WINDOW_SIZE);
+    }
+
+    /**
+     * Continues an "Upgrade: h2c" request as stream 1, which the client has half-closed.
+     * @param settings the decoded HTTP2-Settings header, applied like a SETTINGS frame
+     */
+    void upgrade(byte[] settings, String method, String path, Map<String, String> headers) throws IOException {
+        try {
+            if (settings.length % 6 != 0) {
+                throw new Http2Exception(Http2Frames.FRAME_SIZE_ERROR, "Invalid HTTP2-Settings");
+            }
+            applySettings(ByteBuffer.wrap(settings));
+        } catch (Http2Exception e) {
+            goAway(e.getErrorCode(), e.getMessage());
+            return;
+        }
+        Http2Stream stream = openStream(1);
+        stream.remoteClosed = true;
+        dispatch(stream, method, path, headers, true);
+    }
+
+    boolean isGoingAway() {
+        return goingAway;
+    }
+
+    boolean inReactorThread() {
+        return reactor.inReactorThread();
+    }
+
+    /**
+     * Returns true if no stream is open.
+     */
+    boolean isIdle() {
+        return streams.isEmpty();
+    }
+
+    /**
+     * Processes every complete frame in the input; a partial frame is left in the buffer.
+     * Called on the reactor thread.
+     */
+    void onInput(ByteBuffer input) throws IOException {
+        synchronized (connection) {
+            try {
+                if (!prefaceReceived && !readPreface(input)) {
+                    return;
+                }
+                while (!goingAway && input.remaining() >= Http2Frames.FRAME_HEADER_LENGTH) {
+                    int start = input.position();
+                    int length = (input.get(start) & 0xff) << 16 | (input.get(start + 1) & 0xff) << 8
+                            | input.get(start + 2) & 0xff;
+                    if (length > Http2Frames.DEFAULT_MAX_FRAME_SIZE) {
+                        throw new Http2Exception(Http2Frames.FRAME_SIZE_ERROR, "Frame too large");
+                    }
+                    if (input.remaining() < Http2Frames.FRAME_HEADER_LENGTH + length) {
+                        break;
+                    }
+                    int type = input.get(start + 3) & 0xff;
+                    int flags = input.get(start + 4) & 0xff;
+                    int streamId = input.getInt(start + 5) & 0x7fffffff;
+                    ByteBuffer payload = input.slice(start + Http2Frames.FRAME_HEADER_LENGTH, length);
+                    input.position(start + Http2Frames.FRAME_HEADER_LENGTH + length);
+                    try {
+                        onFrame(type, flags, streamId, payload);
+                    } catch (Http2Exception e) {
+                        if (!e.isStreamError()) {
+                            throw e;
+                        }
+                        resetStream(e.getStreamId(), e.getErrorCode());
+                    }
+                }
+            } catch (Http2Exception e) {
+                goAway(e.getErrorCode(), e.getMessage());
+            }
+            if (goingAway) {
+                input.position(input.limit());
+            }
+            connection.flush();
+        }
+    }
+
+    private boolean readPreface(ByteBuffer input) throws Http2Exception {
+        byte[] preface = Http2Frames.CLIENT_PREFACE;
+        int count = Math.min(input.remaining(), preface.length);
+        for (int i = 0; i < count; i++) {
+            if (input.get(input.position() + i) != preface[i]) {
+                throw new Http2Exception(Http2Frames.PROTOCOL_ERROR, "Invalid connection preface");
+            }
+        }
+        if (count < preface.length) {
+            return false;
+        }
+        input.position(input.position() + count);
+        prefaceReceived = true;
+        return true;
+    }
+
+    private void onFrame(int type, int flags, int streamId, ByteBuffer payload) throws IOException {
+        if (continuationStreamId != 0 && (type != Http2Frames.CONTINUATION || streamId != continuationStreamId)) {
+            throw new Http2Exception(Http2Frames.PROTOCOL_ERROR, "Expected CONTINUATION");
+        }
+        if (!settingsReceived && type != Http2Frames.SETTINGS) {
+            throw new Http2Exception(Http2Frames.PROTOCOL_ERROR, "Expected SETTINGS");
+        }
+        switch (type) {
+            case Http2Frames.DATA:
+                onData(flags, streamId, payload);
+                break;
+            case Http2Frames.HEADERS:
+                onHeaders(flags, streamId, payload);
+                break;
+            case Http2Frames.PRIORITY:
+                if (streamId == 0) {
+                    throw new Http2Exception(Http2Frames.PROTOCOL_ERROR, "PRIORITY on stream 0");
+                }
+                if (payload.remaining() != 5) {
+                    throw new Http2Exception(Http2Frames.FRAME_SIZE_ERROR, streamId, "Invalid PRIORITY");
+                }
+                // Priorities are not used, every stream is served round-robin
+                break;
+            case Http2Frames.RST_STREAM:
+                onRstStream(streamId, payload);
+                break;
+            case Http2Frames.SETTINGS:
+                onSettings(flags, streamId, payload);
+                break;
+            case Http2Frames.PING:
+                onPing(flags, streamId, payload);
+                break;
+            case Http2Frames.GOAWAY:
+                if (streamId != 0) {
+                    throw new Http2Exception(Http2Frames.PROTOCOL_ERROR, "GOAWAY on a stream");
+                }
+                peerGoingAway = true;
+                if (streams.isEmpty()) {
+                    connection.closeWhenFlushed();
+                }
+                break;
+            case Http2Frames.WINDOW_UPDATE:
+                onWindowUpdate(streamId, payload);
+                break;
+            case Http2Frames.CONTINUATION:
+                if (continuationStreamId == 0) {
+                    throw new Http2Exception(Http2Frames.PROTOCOL_ERROR, "Unexpected CONTINUATION");
+                }
+                appendHeaderBlock(payload);
+                if ((flags & Http2Frames.FLAG_END_HEADERS) != 0) {
+                    continuationStreamId = 0;
+                    onHeaderBlock();
+                }
+                break;
+            case Http2Frames.PUSH_PROMISE:
+                throw new Http2Exception(Http2Frames.PROTOCOL_ERROR, "PUSH_PROMISE from a client");
+            default:
+                // Unknown frame types are ignored
+                break;
+        }
+    }
+
+    private void onHeaders(int flags, int streamId, ByteBuffer payload) throws IOException {
+        if (streamId == 0) {
+            throw new Http2Exception(Http2Frames.PROTOCOL_ERROR, "HEADERS on stream 0");
+        }
+        removePadding(flags, payload);
+        if ((flags & Http2Frames.FLAG_PRIORITY) != 0) {
+            if (payload.remaining() < 5) {
+                throw new Http2Exception(Http2Frames.PROTOCOL_ERROR, "Invalid HEADERS");
+            }
+            payload.position(payload.position() + 5);
+        }
+        headerBlock.reset();
+        headerStreamId = streamId;
+        headerEndStream = (flags & Http2Frames.FLAG_END_STREAM) != 0;
+        appendHeaderBlock(payload);
+        if ((flags & Http2Frames.FLAG_END_HEADERS) != 0) {
+            onHeaderBlock();
+        } else {
+            continuationStreamId = streamId;
+        }
+    }
+
+    private void appendHeaderBlock(ByteBuffer payload) throws Http2Exception {
+        // A compressed block this much larger than the header limit is not worth decoding
+        if (headerBlock.size() + payload.remaining() > maxHeaderSize * 4) {
+            throw new Http2Exception(Http2Frames.ENHANCE_YOUR_CALM, "Header block too large");
+        }
+        byte[] fragment = new byte[payload.remaining()];
+        payload.get(fragment);
+        headerBlock.writeBytes(fragment);
+    }
+
+    /**
+     * Decodes a complete header block, which opens a stream or carries the trailers of one.
+     * Every block is decoded, even one of a refused stream, to keep the HPACK state in sync.
+     */
+    private void onHeaderBlock() throws IOException {
+        int streamId = headerStreamId;
+        List<String> fields = new ArrayList<>();
+        boolean withinLimit = decoder.decode(headerBlock.toByteArray(), 0, headerBlock.size(), (name, value) -> {
+            fields.add(name);
+            fields.add(value);
+        });
+        Http2Stream stream = streams.get(streamId);
+        if (stream != null || streamId <= lastStreamId) {
+            // Trailers, which are not passed on to the handler
+            if (stream == null || stream.remoteClosed) {
+                throw new Http2Exception(Http2Frames.STREAM_CLOSED, streamId, "Stream closed");
+            }
+            if (!headerEndStream) {
+                throw new Http2Exception(Http2Frames.PROTOCOL_ERROR, streamId, "Trailers without END_STREAM");
+            }
+            onRemoteClose(stream);
+            return;
+        }
+        if (streamId % 2 == 0) {
+            throw new Http2Exception(Http2Frames.PROTOCOL_ERROR, "Invalid stream id " + streamId);
+        }
+        lastStreamId = streamId;
+        if (streams.size() >= MAX_CONCURRENT_STREAMS) {
+            throw new Http2Exception(Http2Frames.REFUSED_STREAM, streamId, "Too many streams");
+        }
+        stream = openStream(streamId);
+        stream.remoteClosed = headerEndStream;
+
+        String method = null;
+        String path = null;
+        String scheme = null;
+        String authority = null;
+        Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        for (int i = 0; i < fields.size(); i += 2) {
+            String name = fields.get(i);
+            String value = fields.get(i + 1);
+            if (name.startsWith(":")) {
+                if (!headers.isEmpty()) {
+                    throw new Http2Exception(Http2Frames.PROTOCOL_ERROR, streamId, "Pseudo-header after regular header");
+                }
+                switch (name) {
+                    case ":method" -> method = value;
+                    case ":path" -> path = value;
+                    case ":scheme" -> scheme = value;
+                    case ":authority" -> authority = value;
+                    default -> throw new Http2Exception(Http2Frames.PROTOCOL_ERROR, streamId, "Invalid pseudo-header " + name);
+                }
+                continue;
+            }
+            if (!name.equals(name.toLowerCase(Locale.ROOT)) || CONNECTION_HEADERS.contains(name)
+                    || (name.equals("te") && !value.equals("trailers"))) {
+                throw new Http2Exception(Http2Frames.PROTOCOL_ERROR, streamId, "Invalid header " + name);
+            }
+            String separator = name.equals("cookie") ? "; " : ", ";
+            headers.merge(canonicalName(name), value, (previous, next) -> previous + separator + next);
+        }
+        if (method == null || path == null || scheme == null) {
+            throw new Http2Exception(Http2Frames.PROTOCOL_ERROR, streamId, "Missing pseudo-header");
+        }
+        if (authority != null) {
+            headers.putIfAbsent("Host", authority);
+        }
+        if (!withinLimit) {
+            HttpResponse response = new HttpResponse(stream);
+            stream.body = RequestBody.of(EMPTY_BODY);
+            response.send(431, "Request Header Fields Too Large");
+            return;
+        }
+        dispatch(stream, method, path, headers, stream.remoteClosed);
+    }
+
+    /**
+     * Creates the request body and the response of a stream and hands them to the dispatcher,
+     * unless the request can be rejected right away.
+     */
+    private void dispatch(Http2Stream stream, String method, String path, Map<String, String> headers,
+                          boolean withoutBody) throws IOException {
+        String contentLength = headers.get("Content-Length");
+        if (contentLength != null) {
+            try {
+                stream.declaredLength = Long.parseLong(contentLength);
+            } catch (NumberFormatException e) {
+                throw new Http2Exception(Http2Frames.PROTOCOL_ERROR, stream.id, "Invalid Content-Length");
+            }
+        }
+        if (withoutBody) {
+            stream.body = RequestBody.of(EMPTY_BODY);
+        } else {
+            stream.body = new RequestBody(stream.declaredLength);
+            stream.body.setDrainListener(() -> reactor.execute(() -> onBodyDrained(stream)));
+        }
+        HttpResponse response = new HttpResponse(stream);
+        response.negotiateCompression(compression, headers.get("Accept-Encoding"));
+        if (stream.declaredLength > maxRequestBodySize) {
+            response.send(413, "Payload Too Large");
+            return;
+        }
+        if (!HttpConnection.isImplemented(method)) {
+            response.send(501, "Not Implemented");
+            return;
+        }
+        if (!withoutBody && "100-continue".equalsIgnoreCase(headers.get("Expect"))) {
+            response.sendContinue();
+        }
+        HttpRequest request = new HttpRequest(method, path, headers, stream.body, connection.getChannel());
+        // The streams of a connection share its cache, clients usually send the same token on all of them
+        request.setPrincipalCache(connection.getPrincipalCache());
+        dispatcher.dispatch(request, response, reactor);
+    }
+
+    private void onData(int flags, int streamId, ByteBuffer payload) throws Http2Exception {
+        if (streamId == 0) {
+            throw new Http2Exception(Http2Frames.PROTOCOL_ERROR, "DATA on stream 0");
+        }
+        int length = payload.remaining();
+        recvWindow -= length;
+        if (recvWindow < 0) {
+            throw new Http2Exception(Http2Frames.FLOW_CONTROL_ERROR, "Connection window exceeded");
+        }
+        // Connection credit is returned right away; the stream windows bound what is buffered
+        recvUnacknowledged += length;
+        if (recvUnacknowledged >= CONNECTION_WINDOW / 2) {
+            writeWindowUpdate(0, recvUnacknowledged);
+            recvWindow += recvUnacknowledged;
+            recvUnacknowledged = 0;
+        }
+        removePadding(flags, payload);
+        Http2Stream stream = streams.get(streamId);
+        if (stream == null) {
+            if (streamId > lastStreamId) {
+                throw new Http2Exception(Http2Frames.PROTOCOL_ERROR, "DATA on idle stream " + streamId);
+            }
+            // A stream this side has reset or completed, the client may not know yet
+            return;
+        }
+        if (stream.remoteClosed) {
+            throw new Http2Exception(Http2Frames.STREAM_CLOSED, streamId, "DATA after END_STREAM");
+        }
+        stream.recvWindow -= length;
+        if (stream.recvWindow < 0) {
+            throw new Http2Exception(Http2Frames.FLOW_CONTROL_ERROR, streamId, "Stream window exceeded");
+        }
+        stream.received += payload.remaining();
+        if (stream.declaredLength >= 0 && stream.received > stream.declaredLength) {
+            throw new Http2Exception(Http2Frames.PROTOCOL_ERROR, streamId, "Body longer than Content-Length");
+        }
+        if (stream.received > maxRequestBodySize) {
+            stream.body.fail(new HttpParseException(413, "Payload Too Large"));
+        } else {
+            stream.body.append(payload);
+        }
+        stream.recvUnacknowledged += length;
+        if ((flags & Http2Frames.FLAG_END_STREAM) != 0) {
+            if (stream.declaredLength >= 0 && stream.received != stream.declaredLength) {
+                throw new Http2Exception(Http2Frames.PROTOCOL_ERROR, streamId, "Body shorter than Content-Length");
+            }
+            onRemoteClose(stream);
+        } else if (!stream.body.isFull()) {
+            updateStreamWindow(stream, STREAM_WINDOW / 2);
+        }
+    }
+
+    /**
+     * Returns the credit withheld while the body of the stream was full.
+     */
+    private void onBodyDrained(Http2Stream stream) {
+        synchronized (connection) {
+            if (streams.get(stream.id) == stream && !stream.remoteClosed) {
+                updateStreamWindow(stream, 1);
+                connection.flush();
+            }
+        }
+    }
+
+    private void updateStreamWindow(Http2Stream stream, int threshold) {
+        if (stream.recvUnacknowledged >= threshold) {
+            writeWindowUpdate(stream.id, stream.recvUnacknowledged);
+            stream.recvWindow += stream.recvUnacknowledged;
+            stream.recvUnacknowledged = 0;
+        }
+    }
+
+    private void onRstStream(int streamId, ByteBuffer payload) throws Http2Exception {
+        if (streamId == 0) {
+            throw new Http2Exception(Http2Frames.PROTOCOL_ERROR, "RST_STREAM on stream 0");
+        }
+        if (payload.remaining() != 4) {
+            throw new Http2Exception(Http2Frames.FRAME_SIZE_ERROR, "Invalid RST_STREAM");
+        }
+        if (streamId > lastStreamId) {
+            throw new Http2Exception(Http2Frames.PROTOCOL_ERROR, "RST_STREAM on idle stream " + streamId);
+        }
+        Http2Stream stream = streams.get(streamId);
+        if (stream != null) {
+            closeStream(stream, new IOException("Stream reset by the client"));
+        }
+    }
+
+    private void onSettings(int flags, int streamId, ByteBuffer payload) throws Http2Exception {
+        if (streamId != 0) {
+            throw new Http2Exception(Http2Frames.PROTOCOL_ERROR, "SETTINGS on a stream");
+        }
+        if ((flags & Http2Frames.FLAG_ACK) != 0) {
+            if (payload.hasRemaining()) {
+                throw new Http2Exception(Http2Frames.FRAME_SIZE_ERROR, "SETTINGS ACK with payload");
+            }
+            return;
+        }
+        if (payload.remaining() % 6 != 0) {
+            throw new Http2Exception(Http2Frames.FRAME_SIZE_ERROR, "Invalid SETTINGS");
+        }
+        applySettings(payload);
+        settingsReceived = true;
+        ByteBuffer ack = bufferPool.acquire(Http2Frames.FRAME_HEADER_LENGTH);
+        Http2Frames.writeHeader(ack, 0, Http2Frames.SETTINGS, Http2Frames.FLAG_ACK, 0);
+        connection.queue(ack.flip());
+    }
+
+    private void applySettings(ByteBuffer payload) throws Http2Exception {
+        while (payload.remaining() >= 6) {
+            int id = payload.getShort() & 0xffff;
+            int value = payload.getInt();
+            switch (id) {
+                case Http2Frames.SETTINGS_HEADER_TABLE_SIZE:
+                    encoder.setMaxTableSize(value < 0 ? Integer.MAX_VALUE : value);
+                    break;
+                case Http2Frames.SETTINGS_ENABLE_PUSH:
+                    if (value != 0 && value != 1) {
+                        throw new Http2Exception(Http2Frames.PROTOCOL_ERROR, "Invalid SETTINGS_ENABLE_PUSH");
+                    }
+                    break;
+                case Http2Frames.SETTINGS_INITIAL_WINDOW_SIZE:
+                    if (value < 0) {
+                        throw new Http2Exception(Http2Frames.FLOW_CONTROL_ERROR, "Invalid SETTINGS_INITIAL_WINDOW_SIZE");
+                    }
+                    int delta = value - initialSendWindow;
+                    initialSendWindow = value;
+                    for (Http2Stream stream : streams.values()) {
+                        stream.sendWindow += delta;
+                        if (stream.sendWindow > Http2Frames.MAX_WINDOW_SIZE) {
+                            throw new Http2Exception(Http2Frames.FLOW_CONTROL_ERROR, "Stream window overflow");
+                        }
+                        schedule(stream);
+                    }
+                    break;
+                case Http2Frames.SETTINGS_MAX_FRAME_SIZE:
+                    if (value < Http2Frames.DEFAULT_MAX_FRAME_SIZE || value > 0xffffff) {
+                        throw new Http2Exception(Http2Frames.PROTOCOL_ERROR, "Invalid SETTINGS_MAX_FRAME_SIZE");
+                    }
+                    peerMaxFrameSize = value;
+                    break;
+                default:
+                    // The concurrency limit only concerns pushed streams, which are never sent
+                    break;
+            }
+        }
+    }
+
+    private void onPing(int flags, int streamId, ByteBuffer payload) throws Http2Exception {
+        if (streamId != 0) {
+            throw new Http2Exception(Http2Frames.PROTOCOL_ERROR, "PING on a stream");
+        }
+        if (payload.remaining() != 8) {
+            throw new Http2Exception(Http2Frames.FRAME_SIZE_ERROR, "Invalid PING");
+        }
+        if ((flags & Http2Frames.FLAG_ACK) != 0) {
+            return;
+        }
+        ByteBuffer ack = bufferPool.acquire(Http2Frames.FRAME_HEADER_LENGTH + 8);
+        Http2Frames.writeHeader(ack, 8, Http2Frames.PING, Http2Frames.FLAG_ACK, 0);
+        connection.queue(ack.put(payload).flip());
+    }
+
+    private void onWindowUpdate(int streamId, ByteBuffer payload) throws Http2Exception {
+        if (payload.remaining() != 4) {
+            throw new Http2Exception(Http2Frames.FRAME_SIZE_ERROR, "Invalid WINDOW_UPDATE");
+        }
+        int increment = payload.getInt() & 0x7fffffff;
+        if (streamId == 0) {
+            if (increment == 0) {
+                throw new Http2Exception(Http2Frames.PROTOCOL_ERROR, "Window increment of 0");
+            }
+            sendWindow += increment;
+            if (sendWindow > Http2Frames.MAX_WINDOW_SIZE) {
+                throw new Http2Exception(Http2Frames.FLOW_CONTROL_ERROR, "Connection window overflow");
+            }
+            return;
+        }
+        Http2Stream stream = streams.get(streamId);
+        if (stream == null) {
+            if (streamId > lastStreamId) {
+                throw new Http2Exception(Http2Frames.PROTOCOL_ERROR, "WINDOW_UPDATE on idle stream " + streamId);
+            }
+            return;
+        }
+        if (increment == 0) {
+            throw new Http2Exception(Http2Frames.PROTOCOL_ERROR, streamId, "Window increment of 0");
+        }
+        stream.sendWindow += increment;
+        if (stream.sendWindow > Http2Frames.MAX_WINDOW_SIZE) {
+            throw new Http2Exception(Http2Frames.FLOW_CONTROL_ERROR, streamId, "Stream window overflow");
+        }
+        schedule(stream);
+    }
+
+    private static void removePadding(int flags, ByteBuffer payload) throws Http2Exception {
+        if ((flags & Http2Frames.FLAG_PADDED) == 0) {
+            return;
+        }
+        int padding = payload.hasRemaining() ? payload.get() & 0xff : -1;
+        if (padding < 0 || padding > payload.remaining()) {
+            throw new Http2Exception(Http2Frames.PROTOCOL_ERROR, "Invalid padding");
+        }
+        payload.limit(payload.limit() - padding);
+    }
+
+    /**
+     * Converts a lowercase HTTP/2 header name to the capitalization handlers look up,
+     * for example "content-type" to "Content-Type".
+     */
+    private static String canonicalName(String name) {
+        char[] chars = name.toCharArray();
+        boolean wordStart = true;
+        for (int i = 0; i < chars.length; i++) {
+            if (wordStart) {
+                chars[i] = Character.toUpperCase(chars[i]);
+            }
+            wordStart = chars[i] == '-';
+        }
+        return new String(chars);
+    }
+
+    private Http2Stream openStream(int streamId) {
+        Http2Stream stream = new Http2Stream(streamId, this, connection, bufferPool, initialSendWindow, STREAM_WINDOW);
+        streams.put(streamId, stream);
+        lastStreamId = Math.max(lastStreamId, streamId);
+        return stream;
+    }
+
+    private void onRemoteClose(Http2Stream stream) {
+        stream.remoteClosed = true;
+        stream.body.finish();
+        if (stream.localClosed) {
+            removeStream(stream);
+        }
+    }
+
+    /**
+     * Called once the END_STREAM flag has been queued. A request body that is still arriving
+     * is not needed anymore, so the stream is reset to stop the client from sending it.
+     */
+    private void onLocalClose(Http2Stream stream) {
+        stream.localClosed = true;
+        if (!stream.remoteClosed) {
+            stream.body.discard();
+            writeRstStream(stream.id, Http2Frames.NO_ERROR);
+        }
+        removeStream(stream);
+    }
+
+    /**
+     * Closes a stream before its exchange is complete, dropping its unsent bytes.
+     */
+    private void closeStream(Http2Stream stream, IOException cause) {
+        stream.reset = true;
+        stream.releaseData();
+        ready.remove(stream);
+        if (stream.body != null) {
+            stream.body.fail(cause);
+        }
+        removeStream(stream);
+        // Wake up a handler waiting to write to the stream
+        connection.notifyAll();
+    }
+
+    private void removeStream(Http2Stream stream) {
+        streams.remove(stream.id);
+        if (peerGoingAway && streams.isEmpty()) {
+            connection.closeWhenFlushed();
+        }
+    }
+
+    private void resetStream(int streamId, int errorCode) {
+        writeRstStream(streamId, errorCode);
+        Http2Stream stream = streams.get(streamId);
+        if (stream != null) {
+            closeStream(stream, new IOException("Stream reset"));
+        }
+    }
+
+    /**
+     * Resets a stream whose response cannot be completed. Called by the Http2Stream.
+     */
+    void abort(Http2Stream stream) {
+        synchronized (connection) {
+            if (streams.get(stream.id) == stream) {
+                resetStream(stream.id, Http2Frames.INTERNAL_ERROR);
+                connection.flush();
+            }
+        }
+    }
+
+    /**
+     * Sends GOAWAY and closes the connection once it has been written. Streams in progress
+     * are not completed.
+     */
+    private void goAway(int errorCode, String message) {
+        if (goingAway) {
+            return;
+        }
+        goingAway = true;
+        byte[] debug = message == null ? new byte[0] : message.getBytes(StandardCharsets.UTF_8);
+        int length = 8 + Math.min(debug.length, 256);
+        ByteBuffer frame = bufferPool.acquire(Http2Frames.FRAME_HEADER_LENGTH + length);
+        Http2Frames.writeHeader(frame, length, Http2Frames.GOAWAY, 0, 0);
+        frame.putInt(lastStreamId).putInt(errorCode).put(debug, 0, length - 8);
+        connection.queue(frame.flip());
+        connection.closeWhenFlushed();
+    }
+
+    /**
+     * Handles new output of a stream: sends the response headers once they are complete
+     * and schedules the stream for DATA frames. Called by the Http2Stream.
+     */
+    void onOutput(Http2Stream stream) {
+        if (!stream.headersSent && stream.responseFields != null) {
+            boolean endStream = stream.endOfBody && stream.pendingBytes == 0;
+            writeHeaders(stream, stream.responseFields, endStream);
+            stream.headersSent = true;
+            if (endStream) {
+                onLocalClose(stream);
+            }
+        }
+        schedule(stream);
+        connection.flush();
+    }
+
+    /**
+     * Queues a header block as a HEADERS frame and as many CONTINUATION frames as needed.
+     * Header frames are not flow controlled; they are encoded in the order they are queued,
+     * which is the order the peer decodes them in.
+     */
+    void writeHeaders(Http2Stream stream, List<String> fields, boolean endStream) {
+        ByteArrayOutputStream block = new ByteArrayOutputStream(128);
+        encoder.beginBlock(block);
+        for (int i = 0; i < fields.size(); i += 2) {
+            encoder.encode(fields.get(i), fields.get(i + 1), block);
+        }
+        byte[] bytes = block.toByteArray();
+        int offset = 0;
+        do {
+            int length = Math.min(bytes.length - offset, Math.min(peerMaxFrameSize, MAX_DATA_PAYLOAD));
+            int type = offset == 0 ? Http2Frames.HEADERS : Http2Frames.CONTINUATION;
+            int flags = (offset + length == bytes.length ? Http2Frames.FLAG_END_HEADERS : 0)
+                    | (offset == 0 && endStream ? Http2Frames.FLAG_END_STREAM : 0);
+            ByteBuffer frame = bufferPool.acquire(Http2Frames.FRAME_HEADER_LENGTH + length);
+            Http2Frames.writeHeader(frame, length, type, flags, stream.id);
+            frame.put(bytes, offset, length);
+            connection.queue(frame.flip());
+            offset += length;
+        } while (offset < bytes.length);
+    }
+
+    private void schedule(Http2Stream stream) {
+        if (!stream.scheduled && stream.hasSendable()) {
+            stream.scheduled = true;
+            ready.addLast(stream);
+        }
+    }
+
+    /**
+     * Queues DATA frames of the ready streams, one frame per stream in turn, until the
+     * connection's high watermark is reached or the connection window is used up.
+     * Called by the connection whenever its outbound queue has been written.
+     * @return true if frames were queued
+     */
+    boolean fill() {
+        boolean queued = false;
+        while (!goingAway && !ready.isEmpty() && connection.getQueuedBytes() < connection.getHighWatermark()) {
+            Http2Stream stream = ready.peekFirst();
+            if (stream.pendingBytes > 0 && sendWindow <= 0) {
+                // Waiting for a WINDOW_UPDATE of the connection
+                break;
+            }
+            ready.removeFirst();
+            stream.scheduled = false;
+            writeData(stream);
+            queued = true;
+            schedule(stream);
+        }
+        if (queued) {
+            // Wake up handlers waiting for their stream to drain
+            connection.notifyAll();
+        }
+        return queued;
+    }
+
+    private void writeData(Http2Stream stream) {
+        int length = (int) Math.min(Math.min(stream.pendingBytes, stream.sendWindow),
+                Math.min(sendWindow, Math.min(peerMaxFrameSize, MAX_DATA_PAYLOAD)));
+        ByteBuffer frame = bufferPool.acquire(Http2Frames.FRAME_HEADER_LENGTH + length);
+        frame.position(Http2Frames.FRAME_HEADER_LENGTH);
+        try {
+            stream.copyData(frame, length);
+        } catch (IOException e) {
+            bufferPool.release(frame);
+            resetStream(stream.id, Http2Frames.INTERNAL_ERROR);
+            return;
+        }
+        boolean endStream = stream.endOfBody && stream.pendingBytes == 0;
+        frame.flip();
+        Http2Frames.writeHeader(frame, length, Http2Frames.DATA, endStream ? Http2Frames.FLAG_END_STREAM : 0,
+                stream.id);
+        frame.position(0);
+        stream.sendWindow -= length;
+        sendWindow -= length;
+        connection.queue(frame);
+        if (endStream) {
+            onLocalClose(stream);
+        }
+    }
+
+    private void writeWindowUpdate(int streamId, int increment) {
+        ByteBuffer frame = bufferPool.acquire(Http2Frames.FRAME_HEADER_LENGTH + 4);
+        Http2Frames.writeHeader(frame, 4, Http2Frames.WINDOW_UPDATE, 0, streamId);
+        connection.queue(frame.putInt(increment).flip());
+    }
+
+    private void writeRstStream(int streamId, int errorCode) {
+        ByteBuffer frame = bufferPool.acquire(Http2Frames.FRAME_HEADER_LENGTH + 4);
+        Http2Frames.writeHeader(frame, 4, Http2Frames.RST_STREAM, 0, streamId);
+        connection.queue(frame.putInt(errorCode).flip());
+    }
+
+    /**
+     * Fails every open stream. Called by the connection when it is closed.
+     */
+    void onClose() {
+        for (Http2Stream stream : new ArrayList<>(streams.values())) {
+            closeStream(stream, new IOException("Connection closed"));
+        }
+        ready.clear();
+    }
+}
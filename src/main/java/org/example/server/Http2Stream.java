@@ -0,0 +1,356 @@
+package org.example.server;
+
+import org.example.buffer.BufferPool;
+import org.example.http.FileRegion;
+import org.example.http.HttpResponse;
+import org.example.http.RequestBody;
+import org.example.http.ResponseChannel;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Http2Stream is one request of an HTTP/2 connection and the ResponseChannel of its response.
+ * HttpResponse encodes HTTP/1.1 messages, so the stream translates what it is given: the
+ * status line and headers become a HEADERS frame, with the connection-specific headers
+ * removed, and the body, sent as is or with chunked transfer coding, becomes the payload of
+ * DATA frames. Body bytes are kept in the stream until the Http2Session turns them into
+ * frames within the flow control windows; a file region is read into DATA frames as well,
+ * since frames cannot be interleaved with a sendfile transfer.
+ * The fields are guarded by the monitor of the connection.
+ */
+class Http2Stream implements ResponseChannel {
+    private static final Set<String> CONNECTION_HEADERS = Set.of(
+            "connection", "keep-alive", "proxy-connection", "transfer-encoding", "upgrade");
+
+    // Where the translation of the HTTP/1.1 output is
+    private static final int HEAD = 0;
+    private static final int BODY = 1;
+    private static final int CHUNK_SIZE = 2;
+    private static final int CHUNK_DATA = 3;
+    private static final int CHUNK_DATA_END = 4;
+    private static final int CHUNK_TRAILER = 5;
+    private static final int DONE = 6;
+
+    final int id;
+    private final Http2Session session;
+    private final HttpConnection connection;
+    private final BufferPool bufferPool;
+
+    // Receiving side
+    RequestBody body;
+    long declaredLength = -1;
+    long received;
+    long recvWindow;
+    int recvUnacknowledged;
+    boolean remoteClosed;
+
+    // Sending side: body bytes waiting for flow control credit, ByteBuffers and FileRegions
+    long sendWindow;
+    long pendingBytes;
+    List<String> responseFields;
+    boolean headersSent;
+    boolean endOfBody;
+    boolean localClosed;
+    boolean reset;
+    boolean scheduled;
+    private final Deque<Object> data = new ArrayDeque<>();
+
+    private int state = HEAD;
+    private final ByteArrayOutputStream head = new ByteArrayOutputStream(256);
+    private int headMatch;
+    private long chunkRemaining;
+    private boolean chunkExtension;
+    private int trailerLineLength;
+    private final List<int[]> ranges = new ArrayList<>(2);
+
+    Http2Stream(int id, Http2Session session, HttpConnection connection, BufferPool bufferPool,
+                long sendWindow, long recvWindow) {
+        this.id = id;
+        this.session = session;
+        this.connection = connection;
+        this.bufferPool = bufferPool;
+        this.sendWindow = sendWindow;
+        this.recvWindow = recvWindow;
+    }
+
+    @Override
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    @Override
+    public void write(HttpResponse response, ByteBuffer[] buffers, boolean complete) {
+        synchronized (connection) {
+            if (reset || session.isGoingAway()) {
+                releaseAll(buffers);
+                return;
+            }
+            for (ByteBuffer buffer : buffers) {
+                translate(buffer);
+            }
+            if (complete) {
+                endOfBody = true;
+            }
+            session.onOutput(this);
+        }
+    }
+
+    @Override
+    public void writeFile(HttpResponse response, ByteBuffer[] head, FileRegion body) {
+        synchronized (connection) {
+            if (reset || session.isGoingAway()) {
+                releaseAll(head);
+                body.release();
+                return;
+            }
+            for (ByteBuffer buffer : head) {
+                translate(buffer);
+            }
+            data.addLast(body);
+            pendingBytes += body.getCount();
+            endOfBody = true;
+            session.onOutput(this);
+        }
+    }
+
+    /**
+     * Blocks a streaming worker while more than the high watermark of body bytes waits for
+     * flow control credit or room in the connection's outbound queue, until half of it has
+     * been sent. A client that does not read slows down this stream only.
+     */
+    @Override
+    public void awaitWritable() throws IOException {
+        synchronized (connection) {
+            if (pendingBytes < connection.getHighWatermark() || session.inReactorThread()) {
+                checkWritable();
+                return;
+            }
+            while (!reset && pendingBytes > connection.getHighWatermark() / 2) {
+                try {
+                    connection.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for the client");
+                }
+            }
+            checkWritable();
+        }
+    }
+
+    private void checkWritable() throws IOException {
+        if (reset || session.isGoingAway()) {
+            throw new IOException("Stream closed");
+        }
+    }
+
+    /**
+     * Resets the stream instead of the connection; the other streams are not affected.
+     */
+    @Override
+    public void abort() {
+        session.abort(this);
+    }
+
+    /**
+     * Returns true if the session can send a frame of this stream right now.
+     */
+    boolean hasSendable() {
+        if (reset || localClosed || !headersSent) {
+            return false;
+        }
+        return pendingBytes > 0 ? sendWindow > 0 : endOfBody;
+    }
+
+    /**
+     * Moves the next body bytes into a DATA frame, releasing what has been copied completely.
+     * @param frame the frame buffer, positioned after the frame header
+     * @param count the number of bytes to copy, at most pendingBytes
+     * @throws IOException if a file could not be read
+     */
+    void copyData(ByteBuffer frame, int count) throws IOException {
+        pendingBytes -= count;
+        while (count > 0) {
+            Object item = data.peekFirst();
+            if (item instanceof FileRegion) {
+                FileRegion region = (FileRegion) item;
+                int limit = frame.limit();
+                frame.limit(frame.position() + count);
+                try {
+                    count -= region.read(frame);
+                } finally {
+                    frame.limit(limit);
+                }
+                if (region.isDone()) {
+                    data.removeFirst();
+                    region.release();
+                }
+            } else {
+                ByteBuffer buffer = (ByteBuffer) item;
+                int length = Math.min(count, buffer.remaining());
+                frame.put(frame.position(), buffer, buffer.position(), length);
+                frame.position(frame.position() + length);
+                buffer.position(buffer.position() + length);
+                count -= length;
+                if (!buffer.hasRemaining()) {
+                    data.removeFirst();
+                    bufferPool.release(buffer);
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops the body bytes that have not been sent.
+     */
+    void releaseData() {
+        for (Object item : data) {
+            if (item instanceof FileRegion) {
+                ((FileRegion) item).release();
+            } else {
+                bufferPool.release((ByteBuffer) item);
+            }
+        }
+        data.clear();
+        pendingBytes = 0;
+    }
+
+    /**
+     * Consumes one buffer of HTTP/1.1 output. The body bytes in it are queued as they are,
+     * so the buffer is kept until they are sent; only a buffer holding several chunks is copied.
+     */
+    private void translate(ByteBuffer buffer) {
+        ranges.clear();
+        while (buffer.hasRemaining()) {
+            switch (state) {
+                case HEAD:
+                    readHead(buffer);
+                    break;
+                case BODY:
+                    ranges.add(new int[]{buffer.position(), buffer.limit()});
+                    buffer.position(buffer.limit());
+                    break;
+                case CHUNK_DATA:
+                    int length = (int) Math.min(chunkRemaining, buffer.remaining());
+                    ranges.add(new int[]{buffer.position(), buffer.position() + length});
+                    buffer.position(buffer.position() + length);
+                    chunkRemaining -= length;
+                    if (chunkRemaining == 0) {
+                        state = CHUNK_DATA_END;
+                    }
+                    break;
+                default:
+                    readChunkFraming(buffer.get());
+                    break;
+            }
+        }
+        if (ranges.size() == 1) {
+            int[] range = ranges.get(0);
+            buffer.limit(range[1]).position(range[0]);
+            data.addLast(buffer);
+            pendingBytes += buffer.remaining();
+            return;
+        }
+        for (int[] range : ranges) {
+            byte[] copy = new byte[range[1] - range[0]];
+            buffer.get(range[0], copy);
+            data.addLast(ByteBuffer.wrap(copy));
+            pendingBytes += copy.length;
+        }
+        bufferPool.release(buffer);
+    }
+
+    /**
+     * Collects the status line and headers up to the empty line and converts them to
+     * header fields. An interim 100 Continue is sent right away.
+     */
+    private void readHead(ByteBuffer buffer) {
+        while (buffer.hasRemaining()) {
+            byte b = buffer.get();
+            head.write(b);
+            if (b == (headMatch % 2 == 0 ? '\r' : '\n')) {
+                headMatch++;
+            } else {
+                headMatch = b == '\r' ? 1 : 0;
+            }
+            if (headMatch == 4) {
+                break;
+            }
+        }
+        if (headMatch < 4) {
+            return;
+        }
+        String[] lines = head.toString(StandardCharsets.ISO_8859_1).split("\r\n");
+        head.reset();
+        headMatch = 0;
+        String status = lines[0].substring(9, 12);
+        List<String> fields = new ArrayList<>();
+        fields.add(":status");
+        fields.add(status);
+        if (status.equals("100")) {
+            session.writeHeaders(this, fields, false);
+            return;
+        }
+        boolean chunked = false;
+        for (int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            String name = lines[i].substring(0, colon).trim().toLowerCase(Locale.ROOT);
+            String value = lines[i].substring(colon + 1).trim();
+            if (name.equals("transfer-encoding")) {
+                chunked = value.equalsIgnoreCase("chunked");
+            }
+            if (!CONNECTION_HEADERS.contains(name)) {
+                fields.add(name);
+                fields.add(value);
+            }
+        }
+        responseFields = fields;
+        state = chunked ? CHUNK_SIZE : BODY;
+    }
+
+    private void readChunkFraming(byte b) {
+        switch (state) {
+            case CHUNK_SIZE:
+                if (b == '\n') {
+                    state = chunkRemaining == 0 ? CHUNK_TRAILER : CHUNK_DATA;
+                    chunkExtension = false;
+                } else if (b == ';') {
+                    chunkExtension = true;
+                } else if (!chunkExtension && Character.digit(b, 16) >= 0) {
+                    chunkRemaining = chunkRemaining * 16 + Character.digit(b, 16);
+                }
+                break;
+            case CHUNK_DATA_END:
+                if (b == '\n') {
+                    state = CHUNK_SIZE;
+                }
+                break;
+            case CHUNK_TRAILER:
+                if (b == '\n') {
+                    state = trailerLineLength == 0 ? DONE : CHUNK_TRAILER;
+                    trailerLineLength = 0;
+                } else if (b != '\r') {
+                    trailerLineLength++;
+                }
+                break;
+            default:
+                // Anything after the last chunk is ignored
+                break;
+        }
+    }
+
+    private void releaseAll(ByteBuffer[] buffers) {
+        for (ByteBuffer buffer : buffers) {
+            bufferPool.release(buffer);
+        }
+    }
+}
@@ -0,0 +1,916 @@
+package org.example.server;
+
+import org.example.auth.PrincipalCache;
+import org.example.buffer.BufferPool;
+import org.example.http.FileRegion;
+import org.example.http.HttpParseException;
+import org.example.http.HttpRequest;
+import org.example.http.HttpRequestParser;
+import org.example.http.HttpResponse;
+import org.example.http.RequestBody;
+import org.example.http.ResponseCompression;
+import org.example.http.ResponseChannel;
+import org.example.http2.Http2Frames;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * HttpConnection holds the per-connection state of a client channel.
+ * An instance is attached to the channel's SelectionKey and carries the input buffer
+ * that accumulates partial reads together with the parser working on it. The input buffer
+ * is borrowed from the BufferPool only while unparsed bytes are pending and returned as
+ * soon as it is drained; written response buffers are returned as well. Every complete
+ * request found in the buffer is dispatched right away, so pipelined requests are processed
+ * concurrently; their responses are kept in a sequencing queue and moved to the outbound
+ * queue strictly in request order. The outbound queue is written without blocking with
+ * gathering writes, and file regions in it with FileChannel.transferTo; whatever the socket
+ * does not accept is flushed by the reactor once the channel becomes writable again.
+ * Threads streaming a response are blocked while more than the configured high watermark
+ * of bytes is waiting to be written. The connection also owns the keep-alive lifecycle:
+ * it counts requests and closes the channel once a response asks for "Connection: close".
+ * One timer on the reactor's TimerWheel enforces the deadline of whatever the connection
+ * waits for: a stalled write, the next bytes of a request body, the rest of a request
+ * head or, between requests, the idle timeout. The timer is only moved on the reactor
+ * thread; when it fires, the deadline is recomputed from the current state and the
+ * timer rescheduled if it has not actually passed.
+ * A connection that starts with the HTTP/2 preface, or whose first request asks for
+ * "Upgrade: h2c", hands its input to an Http2Session from then on; the session queues its
+ * frames to the same outbound queue and refills it whenever it has been written.
+ */
+class HttpConnection implements ResponseChannel {
+    private static final byte[] CONTINUE = "HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] SWITCHING_PROTOCOLS =
+            "HTTP/1.1 101 Switching Protocols\r\nConnection: Upgrade\r\nUpgrade: h2c\r\n\r\n"
+                    .getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] EMPTY_BODY = new byte[0];
+
+    // What the connection timer currently enforces
+    private static final int NO_TIMEOUT = 0;
+    private static final int IDLE = 1;
+    private static final int HEADER_READ = 2;
+    private static final int BODY_READ = 3;
+    private static final int WRITE = 4;
+
+    /**
+     * A response in the sequencing queue together with the bytes it produced while
+     * an earlier response was still being processed.
+     */
+    private static final class PendingResponse {
+        private final HttpResponse response;
+        private final RequestBody body;
+        private final boolean expectContinue;
+        private final List<Object> buffers = new ArrayList<>();
+        private boolean complete;
+
+        private PendingResponse(HttpResponse response, RequestBody body, boolean expectContinue) {
+            this.response = response;
+            this.body = body;
+            this.expectContinue = expectContinue;
+        }
+    }
+
+    private final SocketChannel channel;
+    private final Reactor reactor;
+    private final RequestDispatcher dispatcher;
+    private final HttpRequestParser parser;
+    private final BufferPool bufferPool;
+    private final ResponseCompression compression;
+    private final ServerMetrics metrics;
+    private final HttpServerConfig config;
+    private final PrincipalCache principalCache = new PrincipalCache();
+    private int inputBufferSize;
+    private ByteBuffer inputBuffer;
+    private RequestBody currentBody;
+    private boolean inputBroken;
+    private final int maxRequests;
+    private final int maxPipelinedRequests;
+    private final Deque<PendingResponse> pendingResponses = new ArrayDeque<>();
+    // ByteBuffers and FileRegions in the order they are written
+    private final Deque<Object> outbound = new ArrayDeque<>();
+    private ByteBuffer[] gather = new ByteBuffer[16];
+    private volatile long lastActivity = System.currentTimeMillis();
+    private final TimerWheel.Timer timer = new TimerWheel.Timer(this::onTimeout);
+    // When the request head being received started, 0 if none; the first one counts from the accept
+    private long headStarted = lastActivity;
+    // Since when the outbound queue waits for the socket without progress, 0 if it is empty
+    private long writeStalledSince;
+    private SelectionKey key;
+    private int requestCount;
+    private boolean continueSent;
+    private boolean closing;
+    private volatile boolean closed;
+    private boolean closeAfterFlush;
+    private boolean readPaused;
+    private int interestOps = SelectionKey.OP_READ;
+    private final int highWatermark;
+    private final int lowWatermark;
+    private long queuedBytes;
+    private Http2Session http2;
+
+    HttpConnection(SocketChannel channel, Reactor reactor, RequestDispatcher dispatcher, BufferPool bufferPool,
+                   ResponseCompression compression, ServerMetrics metrics, HttpServerConfig config) {
+        this.channel = channel;
+        this.reactor = reactor;
+        this.dispatcher = dispatcher;
+        this.bufferPool = bufferPool;
+        this.compression = compression;
+        this.metrics = metrics;
+        this.config = config;
+        this.parser = new HttpRequestParser(config.getMaxHeaderSize(), config.getMaxRequestBodySize());
+        this.inputBufferSize = Math.max(4096, config.getMaxHeaderSize() * 2);
+        this.maxRequests = config.getMaxRequestsPerConnection();
+        this.maxPipelinedRequests = config.getMaxPipelinedRequests();
+        this.highWatermark = config.getWriteBufferHighWatermark();
+        this.lowWatermark = highWatermark / 2;
+    }
+
+    void setKey(SelectionKey key) {
+        this.key = key;
+    }
+
+    /**
+     * Reads available bytes and processes every complete request. Called on the reactor thread.
+     */
+    void onReadable() throws IOException {
+        if (inputBuffer == null) {
+            inputBuffer = bufferPool.acquire(inputBufferSize);
+        } else if (inputBuffer.capacity() < inputBufferSize) {
+            // HTTP/2 frames may be larger than a request head
+            ByteBuffer larger = bufferPool.acquire(inputBufferSize);
+            larger.put(inputBuffer.flip());
+            bufferPool.release(inputBuffer);
+            inputBuffer = larger;
+        }
+        int read = channel.read(inputBuffer);
+        if (read == -1) {
+            close();
+            return;
+        }
+        metrics.addBytesRead(read);
+        touch();
+        processInput();
+    }
+
+    /**
+     * Continues writing the outbound queue once the socket accepts data again.
+     * Called on the reactor thread.
+     */
+    void onWritable() {
+        flush();
+    }
+
+    /**
+     * Dispatches every request whose head is complete, up to the pipelining limit, and feeds
+     * the body of the current request to its RequestBody. Reading pauses while that body's
+     * window is full. Called on the reactor thread.
+     */
+    private void processInput() throws IOException {
+        if (inputBuffer != null) {
+            inputBuffer.flip();
+            try {
+                while (!closed) {
+                    if (http2 != null) {
+                        http2.onInput(inputBuffer);
+                        break;
+                    }
+                    if (requestCount == 0 && config.isHttp2Enabled() && startsWithPreface()) {
+                        if (inputBuffer.remaining() < Http2Frames.CLIENT_PREFACE.length) {
+                            break;
+                        }
+                        startHttp2();
+                        continue;
+                    }
+                    if (currentBody == null) {
+                        if (closing || pendingCount() >= maxPipelinedRequests || !parser.parseHead(inputBuffer)) {
+                            break;
+                        }
+                        handleRequest();
+                    } else if (!feedBody()) {
+                        break;
+                    }
+                }
+                sendContinueIfExpected();
+            } catch (HttpParseException e) {
+                onParseError(e);
+            } finally {
+                releaseDrainedInput();
+            }
+        }
+        synchronized (this) {
+            if (http2 != null) {
+                // The session limits what a client may send with flow control instead
+                readPaused = false;
+            } else {
+                readPaused = currentBody != null
+                        ? currentBody.isFull()
+                        : closing || pendingResponses.size() >= maxPipelinedRequests;
+            }
+        }
+        boolean partialHead = http2 == null && currentBody == null && !closing && !readPaused
+                && (inputBuffer != null || parser.isHeadStarted());
+        if (!partialHead) {
+            headStarted = 0;
+        } else if (headStarted == 0) {
+            headStarted = System.currentTimeMillis();
+        }
+        updateInterest();
+        scheduleTimeout();
+    }
+
+    /**
+     * Appends the body bytes in the input buffer to the current request body.
+     * @return true if the body is complete and the next request can be parsed
+     */
+    private boolean feedBody() throws HttpParseException {
+        ByteBuffer piece;
+        while (!currentBody.isFull() && (piece = parser.readBody(inputBuffer)) != null) {
+            currentBody.append(piece);
+        }
+        if (!parser.isComplete()) {
+            return false;
+        }
+        RequestBody body = currentBody;
+        currentBody = null;
+        parser.reset();
+        body.finish();
+        return true;
+    }
+
+    /**
+     * Sends 100 Continue for the request whose body is awaited. An interim response may only
+     * be written when no earlier response is still pending and the final one was not sent yet.
+     */
+    private void sendContinueIfExpected() {
+        if (currentBody == null || continueSent || !parser.expectsContinue()) {
+            return;
+        }
+        synchronized (this) {
+            PendingResponse head = pendingResponses.peekFirst();
+            if (pendingResponses.size() == 1 && head.body == currentBody && !head.response.isSent()) {
+                outbound.addLast(ByteBuffer.wrap(CONTINUE));
+                queuedBytes += CONTINUE.length;
+                continueSent = true;
+                flush();
+            }
+        }
+    }
+
+    /**
+     * Answers a malformed request. The rest of the stream cannot be trusted afterwards, so
+     * nothing more is read and the connection is closed once the pending responses are sent.
+     * An error in a body fails the body, so its handler answers with the parser's status.
+     */
+    private void onParseError(HttpParseException e) throws IOException {
+        if (currentBody == null) {
+            newResponse(true, null, false).send(e.getStatusCode(), e.getMessage());
+            return;
+        }
+        RequestBody body = currentBody;
+        currentBody = null;
+        closing = true;
+        synchronized (this) {
+            inputBroken = true;
+        }
+        body.fail(e);
+        if (inputBuffer != null) {
+            inputBuffer.position(inputBuffer.limit());
+        }
+    }
+
+    /**
+     * Compacts the input buffer, or returns it to the pool if every byte has been consumed.
+     */
+    private void releaseDrainedInput() {
+        if (inputBuffer == null) {
+            return;
+        }
+        if (inputBuffer.hasRemaining()) {
+            inputBuffer.compact();
+        } else {
+            bufferPool.release(inputBuffer);
+            inputBuffer = null;
+        }
+    }
+
+    private void handleRequest() throws IOException {
+        String method = parser.getMethod();
+        String path = parser.getPath();
+        String version = parser.getVersion();
+        Map<String, String> headers = parser.getHeaders();
+        boolean close = "close".equalsIgnoreCase(headers.get("Connection"));
+        RequestBody body;
+        if (parser.isAwaitingBody()) {
+            body = new RequestBody(parser.getContentLength());
+            body.setDrainListener(() -> reactor.execute(this::resumeReading));
+            currentBody = body;
+        } else {
+            body = RequestBody.of(EMPTY_BODY);
+            parser.reset();
+            byte[] http2Settings = getHttp2Upgrade(version, headers);
+            if (http2Settings != null) {
+                upgradeToHttp2(http2Settings, method, path, headers);
+                return;
+            }
+        }
+        HttpResponse httpResponse = newResponse(close, body, currentBody == body && parser.expectsContinue());
+        httpResponse.negotiateCompression(compression, headers.get("Accept-Encoding"));
+
+        // Проверка на не поддерживаемый метод
+        if (!isImplemented(method)) {
+            httpResponse.send(501, "Not Implemented");
+            return;
+        }
+
+        // Проверка версии HTTP
+        if (!version.equals("HTTP/1.1")) {
+            httpResponse.send(505, "HTTP Version not supported");
+            return;
+        }
+
+        HttpRequest httpRequest = new HttpRequest(method, path, headers, body, channel);
+        httpRequest.setPrincipalCache(principalCache);
+        dispatcher.dispatch(httpRequest, httpResponse, reactor);
+    }
+
+    /**
+     * Returns true if the server implements the request method.
+     */
+    static boolean isImplemented(String method) {
+        return method.equals("GET") || method.equals("POST") || method.equals("PUT") || method.equals("PATCH")
+                || method.equals("DELETE");
+    }
+
+    /**
+     * Returns true if the bytes received so far match the start of the HTTP/2 client preface.
+     */
+    private boolean startsWithPreface() {
+        int count = Math.min(inputBuffer.remaining(), Http2Frames.CLIENT_PREFACE.length);
+        for (int i = 0; i < count; i++) {
+            if (inputBuffer.get(inputBuffer.position() + i) != Http2Frames.CLIENT_PREFACE[i]) {
+                return false;
+            }
+        }
+        return count > 0;
+    }
+
+    /**
+     * Checks whether a request without a body asks to continue the connection as h2c while
+     * no earlier response is pending (RFC 7540, section 3.2). A request with a malformed
+     * HTTP2-Settings header is answered with HTTP/1.1.
+     * @return the decoded HTTP2-Settings header, or null if the connection is not upgraded
+     */
+    private byte[] getHttp2Upgrade(String version, Map<String, String> headers) {
+        String upgrade = headers.get("Upgrade");
+        String settings = headers.get("HTTP2-Settings");
+        if (!config.isHttp2Enabled() || upgrade == null || settings == null || !version.equals("HTTP/1.1")
+                || pendingCount() > 0) {
+            return null;
+        }
+        for (String protocol : upgrade.split(",")) {
+            if (protocol.trim().equalsIgnoreCase("h2c")) {
+                try {
+                    return Base64.getUrlDecoder().decode(settings.trim());
+                } catch (IllegalArgumentException e) {
+                    return null;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Answers 101 Switching Protocols and lets an Http2Session handle the request as stream 1.
+     */
+    private void upgradeToHttp2(byte[] settings, String method, String path, Map<String, String> headers)
+            throws IOException {
+        requestCount++;
+        synchronized (this) {
+            outbound.addLast(ByteBuffer.wrap(SWITCHING_PROTOCOLS));
+            queuedBytes += SWITCHING_PROTOCOLS.length;
+            startHttp2();
+            http2.upgrade(settings, method, path, headers);
+        }
+    }
+
+    /**
+     * Switches the connection to HTTP/2 and queues the server preface.
+     */
+    private synchronized void startHttp2() {
+        http2 = new Http2Session(this, reactor, dispatcher, bufferPool, compression, config);
+        inputBufferSize = Math.max(inputBufferSize, Http2Frames.FRAME_HEADER_LENGTH + Http2Frames.DEFAULT_MAX_FRAME_SIZE);
+        http2.start();
+        flush();
+    }
+
+    /**
+     * Creates the response for the next request and appends it to the sequencing queue.
+     * The response asks for the connection to be closed if the client requested it or
+     * the request limit is reached; no further requests are read after that.
+     */
+    private HttpResponse newResponse(boolean close, RequestBody body, boolean expectContinue) {
+        requestCount++;
+        continueSent = false;
+        HttpResponse response = new HttpResponse(this);
+        if (close || requestCount >= maxRequests) {
+            response.setHeader("Connection", "close");
+            closing = true;
+        }
+        synchronized (this) {
+            pendingResponses.addLast(new PendingResponse(response, body, expectContinue));
+        }
+        return response;
+    }
+
+    @Override
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    SocketChannel getChannel() {
+        return channel;
+    }
+
+    PrincipalCache getPrincipalCache() {
+        return principalCache;
+    }
+
+    long getQueuedBytes() {
+        return queuedBytes;
+    }
+
+    int getHighWatermark() {
+        return highWatermark;
+    }
+
+    /**
+     * Appends a frame of the HTTP/2 session to the outbound queue. The caller holds the
+     * monitor of the connection and flushes afterwards.
+     */
+    void queue(ByteBuffer frame) {
+        if (closed) {
+            bufferPool.release(frame);
+            return;
+        }
+        outbound.addLast(frame);
+        queuedBytes += frame.remaining();
+    }
+
+    /**
+     * Closes the connection once the outbound queue has been written.
+     */
+    synchronized void closeWhenFlushed() {
+        closeAfterFlush = true;
+    }
+
+    /**
+     * Queues response bytes in request order. Bytes of the response at the head of the
+     * sequencing queue go to the outbound queue; bytes of later responses are held until
+     * every earlier response is complete. Called from worker threads and the reactor.
+     */
+    @Override
+    public synchronized void write(HttpResponse response, ByteBuffer[] data, boolean complete) {
+        if (closed || closeAfterFlush) {
+            releaseAll(Arrays.asList(data));
+            return;
+        }
+        PendingResponse pending = find(response);
+        if (pending == null) {
+            releaseAll(Arrays.asList(data));
+            return;
+        }
+        for (ByteBuffer buffer : data) {
+            queuedBytes += buffer.remaining();
+        }
+        if (pending == pendingResponses.peekFirst()) {
+            Collections.addAll(outbound, (Object[]) data);
+        } else {
+            Collections.addAll(pending.buffers, (Object[]) data);
+        }
+        if (complete) {
+            pending.complete = true;
+            completeResponses();
+        }
+        flush();
+    }
+
+    /**
+     * Queues a response head followed by a file region, completing the response. The file
+     * bytes are not counted against the write watermark, since they are not held in memory.
+     */
+    @Override
+    public synchronized void writeFile(HttpResponse response, ByteBuffer[] head, FileRegion body) {
+        PendingResponse pending = closed || closeAfterFlush ? null : find(response);
+        if (pending == null) {
+            releaseAll(Arrays.asList(head));
+            body.release();
+            return;
+        }
+        for (ByteBuffer buffer : head) {
+            queuedBytes += buffer.remaining();
+        }
+        Collection<Object> target = pending == pendingResponses.peekFirst() ? outbound : pending.buffers;
+        Collections.addAll(target, (Object[]) head);
+        target.add(body);
+        pending.complete = true;
+        completeResponses();
+        flush();
+    }
+
+    /**
+     * Removes completed responses from the head of the sequencing queue and releases the
+     * bytes of the next response to the outbound queue.
+     */
+    private void completeResponses() {
+        boolean dequeued = false;
+        PendingResponse head;
+        while ((head = pendingResponses.peekFirst()) != null && head.complete) {
+            pendingResponses.removeFirst();
+            dequeued = true;
+            touch();
+            if (head.body != null && !head.body.isComplete()) {
+                // The rest of a body nobody reads is skipped; a client still waiting for
+                // 100 Continue will not send it at all, so that connection cannot be reused
+                head.body.discard();
+                if (head.expectContinue) {
+                    closeAfterFlush = true;
+                }
+            }
+            if (head.response.isCloseConnection() || closeAfterFlush || (inputBroken && pendingResponses.isEmpty())) {
+                closeAfterFlush = true;
+                for (PendingResponse discarded : pendingResponses) {
+                    for (Object item : discarded.buffers) {
+                        if (item instanceof ByteBuffer) {
+                            queuedBytes -= ((ByteBuffer) item).remaining();
+                        }
+                    }
+                    releaseAll(discarded.buffers);
+                }
+                pendingResponses.clear();
+                return;
+            }
+            PendingResponse next = pendingResponses.peekFirst();
+            if (next != null) {
+                outbound.addAll(next.buffers);
+                next.buffers.clear();
+            }
+        }
+        if (dequeued && readPaused) {
+            reactor.execute(this::resumeReading);
+        }
+    }
+
+    private PendingResponse find(HttpResponse response) {
+        for (PendingResponse pending : pendingResponses) {
+            if (pending.response == response) {
+                return pending;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Writes as much of the outbound queue as the socket accepts. Consecutive buffers are
+     * written with a single gathering write, file regions with FileChannel.transferTo.
+     * If bytes remain, write interest is registered so the reactor finishes the job later.
+     * Once an HTTP/2 connection has written everything, its session queues the next frames.
+     */
+    synchronized void flush() {
+        if (closed) {
+            return;
+        }
+        long written = 0;
+        try {
+            do {
+                written += writeOutbound();
+            } while (outbound.isEmpty() && http2 != null && !closeAfterFlush && http2.fill());
+        } catch (IOException e) {
+            close();
+            return;
+        }
+        if (outbound.isEmpty()) {
+            writeStalledSince = 0;
+        } else if (written > 0 || writeStalledSince == 0) {
+            writeStalledSince = System.currentTimeMillis();
+        }
+        if (queuedBytes <= lowWatermark) {
+            notifyAll();
+        }
+        if (outbound.isEmpty() && closeAfterFlush) {
+            close();
+            return;
+        }
+        boolean wantWrite = !outbound.isEmpty();
+        if (wantWrite != ((interestOps & SelectionKey.OP_WRITE) != 0)) {
+            if (reactor.inReactorThread()) {
+                updateInterest();
+            } else {
+                reactor.execute(this::updateInterest);
+            }
+        }
+    }
+
+    /**
+     * Writes the outbound queue until it is empty or the socket does not accept more.
+     * @return the number of bytes written
+     */
+    private long writeOutbound() throws IOException {
+        long total = 0;
+        while (!outbound.isEmpty()) {
+            if (outbound.peekFirst() instanceof FileRegion) {
+                FileRegion region = (FileRegion) outbound.peekFirst();
+                long written = region.transferTo(channel);
+                metrics.addBytesWritten(written);
+                total += written;
+                if (!region.isDone()) {
+                    break;
+                }
+                outbound.removeFirst();
+                region.release();
+            } else {
+                total += writeBuffers();
+                if (!outbound.isEmpty() && outbound.peekFirst() instanceof ByteBuffer) {
+                    break;
+                }
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Writes the buffers at the front of the outbound queue with one gathering write,
+     * releasing those written completely.
+     * @return the number of bytes written
+     */
+    private long writeBuffers() throws IOException {
+        int count = 0;
+        for (Object item : outbound) {
+            if (!(item instanceof ByteBuffer)) {
+                break;
+            }
+            if (count == gather.length) {
+                gather = Arrays.copyOf(gather, gather.length * 2);
+            }
+            gather[count++] = (ByteBuffer) item;
+        }
+        long written;
+        try {
+            written = channel.write(gather, 0, count);
+            queuedBytes -= written;
+            metrics.addBytesWritten(written);
+        } finally {
+            Arrays.fill(gather, 0, count, null);
+        }
+        while (!outbound.isEmpty() && outbound.peekFirst() instanceof ByteBuffer
+                && !((ByteBuffer) outbound.peekFirst()).hasRemaining()) {
+            bufferPool.release((ByteBuffer) outbound.removeFirst());
+        }
+        return written;
+    }
+
+    /**
+     * Blocks a streaming worker while more than the high watermark is queued, until the
+     * queue has drained to the low watermark. The reactor thread never waits.
+     */
+    @Override
+    public synchronized void awaitWritable() throws IOException {
+        if (queuedBytes < highWatermark || reactor.inReactorThread()) {
+            checkWritable();
+            return;
+        }
+        while (!closed && !closeAfterFlush && queuedBytes > lowWatermark) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the client");
+            }
+        }
+        checkWritable();
+    }
+
+    /**
+     * Fails once written bytes would be dropped, so a streaming handler stops producing.
+     */
+    private void checkWritable() throws IOException {
+        if (closed || closeAfterFlush) {
+            throw new IOException("Connection closed");
+        }
+    }
+
+    @Override
+    public void abort() {
+        close();
+    }
+
+    /**
+     * Applies read and write interest to the selection key. Reading stops while the
+     * pipelining limit is reached, so a client cannot queue an unbounded number of
+     * requests. Called on the reactor thread.
+     */
+    private synchronized void updateInterest() {
+        if (closed || !key.isValid()) {
+            return;
+        }
+        int ops = (readPaused ? 0 : SelectionKey.OP_READ) | (outbound.isEmpty() ? 0 : SelectionKey.OP_WRITE);
+        if (ops != interestOps) {
+            interestOps = ops;
+            key.interestOps(ops);
+            // A write stall is detected here, and may be due before the current deadline
+            scheduleTimeout();
+        }
+    }
+
+    private synchronized int pendingCount() {
+        return pendingResponses.size();
+    }
+
+    private void resumeReading() {
+        try {
+            processInput();
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    private void closeInput() {
+        bufferPool.release(inputBuffer);
+        inputBuffer = null;
+        reactor.getTimers().cancel(timer);
+    }
+
+    void touch() {
+        lastActivity = System.currentTimeMillis();
+    }
+
+    /**
+     * Moves the connection timer to the deadline of what the connection waits for now.
+     * While a handler is running nothing is due, and the state is checked again after the
+     * idle timeout. Called on the reactor thread.
+     */
+    void scheduleTimeout() {
+        if (closed) {
+            return;
+        }
+        int phase = timeoutPhase();
+        long deadline = phase == NO_TIMEOUT
+                ? System.currentTimeMillis() + config.getIdleTimeoutMillis()
+                : deadline(phase);
+        reactor.getTimers().schedule(timer, deadline);
+    }
+
+    private synchronized int timeoutPhase() {
+        if (!outbound.isEmpty()) {
+            return WRITE;
+        }
+        if (currentBody != null && !currentBody.isFull()) {
+            // A full body waits for its handler, not for the client
+            return BODY_READ;
+        }
+        if (headStarted != 0) {
+            return HEADER_READ;
+        }
+        if (pendingResponses.isEmpty() && (http2 == null || http2.isIdle())) {
+            return IDLE;
+        }
+        return NO_TIMEOUT;
+    }
+
+    private synchronized long deadline(int phase) {
+        switch (phase) {
+            case WRITE:
+                return writeStalledSince + config.getWriteTimeoutMillis();
+            case BODY_READ:
+                return lastActivity + config.getBodyReadTimeoutMillis();
+            case HEADER_READ:
+                return headStarted + config.getHeaderReadTimeoutMillis();
+            default:
+                return lastActivity + config.getIdleTimeoutMillis();
+        }
+    }
+
+    /**
+     * Fires on the reactor thread. Closes the connection, or fails what it waits for, if the
+     * deadline of its current state has passed, and reschedules the timer otherwise.
+     */
+    private void onTimeout() {
+        if (closed) {
+            return;
+        }
+        int phase = timeoutPhase();
+        if (phase == NO_TIMEOUT || System.currentTimeMillis() < deadline(phase)) {
+            scheduleTimeout();
+            return;
+        }
+        try {
+            switch (phase) {
+                case WRITE:
+                    metrics.incrementWriteTimeouts();
+                    close();
+                    return;
+                case BODY_READ:
+                    metrics.incrementBodyReadTimeouts();
+                    stopReading();
+                    onParseError(new HttpParseException(408, "Request Timeout"));
+                    break;
+                case HEADER_READ:
+                    metrics.incrementHeaderReadTimeouts();
+                    onHeaderReadTimeout();
+                    break;
+                default:
+                    metrics.incrementIdleTimeouts();
+                    close();
+                    return;
+            }
+        } catch (IOException e) {
+            close();
+            return;
+        }
+        updateInterest();
+        scheduleTimeout();
+    }
+
+    /**
+     * Answers 408 to a client that did not complete a request head in time, after any
+     * pending responses; a client that sent nothing at all is just disconnected.
+     */
+    private void onHeaderReadTimeout() throws IOException {
+        boolean received = inputBuffer != null || parser.isHeadStarted();
+        stopReading();
+        if (!received) {
+            close();
+            return;
+        }
+        parser.reset();
+        newResponse(true, null, false).send(408, "Request Timeout");
+    }
+
+    /**
+     * Drops the unparsed input and reads nothing more from the client.
+     */
+    private void stopReading() {
+        if (inputBuffer != null) {
+            closeInput();
+        }
+        headStarted = 0;
+        synchronized (this) {
+            readPaused = true;
+        }
+    }
+
+    private void releaseAll(Iterable<?> items) {
+        for (Object item : items) {
+            if (item instanceof FileRegion) {
+                ((FileRegion) item).release();
+            } else {
+                bufferPool.release((ByteBuffer) item);
+            }
+        }
+    }
+
+    /**
+     * Closes the channel and returns every buffer still held by the connection to the pool.
+     * The input buffer is owned by the reactor thread and released there once the current
+     * loop iteration no longer uses it.
+     */
+    synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        for (PendingResponse pending : pendingResponses) {
+            releaseAll(pending.buffers);
+            if (pending.body != null) {
+                pending.body.fail(new IOException("Connection closed"));
+            }
+        }
+        pendingResponses.clear();
+        if (http2 != null) {
+            http2.onClose();
+        }
+        releaseAll(outbound);
+        outbound.clear();
+        queuedBytes = 0;
+        notifyAll();
+        reactor.execute(this::closeInput);
+        reactor.onConnectionClosed();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
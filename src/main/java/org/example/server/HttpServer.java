@@ -1,39 +1,191 @@
 package org.example.server;
 
+import org.example.auth.AuthPolicy;
+import org.example.buffer.BufferPool;
+import org.example.handlers.AsyncHttpHandler;
+import org.example.handlers.HttpFilter;
 import org.example.handlers.HttpHandler;
+import org.example.http.ResponseCompression;
 
 import java.io.IOException;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * The HttpServer class represents a simple HTTP server that handles incoming HTTP requests.
- * It maintains a map of HTTP handlers for different methods and paths.
+ * It maintains a map of HTTP handlers for different methods and paths. Blocking HttpHandlers
+ * and AsyncHttpHandlers can be mixed freely, so routes can be migrated one at a time.
+ * Paths may contain parameters such as /data/{key} and a trailing wildcard such as /files/*.
+ * The routes are compiled into a {@link Router} when the server starts, so handlers have to
+ * be registered before {@link #start()}. Blocking handlers can be registered with an
+ * {@link AuthPolicy}, which the server enforces before the handler runs, and the filters added
+ * with {@link #addFilter(HttpFilter)} run in front of every blocking handler.
  */
 public class HttpServer {
-    private final Map<String, Map<String, HttpHandler>> handlers = new ConcurrentHashMap<>();
+    private final Map<String, Map<String, Route>> handlers = new ConcurrentHashMap<>();
+    private final List<HttpFilter> filters = new CopyOnWriteArrayList<>();
     private final String host;
     private final int port;
+    private final HttpServerConfig config;
     private HttpServerChannel serverChannel;
+    private BufferPool bufferPool;
+    private ResponseCompression compression;
+    private final ServerMetrics metrics = new ServerMetrics();
 
     public HttpServer(String host, int port) {
+        this(host, port, new HttpServerConfig());
+    }
+
+    /**
+     * Creates a server that serves connections with the given number of reactor threads.
+     * @param host the host to bind to
+     * @param port the port to bind to
+     * @param reactorCount the number of selector threads owning client connections
+     */
+    public HttpServer(String host, int port, int reactorCount) {
+        this(host, port, new HttpServerConfig());
+        config.setReactorCount(reactorCount);
+    }
+
+    public HttpServer(String host, int port, HttpServerConfig config) {
         this.host = host;
         this.port = port;
+        this.config = config;
     }
 
     public void start() throws IOException {
-        serverChannel = new HttpServerChannel(host, port, handlers);
+        bufferPool = new BufferPool(config.isBufferPoolDebug());
+        compression = new ResponseCompression(config.isCompressionEnabled(), config.getCompressionMinSize(),
+                config.getCompressionLevel(), config.getCompressionCacheSize());
+        for (Map<String, Route> routes : handlers.values()) {
+            for (Route route : routes.values()) {
+                route.compose(filters);
+            }
+        }
+        Router router = Router.compile(handlers);
+        serverChannel = new HttpServerChannel(host, port, router, bufferPool, compression, metrics, config);
         serverChannel.start();
     }
 
     public void stop() throws IOException {
+        stop(0);
+    }
+
+    /**
+     * Stops accepting connections and waits up to the given time for the blocking handlers
+     * already dispatched to send their responses; requests arriving meanwhile on open
+     * connections are answered with 503. Then the connections are closed and handlers still
+     * running are interrupted.
+     * @param drainMillis how long to wait for running handlers, or 0 to interrupt them at once
+     */
+    public void stop(long drainMillis) throws IOException {
         if (serverChannel != null) {
-            serverChannel.stop();
+            serverChannel.stop(drainMillis);
+        }
+        if (bufferPool != null && config.isBufferPoolDebug()) {
+            System.out.println(bufferPool.getStats());
         }
     }
 
     public void addHandler(String method, String path, HttpHandler handler) {
+        addHandler(method, path, handler, 0);
+    }
+
+    /**
+     * Registers a blocking handler with its own deadline.
+     * @param timeoutMillis the route deadline in milliseconds, or 0 for the server default
+     */
+    public void addHandler(String method, String path, HttpHandler handler, long timeoutMillis) {
+        addHandler(method, path, AuthPolicy.PUBLIC, handler, timeoutMillis);
+    }
+
+    /**
+     * Registers a blocking handler that only callers allowed by the policy reach. Others are
+     * answered with 401 Unauthorized or 403 Forbidden; the handler finds the verified caller
+     * in {@link org.example.http.HttpRequest#getPrincipal()}.
+     */
+    public void addHandler(String method, String path, AuthPolicy policy, HttpHandler handler) {
+        addHandler(method, path, policy, handler, 0);
+    }
+
+    /**
+     * Registers a blocking handler with an authentication policy and its own deadline.
+     * @param timeoutMillis the route deadline in milliseconds, or 0 for the server default
+     */
+    public void addHandler(String method, String path, AuthPolicy policy, HttpHandler handler, long timeoutMillis) {
+        addRoute(method, path, new Route(handler, policy, timeoutMillis));
+    }
+
+    /**
+     * Adds a filter that runs in front of every blocking handler, in the order the filters were
+     * added and after the authentication policy check. Filters have to be added before {@link #start()}.
+     */
+    public void addFilter(HttpFilter filter) {
+        filters.add(filter);
+    }
+
+    /**
+     * Registers an asynchronous handler. The response is written when the returned stage completes.
+     */
+    public void addHandler(String method, String path, AsyncHttpHandler handler) {
+        addHandler(method, path, handler, 0);
+    }
+
+    /**
+     * Registers an asynchronous handler with its own deadline. If the stage has not completed
+     * when the deadline passes, 504 is sent and the stage is cancelled where possible.
+     * @param timeoutMillis the route deadline in milliseconds, or 0 for the server default
+     */
+    public void addHandler(String method, String path, AsyncHttpHandler handler, long timeoutMillis) {
+        addRoute(method, path, new Route(handler, timeoutMillis));
+    }
+
+    /**
+     * Limits the request rate of each client of a registered route. Requests beyond it are
+     * answered with 429 Too Many Requests and Retry-After.
+     * @param rateLimiter the limiter, or null to remove the limit
+     * @throws IllegalArgumentException if no handler is registered for the method and path
+     */
+    public void setRateLimit(String method, String path, RateLimiter rateLimiter) {
+        Map<String, Route> routes = handlers.get(method);
+        Route route = routes == null ? null : routes.get(path);
+        if (route == null) {
+            throw new IllegalArgumentException("No handler for " + method + " " + path);
+        }
+        route.setRateLimiter(rateLimiter);
+    }
+
+    private void addRoute(String method, String path, Route route) {
         handlers.putIfAbsent(method, new ConcurrentHashMap<>());
-        handlers.get(method).put(path, handler);
+        handlers.get(method).put(path, route);
+    }
+
+    /**
+     * Returns the buffer pool of the running server, for example to read its statistics.
+     * @return the pool, or null if the server has not been started
+     */
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    /**
+     * Returns the response compression of the running server, for example to read its statistics.
+     * @return the compression, or null if the server has not been started
+     */
+    public ResponseCompression getCompression() {
+        return compression;
+    }
+
+    /**
+     * Returns the counters of the server, such as the bytes written to clients.
+     */
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    public HttpServerConfig getConfig() {
+        return config;
     }
 }
@@ -1,31 +1,49 @@
 package org.example.server;
 
-import org.example.handlers.HttpHandler;
-import org.example.http.HttpRequest;
-import org.example.http.HttpResponse;
+import org.example.buffer.BufferPool;
+import org.example.http.ResponseCompression;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.nio.channels.*;
 import java.util.*;
 
 /**
- * The HttpServerChannel class represents a server channel that listens for incoming HTTP connections,
- * processes HTTP requests, and sends responses. It utilizes Java NIO for non-blocking I/O operations.
+ * The HttpServerChannel class represents a server channel that listens for incoming HTTP connections.
+ * It runs a dedicated acceptor loop and hands every accepted connection to one of several reactors,
+ * each of which owns its connections end to end on its own selector thread. A connection
+ * accepted beyond the connection limit is answered with a canned 503 and closed at once.
  */
 public class HttpServerChannel {
+    private static final byte[] SERVICE_UNAVAILABLE = ("HTTP/1.1 503 Service Unavailable\r\n"
+            + "Retry-After: " + AdmissionControl.RETRY_AFTER_SECONDS + "\r\n"
+            + "Content-Length: 0\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+
     private final String host;
     private final int port;
     private final Selector selector;
     private final ServerSocketChannel serverChannel;
-    private final Map<String, Map<String, HttpHandler>> handlers;
+    private final Reactor[] reactors;
+    private final RequestDispatcher dispatcher;
+    private final AdmissionControl admission;
+    private final HttpServerConfig config;
+    private int nextReactor = 0;
     private volatile boolean running = true;
 
-    public HttpServerChannel(String host, int port, Map<String, Map<String, HttpHandler>> handlers) throws IOException {
+    public HttpServerChannel(String host, int port, Router router, BufferPool bufferPool,
+                             ResponseCompression compression, ServerMetrics metrics,
+                             HttpServerConfig config) throws IOException {
         this.host = host;
         this.port = port;
-        this.handlers = handlers;
+        this.config = config;
+        this.admission = new AdmissionControl(config, metrics);
+        this.dispatcher = new RequestDispatcher(router, admission, config);
+        this.reactors = new Reactor[config.getReactorCount()];
+        for (int i = 0; i < reactors.length; i++) {
+            reactors[i] = new Reactor("reactor-" + i, dispatcher, admission, bufferPool, compression, metrics, config);
+        }
         this.selector = Selector.open();
         this.serverChannel = ServerSocketChannel.open();
         this.serverChannel.bind(new InetSocketAddress(host, port));
@@ -34,7 +52,10 @@ public class HttpServerChannel {
     }
 
     public void start() throws IOException {
-        System.out.println("Server started on " + host + ":" + port);
+        for (Reactor reactor : reactors) {
+            reactor.start();
+        }
+        System.out.println("Server started on " + host + ":" + port + " with " + reactors.length + " reactor(s)");
 
         while (running) {
             selector.select();
@@ -48,102 +69,79 @@ public class HttpServerChannel {
                 if (!key.isValid()) continue;
 
                 if (key.isAcceptable()) {
-                    accept(selector, key);
-                } else if (key.isReadable()) {
-                    read(key);
+                    accept(key);
                 }
             }
         }
+        selector.close();
     }
 
-    private void accept(Selector selector, SelectionKey key) throws IOException {
+    private void accept(SelectionKey key) throws IOException {
         ServerSocketChannel serverChannel = (ServerSocketChannel) key.channel();
-        SocketChannel clientChannel = serverChannel.accept();
-        clientChannel.configureBlocking(false);
-        clientChannel.register(selector, SelectionKey.OP_READ);
-    }
-
-    private void read(SelectionKey key) throws IOException {
-        SocketChannel clientChannel = (SocketChannel) key.channel();
-        ByteBuffer buffer = ByteBuffer.allocate(1024);
-        int read = clientChannel.read(buffer);
-
-        if (read == -1) {
-            clientChannel.close();
-            key.cancel();
-            return;
+        SocketChannel clientChannel;
+        while ((clientChannel = serverChannel.accept()) != null) {
+            if (admission.tryOpenConnection()) {
+                nextReactor().register(clientChannel);
+            } else {
+                refuse(clientChannel);
+            }
         }
-
-        buffer.flip();
-        String request = new String(buffer.array(), 0, read);
-        handleRequest(clientChannel, request);
     }
 
-    private void handleRequest(SocketChannel clientChannel, String request) throws IOException {
-        String[] lines = request.split("\r\n");
-
-        if (lines.length == 0 || lines[0].isEmpty()) {
-            sendResponse(clientChannel, 400, "Bad Request");
-            return;
-        }
-
-        String[] requestLine = lines[0].split(" ");
-        if (requestLine.length < 3) {
-            sendResponse(clientChannel, 400, "Bad Request");
-            return;
-        }
-
-        String method = requestLine[0];
-        String path = requestLine[1];
-        String httpVersion = requestLine[2];
-
-        // Проверка на не поддерживаемый метод
-        if (!method.equals("GET") && !method.equals("POST") && !method.equals("PUT") && !method.equals("PATCH") && !method.equals("DELETE")) {
-            sendResponse(clientChannel, 501, "Not Implemented");
-            return;
-        }
-
-        // Проверка версии HTTP
-        if (!httpVersion.equals("HTTP/1.1")) {
-            sendResponse(clientChannel, 505, "HTTP Version not supported");
-            return;
-        }
-
-        Map<String, String> headers = new HashMap<>();
-        int i = 1;
-        while (i < lines.length && !lines[i].isEmpty()) {
-            String[] header = lines[i].split(": ");
-            if (header.length == 2) {
-                headers.put(header[0], header[1]);
+    /**
+     * Sends the canned 503 without waiting for the client and closes the connection.
+     */
+    private void refuse(SocketChannel clientChannel) {
+        try {
+            clientChannel.configureBlocking(false);
+            clientChannel.write(ByteBuffer.wrap(SERVICE_UNAVAILABLE));
+        } catch (IOException e) {
+            // The client is gone already
+        } finally {
+            try {
+                clientChannel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
             }
-            i++;
         }
+    }
 
-        String body = "";
-        if (i + 1 < lines.length) {
-            body = lines[i + 1];
-        }
-
-        HttpRequest httpRequest = new HttpRequest(method, path, headers, body, clientChannel);
-        HttpResponse httpResponse = new HttpResponse(clientChannel);
-
-        if (handlers.containsKey(method) && handlers.get(method).containsKey(path)) {
-            handlers.get(method).get(path).handle(httpRequest, httpResponse);
-        } else {
-            sendResponse(clientChannel, 404, "Not Found");
+    /**
+     * Chooses the reactor for a newly accepted connection according to the configured balancing.
+     */
+    private Reactor nextReactor() {
+        if (config.getReactorBalancing() == HttpServerConfig.ReactorBalancing.LEAST_LOADED) {
+            Reactor leastLoaded = reactors[0];
+            for (int i = 1; i < reactors.length; i++) {
+                if (reactors[i].load() < leastLoaded.load()) {
+                    leastLoaded = reactors[i];
+                }
+            }
+            return leastLoaded;
         }
+        Reactor reactor = reactors[nextReactor];
+        nextReactor = (nextReactor + 1) % reactors.length;
+        return reactor;
     }
 
-    private void sendResponse(SocketChannel clientChannel, int statusCode, String message) throws IOException {
-        HttpResponse httpResponse = new HttpResponse(clientChannel);
-        httpResponse.send(statusCode, message);
+    public void stop() throws IOException {
+        stop(0);
     }
 
-    public void stop() throws IOException {
+    /**
+     * Stops accepting connections, waits up to the given time for the running handlers while
+     * the reactors go on serving the open connections, then stops the reactors and the handlers.
+     */
+    public void stop(long drainMillis) throws IOException {
         running = false;
         selector.wakeup();  // To unblock the selector.select() call
         if (serverChannel != null) {
             serverChannel.close();
         }
+        dispatcher.drain(drainMillis);
+        for (Reactor reactor : reactors) {
+            reactor.stop();
+        }
+        dispatcher.shutdown();
     }
 }
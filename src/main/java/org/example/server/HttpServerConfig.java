@@ -0,0 +1,378 @@
+package org.example.server;
+
+/**
+ * HttpServerConfig holds the tunable settings of an HttpServer.
+ * A default instance reproduces the out-of-the-box behaviour; individual
+ * settings can be changed with the setters before the server is started.
+ */
+public class HttpServerConfig {
+    /**
+     * Strategy used by the acceptor to choose the reactor for a new connection.
+     */
+    public enum ReactorBalancing {
+        ROUND_ROBIN,
+        LEAST_LOADED
+    }
+
+    /**
+     * How handler code is executed.
+     */
+    public enum ExecutionMode {
+        /** A pool of platform threads, growing up to maxConcurrentHandlers. */
+        PLATFORM_POOL,
+        /** One virtual thread per request, at most maxConcurrentHandlers running at a time. */
+        VIRTUAL_THREADS
+    }
+
+    private int reactorCount = Runtime.getRuntime().availableProcessors();
+    private ReactorBalancing reactorBalancing = ReactorBalancing.ROUND_ROBIN;
+    private int maxHeaderSize = 8 * 1024;
+    private int maxRequestBodySize = 1024 * 1024;
+    private int maxRequestsPerConnection = 1000;
+    private long idleTimeoutMillis = 30_000;
+    private long headerReadTimeoutMillis = 10_000;
+    private long bodyReadTimeoutMillis = 30_000;
+    private long writeTimeoutMillis = 30_000;
+    private int maxPipelinedRequests = 16;
+    private boolean bufferPoolDebug = false;
+    private long handlerTimeoutMillis = 10_000;
+    private ExecutionMode executionMode = ExecutionMode.PLATFORM_POOL;
+    private int maxConcurrentHandlers = 10_000;
+    private int maxQueuedRequests = 1000;
+    private long maxQueueWaitMillis = 500;
+    private int maxConnections = 10_000;
+    private boolean adaptiveConcurrencyLimit = false;
+    private int writeBufferHighWatermark = 256 * 1024;
+    private boolean compressionEnabled = true;
+    private int compressionMinSize = 1024;
+    private int compressionLevel = 6;
+    private long compressionCacheSize = 16 * 1024 * 1024;
+    private boolean http2Enabled = true;
+
+    public int getReactorCount() {
+        return reactorCount;
+    }
+
+    /**
+     * Sets the number of selector threads that own client connections.
+     * @param reactorCount the number of reactors, at least 1
+     */
+    public void setReactorCount(int reactorCount) {
+        if (reactorCount < 1) {
+            throw new IllegalArgumentException("reactorCount must be at least 1");
+        }
+        this.reactorCount = reactorCount;
+    }
+
+    public ReactorBalancing getReactorBalancing() {
+        return reactorBalancing;
+    }
+
+    public void setReactorBalancing(ReactorBalancing reactorBalancing) {
+        this.reactorBalancing = reactorBalancing;
+    }
+
+    public int getMaxHeaderSize() {
+        return maxHeaderSize;
+    }
+
+    /**
+     * Sets the maximum size in bytes of the request line and headers of a single request.
+     * @param maxHeaderSize the limit in bytes
+     */
+    public void setMaxHeaderSize(int maxHeaderSize) {
+        this.maxHeaderSize = maxHeaderSize;
+    }
+
+    public int getMaxRequestBodySize() {
+        return maxRequestBodySize;
+    }
+
+    /**
+     * Sets the maximum accepted request body size in bytes.
+     * @param maxRequestBodySize the limit in bytes
+     */
+    public void setMaxRequestBodySize(int maxRequestBodySize) {
+        this.maxRequestBodySize = maxRequestBodySize;
+    }
+
+    public int getMaxRequestsPerConnection() {
+        return maxRequestsPerConnection;
+    }
+
+    /**
+     * Sets how many requests a keep-alive connection serves before it is closed.
+     * @param maxRequestsPerConnection the request limit, at least 1
+     */
+    public void setMaxRequestsPerConnection(int maxRequestsPerConnection) {
+        if (maxRequestsPerConnection < 1) {
+            throw new IllegalArgumentException("maxRequestsPerConnection must be at least 1");
+        }
+        this.maxRequestsPerConnection = maxRequestsPerConnection;
+    }
+
+    public long getIdleTimeoutMillis() {
+        return idleTimeoutMillis;
+    }
+
+    /**
+     * Sets how long a keep-alive connection may stay idle between requests before it is closed.
+     * @param idleTimeoutMillis the timeout in milliseconds
+     */
+    public void setIdleTimeoutMillis(long idleTimeoutMillis) {
+        this.idleTimeoutMillis = idleTimeoutMillis;
+    }
+
+    public long getHeaderReadTimeoutMillis() {
+        return headerReadTimeoutMillis;
+    }
+
+    /**
+     * Sets how long a client may take to send a complete request head, counted from its
+     * first byte. A client that is too slow is answered with 408 Request Timeout.
+     * @param headerReadTimeoutMillis the timeout in milliseconds
+     */
+    public void setHeaderReadTimeoutMillis(long headerReadTimeoutMillis) {
+        this.headerReadTimeoutMillis = headerReadTimeoutMillis;
+    }
+
+    public long getBodyReadTimeoutMillis() {
+        return bodyReadTimeoutMillis;
+    }
+
+    /**
+     * Sets how long a request body may make no progress while its handler waits for it.
+     * The body then fails and the handler answers 408 Request Timeout.
+     * @param bodyReadTimeoutMillis the timeout in milliseconds
+     */
+    public void setBodyReadTimeoutMillis(long bodyReadTimeoutMillis) {
+        this.bodyReadTimeoutMillis = bodyReadTimeoutMillis;
+    }
+
+    public long getWriteTimeoutMillis() {
+        return writeTimeoutMillis;
+    }
+
+    /**
+     * Sets how long the socket may accept no bytes of a pending response before the
+     * connection is closed.
+     * @param writeTimeoutMillis the timeout in milliseconds
+     */
+    public void setWriteTimeoutMillis(long writeTimeoutMillis) {
+        this.writeTimeoutMillis = writeTimeoutMillis;
+    }
+
+    public int getMaxPipelinedRequests() {
+        return maxPipelinedRequests;
+    }
+
+    /**
+     * Sets how many requests of one connection may be in progress at the same time.
+     * Reading from the connection pauses while the limit is reached.
+     * @param maxPipelinedRequests the limit, at least 1
+     */
+    public void setMaxPipelinedRequests(int maxPipelinedRequests) {
+        if (maxPipelinedRequests < 1) {
+            throw new IllegalArgumentException("maxPipelinedRequests must be at least 1");
+        }
+        this.maxPipelinedRequests = maxPipelinedRequests;
+    }
+
+    public boolean isBufferPoolDebug() {
+        return bufferPoolDebug;
+    }
+
+    /**
+     * Enables leak detection in the buffer pool. Every outstanding buffer is tracked with
+     * its acquisition site, which costs a stack trace per acquisition.
+     * @param bufferPoolDebug true to enable leak detection
+     */
+    public void setBufferPoolDebug(boolean bufferPoolDebug) {
+        this.bufferPoolDebug = bufferPoolDebug;
+    }
+
+    public long getHandlerTimeoutMillis() {
+        return handlerTimeoutMillis;
+    }
+
+    /**
+     * Sets how long a handler may take before the server answers 504 Gateway Timeout
+     * and interrupts it.
+     * @param handlerTimeoutMillis the timeout in milliseconds
+     */
+    public void setHandlerTimeoutMillis(long handlerTimeoutMillis) {
+        this.handlerTimeoutMillis = handlerTimeoutMillis;
+    }
+
+    public ExecutionMode getExecutionMode() {
+        return executionMode;
+    }
+
+    public void setExecutionMode(ExecutionMode executionMode) {
+        this.executionMode = executionMode;
+    }
+
+    public int getMaxConcurrentHandlers() {
+        return maxConcurrentHandlers;
+    }
+
+    /**
+     * Sets how many handlers may run at the same time. Further requests wait in the handler queue.
+     * @param maxConcurrentHandlers the limit, at least 1
+     */
+    public void setMaxConcurrentHandlers(int maxConcurrentHandlers) {
+        if (maxConcurrentHandlers < 1) {
+            throw new IllegalArgumentException("maxConcurrentHandlers must be at least 1");
+        }
+        this.maxConcurrentHandlers = maxConcurrentHandlers;
+    }
+
+    public int getMaxQueuedRequests() {
+        return maxQueuedRequests;
+    }
+
+    /**
+     * Sets how many requests may wait for a handler slot. Beyond that, requests are answered
+     * with 503 Service Unavailable and Retry-After right away.
+     * @param maxQueuedRequests the limit, at least 0
+     */
+    public void setMaxQueuedRequests(int maxQueuedRequests) {
+        if (maxQueuedRequests < 0) {
+            throw new IllegalArgumentException("maxQueuedRequests must not be negative");
+        }
+        this.maxQueuedRequests = maxQueuedRequests;
+    }
+
+    public long getMaxQueueWaitMillis() {
+        return maxQueueWaitMillis;
+    }
+
+    /**
+     * Sets how long a request may wait for a handler slot. A request that waited longer is
+     * answered with 503 instead of being handled, and while the recent average wait is above
+     * the limit, new requests are refused as long as others are waiting.
+     * @param maxQueueWaitMillis the limit in milliseconds
+     */
+    public void setMaxQueueWaitMillis(long maxQueueWaitMillis) {
+        this.maxQueueWaitMillis = maxQueueWaitMillis;
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /**
+     * Sets how many client connections may be open at the same time. A connection accepted
+     * beyond the limit is answered with 503 and closed.
+     * @param maxConnections the limit, at least 1
+     */
+    public void setMaxConnections(int maxConnections) {
+        if (maxConnections < 1) {
+            throw new IllegalArgumentException("maxConnections must be at least 1");
+        }
+        this.maxConnections = maxConnections;
+    }
+
+    public boolean isAdaptiveConcurrencyLimit() {
+        return adaptiveConcurrencyLimit;
+    }
+
+    /**
+     * Enables a concurrency limit per route that adapts to the latency of its handler: it
+     * grows while more concurrent requests do not make the handler slower and shrinks once
+     * they start to wait. Requests beyond the limit are answered with 503 and Retry-After.
+     * The limit never exceeds maxConcurrentHandlers.
+     * @param adaptiveConcurrencyLimit true to limit each route adaptively
+     */
+    public void setAdaptiveConcurrencyLimit(boolean adaptiveConcurrencyLimit) {
+        this.adaptiveConcurrencyLimit = adaptiveConcurrencyLimit;
+    }
+
+    public int getWriteBufferHighWatermark() {
+        return writeBufferHighWatermark;
+    }
+
+    /**
+     * Sets how many unsent bytes a connection may hold before a thread streaming a response
+     * to it is blocked. The thread continues once half of the bytes have been written.
+     * @param writeBufferHighWatermark the limit in bytes, at least 1
+     */
+    public void setWriteBufferHighWatermark(int writeBufferHighWatermark) {
+        if (writeBufferHighWatermark < 1) {
+            throw new IllegalArgumentException("writeBufferHighWatermark must be at least 1");
+        }
+        this.writeBufferHighWatermark = writeBufferHighWatermark;
+    }
+
+    public boolean isCompressionEnabled() {
+        return compressionEnabled;
+    }
+
+    /**
+     * Enables gzip and deflate compression of textual response bodies for clients that accept it.
+     * @param compressionEnabled false to send every body uncompressed
+     */
+    public void setCompressionEnabled(boolean compressionEnabled) {
+        this.compressionEnabled = compressionEnabled;
+    }
+
+    public int getCompressionMinSize() {
+        return compressionMinSize;
+    }
+
+    /**
+     * Sets the smallest body that is compressed. Below it, the gzip framing and the CPU time
+     * cost more than the saved bytes. Streamed bodies of unknown length are always compressed.
+     * @param compressionMinSize the size in bytes, at least 0
+     */
+    public void setCompressionMinSize(int compressionMinSize) {
+        if (compressionMinSize < 0) {
+            throw new IllegalArgumentException("compressionMinSize must not be negative");
+        }
+        this.compressionMinSize = compressionMinSize;
+    }
+
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    /**
+     * Sets the Deflater level, from 1 for the fastest to 9 for the smallest output.
+     * @param compressionLevel the level, 1 to 9
+     */
+    public void setCompressionLevel(int compressionLevel) {
+        if (compressionLevel < 1 || compressionLevel > 9) {
+            throw new IllegalArgumentException("compressionLevel must be between 1 and 9");
+        }
+        this.compressionLevel = compressionLevel;
+    }
+
+    public long getCompressionCacheSize() {
+        return compressionCacheSize;
+    }
+
+    /**
+     * Sets how many bytes of compressed representations may be cached, see
+     * HttpResponse.sendCached. A single body may take at most a quarter of the cache.
+     * @param compressionCacheSize the size in bytes, 0 to disable the cache
+     */
+    public void setCompressionCacheSize(long compressionCacheSize) {
+        if (compressionCacheSize < 0) {
+            throw new IllegalArgumentException("compressionCacheSize must not be negative");
+        }
+        this.compressionCacheSize = compressionCacheSize;
+    }
+
+    public boolean isHttp2Enabled() {
+        return http2Enabled;
+    }
+
+    /**
+     * Enables HTTP/2 over cleartext TCP: connections that start with the HTTP/2 preface
+     * and requests that ask for "Upgrade: h2c" switch to HTTP/2.
+     * @param http2Enabled false to speak HTTP/1.1 only
+     */
+    public void setHttp2Enabled(boolean http2Enabled) {
+        this.http2Enabled = http2Enabled;
+    }
+}
@@ -0,0 +1,163 @@
+package org.example.server;
+
+import org.example.auth.AuthService;
+import org.example.auth.Principal;
+import org.example.auth.PrincipalCache;
+import org.example.http.HttpRequest;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * RateLimiter gives every client of a route a token bucket, so that one noisy client cannot
+ * starve the others. Clients are told apart by their address or by their verified token;
+ * requests beyond a client's rate are answered with 429 Too Many Requests and a Retry-After
+ * header. Attach a limiter to a route with
+ * {@link HttpServer#setRateLimit(String, String, RateLimiter)}.
+ * <p>
+ * A bucket is a single long, the time at which it will be full again (the generic cell rate
+ * algorithm), updated with compare-and-set, so taking a token is one map lookup and one CAS
+ * without locking. A full bucket carries no state, which keeps the table bounded: once it
+ * holds the maximum number of clients, one thread sweeps out the full buckets, at most once
+ * per token interval. Buckets that are still in use are never dropped, since their clients
+ * would start over with a full bucket; while the table is full of them, new clients are
+ * refused instead.
+ */
+public class RateLimiter {
+    /**
+     * What the buckets are keyed by.
+     */
+    public enum Key {
+        /** The client's IP address. */
+        CLIENT_ADDRESS,
+        /** The verified token of the Authorization header, or the IP address for requests without a valid one. */
+        AUTHORIZATION
+    }
+
+    private static final int DEFAULT_MAX_CLIENTS = 100_000;
+    private static final long MIN_SWEEP_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final Key key;
+    private final long intervalNanos;
+    private final long burstNanos;
+    private final int maxClients;
+    private final ConcurrentHashMap<Object, AtomicLong> buckets = new ConcurrentHashMap<>();
+    private final AtomicBoolean sweeping = new AtomicBoolean();
+    private final long sweepIntervalNanos;
+    // 0 until the first sweep
+    private volatile long nextSweepNanos;
+
+    /**
+     * @param key               what the buckets are keyed by
+     * @param requestsPerSecond the rate a client may keep up
+     * @param burst             how many requests a client may send at once, at least 1
+     */
+    public RateLimiter(Key key, double requestsPerSecond, int burst) {
+        this(key, requestsPerSecond, burst, DEFAULT_MAX_CLIENTS);
+    }
+
+    /**
+     * @param key               what the buckets are keyed by
+     * @param requestsPerSecond the rate a client may keep up
+     * @param burst             how many requests a client may send at once, at least 1
+     * @param maxClients        how many buckets the limiter keeps before it evicts some
+     */
+    public RateLimiter(Key key, double requestsPerSecond, int burst, int maxClients) {
+        if (requestsPerSecond <= 0 || burst < 1 || maxClients < 1) {
+            throw new IllegalArgumentException("Invalid rate limit " + requestsPerSecond + "/s, burst " + burst);
+        }
+        this.key = key;
+        this.intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / requestsPerSecond);
+        this.burstNanos = intervalNanos * burst;
+        this.maxClients = maxClients;
+        this.sweepIntervalNanos = Math.max(intervalNanos, MIN_SWEEP_INTERVAL_NANOS);
+    }
+
+    /**
+     * Takes a token from the client's bucket.
+     * @param client  the client, as returned by {@link #clientOf(HttpRequest)}
+     * @param nowNanos the current {@link System#nanoTime()}
+     * @return 0 if the request may proceed, otherwise how many nanoseconds the client has to
+     *         wait for the next token
+     */
+    public long tryAcquire(Object client, long nowNanos) {
+        AtomicLong bucket = buckets.get(client);
+        if (bucket == null) {
+            if (buckets.size() >= maxClients) {
+                evict(nowNanos);
+                if (buckets.size() >= maxClients) {
+                    // Every bucket is in use, the new client has to wait until one is full again
+                    return sweepIntervalNanos;
+                }
+            }
+            // A new bucket is full, so the first request always passes
+            bucket = buckets.computeIfAbsent(client, c -> new AtomicLong(nowNanos));
+        }
+        while (true) {
+            long fullAt = bucket.get();
+            long start = Math.max(fullAt, nowNanos);
+            long next = start + intervalNanos;
+            if (next - nowNanos > burstNanos) {
+                return next - nowNanos - burstNanos;
+            }
+            if (bucket.compareAndSet(fullAt, next)) {
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * Returns the key of the request's bucket. The Authorization header is only used once its
+     * token is verified, since a client could otherwise get a new bucket for every request by
+     * sending made-up values.
+     */
+    Object clientOf(HttpRequest request) {
+        if (key == Key.AUTHORIZATION) {
+            Principal principal = request.getPrincipal();
+            String authorization = request.getHeaders().get("Authorization");
+            if (principal == null && authorization != null) {
+                PrincipalCache cache = request.getPrincipalCache();
+                principal = cache != null ? cache.authenticate(authorization) : AuthService.authenticate(authorization);
+            }
+            if (principal != null) {
+                return principal.getToken();
+            }
+        }
+        SocketChannel channel = request.getClientChannel();
+        try {
+            SocketAddress address = channel == null ? null : channel.getRemoteAddress();
+            if (address instanceof InetSocketAddress) {
+                return ((InetSocketAddress) address).getAddress();
+            }
+        } catch (IOException e) {
+            // The connection is gone, the request can share the anonymous bucket
+        }
+        return "";
+    }
+
+    /**
+     * Returns the number of clients that currently have a bucket.
+     */
+    public int getClientCount() {
+        return buckets.size();
+    }
+
+    private void evict(long nowNanos) {
+        long next = nextSweepNanos;
+        if (next != 0 && nowNanos - next < 0 || !sweeping.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            buckets.values().removeIf(bucket -> bucket.get() - nowNanos <= 0);
+            nextSweepNanos = nowNanos + sweepIntervalNanos;
+        } finally {
+            sweeping.set(false);
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package org.example.server;
+
+import org.example.buffer.BufferPool;
+import org.example.http.ResponseCompression;
+
+import java.io.IOException;
+import java.net.StandardSocketOptions;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+
+/**
+ * The Reactor class is a selector thread that owns a set of client connections.
+ * Connections are handed over by the acceptor in HttpServerChannel and, once registered,
+ * are read and parsed exclusively by this reactor until they are closed; handler code runs
+ * on the RequestDispatcher's workers. The connection timeouts run on the reactor's own
+ * TimerWheel, advanced after every select, so they need no other thread and no locking.
+ */
+class Reactor implements Runnable, Executor {
+    private static final long TIMER_TICK_MILLIS = 100;
+    private static final int TIMER_BUCKETS = 512;
+
+    private final String name;
+    private final Selector selector;
+    private final RequestDispatcher dispatcher;
+    private final AdmissionControl admission;
+    private final BufferPool bufferPool;
+    private final ResponseCompression compression;
+    private final ServerMetrics metrics;
+    private final HttpServerConfig config;
+    private final Queue<SocketChannel> pendingChannels = new ConcurrentLinkedQueue<>();
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final TimerWheel timers = new TimerWheel(TIMER_TICK_MILLIS, TIMER_BUCKETS, System.currentTimeMillis());
+    private volatile boolean running = true;
+    private Thread thread;
+
+    Reactor(String name, RequestDispatcher dispatcher, AdmissionControl admission, BufferPool bufferPool,
+            ResponseCompression compression, ServerMetrics metrics, HttpServerConfig config) throws IOException {
+        this.name = name;
+        this.dispatcher = dispatcher;
+        this.admission = admission;
+        this.bufferPool = bufferPool;
+        this.compression = compression;
+        this.metrics = metrics;
+        this.config = config;
+        this.selector = Selector.open();
+    }
+
+    /**
+     * Starts the reactor on its own thread.
+     */
+    void start() {
+        thread = new Thread(this, name);
+        thread.start();
+    }
+
+    /**
+     * Hands an accepted channel over to this reactor. The channel is registered
+     * with the reactor's selector on the reactor thread.
+     * @param clientChannel the accepted client channel
+     */
+    void register(SocketChannel clientChannel) {
+        pendingChannels.add(clientChannel);
+        selector.wakeup();
+    }
+
+    /**
+     * Runs the task on the reactor thread during the next loop iteration.
+     * Used by worker threads that need to touch state owned by the reactor.
+     * @param task the task to run
+     */
+    @Override
+    public void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * Returns the timers of this reactor. Only used on the reactor thread.
+     */
+    TimerWheel getTimers() {
+        return timers;
+    }
+
+    /**
+     * Called once for every connection of this reactor when it is closed.
+     */
+    void onConnectionClosed() {
+        admission.connectionClosed();
+    }
+
+    boolean inReactorThread() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * Returns the number of channels currently registered with this reactor.
+     * Used by the acceptor for least-loaded balancing.
+     */
+    int load() {
+        return selector.keys().size() + pendingChannels.size();
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                // Without timers there is nothing to wake up for but channels and tasks
+                selector.select(timers.isEmpty() ? 0 : timers.getTickMillis());
+                registerPendingChannels();
+                runTasks();
+
+                Set<SelectionKey> keys = selector.selectedKeys();
+                Iterator<SelectionKey> iterator = keys.iterator();
+
+                while (iterator.hasNext()) {
+                    SelectionKey key = iterator.next();
+                    iterator.remove();
+
+                    if (!key.isValid()) continue;
+
+                    HttpConnection connection = (HttpConnection) key.attachment();
+                    if (key.isWritable()) {
+                        connection.onWritable();
+                    }
+                    if (key.isValid() && key.isReadable()) {
+                        try {
+                            connection.onReadable();
+                        } catch (IOException e) {
+                            closeKey(key);
+                        }
+                    }
+                }
+                timers.advance(System.currentTimeMillis());
+            } catch (ClosedSelectorException e) {
+                break;
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        closeAll();
+    }
+
+    private void registerPendingChannels() {
+        SocketChannel clientChannel;
+        while ((clientChannel = pendingChannels.poll()) != null) {
+            try {
+                clientChannel.configureBlocking(false);
+                // Responses are written in as few writes as possible, but a head followed by a
+                // file region or a chunk must not wait for the client's delayed ACK
+                clientChannel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                HttpConnection connection = new HttpConnection(clientChannel, this, dispatcher, bufferPool,
+                        compression, metrics, config);
+                connection.setKey(clientChannel.register(selector, SelectionKey.OP_READ, connection));
+                connection.scheduleTimeout();
+            } catch (IOException e) {
+                admission.connectionClosed();
+                try {
+                    clientChannel.close();
+                } catch (IOException ex) {
+                    ex.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void closeKey(SelectionKey key) {
+        key.cancel();
+        HttpConnection connection = (HttpConnection) key.attachment();
+        if (connection != null) {
+            connection.close();
+            return;
+        }
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void closeAll() {
+        try {
+            for (SelectionKey key : selector.keys()) {
+                closeKey(key);
+            }
+            runTasks();
+            selector.close();
+        } catch (ClosedSelectorException | IOException e) {
+            // The selector is already gone, nothing left to release
+        }
+    }
+
+    /**
+     * Stops the reactor loop and closes every connection it owns.
+     */
+    void stop() {
+        running = false;
+        selector.wakeup();
+    }
+}
@@ -0,0 +1,387 @@
+package org.example.server;
+
+import org.example.handlers.AsyncHttpHandler;
+import org.example.handlers.HttpHandler;
+import org.example.http.HttpParseException;
+import org.example.http.HttpRequest;
+import org.example.http.HttpResponse;
+import org.example.http.HttpResult;
+
+import java.io.IOException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The RequestDispatcher class routes parsed requests to their handlers and runs the handlers
+ * on a worker pool, so the reactors never execute handler code themselves and several
+ * pipelined requests of one connection can be processed concurrently. Handlers run either on
+ * a bounded pool of platform threads or on one virtual thread each, in which case a semaphore
+ * bounds how many run at once; blocking handlers then cost a small heap-allocated stack
+ * instead of a platform thread. Requests beyond the limit wait in a bounded queue, and
+ * AdmissionControl answers 503 with Retry-After instead of dispatching when the queue is full
+ * or requests have been waiting too long, or, with adaptive limits enabled, when the route
+ * already has as many requests in flight as it can serve without them waiting; the time from
+ * the dispatch to the response is what the route limit learns from. Asynchronous handlers occupy no thread while they
+ * wait and are not queued. Nothing waits for a handler to finish: the handler timeout is a
+ * task on a shared timer that answers 504 and interrupts the handler if it has not sent its
+ * response in time.
+ */
+class RequestDispatcher {
+    private final Router router;
+    private final AdmissionControl admission;
+    private final long handlerTimeoutMillis;
+    private final ExecutorService workers;
+    private final Semaphore permits;
+    private final ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, runnable -> {
+        Thread thread = new Thread(runnable, "handler-timeout");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    RequestDispatcher(Router router, AdmissionControl admission, HttpServerConfig config) {
+        this.router = router;
+        this.admission = admission;
+        this.handlerTimeoutMillis = config.getHandlerTimeoutMillis();
+        this.timer.setRemoveOnCancelPolicy(true);
+        int limit = config.getMaxConcurrentHandlers();
+        if (config.getExecutionMode() == HttpServerConfig.ExecutionMode.VIRTUAL_THREADS) {
+            this.workers = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("handler-", 0).factory());
+            this.permits = new Semaphore(limit);
+        } else {
+            // Idle threads are reused like in a cached pool, but the pool never grows beyond the limit
+            HandlerQueue queue = new HandlerQueue(Math.max(1, config.getMaxQueuedRequests()), admission);
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(0, limit, 60, TimeUnit.SECONDS, queue, (task, executor) -> {
+                // The pool reached its limit after the queue turned the task down, or is shut down
+                if (executor.isShutdown() || !queue.force(task)) {
+                    throw new RejectedExecutionException("Handler queue full");
+                }
+            });
+            queue.pool = pool;
+            this.workers = pool;
+            this.permits = null;
+        }
+    }
+
+    /**
+     * Looks up the route for the request and starts its handler. Blocking handlers are
+     * submitted to the worker pool; asynchronous handlers are invoked directly and their
+     * result is written on the given reactor once the returned stage completes.
+     * Requests for an unknown path are answered with 404 right away, requests for a known
+     * path with an unsupported method with 405 and an Allow header, and requests of a client
+     * over the route's rate limit with 429 and Retry-After.
+     * @param request  the parsed request
+     * @param response the response bound to the request's connection
+     * @param reactor  the reactor owning the connection
+     */
+    void dispatch(HttpRequest request, HttpResponse response, Executor reactor) throws IOException {
+        Router.Match match = router.find(request.getMethod(), request.getPath());
+        Route route = match.getRoute();
+        if (route == null) {
+            if (match.isMethodNotAllowed()) {
+                response.setHeader("Allow", match.getAllowHeader());
+                response.send(405, "Method Not Allowed");
+            } else {
+                response.send(404, "Not Found");
+            }
+            return;
+        }
+        long rateWaitNanos = admission.checkRate(route, request);
+        if (rateWaitNanos > 0) {
+            // Rounded up, so a client that honours it finds a token
+            long seconds = (rateWaitNanos + TimeUnit.SECONDS.toNanos(1) - 1) / TimeUnit.SECONDS.toNanos(1);
+            response.setHeader("Retry-After", Long.toString(seconds));
+            response.send(429, "Too Many Requests");
+            return;
+        }
+        request.setPathParams(match.getParams());
+        long timeoutMillis = route.getTimeoutMillis() > 0 ? route.getTimeoutMillis() : handlerTimeoutMillis;
+        if (route.isAsync()) {
+            // Asynchronous handlers run on the reactor, which must not wait for body bytes,
+            // so they are invoked once the body is complete; completion happens on the reactor
+            AsyncHttpHandler handler = route.getAsyncHandler();
+            request.getRequestBody().onComplete(() -> {
+                try {
+                    dispatchAsync(handler, admission.limitFor(route), request, response, reactor, timeoutMillis);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            });
+            return;
+        }
+
+        AdaptiveConcurrencyLimit limit = admission.limitFor(route);
+        if (!admission.tryAcquire(limit)) {
+            sendOverloaded(response);
+            return;
+        }
+        if (!admission.tryAdmit()) {
+            if (limit != null) {
+                limit.onIgnore();
+            }
+            sendOverloaded(response);
+            return;
+        }
+        HandlerTask task = new HandlerTask(route.getHandler(), request, response, permits, admission, limit);
+        // Scheduled first, so a handler that finishes right away can cancel its timeout
+        task.timeout = timer.schedule(task::timeout, timeoutMillis, TimeUnit.MILLISECONDS);
+        try {
+            workers.execute(task.future);
+        } catch (RejectedExecutionException e) {
+            if (!task.timeout.cancel(false)) {
+                // The timeout already cancelled the task and answered 504
+                return;
+            }
+            admission.finished(false);
+            if (limit != null) {
+                limit.onIgnore();
+            }
+            sendOverloaded(response);
+        }
+    }
+
+    private void dispatchAsync(AsyncHttpHandler handler, AdaptiveConcurrencyLimit limit, HttpRequest request,
+                               HttpResponse response, Executor reactor, long timeoutMillis) throws IOException {
+        if (!admission.tryAcquire(limit)) {
+            sendOverloaded(response);
+            return;
+        }
+        long startedAt = System.nanoTime();
+        CompletionStage<HttpResult> stage;
+        try {
+            stage = handler.handle(request);
+        } catch (RuntimeException e) {
+            if (limit != null) {
+                limit.onIgnore();
+            }
+            e.printStackTrace();
+            response.send(500, "Internal Server Error");
+            return;
+        }
+
+        // The permit goes back with whichever comes first, the result or the deadline
+        AtomicBoolean released = new AtomicBoolean(limit == null);
+        ScheduledFuture<?> deadline = timer.schedule(() -> reactor.execute(() -> {
+            if (released.compareAndSet(false, true)) {
+                limit.onDropped();
+            }
+            if (!response.isSent()) {
+                sendQuietly(response, 504, "Gateway Timeout");
+                stage.toCompletableFuture().cancel(true);
+            }
+        }), timeoutMillis, TimeUnit.MILLISECONDS);
+
+        stage.whenComplete((result, error) -> {
+            deadline.cancel(false);
+            if (released.compareAndSet(false, true)) {
+                limit.onSuccess(System.nanoTime() - startedAt);
+            }
+            reactor.execute(() -> {
+                if (response.isSent()) {
+                    return;
+                }
+                if (error != null || result == null) {
+                    if (error != null) {
+                        error.printStackTrace();
+                    }
+                    sendQuietly(response, 500, "Internal Server Error");
+                    return;
+                }
+                try {
+                    result.sendTo(response);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            });
+        });
+    }
+
+    private static HttpParseException findParseException(Throwable error) {
+        for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+            if (cause instanceof HttpParseException) {
+                return (HttpParseException) cause;
+            }
+        }
+        return null;
+    }
+
+    private static void sendQuietly(HttpResponse response, int statusCode, String message) {
+        if (response.isSent()) {
+            return;
+        }
+        try {
+            response.send(statusCode, message);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Answers 503 to a request the server has no capacity for.
+     */
+    private static void sendOverloaded(HttpResponse response) {
+        response.setHeader("Retry-After", AdmissionControl.RETRY_AFTER_SECONDS);
+        sendQuietly(response, 503, "Service Unavailable");
+    }
+
+    /**
+     * Refuses blocking handlers from now on, so they are answered with 503, and waits up to the
+     * given time for the started and queued ones to finish. Their timeouts still apply.
+     */
+    void drain(long timeoutMillis) {
+        workers.shutdown();
+        try {
+            workers.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    void shutdown() {
+        workers.shutdownNow();
+        timer.shutdownNow();
+    }
+
+    /**
+     * The work queue of the platform pool. Like a SynchronousQueue it turns a task down while
+     * no thread is idle and the pool is below its limit, so the pool starts a new thread;
+     * only a pool at its limit queues tasks, up to the capacity.
+     */
+    private static final class HandlerQueue extends LinkedBlockingQueue<Runnable> {
+        private static final long serialVersionUID = 1L;
+
+        private final transient AdmissionControl admission;
+        private transient ThreadPoolExecutor pool;
+
+        private HandlerQueue(int capacity, AdmissionControl admission) {
+            super(capacity);
+            this.admission = admission;
+        }
+
+        @Override
+        public boolean offer(Runnable task) {
+            // Every admitted invocation that has not finished occupies a thread or a queue slot
+            if (admission.getInFlight() <= pool.getPoolSize() || pool.getPoolSize() >= pool.getMaximumPoolSize()) {
+                return super.offer(task);
+            }
+            return false;
+        }
+
+        private boolean force(Runnable task) {
+            return super.offer(task);
+        }
+    }
+
+    /**
+     * A handler invocation together with its timeout. It holds its admission and its permit of
+     * the route limit from the dispatch until the handler returns or the invocation is
+     * cancelled, whichever comes first.
+     */
+    private static final class HandlerTask implements Runnable {
+        private final HttpHandler handler;
+        private final HttpRequest request;
+        private final HttpResponse response;
+        private final Semaphore permits;
+        private final AdmissionControl admission;
+        private final AdaptiveConcurrencyLimit limit;
+        private final long queuedAt = System.nanoTime();
+        private final FutureTask<Void> future;
+        private volatile boolean started;
+        private volatile boolean handled;
+        private volatile boolean timedOut;
+        private volatile ScheduledFuture<?> timeout;
+
+        private HandlerTask(HttpHandler handler, HttpRequest request, HttpResponse response, Semaphore permits,
+                            AdmissionControl admission, AdaptiveConcurrencyLimit limit) {
+            this.handler = handler;
+            this.request = request;
+            this.response = response;
+            this.permits = permits;
+            this.admission = admission;
+            this.limit = limit;
+            this.future = new FutureTask<>(this, null) {
+                @Override
+                protected void done() {
+                    admission.finished(started);
+                    if (limit == null) {
+                        return;
+                    }
+                    if (timedOut) {
+                        limit.onDropped();
+                    } else if (handled) {
+                        limit.onSuccess(System.nanoTime() - queuedAt);
+                    } else {
+                        limit.onIgnore();
+                    }
+                }
+            };
+        }
+
+        @Override
+        public void run() {
+            if (permits != null) {
+                try {
+                    permits.acquire();
+                } catch (InterruptedException e) {
+                    // Timed out while waiting for a slot, the 504 has already been sent
+                    return;
+                }
+            }
+            started = true;
+            try {
+                if (!admission.started(System.nanoTime() - queuedAt)) {
+                    sendOverloaded(response);
+                    return;
+                }
+                handled = true;
+                handler.handle(request, response);
+                // A streamed body the handler did not close is complete now
+                response.finishStream();
+            } catch (IOException | RuntimeException e) {
+                HttpParseException bodyError = findParseException(e);
+                if (bodyError != null) {
+                    // The request body was malformed or too large, which is the client's fault
+                    sendQuietly(response, bodyError.getStatusCode(), bodyError.getMessage());
+                } else if (response.isStreaming()) {
+                    // The head is already on the wire, the only way to signal failure is to cut the body short
+                    if (e instanceof RuntimeException) {
+                        e.printStackTrace();
+                    }
+                    response.abort();
+                } else {
+                    e.printStackTrace();
+                    sendQuietly(response, 500, "Internal Server Error");
+                }
+            } finally {
+                if (permits != null) {
+                    permits.release();
+                }
+                if (response.isSent()) {
+                    timeout.cancel(false);
+                }
+            }
+        }
+
+        /**
+         * Answers 504 if the handler has not responded yet and interrupts it.
+         */
+        private void timeout() {
+            if (response.isSent()) {
+                return;
+            }
+            timedOut = true;
+            sendQuietly(response, 504, "Gateway Timeout");
+            future.cancel(true);
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package org.example.server;
+
+import org.example.auth.AuthPolicy;
+import org.example.handlers.AsyncHttpHandler;
+import org.example.handlers.AuthFilter;
+import org.example.handlers.HttpFilter;
+import org.example.handlers.HttpHandler;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A registered route target: either a blocking HttpHandler or an AsyncHttpHandler,
+ * together with the route's own deadline, authentication policy and optional rate limit.
+ * The filters of a blocking route are composed with its handler once, before the server
+ * starts, so {@link #getHandler()} returns the complete chain.
+ */
+final class Route {
+    private final AsyncHttpHandler asyncHandler;
+    private final long timeoutMillis;
+    private final AuthPolicy policy;
+    private HttpHandler handler;
+    private boolean composed;
+    private RateLimiter rateLimiter;
+
+    /**
+     * @param timeoutMillis the route deadline in milliseconds, or 0 to use the server default
+     */
+    Route(HttpHandler handler, AuthPolicy policy, long timeoutMillis) {
+        this.handler = handler;
+        this.asyncHandler = null;
+        this.policy = policy;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    Route(AsyncHttpHandler asyncHandler, long timeoutMillis) {
+        this.handler = null;
+        this.asyncHandler = asyncHandler;
+        this.policy = AuthPolicy.PUBLIC;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Puts the policy check and the given filters in front of the handler of a blocking route.
+     * Only the first call has an effect.
+     * @param filters the filters of the server, run after the policy check
+     */
+    void compose(List<HttpFilter> filters) {
+        if (handler == null || composed) {
+            return;
+        }
+        composed = true;
+        List<HttpFilter> chain = new ArrayList<>();
+        if (policy != AuthPolicy.PUBLIC) {
+            chain.add(new AuthFilter(policy));
+        }
+        chain.addAll(filters);
+        handler = HttpFilter.chain(chain, handler);
+    }
+
+    HttpHandler getHandler() {
+        return handler;
+    }
+
+    AsyncHttpHandler getAsyncHandler() {
+        return asyncHandler;
+    }
+
+    boolean isAsync() {
+        return asyncHandler != null;
+    }
+
+    long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    /**
+     * Returns the rate limiter of the route, or null if it is not limited.
+     */
+    RateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    void setRateLimiter(RateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+    }
+}
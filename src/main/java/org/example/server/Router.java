@@ -0,0 +1,351 @@
+package org.example.server;
+
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * The Router class is a compiled radix tree of all registered routes.
+ * Static path text is stored in compressed edges, so a lookup walks the request path
+ * once, character by character, without splitting it into segments; only captured
+ * path parameters are copied out. Every node carries its own method table, which lets the
+ * router tell an unknown path (404) from a known path with an unsupported method (405).
+ * Patterns support named parameters such as /data/{key}, which match one path segment,
+ * and a trailing wildcard such as /static/{*file} or /static/*, which matches the rest
+ * of the path. Static text takes precedence over parameters, and parameters over wildcards.
+ */
+final class Router {
+    private static final String WILDCARD = "*";
+
+    /**
+     * The outcome of a lookup: the matched route or the methods allowed on the path.
+     */
+    static final class Match {
+        private static final Match NOT_FOUND = new Match(null, Collections.emptyMap(), Collections.emptySet());
+
+        private final Route route;
+        private final Map<String, String> params;
+        private final Set<String> allowedMethods;
+
+        private Match(Route route, Map<String, String> params, Set<String> allowedMethods) {
+            this.route = route;
+            this.params = params;
+            this.allowedMethods = allowedMethods;
+        }
+
+        /**
+         * Returns the route, or null if the path is unknown or the method is not allowed.
+         */
+        Route getRoute() {
+            return route;
+        }
+
+        Map<String, String> getParams() {
+            return params;
+        }
+
+        /**
+         * Returns true if the path is known but has no route for the requested method.
+         */
+        boolean isMethodNotAllowed() {
+            return route == null && !allowedMethods.isEmpty();
+        }
+
+        /**
+         * Returns the value for the Allow header of a 405 response.
+         */
+        String getAllowHeader() {
+            return String.join(", ", allowedMethods);
+        }
+    }
+
+    private static final class Node {
+        private String prefix;
+        private char[] indices = new char[0];
+        private Node[] children = new Node[0];
+        private Node paramChild;
+        private String paramName;
+        private Node wildcardChild;
+        private String wildcardName;
+        private Map<String, Route> routes;
+        private Set<String> allowedMethods;
+
+        private Node(String prefix) {
+            this.prefix = prefix;
+        }
+
+        private Node staticChild(char first) {
+            for (int i = 0; i < indices.length; i++) {
+                if (indices[i] == first) {
+                    return children[i];
+                }
+            }
+            return null;
+        }
+
+        private void addChild(Node child) {
+            indices = Arrays.copyOf(indices, indices.length + 1);
+            children = Arrays.copyOf(children, children.length + 1);
+            indices[indices.length - 1] = child.prefix.charAt(0);
+            children[children.length - 1] = child;
+        }
+
+        private void replaceChild(Node oldChild, Node newChild) {
+            for (int i = 0; i < children.length; i++) {
+                if (children[i] == oldChild) {
+                    children[i] = newChild;
+                    indices[i] = newChild.prefix.charAt(0);
+                }
+            }
+        }
+    }
+
+    private final Node root = new Node("");
+
+    private Router() {
+    }
+
+    /**
+     * Compiles the registered routes into a router.
+     * @param routes routes by method and path pattern
+     * @return the compiled router
+     */
+    static Router compile(Map<String, Map<String, Route>> routes) {
+        Router router = new Router();
+        for (Map.Entry<String, Map<String, Route>> byMethod : routes.entrySet()) {
+            for (Map.Entry<String, Route> byPath : byMethod.getValue().entrySet()) {
+                router.insert(byPath.getKey(), byMethod.getKey(), byPath.getValue());
+            }
+        }
+        return router;
+    }
+
+    /**
+     * Finds the route for a request.
+     * @param method the request method
+     * @param path   the request path without the query string
+     * @return the match, never null
+     */
+    Match find(String method, String path) {
+        List<String> params = new ArrayList<>();
+        Node[] pathOnly = new Node[1];
+        Node node = match(root, path, 0, method, params, pathOnly);
+        if (node != null) {
+            return new Match(node.routes.get(method), toMap(params), node.allowedMethods);
+        }
+        if (pathOnly[0] != null) {
+            return new Match(null, Collections.emptyMap(), pathOnly[0].allowedMethods);
+        }
+        return Match.NOT_FOUND;
+    }
+
+    /**
+     * Returns the endpoint matching the rest of the path that has a route for the method.
+     * Endpoints matching the path but not the method are remembered for the 405 answer,
+     * and matching continues so that /data/{key} still serves GET /data/special when only
+     * POST /data/special is registered.
+     */
+    private Node match(Node node, String path, int index, String method, List<String> params, Node[] pathOnly) {
+        String prefix = node.prefix;
+        if (!path.startsWith(prefix, index)) {
+            return null;
+        }
+        index += prefix.length();
+        if (index == path.length()) {
+            Node found = endpoint(node, method, pathOnly);
+            if (found != null) {
+                return found;
+            }
+        }
+
+        if (index < path.length()) {
+            Node child = node.staticChild(path.charAt(index));
+            if (child != null) {
+                Node found = match(child, path, index, method, params, pathOnly);
+                if (found != null) {
+                    return found;
+                }
+            }
+        }
+
+        if (node.paramChild != null && index < path.length()) {
+            int end = path.indexOf('/', index);
+            if (end < 0) {
+                end = path.length();
+            }
+            if (end > index) {
+                int mark = params.size();
+                params.add(node.paramName);
+                params.add(path.substring(index, end));
+                Node found = matchAfterParam(node.paramChild, path, end, method, params, pathOnly);
+                if (found != null) {
+                    return found;
+                }
+                params.subList(mark, params.size()).clear();
+            }
+        }
+
+        if (node.wildcardChild != null) {
+            Node found = endpoint(node.wildcardChild, method, pathOnly);
+            if (found != null) {
+                params.add(node.wildcardName);
+                params.add(path.substring(index));
+            }
+            return found;
+        }
+        return null;
+    }
+
+    private static Node endpoint(Node node, String method, Node[] pathOnly) {
+        if (node.routes == null) {
+            return null;
+        }
+        if (node.routes.containsKey(method)) {
+            return node;
+        }
+        if (pathOnly[0] == null) {
+            pathOnly[0] = node;
+        }
+        return null;
+    }
+
+    /**
+     * Continues matching after a parameter segment. Parameter nodes have an empty prefix.
+     */
+    private Node matchAfterParam(Node paramNode, String path, int index, String method,
+                                 List<String> params, Node[] pathOnly) {
+        if (index == path.length()) {
+            return endpoint(paramNode, method, pathOnly);
+        }
+        Node child = paramNode.staticChild(path.charAt(index));
+        return child == null ? null : match(child, path, index, method, params, pathOnly);
+    }
+
+    private void insert(String pattern, String method, Route route) {
+        Node node = root;
+        int index = 0;
+        while (index < pattern.length()) {
+            int brace = pattern.indexOf('{', index);
+            int star = pattern.indexOf('*', index);
+            int special = brace < 0 ? star : (star < 0 ? brace : Math.min(brace, star));
+            int staticEnd = special < 0 ? pattern.length() : special;
+
+            if (staticEnd > index) {
+                node = insertStatic(node, pattern.substring(index, staticEnd));
+                index = staticEnd;
+                continue;
+            }
+
+            if (pattern.charAt(index) == '*' || pattern.startsWith("{*", index)) {
+                String name = WILDCARD;
+                if (pattern.charAt(index) == '{') {
+                    int close = pattern.indexOf('}', index);
+                    name = pattern.substring(index + 2, close);
+                    index = close;
+                }
+                if (index != pattern.length() - 1) {
+                    throw new IllegalArgumentException("Wildcard must be the last segment: " + pattern);
+                }
+                if (node.wildcardChild == null) {
+                    node.wildcardChild = new Node("");
+                    node.wildcardName = name;
+                } else if (!node.wildcardName.equals(name)) {
+                    throw new IllegalArgumentException("Conflicting wildcard names in " + pattern);
+                }
+                node = node.wildcardChild;
+                index = pattern.length();
+            } else {
+                int close = pattern.indexOf('}', index);
+                if (close < 0) {
+                    throw new IllegalArgumentException("Unclosed parameter in " + pattern);
+                }
+                String name = pattern.substring(index + 1, close);
+                if (node.paramChild == null) {
+                    node.paramChild = new Node("");
+                    node.paramName = name;
+                } else if (!node.paramName.equals(name)) {
+                    throw new IllegalArgumentException("Conflicting parameter names in " + pattern);
+                }
+                node = node.paramChild;
+                index = close + 1;
+            }
+        }
+
+        if (node.routes == null) {
+            node.routes = new HashMap<>();
+            node.allowedMethods = new TreeSet<>();
+        }
+        node.routes.put(method, route);
+        node.allowedMethods.add(method);
+    }
+
+    /**
+     * Inserts static text below the node, splitting existing edges on their common prefix.
+     * @return the node that ends exactly at the end of the text
+     */
+    private Node insertStatic(Node node, String text) {
+        while (true) {
+            Node child = node.staticChild(text.charAt(0));
+            if (child == null) {
+                Node leaf = new Node(text);
+                node.addChild(leaf);
+                return leaf;
+            }
+
+            int common = commonPrefixLength(child.prefix, text);
+            if (common < child.prefix.length()) {
+                Node split = new Node(child.prefix.substring(0, common));
+                node.replaceChild(child, split);
+                child.prefix = child.prefix.substring(common);
+                split.addChild(child);
+                child = split;
+            }
+            if (common == text.length()) {
+                return child;
+            }
+            node = child;
+            text = text.substring(common);
+        }
+    }
+
+    private static int commonPrefixLength(String a, String b) {
+        int max = Math.min(a.length(), b.length());
+        int i = 0;
+        while (i < max && a.charAt(i) == b.charAt(i)) {
+            i++;
+        }
+        return i;
+    }
+
+    private static Map<String, String> toMap(List<String> params) {
+        if (params.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        Map<String, String> map = new HashMap<>();
+        for (int i = 0; i < params.size(); i += 2) {
+            map.put(params.get(i), decode(params.get(i + 1)));
+        }
+        return map;
+    }
+
+    /**
+     * Decodes percent escapes in a path segment. A plus sign is literal in paths.
+     */
+    private static String decode(String value) {
+        if (value.indexOf('%') < 0) {
+            return value;
+        }
+        try {
+            return URLDecoder.decode(value.replace("+", "%2B"), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            return value;
+        }
+    }
+}
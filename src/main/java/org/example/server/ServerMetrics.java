@@ -0,0 +1,127 @@
+package org.example.server;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * ServerMetrics counts what the server did since it was created. The counters are
+ * LongAdders, so the reactor threads update them without contending with each other.
+ */
+public class ServerMetrics {
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+    private final LongAdder idleTimeouts = new LongAdder();
+    private final LongAdder headerReadTimeouts = new LongAdder();
+    private final LongAdder bodyReadTimeouts = new LongAdder();
+    private final LongAdder writeTimeouts = new LongAdder();
+    private final LongAdder rejectedConnections = new LongAdder();
+    private final LongAdder shedRequests = new LongAdder();
+    private final LongAdder rateLimitedRequests = new LongAdder();
+
+    void addBytesRead(long count) {
+        bytesRead.add(count);
+    }
+
+    void addBytesWritten(long count) {
+        bytesWritten.add(count);
+    }
+
+    void incrementIdleTimeouts() {
+        idleTimeouts.increment();
+    }
+
+    void incrementHeaderReadTimeouts() {
+        headerReadTimeouts.increment();
+    }
+
+    void incrementBodyReadTimeouts() {
+        bodyReadTimeouts.increment();
+    }
+
+    void incrementWriteTimeouts() {
+        writeTimeouts.increment();
+    }
+
+    void incrementRejectedConnections() {
+        rejectedConnections.increment();
+    }
+
+    void incrementShedRequests() {
+        shedRequests.increment();
+    }
+
+    void incrementRateLimitedRequests() {
+        rateLimitedRequests.increment();
+    }
+
+    /**
+     * Returns the number of bytes read from client sockets.
+     */
+    public long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    /**
+     * Returns the number of bytes written to client sockets, heads and bodies included.
+     */
+    public long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    /**
+     * Returns the number of keep-alive connections closed after the idle timeout.
+     */
+    public long getIdleTimeouts() {
+        return idleTimeouts.sum();
+    }
+
+    /**
+     * Returns the number of connections closed because a request head did not arrive in time.
+     */
+    public long getHeaderReadTimeouts() {
+        return headerReadTimeouts.sum();
+    }
+
+    /**
+     * Returns the number of request bodies failed because the client stopped sending them.
+     */
+    public long getBodyReadTimeouts() {
+        return bodyReadTimeouts.sum();
+    }
+
+    /**
+     * Returns the number of connections closed because the client stopped reading a response.
+     */
+    public long getWriteTimeouts() {
+        return writeTimeouts.sum();
+    }
+
+    /**
+     * Returns the number of connections refused because the connection limit was reached.
+     */
+    public long getRejectedConnections() {
+        return rejectedConnections.sum();
+    }
+
+    /**
+     * Returns the number of requests answered with 503 because the handlers were overloaded.
+     */
+    public long getShedRequests() {
+        return shedRequests.sum();
+    }
+
+    /**
+     * Returns the number of requests answered with 429 because their client exceeded the route's rate.
+     */
+    public long getRateLimitedRequests() {
+        return rateLimitedRequests.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "ServerMetrics{bytesRead=" + getBytesRead() + ", bytesWritten=" + getBytesWritten()
+                + ", idleTimeouts=" + getIdleTimeouts() + ", headerReadTimeouts=" + getHeaderReadTimeouts()
+                + ", bodyReadTimeouts=" + getBodyReadTimeouts() + ", writeTimeouts=" + getWriteTimeouts()
+                + ", rejectedConnections=" + getRejectedConnections() + ", shedRequests=" + getShedRequests()
+                + ", rateLimitedRequests=" + getRateLimitedRequests() + "}";
+    }
+}
@@ -0,0 +1,145 @@
+package org.example.server;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * TimerWheel is a hashed timing wheel: a ring of buckets, one per tick, each holding a
+ * doubly linked list of timers. A timer is linked into the bucket of its deadline tick, so
+ * scheduling, rescheduling and cancelling are O(1) and allocate nothing; advancing the
+ * wheel only visits the buckets of the ticks that have passed. Deadlines further away than
+ * one turn of the wheel share a bucket with nearer ones and are skipped until their turn.
+ * Timers fire at most one tick late. A wheel is not thread safe; each reactor owns one and
+ * uses it on its own thread only.
+ */
+final class TimerWheel {
+    /**
+     * A reusable timer. It is scheduled at most once at a time; scheduling it again moves it.
+     */
+    static final class Timer {
+        private final Runnable task;
+        private long deadlineTick;
+        private int bucket = -1;
+        private Timer previous;
+        private Timer next;
+
+        Timer(Runnable task) {
+            this.task = task;
+        }
+
+        boolean isScheduled() {
+            return bucket >= 0;
+        }
+    }
+
+    private final long tickMillis;
+    private final Timer[] buckets;
+    private final int mask;
+    private final List<Timer> expired = new ArrayList<>();
+    // The last tick whose bucket has been processed
+    private long currentTick;
+    private int size;
+
+    /**
+     * @param tickMillis the resolution of the wheel in milliseconds
+     * @param bucketCount the number of buckets, rounded up to a power of two
+     * @param now the current time in milliseconds
+     */
+    TimerWheel(long tickMillis, int bucketCount, long now) {
+        this.tickMillis = tickMillis;
+        this.buckets = new Timer[Integer.highestOneBit(Math.max(1, bucketCount - 1)) << 1];
+        this.mask = buckets.length - 1;
+        this.currentTick = now / tickMillis;
+    }
+
+    long getTickMillis() {
+        return tickMillis;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Schedules the timer to fire at the given time, replacing its previous deadline.
+     * A deadline in the past fires on the next tick.
+     */
+    void schedule(Timer timer, long deadlineMillis) {
+        // Rounded up, so a timer never fires before its deadline
+        long tick = Math.max((deadlineMillis + tickMillis - 1) / tickMillis, currentTick + 1);
+        if (timer.isScheduled()) {
+            if (timer.deadlineTick == tick) {
+                return;
+            }
+            unlink(timer);
+        }
+        timer.deadlineTick = tick;
+        timer.bucket = (int) (tick & mask);
+        timer.next = buckets[timer.bucket];
+        if (timer.next != null) {
+            timer.next.previous = timer;
+        }
+        buckets[timer.bucket] = timer;
+        size++;
+    }
+
+    void cancel(Timer timer) {
+        if (timer.isScheduled()) {
+            unlink(timer);
+        }
+    }
+
+    /**
+     * Fires every timer whose deadline tick has passed. The tasks run after all expired
+     * timers have been removed, so they may schedule or cancel any timer.
+     * @return the number of timers fired
+     */
+    int advance(long now) {
+        long nowTick = now / tickMillis;
+        if (nowTick <= currentTick) {
+            return 0;
+        }
+        // After a pause longer than a turn every bucket is visited once
+        long from = Math.max(currentTick + 1, nowTick - mask);
+        for (long tick = from; tick <= nowTick; tick++) {
+            Timer timer = buckets[(int) (tick & mask)];
+            while (timer != null) {
+                Timer next = timer.next;
+                if (timer.deadlineTick <= nowTick) {
+                    unlink(timer);
+                    expired.add(timer);
+                }
+                timer = next;
+            }
+        }
+        currentTick = nowTick;
+        int count = expired.size();
+        try {
+            for (Timer timer : expired) {
+                try {
+                    timer.task.run();
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+        } finally {
+            expired.clear();
+        }
+        return count;
+    }
+
+    private void unlink(Timer timer) {
+        if (timer.previous != null) {
+            timer.previous.next = timer.next;
+        } else {
+            buckets[timer.bucket] = timer.next;
+        }
+        if (timer.next != null) {
+            timer.next.previous = timer.previous;
+        }
+        timer.previous = null;
+        timer.next = null;
+        timer.bucket = -1;
+        size--;
+    }
+}
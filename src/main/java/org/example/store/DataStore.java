@@ -0,0 +1,63 @@
+package org.example.store;
+
+import com.google.gson.JsonObject;
+
+import java.util.function.BiConsumer;
+
+/**
+ * DataStore keeps JSON objects by key. Values are immutable and versioned; every change is
+ * atomic per key, and the conditional methods change a key only if it still has the version
+ * the caller read, so concurrent writers cannot silently overwrite each other's updates.
+ */
+public interface DataStore {
+    /** The expected version that matches any existing value. */
+    long ANY_VERSION = -1;
+
+    /**
+     * Returns the current value of the key, or null if there is none.
+     */
+    Versioned get(String key);
+
+    /**
+     * Stores the value under the key, creating or replacing it.
+     * @return the stored value with its new version
+     */
+    Versioned put(String key, JsonObject value);
+
+    /**
+     * Replaces the value of an existing key.
+     * @param expectedVersion the version the key must have, or {@link #ANY_VERSION}
+     * @return the stored value with its new version, or null if the key does not exist
+     * @throws VersionConflictException if the key has a different version
+     */
+    Versioned replace(String key, JsonObject value, long expectedVersion);
+
+    /**
+     * Adds the fields of the changes to the value of an existing key, replacing fields of the
+     * same name, as one atomic step.
+     * @param expectedVersion the version the key must have, or {@link #ANY_VERSION}
+     * @return the merged value with its new version, or null if the key does not exist
+     * @throws VersionConflictException if the key has a different version
+     */
+    Versioned merge(String key, JsonObject changes, long expectedVersion);
+
+    /**
+     * Removes a key.
+     * @param expectedVersion the version the key must have, or {@link #ANY_VERSION}
+     * @return the removed value, or null if the key did not exist
+     * @throws VersionConflictException if the key has a different version
+     */
+    Versioned remove(String key, long expectedVersion);
+
+    /**
+     * Passes every key with its value to the action. Changes made meanwhile may or may not be
+     * seen, but every value passed is complete.
+     */
+    void forEach(BiConsumer<String, Versioned> action);
+
+    /**
+     * Returns a number that grows with every change of the store, for example to name a
+     * cached representation of its content.
+     */
+    long getModificationCount();
+}
@@ -0,0 +1,166 @@
+package org.example.store;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * DurableDataStore is an InMemoryDataStore whose changes are recorded in a WriteAheadLog, so
+ * the store survives a restart: opening it replays the log. A change is appended to the log
+ * while its key is held, which keeps the log order of every key the order of its changes, and
+ * in {@link WriteAheadLog.Durability#SYNC} mode the method making the change returns only once
+ * the change is on disk, so a request is acknowledged only after its change is durable.
+ * <p>
+ * So that the log does not grow forever and a restart does not have to replay all of it, the
+ * store takes a {@link Snapshot} at a fixed interval: the log moves on to a new segment, the
+ * closed segments are merged into a new snapshot in the background while writers go on, and
+ * then they are deleted. Opening the store maps the newest snapshot, which only reads its keys,
+ * and replays the segments after it; values are read from the snapshot when first accessed.
+ * A value keeps the mapping of its snapshot alive, and with it the disk space of the file, so
+ * once a newer snapshot is written the values still read from the older one are moved over to
+ * it before the older file is deleted; its space is freed when the mapping is collected.
+ * <p>
+ * If the log cannot be written, the change waiting for it fails with an UncheckedIOException
+ * although it is already visible in memory, and all later changes are refused. Once the store
+ * is closed, changes are refused with a StoreClosedException and not made.
+ */
+public final class DurableDataStore extends InMemoryDataStore implements Closeable {
+    // The single log file of earlier versions, which becomes the first segment
+    private static final String LEGACY_LOG_FILE = "wal.log";
+
+    private final Path directory;
+    private final WriteAheadLog log;
+    private final ScheduledExecutorService snapshots;
+    // Whether values were loaded from a snapshot, and so refer to a mapped file
+    private final boolean mapped;
+
+    /**
+     * Opens the store kept in the directory, creating the directory if necessary. The store
+     * takes no snapshots on its own.
+     * @param directory          the directory of the log
+     * @param durability         when changes are forced to disk
+     * @param syncIntervalMillis how often the log is forced in {@link WriteAheadLog.Durability#PERIODIC} mode
+     */
+    public DurableDataStore(Path directory, WriteAheadLog.Durability durability, long syncIntervalMillis)
+            throws IOException {
+        this(directory, durability, syncIntervalMillis, 0);
+    }
+
+    /**
+     * Opens the store kept in the directory, creating the directory if necessary.
+     * @param directory              the directory of the log and the snapshots
+     * @param durability             when changes are forced to disk
+     * @param syncIntervalMillis     how often the log is forced in {@link WriteAheadLog.Durability#PERIODIC} mode
+     * @param snapshotIntervalMillis how often a snapshot is taken, or 0 to take them only with {@link #snapshot()}
+     */
+    public DurableDataStore(Path directory, WriteAheadLog.Durability durability, long syncIntervalMillis,
+                            long snapshotIntervalMillis) throws IOException {
+        this.directory = directory;
+        Files.createDirectories(directory);
+        Path legacyLog = directory.resolve(LEGACY_LOG_FILE);
+        if (Files.exists(legacyLog) && WriteAheadLog.listSegments(directory).isEmpty()) {
+            Files.move(legacyLog, WriteAheadLog.segmentFile(directory, 1));
+        }
+        long snapshot = Snapshot.latest(directory);
+        this.mapped = snapshot > 0;
+        if (snapshot > 0) {
+            restoreVersion(Snapshot.load(Snapshot.file(directory, snapshot), this::restore));
+        }
+        this.log = new WriteAheadLog(directory, durability, syncIntervalMillis, snapshot + 1, this::restore);
+        restoreVersion(log.getMaxReplayedVersion());
+        if (snapshotIntervalMillis > 0) {
+            this.snapshots = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "snapshot-writer");
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.snapshots.scheduleWithFixedDelay(() -> {
+                try {
+                    snapshot();
+                } catch (IOException | RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }, snapshotIntervalMillis, snapshotIntervalMillis, TimeUnit.MILLISECONDS);
+        } else {
+            this.snapshots = null;
+        }
+    }
+
+    /**
+     * Returns the log, for example to read its statistics.
+     */
+    public WriteAheadLog getLog() {
+        return log;
+    }
+
+    /**
+     * Takes a snapshot of the changes logged so far and deletes the log segments and the older
+     * snapshot it replaces. Changes go on while the snapshot is written.
+     * @return false if nothing changed since the last snapshot
+     */
+    public synchronized boolean snapshot() throws IOException {
+        if (log.getSegmentRecordCount() == 0 && WriteAheadLog.listSegments(directory).size() <= 1) {
+            return false;
+        }
+        long segment = log.rotate();
+        Snapshot.write(directory, segment);
+        if (mapped) {
+            // Unchanged values move to the new snapshot, so none refers to the older one any more
+            Snapshot.load(Snapshot.file(directory, segment), this::relocate);
+        }
+        for (long id : WriteAheadLog.listSegments(directory)) {
+            if (id <= segment) {
+                Files.delete(WriteAheadLog.segmentFile(directory, id));
+            }
+        }
+        for (long id : Snapshot.list(directory)) {
+            if (id < segment) {
+                Files.delete(Snapshot.file(directory, id));
+            }
+        }
+        WriteAheadLog.syncDirectory(directory);
+        return true;
+    }
+
+    @Override
+    long changed(String key, Versioned value) {
+        return log.append(key, value);
+    }
+
+    @Override
+    long removed(String key, Versioned previous) {
+        return log.appendRemoval(key, previous.getVersion());
+    }
+
+    @Override
+    void committed(long ticket) {
+        super.committed(ticket);
+        try {
+            log.awaitDurable(ticket);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Waits for a snapshot being written, then writes the remaining changes to disk and closes
+     * the log.
+     */
+    @Override
+    public void close() throws IOException {
+        if (snapshots != null) {
+            snapshots.shutdown();
+            try {
+                snapshots.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        log.close();
+    }
+}
@@ -0,0 +1,163 @@
+package org.example.store;
+
+import com.google.gson.JsonObject;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+
+/**
+ * InMemoryDataStore keeps the values in a ConcurrentHashMap. Every change is a single
+ * {@code compute} call, which locks only the hash bin of its key, so writes to different keys
+ * do not wait for each other while reads take no lock at all. A new key starts at the next
+ * value of a store-wide counter, which a removal first advances past the version of the
+ * removed value, so a key that is deleted and created again never repeats the versions, and
+ * so the entity tags, of its previous life. Versions are positive and only increase. The
+ * modification count is a LongAdder, so it does not make the writers of different keys
+ * contend either.
+ */
+public class InMemoryDataStore implements DataStore {
+    private final ConcurrentHashMap<String, Versioned> values = new ConcurrentHashMap<>();
+    private final LongAdder modifications = new LongAdder();
+    // At least the version of every new or removed value so far
+    private final AtomicLong lastVersion = new AtomicLong();
+
+    @Override
+    public Versioned get(String key) {
+        return values.get(key);
+    }
+
+    @Override
+    public Versioned put(String key, JsonObject value) {
+        JsonObject copy = value.deepCopy();
+        long[] ticket = new long[1];
+        Versioned stored = values.compute(key, (k, current) -> {
+            Versioned next = new Versioned(copy, current == null ? lastVersion.incrementAndGet() : current.getVersion() + 1);
+            ticket[0] = changed(key, next);
+            return next;
+        });
+        committed(ticket[0]);
+        return stored;
+    }
+
+    @Override
+    public Versioned replace(String key, JsonObject value, long expectedVersion) {
+        JsonObject copy = value.deepCopy();
+        long[] ticket = new long[1];
+        Versioned stored = values.computeIfPresent(key, (k, current) -> {
+            checkVersion(key, current, expectedVersion);
+            Versioned next = new Versioned(copy, current.getVersion() + 1);
+            ticket[0] = changed(key, next);
+            return next;
+        });
+        if (stored != null) {
+            committed(ticket[0]);
+        }
+        return stored;
+    }
+
+    @Override
+    public Versioned merge(String key, JsonObject changes, long expectedVersion) {
+        long[] ticket = new long[1];
+        Versioned stored = values.computeIfPresent(key, (k, current) -> {
+            checkVersion(key, current, expectedVersion);
+            Versioned next = current.merge(changes);
+            ticket[0] = changed(key, next);
+            return next;
+        });
+        if (stored != null) {
+            committed(ticket[0]);
+        }
+        return stored;
+    }
+
+    @Override
+    public Versioned remove(String key, long expectedVersion) {
+        Versioned[] removed = new Versioned[1];
+        long[] ticket = new long[1];
+        values.computeIfPresent(key, (k, current) -> {
+            checkVersion(key, current, expectedVersion);
+            removed[0] = current;
+            // Advanced while the key is held, so no new value of the key can reuse the version
+            lastVersion.accumulateAndGet(current.getVersion(), Math::max);
+            ticket[0] = removed(key, current);
+            return null;
+        });
+        if (removed[0] != null) {
+            committed(ticket[0]);
+        }
+        return removed[0];
+    }
+
+    @Override
+    public void forEach(BiConsumer<String, Versioned> action) {
+        values.forEach(action);
+    }
+
+    @Override
+    public long getModificationCount() {
+        return modifications.sum();
+    }
+
+    /**
+     * Called inside the atomic step of every change that stores a value, so the changes of one
+     * key arrive here in the order they are made. An exception thrown here cancels the change.
+     * @param value the new value
+     * @return a ticket passed to {@link #committed(long)} once the change is visible
+     */
+    long changed(String key, Versioned value) {
+        return 0;
+    }
+
+    /**
+     * Like {@link #changed(String, Versioned)}, for the removal of a key.
+     * @param previous the removed value
+     */
+    long removed(String key, Versioned previous) {
+        return 0;
+    }
+
+    /**
+     * Called after a change is visible and before it is returned to the caller, outside of any lock.
+     * @param ticket what {@link #changed(String, Versioned)} returned for the change
+     */
+    void committed(long ticket) {
+        modifications.increment();
+    }
+
+    /**
+     * Sets the value of a key as it was recorded, with its version, or removes the key for a null value.
+     */
+    void restore(String key, Versioned value) {
+        if (value == null) {
+            values.remove(key);
+        } else {
+            values.put(key, value);
+            restoreVersion(value.getVersion());
+        }
+    }
+
+    /**
+     * Replaces a value that refers to a buffer with an equal one of the same version, for
+     * example one read from a newer snapshot, unless the key has changed meanwhile.
+     */
+    void relocate(String key, Versioned replacement) {
+        values.computeIfPresent(key, (k, current) ->
+                current.isBacked() && current.getVersion() == replacement.getVersion() ? replacement : current);
+    }
+
+    /**
+     * Makes new keys start above a version that was recorded, for example the version of a
+     * removed value.
+     */
+    void restoreVersion(long version) {
+        lastVersion.accumulateAndGet(version, Math::max);
+    }
+
+    private static void checkVersion(String key, Versioned current, long expectedVersion) {
+        if (expectedVersion != ANY_VERSION && current.getVersion() != expectedVersion) {
+            throw new VersionConflictException(key, expectedVersion, current.getVersion());
+        }
+    }
+}
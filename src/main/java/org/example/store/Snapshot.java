@@ -0,0 +1,233 @@
+package org.example.store;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+/**
+ * A snapshot is the state of the data store after a segment of the write-ahead log, in a
+ * compact binary file, {@code snapshot-<segment>.snap}. Restarting loads the newest snapshot
+ * and replays only the segments after it.
+ * <p>
+ * The file starts with an index of the keys, with the version of each value and where its
+ * JSON is, followed by the JSON of all values. Loading maps the file into memory and reads
+ * only the index, so it takes time in proportion to the number of keys, not to the size of the
+ * values; a value is read from the mapped file and parsed when it is first accessed.
+ * <p>
+ * A new snapshot is not taken from the live store but merged from the previous snapshot and
+ * the closed segments after it, so writers are never stopped and the snapshot holds exactly
+ * the changes up to the end of its segment. It is written to a temporary file, forced to disk
+ * and then renamed, so a snapshot file is always complete.
+ * <p>
+ * Layout: a header (magic, format, segment, number of keys, start of the values, highest
+ * version so far, including removed values, so that new keys go on above it), for every
+ * key its length, UTF-8 bytes, version, offset among the values and JSON length, then the
+ * values, and the magic again at the end. The values are mapped in chunks of 1 GB, and a value
+ * never crosses a chunk boundary, so every value can be read from one buffer.
+ */
+final class Snapshot {
+    private static final String PREFIX = "snapshot-";
+    private static final String SUFFIX = ".snap";
+    private static final int MAGIC = 0x534e4150;
+    private static final int FORMAT = 2;
+    private static final int HEADER = 4 + 4 + 8 + 4 + 8 + 8;
+    private static final int TRAILER = 4;
+    // Key length, version, value offset and value length of an index entry
+    private static final int INDEX_ENTRY = 4 + 8 + 8 + 4;
+    private static final int CHUNK_BITS = 30;
+    private static final long CHUNK_SIZE = 1L << CHUNK_BITS;
+
+    private Snapshot() {
+    }
+
+    static Path file(Path directory, long segment) {
+        return directory.resolve(PREFIX + segment + SUFFIX);
+    }
+
+    /**
+     * Returns the segments of the snapshots in the directory in ascending order.
+     */
+    static List<Long> list(Path directory) throws IOException {
+        return WriteAheadLog.listIds(directory, PREFIX, SUFFIX);
+    }
+
+    /**
+     * Returns the segment of the newest snapshot in the directory, or 0 if there is none.
+     */
+    static long latest(Path directory) throws IOException {
+        List<Long> snapshots = list(directory);
+        return snapshots.isEmpty() ? 0 : snapshots.get(snapshots.size() - 1);
+    }
+
+    /**
+     * Maps the snapshot and passes every key to the consumer, with a value that is read from
+     * the mapped file on first access.
+     * @return the highest version so far, including the versions of removed values
+     */
+    static long load(Path file, BiConsumer<String, Versioned> consumer) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            ByteBuffer header = ByteBuffer.allocate(HEADER);
+            ByteBuffer trailer = ByteBuffer.allocate(TRAILER);
+            if (size < HEADER + TRAILER || channel.read(header, 0) < HEADER
+                    || channel.read(trailer, size - TRAILER) < TRAILER) {
+                throw new IOException("Incomplete snapshot " + file);
+            }
+            if (header.getInt(0) != MAGIC || header.getInt(4) != FORMAT || trailer.getInt(0) != MAGIC) {
+                throw new IOException("Not a snapshot or an unknown format: " + file);
+            }
+            int count = header.getInt(16);
+            long valuesStart = header.getLong(20);
+            long maxVersion = header.getLong(28);
+            long valuesEnd = size - TRAILER;
+            if (count < 0 || valuesStart < HEADER || valuesStart > valuesEnd) {
+                throw new IOException("Damaged snapshot " + file);
+            }
+
+            MappedByteBuffer[] chunks = new MappedByteBuffer[(int) ((valuesEnd - valuesStart + CHUNK_SIZE - 1) >>> CHUNK_BITS)];
+            for (int i = 0; i < chunks.length; i++) {
+                long start = valuesStart + i * CHUNK_SIZE;
+                chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(CHUNK_SIZE, valuesEnd - start));
+            }
+
+            // The index is read through a window that moves on when the next entry does not fit
+            long windowStart = HEADER;
+            MappedByteBuffer index = mapIndex(channel, windowStart, valuesStart);
+            int position = 0;
+            for (int i = 0; i < count; i++) {
+                if (!entryFits(index, position)) {
+                    windowStart += position;
+                    index = mapIndex(channel, windowStart, valuesStart);
+                    position = 0;
+                    if (!entryFits(index, position)) {
+                        throw new IOException("Damaged snapshot " + file);
+                    }
+                }
+                byte[] key = new byte[index.getInt(position)];
+                index.get(position + 4, key);
+                position += 4 + key.length;
+                long version = index.getLong(position);
+                long offset = index.getLong(position + 8);
+                int length = index.getInt(position + 16);
+                position += 20;
+                int chunk = (int) (offset >>> CHUNK_BITS);
+                int inChunk = (int) (offset & (CHUNK_SIZE - 1));
+                if (offset < 0 || length < 0 || chunk >= chunks.length || inChunk + length > chunks[chunk].limit()) {
+                    throw new IOException("Damaged snapshot " + file);
+                }
+                consumer.accept(new String(key, StandardCharsets.UTF_8), new Versioned(chunks[chunk], inChunk, length, version));
+            }
+            return maxVersion;
+        }
+    }
+
+    /**
+     * Writes the snapshot of a closed segment: the previous snapshot with the changes of the
+     * segments after it up to the given one applied.
+     * @return the number of keys
+     */
+    static int write(Path directory, long segment) throws IOException {
+        Map<String, Versioned> entries = new HashMap<>();
+        long previous = 0;
+        for (long snapshot : list(directory)) {
+            if (snapshot < segment) {
+                previous = snapshot;
+            }
+        }
+        long maxVersion = 0;
+        if (previous > 0) {
+            maxVersion = load(file(directory, previous), entries::put);
+        }
+        for (long id : WriteAheadLog.listSegments(directory)) {
+            if (id > previous && id <= segment) {
+                long segmentMax = WriteAheadLog.replay(WriteAheadLog.segmentFile(directory, id), (key, value) -> {
+                    if (value == null) {
+                        entries.remove(key);
+                    } else {
+                        entries.put(key, value);
+                    }
+                });
+                maxVersion = Math.max(maxVersion, segmentMax);
+            }
+        }
+
+        long valuesStart = HEADER;
+        for (String key : entries.keySet()) {
+            valuesStart += INDEX_ENTRY + key.getBytes(StandardCharsets.UTF_8).length;
+        }
+        Path target = file(directory, segment);
+        Path temporary = directory.resolve(target.getFileName() + ".tmp");
+        try (FileChannel indexChannel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+             FileChannel valuesChannel = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+            indexChannel.position(HEADER);
+            valuesChannel.position(valuesStart);
+            DataOutputStream index = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(indexChannel), 64 * 1024));
+            DataOutputStream values = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(valuesChannel), 64 * 1024));
+            long offset = 0;
+            for (Map.Entry<String, Versioned> entry : entries.entrySet()) {
+                byte[] key = entry.getKey().getBytes(StandardCharsets.UTF_8);
+                byte[] json = entry.getValue().getEncodedJson();
+                if (json.length > CHUNK_SIZE) {
+                    throw new IOException("Value of " + entry.getKey() + " is too large for a snapshot");
+                }
+                if ((offset & (CHUNK_SIZE - 1)) + json.length > CHUNK_SIZE) {
+                    // Starts the value in the next chunk
+                    long padding = CHUNK_SIZE - (offset & (CHUNK_SIZE - 1));
+                    byte[] zeros = new byte[64 * 1024];
+                    for (long left = padding; left > 0; left -= zeros.length) {
+                        values.write(zeros, 0, (int) Math.min(left, zeros.length));
+                    }
+                    offset += padding;
+                }
+                index.writeInt(key.length);
+                index.write(key);
+                index.writeLong(entry.getValue().getVersion());
+                index.writeLong(offset);
+                index.writeInt(json.length);
+                values.write(json);
+                offset += json.length;
+            }
+            values.writeInt(MAGIC);
+            index.flush();
+            values.flush();
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER);
+            header.putInt(MAGIC).putInt(FORMAT).putLong(segment).putInt(entries.size()).putLong(valuesStart)
+                    .putLong(maxVersion).flip();
+            while (header.hasRemaining()) {
+                indexChannel.write(header, header.position());
+            }
+            indexChannel.force(false);
+        }
+        Files.move(temporary, target, StandardCopyOption.ATOMIC_MOVE);
+        WriteAheadLog.syncDirectory(directory);
+        return entries.size();
+    }
+
+    private static MappedByteBuffer mapIndex(FileChannel channel, long start, long end) throws IOException {
+        return channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(CHUNK_SIZE, end - start));
+    }
+
+    private static boolean entryFits(ByteBuffer index, int position) {
+        long remaining = index.limit() - (long) position;
+        if (remaining < INDEX_ENTRY) {
+            return false;
+        }
+        int keyLength = index.getInt(position);
+        return keyLength >= 0 && remaining >= INDEX_ENTRY + (long) keyLength;
+    }
+}
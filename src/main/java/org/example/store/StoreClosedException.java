@@ -0,0 +1,13 @@
+package org.example.store;
+
+/**
+ * StoreClosedException signals that a change was refused because the store has been closed,
+ * for example while the server shuts down. The change is not made.
+ */
+public class StoreClosedException extends IllegalStateException {
+    private static final long serialVersionUID = 1L;
+
+    public StoreClosedException(String message) {
+        super(message);
+    }
+}
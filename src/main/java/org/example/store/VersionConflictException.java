@@ -0,0 +1,20 @@
+package org.example.store;
+
+/**
+ * VersionConflictException signals that a conditional change was refused because the key has
+ * a different version than the caller expected, that is, someone else changed it in between.
+ */
+public class VersionConflictException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    private final long currentVersion;
+
+    public VersionConflictException(String key, long expectedVersion, long currentVersion) {
+        super("Version of " + key + " is " + currentVersion + ", expected " + expectedVersion);
+        this.currentVersion = currentVersion;
+    }
+
+    public long getCurrentVersion() {
+        return currentVersion;
+    }
+}
@@ -0,0 +1,129 @@
+package org.example.store;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * An immutable value of the data store together with its version. Every change of a key
+ * creates a new Versioned with a higher version, so a reader holding one never sees it change
+ * and can serialize it without locking. The JSON text is rendered once, when the value is
+ * created.
+ * <p>
+ * A value loaded from a snapshot or the log only refers to its encoded JSON, for example in a
+ * memory-mapped file, and is decoded and parsed on first access. Two threads may both decode
+ * it, which is harmless since they get equal results.
+ */
+public final class Versioned {
+    private final long version;
+    // Null until first access for a value that is still encoded
+    private volatile JsonObject value;
+    private volatile String json;
+    private final ByteBuffer source;
+    private final int offset;
+    private final int length;
+
+    /**
+     * @param value the value, which the store owns from now on and never modifies
+     */
+    Versioned(JsonObject value, long version) {
+        this.value = value;
+        this.json = value.toString();
+        this.version = version;
+        this.source = null;
+        this.offset = 0;
+        this.length = 0;
+    }
+
+    /**
+     * Creates a value that is decoded on first access.
+     * @param source the buffer holding the UTF-8 encoded JSON, which must never change; its
+     *               position is not used
+     */
+    Versioned(ByteBuffer source, int offset, int length, long version) {
+        this.source = source;
+        this.offset = offset;
+        this.length = length;
+        this.version = version;
+    }
+
+    /**
+     * Returns a copy of the value that the caller may modify.
+     */
+    public JsonObject getValue() {
+        return value().deepCopy();
+    }
+
+    /**
+     * Returns the value as compact JSON text.
+     */
+    public String getJson() {
+        String text = json;
+        if (text == null) {
+            text = new String(getEncodedJson(), StandardCharsets.UTF_8);
+            json = text;
+        }
+        return text;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Returns the version as a strong entity tag, for ETag and If-Match headers.
+     */
+    public String getETag() {
+        return "\"" + version + "\"";
+    }
+
+    /**
+     * Returns true if the value refers to its encoded JSON in a buffer, such as a mapped
+     * snapshot file, which it keeps alive even after the value has been decoded.
+     */
+    boolean isBacked() {
+        return source != null;
+    }
+
+    /**
+     * Returns the JSON text as UTF-8, copied from the source without decoding it if the value
+     * has not been accessed yet.
+     */
+    byte[] getEncodedJson() {
+        String text = json;
+        if (text == null) {
+            byte[] bytes = new byte[length];
+            source.get(offset, bytes);
+            return bytes;
+        }
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns the value the given changes produce: the fields of this value, with the fields
+     * of the changes added or replacing them.
+     */
+    Versioned merge(JsonObject changes) {
+        JsonObject merged = value().deepCopy();
+        for (String field : changes.keySet()) {
+            merged.add(field, changes.get(field).deepCopy());
+        }
+        return new Versioned(merged, version + 1);
+    }
+
+    private JsonObject value() {
+        JsonObject parsed = value;
+        if (parsed == null) {
+            parsed = JsonParser.parseString(getJson()).getAsJsonObject();
+            value = parsed;
+        }
+        return parsed;
+    }
+
+    @Override
+    public String toString() {
+        return getJson() + "@" + version;
+    }
+}
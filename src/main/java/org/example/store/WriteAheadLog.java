@@ -0,0 +1,554 @@
+package org.example.store;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.zip.CRC32;
+
+/**
+ * WriteAheadLog appends every change of the data store to a file, so the store can be rebuilt
+ * after a restart. A record holds the complete new value of a key, or marks its removal, so
+ * replaying the records in order restores the last state of every key.
+ * <p>
+ * Appending only adds the record to a batch in memory. A single writer thread takes the whole
+ * batch, writes it with one call and, depending on the {@link Durability}, forces it to disk
+ * with one {@code force()}, so any number of concurrent changes share the cost of one fsync
+ * (group commit). In {@link Durability#SYNC} mode callers wait in {@link #awaitDurable(long)}
+ * until their batch has been forced. The wait uses a ReentrantLock, which, unlike a monitor,
+ * does not pin a virtual thread to its carrier.
+ * <p>
+ * Every record starts with its length and a CRC32 of its content. A record cut short by a
+ * crash, or damaged, ends the replay, and the log is truncated after the last intact record.
+ * <p>
+ * The log is a sequence of numbered segment files, {@code wal-<n>.log}. {@link #rotate()}
+ * closes the current segment and starts the next one without holding up appends, so that a
+ * snapshot can take over the closed segments and they can be deleted.
+ */
+public class WriteAheadLog implements Closeable {
+    /**
+     * When a change is on disk, and when the request making it is answered.
+     */
+    public enum Durability {
+        /** Every batch is forced to disk before its changes are acknowledged. */
+        SYNC,
+        /** Changes are acknowledged right away and the log is forced at a fixed interval. */
+        PERIODIC,
+        /** Changes are acknowledged right away and the operating system decides when they reach the disk. */
+        NONE
+    }
+
+    private static final byte PUT = 1;
+    private static final byte REMOVE = 2;
+    // Length and checksum in front of every record
+    private static final int RECORD_HEADER = 8;
+    private static final String SEGMENT_PREFIX = "wal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    // Appended in place of a change to start the next segment
+    private static final Record ROTATE = new Record(null, null, 0);
+
+    private final Path directory;
+    private final Durability durability;
+    private final long syncIntervalNanos;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changesPending = lock.newCondition();
+    private final Condition batchDurable = lock.newCondition();
+    private final Thread writer;
+    private final CRC32 crc = new CRC32();
+    private ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+    // Used by the writer thread only
+    private FileChannel channel;
+    private long channelSegment;
+    // Guarded by lock
+    private List<Record> pending = new ArrayList<>();
+    private long segment;
+    private long requestedSegment;
+    private long segmentRecords;
+    private long maxReplayedVersion;
+    private long lastSequence;
+    private long durableSequence;
+    private IOException failure;
+    private boolean closed;
+    private long batches;
+    private long syncs;
+
+    private static final class Record {
+        private final String key;
+        private final Versioned value;
+        // The version of the removed value for a removal
+        private final long removedVersion;
+
+        private Record(String key, Versioned value, long removedVersion) {
+            this.key = key;
+            this.value = value;
+            this.removedVersion = removedVersion;
+        }
+    }
+
+    /**
+     * Opens the log in the directory and replays the records of its segments, starting with
+     * the given one. New records are appended to the last segment.
+     * @param directory          the directory of the segment files
+     * @param durability         when changes are forced to disk
+     * @param syncIntervalMillis how often the log is forced in {@link Durability#PERIODIC} mode
+     * @param firstSegment       the first segment to replay; older segments are ignored
+     * @param replay             receives every intact record in order; the value is null for a removal
+     */
+    public WriteAheadLog(Path directory, Durability durability, long syncIntervalMillis, long firstSegment,
+                         BiConsumer<String, Versioned> replay) throws IOException {
+        this.directory = directory;
+        this.durability = durability;
+        this.syncIntervalNanos = TimeUnit.MILLISECONDS.toNanos(syncIntervalMillis);
+        List<Long> segments = listSegments(directory);
+        segments.removeIf(id -> id < firstSegment);
+        if (segments.isEmpty()) {
+            segments.add(firstSegment);
+        }
+        long last = segments.get(segments.size() - 1);
+        long[] records = new long[1];
+        long[] maxVersion = new long[1];
+        for (long id : segments) {
+            FileChannel file = openSegment(id);
+            try {
+                long end = replay(file, (key, value) -> {
+                    records[0]++;
+                    replay.accept(key, value);
+                }, maxVersion);
+                if (id == last) {
+                    // Drops a torn record at the end, new records follow the last intact one
+                    file.truncate(end);
+                    file.position(end);
+                    this.channel = file;
+                    this.channelSegment = id;
+                    this.segment = id;
+                    this.requestedSegment = id;
+                    this.segmentRecords = records[0];
+                } else {
+                    file.close();
+                }
+                records[0] = 0;
+            } catch (IOException e) {
+                file.close();
+                throw e;
+            }
+        }
+        this.maxReplayedVersion = maxVersion[0];
+        syncDirectory(directory);
+        this.writer = new Thread(this::writeBatches, "wal-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * Adds a change to the next batch. Changes of the same key must be appended in the order
+     * they are made, which the data store ensures by appending while it holds the key.
+     * @param value the new value, or null if the key was removed
+     * @return the sequence number of the change, for {@link #awaitDurable(long)}
+     * @throws UncheckedIOException if the log failed earlier and accepts no more changes
+     * @throws StoreClosedException  if the log has been closed
+     */
+    public long append(String key, Versioned value) {
+        return append(new Record(key, value, 0));
+    }
+
+    /**
+     * Adds the removal of a key to the next batch, like {@link #append(String, Versioned)}.
+     * The version of the removed value is recorded, so that after a restart the key is not
+     * created again with a version it had before.
+     * @param removedVersion the version of the removed value
+     */
+    public long appendRemoval(String key, long removedVersion) {
+        return append(new Record(key, null, removedVersion));
+    }
+
+    private long append(Record record) {
+        lock.lock();
+        try {
+            if (failure != null) {
+                throw new UncheckedIOException(new IOException("Write-ahead log failed", failure));
+            }
+            if (closed) {
+                throw new StoreClosedException("The log is closed");
+            }
+            pending.add(record);
+            if (pending.size() == 1) {
+                changesPending.signal();
+            }
+            segmentRecords++;
+            return ++lastSequence;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits until the change with the given sequence number is as durable as the mode promises.
+     * Only {@link Durability#SYNC} waits; the other modes return right away.
+     * @throws IOException if the log could not be written; the change may be lost
+     */
+    public void awaitDurable(long sequence) throws IOException {
+        if (durability != Durability.SYNC) {
+            return;
+        }
+        lock.lock();
+        try {
+            while (durableSequence < sequence) {
+                if (failure != null) {
+                    throw new IOException("Write-ahead log failed", failure);
+                }
+                batchDurable.awaitUninterruptibly();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Closes the current segment and starts the next one. Changes appended from now on go to
+     * the next segment; the method returns once all earlier changes are on disk.
+     * @return the number of the closed segment
+     * @throws IOException if the log could not be written
+     */
+    public long rotate() throws IOException {
+        lock.lock();
+        try {
+            if (failure != null) {
+                throw new IOException("Write-ahead log failed", failure);
+            }
+            if (closed) {
+                throw new StoreClosedException("The log is closed");
+            }
+            long next = ++requestedSegment;
+            pending.add(ROTATE);
+            if (pending.size() == 1) {
+                changesPending.signal();
+            }
+            segmentRecords = 0;
+            while (segment < next) {
+                if (failure != null) {
+                    throw new IOException("Write-ahead log failed", failure);
+                }
+                batchDurable.awaitUninterruptibly();
+            }
+            return next - 1;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of records in the current segment.
+     */
+    public long getSegmentRecordCount() {
+        lock.lock();
+        try {
+            return segmentRecords;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the highest version among the records replayed when the log was opened,
+     * including the versions of removed values, or 0 if there were none.
+     */
+    public long getMaxReplayedVersion() {
+        return maxReplayedVersion;
+    }
+
+    /**
+     * Returns the number of batches written, each with a single write call.
+     */
+    public long getBatchCount() {
+        lock.lock();
+        try {
+            return batches;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of times the log was forced to disk.
+     */
+    public long getSyncCount() {
+        lock.lock();
+        try {
+            return syncs;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes and forces the pending changes, then closes the file.
+     */
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            closed = true;
+            changesPending.signal();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            if (failure == null) {
+                channel.force(false);
+            }
+        } finally {
+            channel.close();
+        }
+    }
+
+    private void writeBatches() {
+        long lastSync = System.nanoTime();
+        while (true) {
+            List<Record> batch;
+            long batchEnd;
+            lock.lock();
+            try {
+                while (pending.isEmpty() && !closed) {
+                    if (durability == Durability.PERIODIC && durableSequence < lastSequence) {
+                        // Written but not forced yet, wake up in time for the next sync
+                        long wait = syncIntervalNanos - (System.nanoTime() - lastSync);
+                        if (wait <= 0) {
+                            break;
+                        }
+                        changesPending.awaitNanos(wait);
+                    } else {
+                        changesPending.awaitUninterruptibly();
+                    }
+                }
+                if (pending.isEmpty() && closed) {
+                    return;
+                }
+                batch = pending;
+                pending = new ArrayList<>();
+                batchEnd = lastSequence;
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                lock.unlock();
+            }
+
+            try {
+                if (!batch.isEmpty()) {
+                    write(batch);
+                }
+                boolean sync = durability == Durability.SYNC
+                        || durability == Durability.PERIODIC && System.nanoTime() - lastSync >= syncIntervalNanos;
+                if (sync) {
+                    channel.force(false);
+                    lastSync = System.nanoTime();
+                }
+                lock.lock();
+                try {
+                    if (!batch.isEmpty()) {
+                        batches++;
+                    }
+                    if (sync) {
+                        syncs++;
+                    }
+                    if (sync || durability == Durability.NONE) {
+                        durableSequence = batchEnd;
+                    }
+                    segment = channelSegment;
+                    batchDurable.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                lock.lock();
+                try {
+                    failure = e;
+                    closed = true;
+                    batchDurable.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+                return;
+            }
+        }
+    }
+
+    private void write(List<Record> batch) throws IOException {
+        buffer.clear();
+        for (Record record : batch) {
+            if (record == ROTATE) {
+                flush();
+                channel.force(false);
+                channel.close();
+                channel = openSegment(++channelSegment);
+                syncDirectory(directory);
+                buffer.clear();
+                continue;
+            }
+            byte[] key = record.key.getBytes(StandardCharsets.UTF_8);
+            byte[] json = record.value == null ? null : record.value.getJson().getBytes(StandardCharsets.UTF_8);
+            int length = 1 + 4 + key.length + 8 + (json == null ? 0 : 4 + json.length);
+            ensureCapacity(RECORD_HEADER + length);
+            int start = buffer.position();
+            buffer.position(start + RECORD_HEADER);
+            buffer.put(json == null ? REMOVE : PUT).putInt(key.length).put(key);
+            if (json != null) {
+                buffer.putLong(record.value.getVersion()).putInt(json.length).put(json);
+            } else {
+                buffer.putLong(record.removedVersion);
+            }
+            crc.reset();
+            crc.update(buffer.array(), start + RECORD_HEADER, length);
+            buffer.putInt(start, length).putInt(start + 4, (int) crc.getValue());
+        }
+        flush();
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private void ensureCapacity(int bytes) {
+        if (buffer.remaining() < bytes) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + bytes));
+            buffer.flip();
+            larger.put(buffer);
+            buffer = larger;
+        }
+    }
+
+    private FileChannel openSegment(long id) throws IOException {
+        return FileChannel.open(segmentFile(directory, id), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+    }
+
+    static Path segmentFile(Path directory, long id) {
+        return directory.resolve(SEGMENT_PREFIX + id + SEGMENT_SUFFIX);
+    }
+
+    /**
+     * Returns the numbers of the segments in the directory in ascending order.
+     */
+    static List<Long> listSegments(Path directory) throws IOException {
+        return listIds(directory, SEGMENT_PREFIX, SEGMENT_SUFFIX);
+    }
+
+    /**
+     * Returns the numbers of the files named prefix, number, suffix in ascending order.
+     */
+    static List<Long> listIds(Path directory, String prefix, String suffix) throws IOException {
+        List<Long> ids = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, prefix + "*" + suffix)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    ids.add(Long.parseLong(name.substring(prefix.length(), name.length() - suffix.length())));
+                } catch (NumberFormatException e) {
+                    // Not one of ours
+                }
+            }
+        }
+        Collections.sort(ids);
+        return ids;
+    }
+
+    /**
+     * Makes the creation, renaming and removal of files in the directory durable, where the
+     * platform supports it.
+     */
+    static void syncDirectory(Path directory) {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // Directories cannot be opened on every platform
+        }
+    }
+
+    /**
+     * Passes the intact records of a closed segment to the consumer.
+     * @return the highest version among the records, including removed values
+     */
+    static long replay(Path file, BiConsumer<String, Versioned> consumer) throws IOException {
+        long[] maxVersion = new long[1];
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            replay(channel, consumer, maxVersion);
+        }
+        return maxVersion[0];
+    }
+
+    /**
+     * Passes the intact records of the file to the consumer. The values are decoded when they
+     * are first accessed.
+     * @param maxVersion raised to the highest version among the records
+     * @return the position after the last intact record
+     */
+    private static long replay(FileChannel channel, BiConsumer<String, Versioned> consumer, long[] maxVersion)
+            throws IOException {
+        CRC32 crc = new CRC32();
+        long size = channel.size();
+        long position = 0;
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER);
+        while (position + RECORD_HEADER <= size) {
+            header.clear();
+            readFully(channel, header, position);
+            int length = header.getInt(0);
+            int checksum = header.getInt(4);
+            if (length <= 0 || position + RECORD_HEADER + length > size) {
+                break;
+            }
+            ByteBuffer record = ByteBuffer.allocate(length);
+            readFully(channel, record, position + RECORD_HEADER);
+            crc.reset();
+            crc.update(record.array(), 0, length);
+            if ((int) crc.getValue() != checksum) {
+                break;
+            }
+            record.flip();
+            byte type = record.get();
+            byte[] key = new byte[record.getInt()];
+            record.get(key);
+            Versioned value = null;
+            if (type == PUT) {
+                long version = record.getLong();
+                int jsonLength = record.getInt();
+                value = new Versioned(record, record.position(), jsonLength, version);
+                maxVersion[0] = Math.max(maxVersion[0], version);
+            } else if (record.remaining() >= 8) {
+                // Removals written before the version was recorded have none
+                maxVersion[0] = Math.max(maxVersion[0], record.getLong());
+            }
+            consumer.accept(new String(key, StandardCharsets.UTF_8), value);
+            position += RECORD_HEADER + length;
+        }
+        return position;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer target, long position) throws IOException {
+        while (target.hasRemaining()) {
+            if (channel.read(target, position + target.position()) < 0) {
+                throw new IOException("Unexpected end of the log");
+            }
+        }
+    }
+}
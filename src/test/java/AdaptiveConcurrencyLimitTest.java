@@ -0,0 +1,163 @@
+import org.example.server.AdaptiveConcurrencyLimit;
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drives the limiter with a simulated slow backend: a fixed number of workers serving
+ * requests in arrival order, the rest waiting in a queue, and more demand than the
+ * backend can take. The simulation runs on a virtual clock, so it is fast and repeatable.
+ */
+public class AdaptiveConcurrencyLimitTest {
+    private static final long SERVICE_NANOS = 10_000_000;
+
+    /**
+     * The backend: requests wait in FIFO order for one of the workers.
+     */
+    private static final class Backend {
+        private final PriorityQueue<long[]> completions = new PriorityQueue<>((a, b) -> Long.compare(a[0], b[0]));
+        private final ArrayDeque<Long> waiting = new ArrayDeque<>();
+        private final Random random = new Random(42);
+        private int workers;
+        private long serviceNanos = SERVICE_NANOS;
+        private int busy;
+
+        Backend(int workers) {
+            this.workers = workers;
+        }
+
+        void submit(long now) {
+            waiting.addLast(now);
+            startWaiting(now);
+        }
+
+        /**
+         * Completes the next request and returns {completion time, round trip time}.
+         */
+        long[] complete() {
+            long[] next = completions.poll();
+            busy--;
+            startWaiting(next[0]);
+            return new long[]{next[0], next[0] - next[1]};
+        }
+
+        private void startWaiting(long now) {
+            while (busy < workers && !waiting.isEmpty()) {
+                long submitted = waiting.removeFirst();
+                // The service time varies by up to 10%
+                long service = serviceNanos + (long) (random.nextGaussian() * serviceNanos / 30);
+                completions.add(new long[]{now + service, submitted});
+                busy++;
+            }
+        }
+    }
+
+    /**
+     * Results of one simulated period.
+     */
+    private static final class Period {
+        long completed;
+        long rejected;
+        long totalRtt;
+        long totalLimit;
+        int maxLimit;
+
+        long averageLimit() {
+            return totalLimit / completed;
+        }
+    }
+
+    private long now;
+
+    /**
+     * Keeps the limiter saturated for the given time: every free permit is used right away.
+     */
+    private Period run(AdaptiveConcurrencyLimit limit, Backend backend, long durationNanos) {
+        Period period = new Period();
+        long end = now + durationNanos;
+        while (now < end) {
+            while (limit.tryAcquire()) {
+                backend.submit(now);
+            }
+            period.rejected++;
+            long[] completion = backend.complete();
+            now = completion[0];
+            limit.onSuccess(completion[1]);
+            period.completed++;
+            period.totalRtt += completion[1];
+            period.totalLimit += limit.getLimit();
+            period.maxLimit = Math.max(period.maxLimit, limit.getLimit());
+        }
+        return period;
+    }
+
+    @Test
+    public void testConvergesToTheKnee() {
+        AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(20, 1, 1000);
+        Backend backend = new Backend(10);
+
+        run(limit, backend, 2_000_000_000L);
+        Period steady = run(limit, backend, 5_000_000_000L);
+
+        // Enough requests in flight to keep every worker busy, but only a few waiting
+        assertTrue("limit " + steady.averageLimit(), steady.averageLimit() >= 10);
+        assertTrue("limit " + steady.maxLimit, steady.maxLimit <= 20);
+        // 10 workers at 10 ms each serve 1000 requests per second
+        assertTrue("throughput " + steady.completed / 5, steady.completed / 5 >= 950);
+        assertTrue("latency " + steady.totalRtt / steady.completed, steady.totalRtt / steady.completed < 2 * SERVICE_NANOS);
+    }
+
+    @Test
+    public void testFollowsCapacityChanges() {
+        AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(20, 1, 1000);
+        Backend backend = new Backend(50);
+
+        run(limit, backend, 5_000_000_000L);
+        Period grown = run(limit, backend, 2_000_000_000L);
+        assertTrue("limit " + grown.averageLimit(), grown.averageLimit() >= 50);
+        assertTrue("throughput " + grown.completed / 2, grown.completed / 2 >= 4750);
+
+        backend.workers = 5;
+        run(limit, backend, 10_000_000_000L);
+        Period shrunk = run(limit, backend, 2_000_000_000L);
+        assertTrue("limit " + shrunk.maxLimit, shrunk.maxLimit <= 12);
+        assertTrue("throughput " + shrunk.completed / 2, shrunk.completed / 2 >= 475);
+    }
+
+    @Test
+    public void testFollowsSlowerBackend() {
+        AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(20, 1, 1000);
+        Backend backend = new Backend(10);
+        run(limit, backend, 5_000_000_000L);
+
+        // Slower requests look like waiting ones until the baseline is measured again
+        backend.serviceNanos = 3 * SERVICE_NANOS;
+        run(limit, backend, 20_000_000_000L);
+        Period slower = run(limit, backend, 5_000_000_000L);
+        assertTrue("limit " + slower.averageLimit(), slower.averageLimit() >= 10);
+        assertTrue("throughput " + slower.completed / 5, slower.completed / 5 >= 316);
+    }
+
+    @Test
+    public void testTimeoutsBackOff() {
+        AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(100, 1, 1000);
+        for (int i = 0; i < 5; i++) {
+            assertTrue(limit.tryAcquire());
+            limit.onDropped();
+        }
+        // 100 * 0.9^5
+        assertEquals(59, limit.getLimit());
+        assertEquals(0, limit.getInFlight());
+
+        AdaptiveConcurrencyLimit single = new AdaptiveConcurrencyLimit(1, 1, 1);
+        assertTrue(single.tryAcquire());
+        assertTrue(!single.tryAcquire());
+        single.onIgnore();
+        assertTrue(single.tryAcquire());
+    }
+}
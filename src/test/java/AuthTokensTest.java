@@ -0,0 +1,123 @@
+import org.example.auth.AuthService;
+import org.example.auth.Principal;
+import org.example.auth.PrincipalCache;
+import org.example.auth.TokenSigner;
+import org.example.auth.TokenStore;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class AuthTokensTest {
+    private static final byte[] KEY = "0123456789abcdef0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+    @Test
+    public void testStoredTokensExpire() throws InterruptedException {
+        TokenStore store = new TokenStore(100, 20);
+        try {
+            store.put("short", false, 50);
+            store.put("long", true, 60_000);
+            assertTrue(store.isValid("short"));
+            assertFalse(store.isAdmin("short"));
+            assertTrue(store.isAdmin("long"));
+            Thread.sleep(150);
+            assertFalse(store.isValid("short"));
+            // The background sweep removed it without anyone asking for it
+            assertEquals(1, store.size());
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void testStoreStaysBounded() {
+        TokenStore store = new TokenStore(1000, 60_000);
+        try {
+            for (int i = 0; i < 10_000; i++) {
+                store.put("token" + i, false, 60_000);
+            }
+            assertTrue("tokens " + store.size(), store.size() <= 1000);
+            assertTrue(store.isValid("token9999"));
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void testSignedTokens() throws InterruptedException {
+        TokenSigner signer = new TokenSigner(KEY);
+        String admin = signer.sign(true, 60_000);
+        String user = signer.sign(false, 60_000);
+        assertTrue(signer.isValid(admin));
+        assertTrue(signer.isAdmin(admin));
+        assertTrue(signer.isValid(user));
+        assertFalse(signer.isAdmin(user));
+
+        // Turning a user token into an admin token breaks the signature
+        char[] forged = user.toCharArray();
+        forged[0] = admin.charAt(0);
+        assertFalse(signer.isValid(new String(forged)));
+        assertFalse(signer.isValid(user.substring(0, user.length() - 2)));
+        assertFalse(signer.isValid("not.a-token"));
+        byte[] otherKey = KEY.clone();
+        otherKey[0] ^= 1;
+        assertFalse(new TokenSigner(otherKey).isValid(user));
+
+        String expiring = signer.sign(false, 30);
+        Thread.sleep(60);
+        assertFalse(signer.isValid(expiring));
+    }
+
+    @Test
+    public void testConcurrentLoginsAndChecks() throws InterruptedException {
+        AuthService.useSignedTokens(null);
+        AtomicInteger failures = new AtomicInteger();
+        List<Thread> threads = new ArrayList<>();
+        // The mode switches while the threads run, so both kinds of tokens are issued and checked
+        for (int t = 0; t < 8; t++) {
+            boolean admin = t % 2 == 0;
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < 2000; i++) {
+                    String token = AuthService.issueToken(admin);
+                    if (!AuthService.isAuthenticated(token) || AuthService.isAdmin(token) != admin) {
+                        failures.incrementAndGet();
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+            if (t == 3) {
+                AuthService.useSignedTokens(KEY);
+            }
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        AuthService.useSignedTokens(null);
+        assertEquals(0, failures.get());
+        assertFalse(AuthService.isAuthenticated(null));
+        assertFalse(AuthService.isAuthenticated("unknown"));
+    }
+
+    @Test
+    public void testConnectionCacheSkipsReverification() {
+        AuthService.registerToken("cached-token", true);
+        PrincipalCache cache = new PrincipalCache();
+        Principal principal = cache.authenticate("cached-token");
+        assertTrue(principal.isAdmin());
+        // The same token on the same connection is not verified again for a while
+        AuthService.revokeToken("cached-token");
+        assertSame(principal, cache.authenticate("cached-token"));
+        assertNull(new PrincipalCache().authenticate("cached-token"));
+        // A different token is always verified
+        assertNull(cache.authenticate("other-token"));
+    }
+}
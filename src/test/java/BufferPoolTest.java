@@ -0,0 +1,179 @@
+import org.example.buffer.BufferPool;
+import org.example.server.HttpServer;
+import org.example.server.HttpServerConfig;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class BufferPoolTest {
+    @Test
+    public void testSizeClassesAndReuse() {
+        BufferPool pool = new BufferPool();
+        ByteBuffer small = pool.acquire(100);
+        ByteBuffer medium = pool.acquire(4 * 1024 + 1);
+        ByteBuffer large = pool.acquire(64 * 1024);
+        assertEquals(4 * 1024, small.capacity());
+        assertEquals(16 * 1024, medium.capacity());
+        assertEquals(64 * 1024, large.capacity());
+        assertTrue(small.isDirect());
+
+        // Larger than the largest class: a heap buffer the pool does not track
+        ByteBuffer huge = pool.acquire(BufferPool.maxPooledCapacity() + 1);
+        assertFalse(huge.isDirect());
+        pool.release(huge);
+
+        small.put((byte) 1);
+        pool.release(small);
+        pool.release(medium);
+        pool.release(large);
+        // The same thread gets its cached buffer back, cleared
+        ByteBuffer again = pool.acquire(10);
+        assertSame(small, again);
+        assertEquals(0, again.position());
+        pool.release(again);
+
+        BufferPool.Stats stats = pool.getStats();
+        assertEquals(4, stats.getAcquired());
+        assertEquals(4, stats.getReleased());
+        assertEquals(0, stats.getOutstanding());
+        assertEquals(3, stats.getAllocated());
+        assertEquals(1, stats.getThreadCacheHits());
+        assertEquals(1, stats.getUnpooled());
+    }
+
+    @Test
+    public void testSharedListServesOtherThreads() throws InterruptedException {
+        BufferPool pool = new BufferPool();
+        ByteBuffer[] released = new ByteBuffer[40];
+        Thread releasing = new Thread(() -> {
+            for (int i = 0; i < released.length; i++) {
+                released[i] = pool.acquire(100);
+            }
+            // More than the thread's own cache holds, the rest goes to the shared list
+            for (ByteBuffer buffer : released) {
+                pool.release(buffer);
+            }
+        });
+        releasing.start();
+        releasing.join();
+
+        ByteBuffer buffer = pool.acquire(100);
+        assertEquals(1, pool.getStats().getSharedCacheHits());
+        assertEquals(released.length, pool.getStats().getAllocated());
+        pool.release(buffer);
+    }
+
+    @Test
+    public void testVirtualThreadsUseSharedList() throws InterruptedException {
+        BufferPool pool = new BufferPool();
+        ByteBuffer[] buffers = new ByteBuffer[2];
+        Thread.ofVirtual().start(() -> pool.release(pool.acquire(100))).join();
+        Thread.ofVirtual().start(() -> {
+            buffers[0] = pool.acquire(100);
+            buffers[1] = pool.acquire(100);
+        }).join();
+
+        // The buffer released by the first thread served the second, the other one is new
+        BufferPool.Stats stats = pool.getStats();
+        assertEquals(0, stats.getThreadCacheHits());
+        assertEquals(1, stats.getSharedCacheHits());
+        assertEquals(2, stats.getAllocated());
+        pool.release(buffers[0]);
+        pool.release(buffers[1]);
+    }
+
+    @Test
+    public void testDebugModeReportsLeaksAndDoubleReleases() {
+        BufferPool pool = new BufferPool(true);
+        ByteBuffer leaked = pool.acquire(100);
+        ByteBuffer returned = pool.acquire(100);
+        pool.release(returned);
+        assertEquals(1, pool.reportLeaks());
+
+        // The second release is reported and ignored, so the buffer is not pooled twice
+        pool.release(returned);
+        assertEquals(1, pool.getStats().getReleased());
+        ByteBuffer first = pool.acquire(100);
+        ByteBuffer second = pool.acquire(100);
+        assertNotSame(first, second);
+
+        pool.release(leaked);
+        pool.release(first);
+        pool.release(second);
+        assertEquals(0, pool.reportLeaks());
+        assertEquals(0, pool.getStats().getOutstanding());
+    }
+
+    @Test
+    public void testConnectionsReturnTheirBuffers() throws Exception {
+        HttpServerConfig config = new HttpServerConfig();
+        config.setBufferPoolDebug(true);
+        HttpServer server = new HttpServer("localhost", 8084, config);
+        server.addHandler("GET", "/small", (request, response) -> response.send(200, "small"));
+        server.addHandler("GET", "/large", (request, response) -> response.send(200, "x".repeat(200_000)));
+        new Thread(() -> {
+            try {
+                server.start();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }).start();
+        Thread.sleep(300);
+        try {
+            for (int connection = 0; connection < 3; connection++) {
+                try (Socket socket = new Socket("localhost", 8084)) {
+                    OutputStream os = socket.getOutputStream();
+                    InputStream is = socket.getInputStream();
+                    // Keep-alive requests, one after the other and pipelined
+                    for (int i = 0; i < 5; i++) {
+                        os.write("GET /small HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes());
+                        assertTrue(readResponse(is).endsWith("small"));
+                    }
+                    os.write(("GET /large HTTP/1.1\r\nHost: localhost\r\n\r\n"
+                            + "GET /small HTTP/1.1\r\nHost: localhost\r\n\r\n").getBytes());
+                    assertEquals("200: OK\r\n".length() + 200_000, readResponse(is).length());
+                    assertTrue(readResponse(is).endsWith("small"));
+                }
+            }
+            // The server releases a connection's buffers once it has seen the client close
+            BufferPool.Stats stats = server.getBufferPool().getStats();
+            for (int i = 0; i < 100 && stats.getOutstanding() != 0; i++) {
+                Thread.sleep(20);
+                stats = server.getBufferPool().getStats();
+            }
+            assertTrue(stats.toString(), stats.getAcquired() > 0);
+            assertEquals(stats.toString(), stats.getAcquired(), stats.getReleased());
+            assertEquals(0, server.getBufferPool().reportLeaks());
+        } finally {
+            server.stop();
+        }
+    }
+
+    /**
+     * Reads one response with a Content-Length body and returns its body.
+     */
+    private static String readResponse(InputStream is) throws IOException {
+        StringBuilder head = new StringBuilder();
+        while (!head.toString().endsWith("\r\n\r\n")) {
+            int b = is.read();
+            if (b == -1) {
+                throw new IOException("Connection closed before the response headers");
+            }
+            head.append((char) b);
+        }
+        int start = head.indexOf("Content-Length: ") + "Content-Length: ".length();
+        int length = Integer.parseInt(head.substring(start, head.indexOf("\r\n", start)));
+        return new String(is.readNBytes(length), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,93 @@
+import com.google.gson.JsonObject;
+import org.example.store.DataStore;
+import org.example.store.InMemoryDataStore;
+import org.example.store.VersionConflictException;
+import org.example.store.Versioned;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class DataStoreTest {
+    private static JsonObject object(String field, int value) {
+        JsonObject object = new JsonObject();
+        object.addProperty(field, value);
+        return object;
+    }
+
+    @Test
+    public void testConditionalChanges() {
+        DataStore store = new InMemoryDataStore();
+        Versioned created = store.put("key", object("a", 1));
+        Versioned merged = store.merge("key", object("b", 2), created.getVersion());
+        assertEquals("{\"a\":1,\"b\":2}", merged.getJson());
+        assertEquals(created.getVersion() + 1, merged.getVersion());
+        // The value read before is unchanged
+        assertEquals("{\"a\":1}", created.getJson());
+
+        try {
+            store.replace("key", object("c", 3), created.getVersion());
+            fail("A stale version must be refused");
+        } catch (VersionConflictException e) {
+            assertEquals(merged.getVersion(), e.getCurrentVersion());
+        }
+        assertEquals(merged.getJson(), store.get("key").getJson());
+
+        // A value handed out cannot change the stored one
+        store.get("key").getValue().addProperty("d", 4);
+        assertEquals(merged.getJson(), store.get("key").getJson());
+
+        assertNull(store.merge("missing", object("a", 1), DataStore.ANY_VERSION));
+        assertNull(store.replace("missing", object("a", 1), DataStore.ANY_VERSION));
+        assertEquals(merged.getVersion(), store.remove("key", merged.getVersion()).getVersion());
+        assertNull(store.get("key"));
+        assertTrue(store.put("key", object("a", 1)).getVersion() > merged.getVersion());
+    }
+
+    @Test
+    public void testConcurrentMergesLoseNoUpdates() throws InterruptedException {
+        DataStore store = new InMemoryDataStore();
+        long initialVersion = store.put("shared", new JsonObject()).getVersion();
+        store.put("counter", object("count", 0));
+        int threads = 8;
+        int rounds = 2000;
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            String field = "field" + t;
+            Thread worker = new Thread(() -> {
+                for (int i = 1; i <= rounds; i++) {
+                    // Every thread patches its own field of the same entry
+                    store.merge("shared", object(field, i), DataStore.ANY_VERSION);
+                    // Read-modify-write with compare-and-set, retried on conflicts
+                    while (true) {
+                        Versioned current = store.get("counter");
+                        int count = current.getValue().get("count").getAsInt();
+                        try {
+                            store.replace("counter", object("count", count + 1), current.getVersion());
+                            break;
+                        } catch (VersionConflictException e) {
+                            // Someone else incremented it first
+                        }
+                    }
+                }
+            });
+            workers.add(worker);
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        Versioned shared = store.get("shared");
+        for (int t = 0; t < threads; t++) {
+            assertEquals(rounds, shared.getValue().get("field" + t).getAsInt());
+        }
+        assertEquals(initialVersion + threads * rounds, shared.getVersion());
+        assertEquals(threads * rounds, store.get("counter").getValue().get("count").getAsInt());
+    }
+}
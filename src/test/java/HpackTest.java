@@ -0,0 +1,74 @@
+import org.example.http2.HpackDecoder;
+import org.example.http2.HpackEncoder;
+import org.example.http2.Http2Exception;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class HpackTest {
+
+    private static byte[] hex(String text) {
+        text = text.replace(" ", "");
+        byte[] bytes = new byte[text.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(text.substring(2 * i, 2 * i + 2), 16);
+        }
+        return bytes;
+    }
+
+    private static List<String> decode(HpackDecoder decoder, byte[] block) throws Http2Exception {
+        List<String> fields = new ArrayList<>();
+        assertTrue(decoder.decode(block, 0, block.length, (name, value) -> fields.add(name + ": " + value)));
+        return fields;
+    }
+
+    @Test
+    public void testDecodesHuffmanRequestsWithDynamicTable() throws Http2Exception {
+        // RFC 7541, appendix C.4
+        HpackDecoder decoder = new HpackDecoder(4096, 8192);
+        assertEquals(List.of(":method: GET", ":scheme: http", ":path: /", ":authority: www.example.com"),
+                decode(decoder, hex("8286 8441 8cf1 e3c2 e5f2 3a6b a0ab 90f4 ff")));
+        assertEquals(List.of(":method: GET", ":scheme: http", ":path: /", ":authority: www.example.com",
+                        "cache-control: no-cache"),
+                decode(decoder, hex("8286 84be 5886 a8eb 1064 9cbf")));
+        assertEquals(List.of(":method: GET", ":scheme: https", ":path: /index.html", ":authority: www.example.com",
+                        "custom-key: custom-value"),
+                decode(decoder, hex("8287 85bf 4088 25a8 49e9 5ba9 7d7f 8925 a849 e95b b8e8 b4bf")));
+    }
+
+    @Test
+    public void testEncoderIndexesRepeatedFields() throws Http2Exception {
+        HpackEncoder encoder = new HpackEncoder();
+        HpackDecoder decoder = new HpackDecoder(4096, 8192);
+        int[] sizes = new int[2];
+        for (int i = 0; i < 2; i++) {
+            ByteArrayOutputStream block = new ByteArrayOutputStream();
+            encoder.beginBlock(block);
+            encoder.encode(":status", "200", block);
+            encoder.encode("content-type", "application/json", block);
+            encoder.encode("set-cookie", "session=abc", block);
+            encoder.encode("content-length", Integer.toString(100 + i), block);
+            sizes[i] = block.size();
+            assertEquals(List.of(":status: 200", "content-type: application/json", "set-cookie: session=abc",
+                    "content-length: " + (100 + i)), decode(decoder, block.toByteArray()));
+        }
+        // The content type is sent as an index the second time; the cookie is never indexed
+        assertTrue(sizes[1] < sizes[0]);
+
+        encoder.setMaxTableSize(0);
+        ByteArrayOutputStream block = new ByteArrayOutputStream();
+        encoder.beginBlock(block);
+        encoder.encode("content-type", "application/json", block);
+        assertEquals(List.of("content-type: application/json"), decode(decoder, block.toByteArray()));
+    }
+
+    @Test(expected = Http2Exception.class)
+    public void testRejectsIndexOutsideTable() throws Http2Exception {
+        new HpackDecoder(4096, 8192).decode(hex("be"), 0, 1, (name, value) -> {
+        });
+    }
+}
@@ -0,0 +1,142 @@
+import org.example.http.HttpParseException;
+import org.example.http.HttpRequestParser;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class HttpRequestParserTest {
+
+    private static ByteBuffer bytes(String text) {
+        return ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testParsesRequestSplitAcrossReads() throws HttpParseException {
+        HttpRequestParser parser = new HttpRequestParser(8192, 1024);
+        String request = "POST /submit HTTP/1.1\r\ncontent-type: application/json\r\nContent-Length: 9\r\n\r\n{\"a\":\"b\"}";
+        ByteBuffer buffer = ByteBuffer.allocate(256);
+
+        boolean complete = false;
+        for (byte b : request.getBytes(StandardCharsets.UTF_8)) {
+            assertFalse(complete);
+            buffer.put(b);
+            buffer.flip();
+            complete = parser.parse(buffer);
+            buffer.compact();
+        }
+
+        assertTrue(complete);
+        assertEquals("POST", parser.getMethod());
+        assertEquals("/submit", parser.getPath());
+        assertEquals("HTTP/1.1", parser.getVersion());
+        assertEquals("application/json", parser.getHeaders().get("Content-Type"));
+        assertEquals("{\"a\":\"b\"}", new String(parser.getBody(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testLeavesFollowingRequestInBuffer() throws HttpParseException {
+        HttpRequestParser parser = new HttpRequestParser(8192, 1024);
+        ByteBuffer buffer = bytes("GET / HTTP/1.1\r\nHost: a\r\n\r\nGET /data HTTP/1.1\r\n\r\n");
+
+        assertTrue(parser.parse(buffer));
+        assertEquals("/", parser.getPath());
+        parser.reset();
+        assertTrue(parser.parse(buffer));
+        assertEquals("/data", parser.getPath());
+        assertFalse(buffer.hasRemaining());
+    }
+
+    @Test
+    public void testBodyLargerThanOneKilobyte() throws HttpParseException {
+        HttpRequestParser parser = new HttpRequestParser(8192, 64 * 1024);
+        String body = "x".repeat(5000);
+        ByteBuffer buffer = bytes("PUT /update HTTP/1.1\r\nContent-Length: 5000\r\n\r\n" + body);
+
+        assertTrue(parser.parse(buffer));
+        assertEquals(body, new String(parser.getBody(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testRejectsOversizedContentLength() {
+        HttpRequestParser parser = new HttpRequestParser(8192, 1024);
+        try {
+            parser.parse(bytes("POST /submit HTTP/1.1\r\nContent-Length: 4096\r\n\r\n"));
+            fail("Expected 413");
+        } catch (HttpParseException e) {
+            assertEquals(413, e.getStatusCode());
+        }
+    }
+
+    @Test
+    public void testRejectsOversizedHeaders() {
+        HttpRequestParser parser = new HttpRequestParser(64, 1024);
+        try {
+            parser.parse(bytes("GET / HTTP/1.1\r\nX-Long: " + "y".repeat(100)));
+            fail("Expected 431");
+        } catch (HttpParseException e) {
+            assertEquals(431, e.getStatusCode());
+        }
+    }
+
+    @Test
+    public void testDecodesChunkedBodySplitAcrossReads() throws HttpParseException {
+        HttpRequestParser parser = new HttpRequestParser(8192, 1024);
+        String request = "POST /submit HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n"
+                + "4;ext=1\r\nWiki\r\n5\r\npedia\r\n0\r\nX-Trailer: t\r\n\r\nGET / HTTP/1.1\r\n\r\n";
+        ByteBuffer buffer = ByteBuffer.allocate(256);
+
+        boolean complete = false;
+        for (byte b : request.getBytes(StandardCharsets.UTF_8)) {
+            buffer.put(b);
+            buffer.flip();
+            complete = complete || parser.parse(buffer);
+            buffer.compact();
+        }
+
+        assertTrue(complete);
+        assertEquals(-1, parser.getContentLength());
+        assertEquals("Wikipedia", new String(parser.getBody(), StandardCharsets.UTF_8));
+        buffer.flip();
+        assertEquals("GET / HTTP/1.1\r\n\r\n", StandardCharsets.UTF_8.decode(buffer).toString());
+    }
+
+    @Test
+    public void testHeadIsCompleteBeforeBody() throws HttpParseException {
+        HttpRequestParser parser = new HttpRequestParser(8192, 1024);
+        ByteBuffer buffer = bytes("POST /submit HTTP/1.1\r\nContent-Length: 10\r\n\r\n12345");
+
+        assertTrue(parser.parseHead(buffer));
+        assertTrue(parser.isAwaitingBody());
+        assertEquals("12345", StandardCharsets.UTF_8.decode(parser.readBody(buffer)).toString());
+        assertNull(parser.readBody(buffer));
+        assertFalse(parser.isComplete());
+    }
+
+    @Test
+    public void testRejectsOversizedChunkedBody() throws HttpParseException {
+        HttpRequestParser parser = new HttpRequestParser(8192, 8);
+        ByteBuffer buffer = bytes("POST /submit HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n5\r\n12345\r\n5\r\n");
+        assertTrue(parser.parseHead(buffer));
+        parser.readBody(buffer);
+        try {
+            parser.readBody(buffer);
+            fail("Expected 413");
+        } catch (HttpParseException e) {
+            assertEquals(413, e.getStatusCode());
+        }
+    }
+
+    @Test
+    public void testRejectsContentLengthWithChunked() {
+        HttpRequestParser parser = new HttpRequestParser(8192, 1024);
+        try {
+            parser.parse(bytes("POST / HTTP/1.1\r\nTransfer-Encoding: chunked\r\nContent-Length: 3\r\n\r\n"));
+            fail("Expected 400");
+        } catch (HttpParseException e) {
+            assertEquals(400, e.getStatusCode());
+        }
+    }
+}
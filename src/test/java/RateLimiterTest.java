@@ -0,0 +1,90 @@
+import org.example.server.RateLimiter;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RateLimiterTest {
+    private static final long SECOND = 1_000_000_000L;
+
+    @Test
+    public void testBurstThenSteadyRate() {
+        RateLimiter limiter = new RateLimiter(RateLimiter.Key.CLIENT_ADDRESS, 10, 5);
+        long now = 1_000 * SECOND;
+        for (int i = 0; i < 5; i++) {
+            assertEquals(0, limiter.tryAcquire("client", now));
+        }
+        // A token comes back every 100 ms
+        assertEquals(SECOND / 10, limiter.tryAcquire("client", now));
+        assertEquals(SECOND / 20, limiter.tryAcquire("client", now + SECOND / 20));
+        assertEquals(0, limiter.tryAcquire("client", now + SECOND / 10));
+        assertTrue(limiter.tryAcquire("client", now + SECOND / 10) > 0);
+        // Other clients have their own bucket
+        assertEquals(0, limiter.tryAcquire("other", now));
+        // An idle client gets the full burst back, not more
+        long later = now + 10 * SECOND;
+        for (int i = 0; i < 5; i++) {
+            assertEquals(0, limiter.tryAcquire("client", later));
+        }
+        assertTrue(limiter.tryAcquire("client", later) > 0);
+    }
+
+    @Test
+    public void testClientTableStaysBounded() {
+        RateLimiter limiter = new RateLimiter(RateLimiter.Key.CLIENT_ADDRESS, 1, 1, 1000);
+        long now = 1_000 * SECOND;
+        for (int i = 0; i < 100_000; i++) {
+            limiter.tryAcquire("client" + i, now + i);
+        }
+        assertTrue("clients " + limiter.getClientCount(), limiter.getClientCount() <= 1000);
+    }
+
+    @Test
+    public void testFullTableRefusesNewClients() {
+        RateLimiter limiter = new RateLimiter(RateLimiter.Key.CLIENT_ADDRESS, 1, 1, 10);
+        long now = 1_000 * SECOND;
+        for (int i = 0; i < 10; i++) {
+            assertEquals(0, limiter.tryAcquire("client" + i, now));
+        }
+        // Every bucket is empty: a new client waits instead of pushing one of them out
+        assertTrue(limiter.tryAcquire("new", now) > 0);
+        assertTrue(limiter.tryAcquire("client0", now) > 0);
+        assertEquals(10, limiter.getClientCount());
+        // Once the buckets are full again they are swept and there is room
+        assertEquals(0, limiter.tryAcquire("new", now + SECOND));
+        assertEquals(1, limiter.getClientCount());
+    }
+
+    @Test
+    public void testConcurrentClientsGetExactlyTheBurst() throws InterruptedException {
+        RateLimiter limiter = new RateLimiter(RateLimiter.Key.AUTHORIZATION, 0.001, 1000);
+        long now = 1_000 * SECOND;
+        AtomicInteger passed = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < 10_000; i++) {
+                    if (limiter.tryAcquire("token", now) == 0) {
+                        passed.incrementAndGet();
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        // No token is handed out twice under contention
+        assertEquals(1000, passed.get());
+    }
+}
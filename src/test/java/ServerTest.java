@@ -5,21 +5,49 @@ import org.apache.hc.client5.http.impl.classic.HttpClients;
 import org.apache.hc.core5.http.ParseException;
 import org.apache.hc.core5.http.io.entity.EntityUtils;
 import org.apache.hc.core5.http.io.entity.StringEntity;
+import org.example.auth.AuthService;
+import org.example.buffer.BufferPool;
 import org.example.handlers.HttpRequestHandler;
+import org.example.handlers.StaticFileHandler;
+import org.example.http.HttpResult;
 import org.example.server.HttpServer;
+import org.example.server.HttpServerConfig;
+import org.example.server.RateLimiter;
+import org.example.store.DurableDataStore;
+import org.example.store.WriteAheadLog;
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.FixMethodOrder;
 import org.junit.Test;
 import org.junit.runners.MethodSorters;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 @FixMethodOrder(MethodSorters.NAME_ASCENDING)
 public class ServerTest {
@@ -32,6 +60,41 @@ public class ServerTest {
         handler.setServiceAvailable(true);
         handler.setExternalServiceAvailable(true);
         handler.registerHandlers(server);
+        server.addHandler("GET", "/async", request ->
+                CompletableFuture.supplyAsync(() -> new HttpResult(200, "Async hello")));
+        server.addHandler("GET", "/async/never", request -> new CompletableFuture<>(), 200);
+        server.addHandler("GET", "/stream", (request, response) -> {
+            try (OutputStream body = response.startStream(200, "text/plain")) {
+                for (int i = 0; i < 3; i++) {
+                    body.write(("part" + i + ";").getBytes(StandardCharsets.UTF_8));
+                    body.flush();
+                }
+            }
+        });
+        server.addHandler("POST", "/upload/count", (request, response) -> {
+            // Reads the body incrementally without aggregating it
+            long total = 0;
+            byte[] chunk = new byte[8192];
+            InputStream body = request.getRequestBody().getInputStream();
+            for (int read; (read = body.read(chunk)) != -1; ) {
+                total += read;
+            }
+            response.send(200, Long.toString(total));
+        });
+        server.addHandler("GET", "/huge", (request, response) -> response.send(200, "0123456789abcdef".repeat(1024 * 1024)));
+        server.addHandler("GET", "/limited", (request, response) -> response.send(200, "OK"));
+        server.setRateLimit("GET", "/limited", new RateLimiter(RateLimiter.Key.AUTHORIZATION, 1, 3));
+        server.addHandler("GET", "/utf8", (request, response) -> response.send(200, "Grüße, € \uD83D\uDE00"));
+        server.addHandler("GET", "/large", (request, response) -> {
+            if (!response.sendCached("large")) {
+                response.send(200, "compressible ".repeat(1000));
+            }
+        });
+        Path staticRoot = Files.createTempDirectory("static");
+        Files.write(staticRoot.resolve("hello.txt"), "0123456789abcdef".getBytes(StandardCharsets.UTF_8));
+        staticRoot.toFile().deleteOnExit();
+        staticRoot.resolve("hello.txt").toFile().deleteOnExit();
+        server.addHandler("GET", "/static/{*file}", new StaticFileHandler(staticRoot));
 
         // Setting a flag to simulate long-term operations
         HttpRequestHandler.setFlagForLongTimeout(false);
@@ -307,4 +370,719 @@ public class ServerTest {
             assertEquals(expectedResponse, responseBody);
         }
     }
+
+    @Test
+    public void ptestKeepAliveConnection() throws IOException {
+        try (Socket socket = new Socket("localhost", 8081)) {
+            OutputStream os = socket.getOutputStream();
+            InputStream is = socket.getInputStream();
+
+            os.write("GET / HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes());
+            os.flush();
+            assertEquals("200: OK\r\nHello, World!", readResponseBody(is));
+
+            // The same connection serves a second request and is closed on request
+            os.write("GET / HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n".getBytes());
+            os.flush();
+            assertEquals("200: OK\r\nHello, World!", readResponseBody(is));
+            assertEquals(-1, is.read());
+        }
+    }
+
+    @Test
+    public void qtestPipelinedRequestsAnsweredInOrder() throws IOException {
+        try (Socket socket = new Socket("localhost", 8081)) {
+            OutputStream os = socket.getOutputStream();
+            InputStream is = socket.getInputStream();
+
+            os.write(("GET / HTTP/1.1\r\nHost: localhost\r\n\r\n" +
+                    "GET /missing HTTP/1.1\r\nHost: localhost\r\n\r\n" +
+                    "GET /secure/user HTTP/1.1\r\nHost: localhost\r\n\r\n" +
+                    "GET / HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n").getBytes());
+            os.flush();
+
+            assertEquals("200: OK\r\nHello, World!", readResponseBody(is));
+            assertEquals("404: Not Found\r\nNot Found", readResponseBody(is));
+            assertEquals("401: Unauthorized\r\nUnauthorized", readResponseBody(is));
+            assertEquals("200: OK\r\nHello, World!", readResponseBody(is));
+            assertEquals(-1, is.read());
+        }
+    }
+
+    @Test
+    public void rtestAsyncHandler() throws IOException, ParseException {
+        CloseableHttpClient httpClient = HttpClients.createDefault();
+        HttpGet request = new HttpGet("http://localhost:8081/async");
+
+        try (CloseableHttpResponse response = httpClient.execute(request)) {
+            String responseBody = EntityUtils.toString(response.getEntity()).trim();
+            responseBody = responseBody.replace("\r\n", "\n");
+
+            assertEquals("200: OK\nAsync hello", responseBody);
+        }
+    }
+
+    @Test
+    public void stestAsyncHandlerRouteDeadline() throws IOException, ParseException {
+        CloseableHttpClient httpClient = HttpClients.createDefault();
+        HttpGet request = new HttpGet("http://localhost:8081/async/never");
+
+        try (CloseableHttpResponse response = httpClient.execute(request)) {
+            String responseBody = EntityUtils.toString(response.getEntity()).trim();
+            responseBody = responseBody.replace("\r\n", "\n");
+
+            assertEquals("504: Gateway Timeout\nGateway Timeout", responseBody);
+        }
+    }
+
+    @Test
+    public void ttestPathParameterAndQueryString() throws IOException, ParseException {
+        CloseableHttpClient httpClient = HttpClients.createDefault();
+        HttpGet request = new HttpGet("http://localhost:8081/data/missing%20key?verbose=true");
+
+        try (CloseableHttpResponse response = httpClient.execute(request)) {
+            String responseBody = EntityUtils.toString(response.getEntity()).trim();
+            responseBody = responseBody.replace("\r\n", "\n");
+
+            assertEquals("404: Not Found\nData not found for key: missing key", responseBody);
+        }
+    }
+
+    @Test
+    public void utestMethodNotAllowed() throws IOException {
+        CloseableHttpClient httpClient = HttpClients.createDefault();
+        HttpDelete request = new HttpDelete("http://localhost:8081/");
+
+        try (CloseableHttpResponse response = httpClient.execute(request)) {
+            assertEquals(405, response.getCode());
+            assertEquals("GET", response.getFirstHeader("Allow").getValue());
+        }
+    }
+
+    @Test
+    public void vtestContentLengthCountsUtf8Bytes() throws IOException {
+        try (Socket socket = new Socket("localhost", 8081)) {
+            OutputStream os = socket.getOutputStream();
+            InputStream is = socket.getInputStream();
+
+            // Two requests on one connection, so a wrong Content-Length would corrupt the second
+            os.write("GET /utf8 HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes());
+            os.write("GET / HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes());
+            os.flush();
+            assertEquals("200: OK\r\nGrüße, € \uD83D\uDE00", readResponseBody(is));
+            assertEquals("200: OK\r\nHello, World!", readResponseBody(is));
+        }
+    }
+
+    @Test
+    public void wtestStreamedResponse() throws IOException, ParseException {
+        CloseableHttpClient httpClient = HttpClients.createDefault();
+        HttpGet request = new HttpGet("http://localhost:8081/stream");
+
+        try (CloseableHttpResponse response = httpClient.execute(request)) {
+            assertEquals("chunked", response.getFirstHeader("Transfer-Encoding").getValue());
+            String responseBody = EntityUtils.toString(response.getEntity());
+
+            assertEquals("200: OK\r\npart0;part1;part2;", responseBody);
+        }
+    }
+
+    @Test
+    public void xtestOversizedUploadRejectedBeforeBody() throws IOException {
+        try (Socket socket = new Socket("localhost", 8081)) {
+            OutputStream os = socket.getOutputStream();
+            InputStream is = socket.getInputStream();
+
+            // Only the head is sent; the 413 must not wait for the body
+            os.write("POST /submit HTTP/1.1\r\nHost: localhost\r\nContent-Type: application/json\r\nContent-Length: 10485760\r\n\r\n".getBytes());
+            os.flush();
+            assertEquals("413: Payload Too Large\r\nPayload Too Large", readResponseBody(is));
+        }
+    }
+
+    @Test
+    public void ytestChunkedUploadReadIncrementally() throws IOException {
+        try (Socket socket = new Socket("localhost", 8081)) {
+            OutputStream os = socket.getOutputStream();
+            InputStream is = socket.getInputStream();
+
+            os.write("POST /upload/count HTTP/1.1\r\nHost: localhost\r\nTransfer-Encoding: chunked\r\n\r\n".getBytes());
+            byte[] chunk = new byte[4000];
+            for (int i = 0; i < 200; i++) {
+                os.write((Integer.toHexString(chunk.length) + "\r\n").getBytes());
+                os.write(chunk);
+                os.write("\r\n".getBytes());
+            }
+            os.write("0\r\n\r\n".getBytes());
+            os.flush();
+            assertEquals("200: OK\r\n800000", readResponseBody(is));
+
+            // The connection is still usable after the chunked body
+            os.write("GET / HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes());
+            os.flush();
+            assertEquals("200: OK\r\nHello, World!", readResponseBody(is));
+        }
+    }
+
+    @Test
+    public void ztestConditionalPatchWithIfMatch() throws IOException {
+        String submit = "{\"key\":\"versioned\",\"value\":\"{\\\"a\\\":\\\"1\\\"}\"}";
+        String patch = "{\"key\":\"versioned\",\"value\":\"{\\\"b\\\":\\\"2\\\"}\"}";
+        try (Socket socket = new Socket("localhost", 8081)) {
+            OutputStream os = socket.getOutputStream();
+            InputStream is = socket.getInputStream();
+            os.write(("POST /submit HTTP/1.1\r\nHost: localhost\r\nContent-Type: application/json\r\nContent-Length: "
+                    + submit.length() + "\r\n\r\n" + submit).getBytes());
+            String head = readHead(is);
+            is.readNBytes(contentLength(head));
+            String etag = header(head, "ETag");
+
+            // A client that read an older version is refused
+            os.write(("PATCH /modify HTTP/1.1\r\nHost: localhost\r\nContent-Type: application/json\r\nIf-Match: \"1\"\r\n"
+                    + "Content-Length: " + patch.length() + "\r\n\r\n" + patch).getBytes());
+            head = readHead(is);
+            assertTrue(head, head.startsWith("HTTP/1.1 412"));
+            is.readNBytes(contentLength(head));
+
+            os.write(("PATCH /modify HTTP/1.1\r\nHost: localhost\r\nContent-Type: application/json\r\nIf-Match: " + etag
+                    + "\r\nContent-Length: " + patch.length() + "\r\n\r\n" + patch).getBytes());
+            head = readHead(is);
+            assertTrue(head, head.startsWith("HTTP/1.1 200"));
+            assertEquals("200: OK\r\nModified entry: versioned = {\"a\":\"1\",\"b\":\"2\"}", new String(is.readNBytes(contentLength(head)), StandardCharsets.UTF_8));
+            String newEtag = header(head, "ETag");
+            assertTrue(newEtag, !newEtag.equals(etag));
+
+            os.write("GET /data/versioned HTTP/1.1\r\nHost: localhost\r\nIf-None-Match: ".getBytes());
+            os.write((newEtag + "\r\n\r\n").getBytes());
+            assertTrue(readHead(is).startsWith("HTTP/1.1 304"));
+        }
+    }
+
+    @Test
+    public void ztestAuthPolicyEnforcedBeforeHandlers() throws IOException {
+        AuthService.registerToken("policy-user", false);
+        AuthService.registerToken("policy-admin", true);
+        try (Socket socket = new Socket("localhost", 8081)) {
+            OutputStream os = socket.getOutputStream();
+            InputStream is = socket.getInputStream();
+            os.write(("GET /secure/user HTTP/1.1\r\nHost: localhost\r\nAuthorization: policy-user\r\n\r\n"
+                    + "GET /secure/admin HTTP/1.1\r\nHost: localhost\r\nAuthorization: policy-user\r\n\r\n"
+                    + "GET /secure/admin HTTP/1.1\r\nHost: localhost\r\nAuthorization: policy-admin\r\n\r\n"
+                    + "GET /secure/user HTTP/1.1\r\nHost: localhost\r\nAuthorization: unknown\r\n\r\n").getBytes());
+            assertEquals("200: OK\r\nYou have access to user data!", readResponseBody(is));
+            assertEquals("403: Forbidden\r\nForbidden", readResponseBody(is));
+            assertEquals("200: OK\r\nYou have access to admin data!", readResponseBody(is));
+            assertEquals("401: Unauthorized\r\nUnauthorized", readResponseBody(is));
+        }
+    }
+
+    @Test
+    public void ztestCompressedResponses() throws IOException {
+        String expected = "200: OK\r\n" + "compressible ".repeat(1000);
+        try (Socket socket = new Socket("localhost", 8081)) {
+            OutputStream os = socket.getOutputStream();
+            InputStream is = socket.getInputStream();
+
+            // The second gzip response comes from the cache of compressed representations
+            for (int i = 0; i < 2; i++) {
+                os.write("GET /large HTTP/1.1\r\nHost: localhost\r\nAccept-Encoding: gzip, deflate\r\n\r\n".getBytes());
+                os.flush();
+                String head = readHead(is);
+                assertTrue(head.contains("Content-Encoding: gzip\r\n"));
+                byte[] body = is.readNBytes(contentLength(head));
+                assertTrue(body.length < expected.length() / 10);
+                assertEquals(expected, new String(new GZIPInputStream(new ByteArrayInputStream(body)).readAllBytes(),
+                        StandardCharsets.UTF_8));
+            }
+            assertTrue(server.getCompression().getCacheHits() > 0);
+
+            os.write("GET /large HTTP/1.1\r\nHost: localhost\r\nAccept-Encoding: gzip;q=0, deflate\r\n\r\n".getBytes());
+            os.flush();
+            String head = readHead(is);
+            assertTrue(head.contains("Content-Encoding: deflate\r\n"));
+            byte[] body = is.readNBytes(contentLength(head));
+            assertEquals(expected, new String(new InflaterInputStream(new ByteArrayInputStream(body)).readAllBytes(),
+                    StandardCharsets.UTF_8));
+
+            // Without Accept-Encoding, and for small bodies, the body is sent as it is
+            os.write("GET /large HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes());
+            os.flush();
+            head = readHead(is);
+            assertTrue(head.contains("Vary: Accept-Encoding\r\n"));
+            assertEquals(expected, new String(is.readNBytes(contentLength(head)), StandardCharsets.UTF_8));
+            os.write("GET / HTTP/1.1\r\nHost: localhost\r\nAccept-Encoding: gzip\r\n\r\n".getBytes());
+            os.flush();
+            assertEquals("200: OK\r\nHello, World!", readResponseBody(is));
+        }
+    }
+
+    @Test
+    public void ztestHttp2MultiplexedRequests() throws Exception {
+        // The JDK client upgrades the first request with "Upgrade: h2c" and multiplexes the rest
+        HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_2).build();
+        HttpResponse<String> first = client.send(
+                HttpRequest.newBuilder(URI.create("http://localhost:8081/")).build(), HttpResponse.BodyHandlers.ofString());
+        assertEquals(HttpClient.Version.HTTP_2, first.version());
+        assertEquals("200: OK\r\nHello, World!", first.body());
+
+        byte[] upload = new byte[300_000];
+        List<CompletableFuture<HttpResponse<String>>> responses = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            responses.add(client.sendAsync(HttpRequest.newBuilder(URI.create("http://localhost:8081/stream")).build(),
+                    HttpResponse.BodyHandlers.ofString()));
+            responses.add(client.sendAsync(HttpRequest.newBuilder(URI.create("http://localhost:8081/upload/count"))
+                    .POST(HttpRequest.BodyPublishers.ofByteArray(upload)).build(), HttpResponse.BodyHandlers.ofString()));
+            responses.add(client.sendAsync(HttpRequest.newBuilder(URI.create("http://localhost:8081/static/hello.txt"))
+                    .header("Range", "bytes=4-7").build(), HttpResponse.BodyHandlers.ofString()));
+        }
+        for (int i = 0; i < responses.size(); i += 3) {
+            HttpResponse<String> streamed = responses.get(i).get(10, TimeUnit.SECONDS);
+            assertEquals(HttpClient.Version.HTTP_2, streamed.version());
+            assertEquals("200: OK\r\npart0;part1;part2;", streamed.body());
+            assertEquals("200: OK\r\n300000", responses.get(i + 1).get(10, TimeUnit.SECONDS).body());
+            HttpResponse<String> range = responses.get(i + 2).get(10, TimeUnit.SECONDS);
+            assertEquals(206, range.statusCode());
+            assertEquals("4567", range.body());
+        }
+
+        HttpResponse<byte[]> compressed = client.send(HttpRequest.newBuilder(URI.create("http://localhost:8081/large"))
+                .header("Accept-Encoding", "gzip").build(), HttpResponse.BodyHandlers.ofByteArray());
+        assertEquals("gzip", compressed.headers().firstValue("content-encoding").orElse(null));
+        assertEquals("200: OK\r\n" + "compressible ".repeat(1000), new String(
+                new GZIPInputStream(new ByteArrayInputStream(compressed.body())).readAllBytes(), StandardCharsets.UTF_8));
+
+        HttpResponse<String> missing = client.send(HttpRequest.newBuilder(URI.create("http://localhost:8081/missing")).build(),
+                HttpResponse.BodyHandlers.ofString());
+        assertEquals(HttpClient.Version.HTTP_2, missing.version());
+        assertEquals(404, missing.statusCode());
+    }
+
+    @Test
+    public void ztestStaticFileRangesAndConditionalGet() throws IOException, ParseException {
+        CloseableHttpClient httpClient = HttpClients.createDefault();
+        String etag;
+        try (CloseableHttpResponse response = httpClient.execute(new HttpGet("http://localhost:8081/static/hello.txt"))) {
+            assertEquals(200, response.getCode());
+            assertEquals("0123456789abcdef", EntityUtils.toString(response.getEntity()));
+            etag = response.getFirstHeader("ETag").getValue();
+        }
+
+        HttpGet range = new HttpGet("http://localhost:8081/static/hello.txt");
+        range.setHeader("Range", "bytes=4-7");
+        try (CloseableHttpResponse response = httpClient.execute(range)) {
+            assertEquals(206, response.getCode());
+            assertEquals("bytes 4-7/16", response.getFirstHeader("Content-Range").getValue());
+            assertEquals("4567", EntityUtils.toString(response.getEntity()));
+        }
+
+        HttpGet unsatisfiable = new HttpGet("http://localhost:8081/static/hello.txt");
+        unsatisfiable.setHeader("Range", "bytes=100-");
+        try (CloseableHttpResponse response = httpClient.execute(unsatisfiable)) {
+            assertEquals(416, response.getCode());
+            assertEquals("bytes */16", response.getFirstHeader("Content-Range").getValue());
+            EntityUtils.consume(response.getEntity());
+        }
+
+        HttpGet conditional = new HttpGet("http://localhost:8081/static/hello.txt");
+        conditional.setHeader("If-None-Match", etag);
+        try (CloseableHttpResponse response = httpClient.execute(conditional)) {
+            assertEquals(304, response.getCode());
+        }
+
+        try (CloseableHttpResponse response = httpClient.execute(new HttpGet("http://localhost:8081/static/../pom.xml"))) {
+            assertEquals(404, response.getCode());
+            EntityUtils.consume(response.getEntity());
+        }
+    }
+
+    @Test
+    public void ztestStaticFileStaleIfRangeInLowercase() throws IOException {
+        try (Socket socket = new Socket("localhost", 8081)) {
+            OutputStream os = socket.getOutputStream();
+            InputStream is = socket.getInputStream();
+            // The validator of an older version of the file: the whole new file, not a part of it
+            os.write(("GET /static/hello.txt HTTP/1.1\r\nhost: localhost\r\nrange: bytes=4-7\r\n"
+                    + "if-range: \"stale\"\r\n\r\n").getBytes());
+            String head = readHead(is);
+            assertTrue(head, head.startsWith("HTTP/1.1 200"));
+            assertEquals("0123456789abcdef", new String(is.readNBytes(contentLength(head)), StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    public void ztestUnfinishedRequestHeadTimesOut() throws IOException {
+        long timeouts = server.getMetrics().getHeaderReadTimeouts();
+        server.getConfig().setHeaderReadTimeoutMillis(300);
+        try (Socket socket = new Socket("localhost", 8081)) {
+            OutputStream os = socket.getOutputStream();
+            InputStream is = socket.getInputStream();
+
+            os.write("GET / HTTP/1.1\r\nHost: localhost\r\nX-Slow:".getBytes());
+            os.flush();
+            assertEquals("408: Request Timeout\r\nRequest Timeout", readResponseBody(is));
+            assertEquals(-1, is.read());
+            assertEquals(timeouts + 1, server.getMetrics().getHeaderReadTimeouts());
+        } finally {
+            server.getConfig().setHeaderReadTimeoutMillis(10_000);
+        }
+    }
+
+    @Test
+    public void ztestOverloadAnsweredWithRetryAfter() throws Exception {
+        HttpServerConfig config = new HttpServerConfig();
+        config.setReactorCount(1);
+        config.setMaxConcurrentHandlers(1);
+        config.setMaxQueuedRequests(1);
+        config.setMaxQueueWaitMillis(10_000);
+        config.setMaxConnections(3);
+        HttpServer small = new HttpServer("localhost", 8082, config);
+        CountDownLatch release = new CountDownLatch(1);
+        small.addHandler("GET", "/block", (request, response) -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                return;
+            }
+            response.send(200, "released");
+        });
+        new Thread(() -> {
+            try {
+                small.start();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }).start();
+        Thread.sleep(300);
+
+        try (Socket running = new Socket("localhost", 8082);
+             Socket queued = new Socket("localhost", 8082);
+             Socket shed = new Socket("localhost", 8082)) {
+            for (Socket socket : new Socket[]{running, queued, shed}) {
+                socket.getOutputStream().write("GET /block HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes());
+                Thread.sleep(200);
+            }
+            // The handler slot and the queue slot are taken
+            String head = readHead(shed.getInputStream());
+            assertTrue(head, head.startsWith("HTTP/1.1 503"));
+            assertTrue(head, head.contains("Retry-After: 1\r\n"));
+
+            // A fourth connection is over the connection limit
+            try (Socket refused = new Socket("localhost", 8082)) {
+                InputStream is = refused.getInputStream();
+                assertTrue(readHead(is).startsWith("HTTP/1.1 503"));
+                assertEquals(-1, is.read());
+            }
+
+            release.countDown();
+            assertEquals("200: OK\r\nreleased", readResponseBody(running.getInputStream()));
+            assertEquals("200: OK\r\nreleased", readResponseBody(queued.getInputStream()));
+            assertEquals(1, small.getMetrics().getShedRequests());
+            assertEquals(1, small.getMetrics().getRejectedConnections());
+        } finally {
+            release.countDown();
+            small.stop();
+        }
+    }
+
+    @Test
+    public void ztestVirtualThreadHandlers() throws Exception {
+        HttpServerConfig config = new HttpServerConfig();
+        config.setExecutionMode(HttpServerConfig.ExecutionMode.VIRTUAL_THREADS);
+        config.setMaxConcurrentHandlers(2);
+        config.setMaxQueuedRequests(10);
+        config.setMaxQueueWaitMillis(10_000);
+        config.setBufferPoolDebug(true);
+        HttpServer virtual = new HttpServer("localhost", 8083, config);
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        AtomicBoolean platformThread = new AtomicBoolean();
+        virtual.addHandler("GET", "/slow", (request, response) -> {
+            maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+            if (!Thread.currentThread().isVirtual()) {
+                platformThread.set(true);
+            }
+            try {
+                Thread.sleep(200);
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                running.decrementAndGet();
+            }
+            response.send(200, "slow");
+        });
+        CountDownLatch release = new CountDownLatch(1);
+        virtual.addHandler("GET", "/block", (request, response) -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                return;
+            }
+            response.send(200, "released");
+        }, 10_000);
+        AtomicBoolean waiterRan = new AtomicBoolean();
+        virtual.addHandler("GET", "/wait", (request, response) -> {
+            waiterRan.set(true);
+            response.send(200, "ran");
+        }, 300);
+        new Thread(() -> {
+            try {
+                virtual.start();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }).start();
+        Thread.sleep(300);
+
+        try {
+            // Six slow requests at once all complete, but never more than two run at a time
+            List<Socket> sockets = new ArrayList<>();
+            try {
+                for (int i = 0; i < 6; i++) {
+                    Socket socket = new Socket("localhost", 8083);
+                    sockets.add(socket);
+                    socket.getOutputStream().write("GET /slow HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes());
+                }
+                for (Socket socket : sockets) {
+                    assertEquals("200: OK\r\nslow", readResponseBody(socket.getInputStream()));
+                }
+            } finally {
+                for (Socket socket : sockets) {
+                    socket.close();
+                }
+            }
+            assertEquals(2, maxRunning.get());
+            assertFalse(platformThread.get());
+
+            // With both permits taken, a request waiting for one is answered 504 when its timeout expires
+            try (Socket first = new Socket("localhost", 8083);
+                 Socket second = new Socket("localhost", 8083);
+                 Socket waiting = new Socket("localhost", 8083)) {
+                first.getOutputStream().write("GET /block HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes());
+                second.getOutputStream().write("GET /block HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes());
+                Thread.sleep(200);
+                waiting.getOutputStream().write("GET /wait HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes());
+                assertEquals("504: Gateway Timeout\r\nGateway Timeout", readResponseBody(waiting.getInputStream()));
+
+                release.countDown();
+                assertEquals("200: OK\r\nreleased", readResponseBody(first.getInputStream()));
+                assertEquals("200: OK\r\nreleased", readResponseBody(second.getInputStream()));
+            }
+            assertFalse(waiterRan.get());
+
+            // The interrupted waiter did not keep a permit: two requests still run side by side
+            maxRunning.set(0);
+            try (Socket first = new Socket("localhost", 8083);
+                 Socket second = new Socket("localhost", 8083)) {
+                first.getOutputStream().write("GET /slow HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes());
+                second.getOutputStream().write("GET /slow HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes());
+                assertEquals("200: OK\r\nslow", readResponseBody(first.getInputStream()));
+                assertEquals("200: OK\r\nslow", readResponseBody(second.getInputStream()));
+            }
+            assertEquals(2, maxRunning.get());
+
+            // Buffers acquired and released on virtual threads all went back to the pool
+            BufferPool.Stats stats = virtual.getBufferPool().getStats();
+            for (int i = 0; i < 100 && stats.getOutstanding() != 0; i++) {
+                Thread.sleep(20);
+                stats = virtual.getBufferPool().getStats();
+            }
+            assertEquals(stats.toString(), stats.getAcquired(), stats.getReleased());
+            assertEquals(0, virtual.getBufferPool().reportLeaks());
+        } finally {
+            release.countDown();
+            virtual.stop();
+        }
+    }
+
+    @Test
+    public void ztestStopLetsRunningHandlersFinish() throws Exception {
+        HttpServer stopping = new HttpServer("localhost", 8085);
+        DurableDataStore dataStore = new DurableDataStore(Files.createTempDirectory("store"), WriteAheadLog.Durability.SYNC, 1000);
+        new HttpRequestHandler(dataStore).registerHandlers(stopping);
+        stopping.addHandler("GET", "/slow", (request, response) -> {
+            try {
+                Thread.sleep(500);
+            } catch (InterruptedException e) {
+                return;
+            }
+            response.send(200, "finished");
+        });
+        new Thread(() -> {
+            try {
+                stopping.start();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }).start();
+        Thread.sleep(300);
+
+        Thread stopper = new Thread(() -> {
+            try {
+                stopping.stop(5000);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        try (Socket running = new Socket("localhost", 8085)) {
+            running.getOutputStream().write("GET /slow HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes());
+            Thread.sleep(100);
+            stopper.start();
+            // The handler started before the stop still gets to answer
+            assertEquals("200: OK\r\nfinished", readResponseBody(running.getInputStream()));
+        } finally {
+            stopper.join();
+            dataStore.close();
+        }
+
+        // A change that reaches a closed store is refused as unavailable, not as a bad request
+        HttpServer closed = new HttpServer("localhost", 8086);
+        new HttpRequestHandler(dataStore).registerHandlers(closed);
+        new Thread(() -> {
+            try {
+                closed.start();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }).start();
+        Thread.sleep(300);
+        String body = "{\"key\":\"late\",\"value\":\"{\\\"a\\\":1}\"}";
+        try (Socket socket = new Socket("localhost", 8086)) {
+            socket.getOutputStream().write(("POST /submit HTTP/1.1\r\nHost: localhost\r\nContent-Type: application/json\r\n"
+                    + "Content-Length: " + body.length() + "\r\n\r\n" + body).getBytes());
+            assertEquals("503: Service Unavailable\r\nService Unavailable", readResponseBody(socket.getInputStream()));
+        } finally {
+            closed.stop();
+        }
+    }
+
+    @Test
+    public void ztestLoginAttemptsRateLimited() throws IOException {
+        String body = "{\"username\":\"guess\",\"password\":\"guess\"}";
+        String login = "POST /login HTTP/1.1\r\nHost: localhost\r\nContent-Length: " + body.length() + "\r\n\r\n" + body;
+        try (Socket socket = new Socket("localhost", 8081)) {
+            OutputStream os = socket.getOutputStream();
+            InputStream is = socket.getInputStream();
+            // The burst of ten attempts passes, the next one has to wait for a token
+            for (int i = 0; i < 10; i++) {
+                os.write(login.getBytes());
+                assertEquals("401: Unauthorized\r\nInvalid credentials", readResponseBody(is));
+            }
+            os.write(login.getBytes());
+            String head = readHead(is);
+            assertTrue(head, head.startsWith("HTTP/1.1 429"));
+            assertTrue(head, head.contains("Retry-After: 1\r\n"));
+            is.readNBytes(contentLength(head));
+            assertEquals(1, server.getMetrics().getRateLimitedRequests());
+        }
+    }
+
+    @Test
+    public void ztestLargeResponseToSlowReader() throws IOException, InterruptedException {
+        try (Socket socket = new Socket()) {
+            // A small receive window, so the server's writes stay partial until the client reads
+            socket.setReceiveBufferSize(8192);
+            socket.connect(new InetSocketAddress("localhost", 8081));
+            socket.getOutputStream().write(("GET /huge HTTP/1.1\r\nHost: localhost\r\n\r\n"
+                    + "GET /utf8 HTTP/1.1\r\nHost: localhost\r\n\r\n").getBytes());
+            InputStream is = socket.getInputStream();
+            String head = readHead(is);
+            assertTrue(head, head.startsWith("HTTP/1.1 200"));
+            int length = contentLength(head);
+            assertEquals("200: OK\r\n".length() + 16 * 1024 * 1024, length);
+            byte[] chunk = new byte[16 * 1024];
+            long total = 0;
+            boolean intact = true;
+            while (total < length) {
+                int read = is.read(chunk, 0, (int) Math.min(chunk.length, length - total));
+                assertTrue("Connection closed after " + total + " bytes", read > 0);
+                for (int i = 0; i < read; i++) {
+                    long position = total + i - "200: OK\r\n".length();
+                    intact &= position < 0 || chunk[i] == "0123456789abcdef".charAt((int) (position % 16));
+                }
+                total += read;
+                if (total < 512 * 1024) {
+                    Thread.sleep(1);
+                }
+            }
+            assertTrue(intact);
+            // The pipelined request behind it is still answered
+            assertEquals("200: OK\r\nGrüße, € \uD83D\uDE00", readResponseBody(is));
+        }
+    }
+
+    @Test
+    public void ztestRedirectBodyUnchanged() throws IOException {
+        try (Socket socket = new Socket("localhost", 8081)) {
+            socket.getOutputStream().write("GET /redirect HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes());
+            InputStream is = socket.getInputStream();
+            String head = readHead(is);
+            assertTrue(head, head.startsWith("HTTP/1.1 302"));
+            assertTrue(head, head.contains("Location: http://example.com\r\n"));
+            assertEquals("Found: http://example.com", new String(is.readNBytes(contentLength(head)), StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    public void ztestRotatingAuthorizationRateLimited() throws IOException {
+        try (Socket socket = new Socket("localhost", 8081)) {
+            OutputStream os = socket.getOutputStream();
+            InputStream is = socket.getInputStream();
+            // Made-up tokens share the bucket of the client's address
+            for (int i = 0; i < 3; i++) {
+                os.write(("GET /limited HTTP/1.1\r\nHost: localhost\r\nAuthorization: made-up-" + i + "\r\n\r\n").getBytes());
+                assertEquals("200: OK\r\nOK", readResponseBody(is));
+            }
+            os.write("GET /limited HTTP/1.1\r\nHost: localhost\r\nAuthorization: made-up-3\r\n\r\n".getBytes());
+            String head = readHead(is);
+            assertTrue(head, head.startsWith("HTTP/1.1 429"));
+            is.readNBytes(contentLength(head));
+
+            // A verified token has a bucket of its own
+            String token = AuthService.issueToken(false);
+            os.write(("GET /limited HTTP/1.1\r\nHost: localhost\r\nAuthorization: " + token + "\r\n\r\n").getBytes());
+            assertEquals("200: OK\r\nOK", readResponseBody(is));
+        }
+    }
+
+    /**
+     * Reads one response with a Content-Length body from the stream and returns its body.
+     */
+    private static String readResponseBody(InputStream is) throws IOException {
+        String head = readHead(is);
+        byte[] body = is.readNBytes(contentLength(head));
+        return new String(body, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reads the status line and headers of one response.
+     */
+    private static String readHead(InputStream is) throws IOException {
+        StringBuilder head = new StringBuilder();
+        while (!head.toString().endsWith("\r\n\r\n")) {
+            int b = is.read();
+            if (b == -1) {
+                throw new IOException("Connection closed before the response headers");
+            }
+            head.append((char) b);
+        }
+        return head.toString();
+    }
+
+    private static String header(String head, String name) {
+        for (String line : head.split("\r\n")) {
+            if (line.toLowerCase().startsWith(name.toLowerCase() + ":")) {
+                return line.substring(name.length() + 1).trim();
+            }
+        }
+        return null;
+    }
+
+    private static int contentLength(String head) {
+        for (String line : head.split("\r\n")) {
+            if (line.toLowerCase().startsWith("content-length:")) {
+                return Integer.parseInt(line.substring("content-length:".length()).trim());
+            }
+        }
+        return 0;
+    }
 }
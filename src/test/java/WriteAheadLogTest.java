@@ -0,0 +1,257 @@
+import com.google.gson.JsonObject;
+import org.example.store.DataStore;
+import org.example.store.DurableDataStore;
+import org.example.store.StoreClosedException;
+import org.example.store.WriteAheadLog;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class WriteAheadLogTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static JsonObject object(String field, int value) {
+        JsonObject object = new JsonObject();
+        object.addProperty(field, value);
+        return object;
+    }
+
+    @Test
+    public void testClosedStoreRefusesChanges() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        DurableDataStore store = new DurableDataStore(directory, WriteAheadLog.Durability.SYNC, 1000);
+        store.put("kept", object("a", 1));
+        store.close();
+        try {
+            store.put("lost", object("a", 1));
+            fail("A closed store accepted a change");
+        } catch (StoreClosedException e) {
+            // Expected
+        }
+        // The refused change is not visible either
+        assertNull(store.get("lost"));
+        try (DurableDataStore reopened = new DurableDataStore(directory, WriteAheadLog.Durability.SYNC, 1000)) {
+            assertEquals("{\"a\":1}", reopened.get("kept").getJson());
+            assertNull(reopened.get("lost"));
+        }
+    }
+
+    @Test
+    public void testChangesSurviveRestart() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        long version;
+        try (DurableDataStore store = new DurableDataStore(directory, WriteAheadLog.Durability.SYNC, 1000)) {
+            store.put("kept", object("a", 1));
+            store.put("removed", object("a", 1));
+            store.merge("kept", object("b", 2), DataStore.ANY_VERSION);
+            store.remove("removed", DataStore.ANY_VERSION);
+            version = store.get("kept").getVersion();
+        }
+        try (DurableDataStore store = new DurableDataStore(directory, WriteAheadLog.Durability.SYNC, 1000)) {
+            assertEquals("{\"a\":1,\"b\":2}", store.get("kept").getJson());
+            assertEquals(version, store.get("kept").getVersion());
+            assertNull(store.get("removed"));
+        }
+    }
+
+    @Test
+    public void testRecreatedKeyKeepsIncreasingVersionsAcrossRestarts() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        long removedVersion;
+        try (DurableDataStore store = new DurableDataStore(directory, WriteAheadLog.Durability.SYNC, 1000)) {
+            store.put("other", object("a", 1));
+            store.put("key", object("a", 1));
+            for (int i = 0; i < 10; i++) {
+                store.merge("key", object("n", i), DataStore.ANY_VERSION);
+            }
+            removedVersion = store.remove("key", DataStore.ANY_VERSION).getVersion();
+            assertTrue(store.get("other").getVersion() > 0);
+        }
+        // Once from the log and once from a snapshot that no longer holds the key
+        for (int restart = 0; restart < 2; restart++) {
+            try (DurableDataStore store = new DurableDataStore(directory, WriteAheadLog.Durability.SYNC, 1000)) {
+                long version = store.put("key", object("a", 2)).getVersion();
+                assertTrue(version + " after " + removedVersion, version > removedVersion);
+                removedVersion = store.remove("key", DataStore.ANY_VERSION).getVersion();
+                store.snapshot();
+            }
+        }
+    }
+
+    @Test
+    public void testTornRecordIsDropped() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        try (DurableDataStore store = new DurableDataStore(directory, WriteAheadLog.Durability.NONE, 1000)) {
+            store.put("first", object("a", 1));
+            store.put("second", object("a", 2));
+        }
+        // A crash in the middle of the last record
+        Path log = directory.resolve("wal-1.log");
+        try (FileChannel channel = FileChannel.open(log, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 3);
+            channel.write(ByteBuffer.wrap(new byte[]{1, 2}), channel.size());
+        }
+        try (DurableDataStore store = new DurableDataStore(directory, WriteAheadLog.Durability.SYNC, 1000)) {
+            assertEquals("{\"a\":1}", store.get("first").getJson());
+            assertNull(store.get("second"));
+            store.put("third", object("a", 3));
+        }
+        try (DurableDataStore store = new DurableDataStore(directory, WriteAheadLog.Durability.SYNC, 1000)) {
+            assertEquals("{\"a\":3}", store.get("third").getJson());
+        }
+    }
+
+    @Test
+    public void testConcurrentChangesShareSyncs() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        int threads = 16;
+        int changes = 50;
+        try (DurableDataStore store = new DurableDataStore(directory, WriteAheadLog.Durability.SYNC, 1000)) {
+            List<Thread> writers = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                String key = "key" + t;
+                Thread writer = new Thread(() -> {
+                    for (int i = 1; i <= changes; i++) {
+                        store.put(key, object("n", i));
+                    }
+                });
+                writers.add(writer);
+                writer.start();
+            }
+            for (Thread writer : writers) {
+                writer.join();
+            }
+            // Threads waiting for the disk at the same time are committed together
+            long syncs = store.getLog().getSyncCount();
+            assertTrue("syncs " + syncs, syncs < threads * changes);
+        }
+        try (DurableDataStore store = new DurableDataStore(directory, WriteAheadLog.Durability.SYNC, 1000)) {
+            for (int t = 0; t < threads; t++) {
+                assertEquals("{\"n\":" + changes + "}", store.get("key" + t).getJson());
+            }
+        }
+    }
+
+    @Test
+    public void testSnapshotReplacesLog() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        long version;
+        try (DurableDataStore store = new DurableDataStore(directory, WriteAheadLog.Durability.SYNC, 1000)) {
+            for (int i = 0; i < 100; i++) {
+                store.put("key" + i, object("n", i));
+            }
+            assertTrue(store.snapshot());
+            store.remove("key0", DataStore.ANY_VERSION);
+            store.merge("key1", object("m", 1), DataStore.ANY_VERSION);
+            store.put("new", object("n", -1));
+            version = store.get("key1").getVersion();
+        }
+        // The snapshot replaced the first segment, the changes after it are in the second
+        assertTrue(Files.exists(directory.resolve("snapshot-1.snap")));
+        assertFalse(Files.exists(directory.resolve("wal-1.log")));
+        assertTrue(Files.exists(directory.resolve("wal-2.log")));
+
+        for (int restart = 0; restart < 2; restart++) {
+            try (DurableDataStore store = new DurableDataStore(directory, WriteAheadLog.Durability.SYNC, 1000)) {
+                assertNull(store.get("key0"));
+                assertEquals("{\"n\":1,\"m\":1}", store.get("key1").getJson());
+                assertEquals(version, store.get("key1").getVersion());
+                assertEquals("{\"n\":99}", store.get("key99").getJson());
+                assertEquals("{\"n\":-1}", store.get("new").getJson());
+                int[] count = new int[1];
+                store.forEach((key, value) -> count[0]++);
+                assertEquals(100, count[0]);
+                // The second round starts from a snapshot merged from the first and the log
+                if (restart == 0) {
+                    assertTrue(store.snapshot());
+                    assertFalse(store.snapshot());
+                }
+            }
+        }
+        assertFalse(Files.exists(directory.resolve("snapshot-1.snap")));
+        assertTrue(Files.exists(directory.resolve("snapshot-2.snap")));
+    }
+
+    @Test
+    public void testUnreadValuesMoveToNewSnapshot() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        try (DurableDataStore store = new DurableDataStore(directory, WriteAheadLog.Durability.SYNC, 1000)) {
+            for (int i = 0; i < 10; i++) {
+                store.put("key" + i, object("n", i));
+            }
+            assertTrue(store.snapshot());
+        }
+        try (DurableDataStore store = new DurableDataStore(directory, WriteAheadLog.Durability.SYNC, 1000)) {
+            long version = store.get("key5").getVersion();
+            store.merge("key1", object("m", 1), DataStore.ANY_VERSION);
+            // The values nobody read are served from the new snapshot once the older one is gone
+            assertTrue(store.snapshot());
+            assertFalse(Files.exists(directory.resolve("snapshot-1.snap")));
+            assertEquals("{\"n\":5}", store.get("key5").getJson());
+            assertEquals(version, store.get("key5").getVersion());
+            assertEquals("{\"n\":1,\"m\":1}", store.get("key1").getJson());
+            store.put("key5", object("n", -5));
+            assertTrue(store.snapshot());
+            assertEquals("{\"n\":-5}", store.get("key5").getJson());
+            assertEquals("{\"n\":9}", store.get("key9").getJson());
+        }
+    }
+
+    @Test
+    public void testSnapshotsWhileWriting() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        int threads = 8;
+        int changes = 500;
+        try (DurableDataStore store = new DurableDataStore(directory, WriteAheadLog.Durability.NONE, 1000, 1)) {
+            List<Thread> writers = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                String prefix = "thread" + t + "-";
+                Thread writer = new Thread(() -> {
+                    for (int i = 1; i <= changes; i++) {
+                        store.put(prefix + i % 50, object("n", i));
+                        if (i % 7 == 0) {
+                            store.remove(prefix + (i + 25) % 50, DataStore.ANY_VERSION);
+                        }
+                    }
+                });
+                writers.add(writer);
+                writer.start();
+            }
+            for (Thread writer : writers) {
+                writer.join();
+            }
+        }
+        try (DurableDataStore store = new DurableDataStore(directory, WriteAheadLog.Durability.NONE, 1000)) {
+            for (int t = 0; t < threads; t++) {
+                for (int k = 0; k < 50; k++) {
+                    int last = changes - (changes - k) % 50;
+                    boolean removed = false;
+                    for (int i = last + 1; i <= changes; i++) {
+                        removed |= i % 7 == 0 && (i + 25) % 50 == k;
+                    }
+                    if (removed) {
+                        assertNull(store.get("thread" + t + "-" + k));
+                    } else {
+                        assertEquals("{\"n\":" + last + "}", store.get("thread" + t + "-" + k).getJson());
+                    }
+                }
+            }
+        }
+    }
+}